@@ -92,6 +92,9 @@ public class Get extends ClientApplication
             read_buffer = new byte[BLOCK_SIZE];
             output_stream = new FileOutputStream(destination);
             input_stream = new DFSInputStream(naming_server, source.path);
+            // The source is locked for shared access, so bytes read ahead
+            // cannot become stale before they are written out.
+            input_stream.setReadAhead(true);
 
             int             bytes_remaining = input_stream.available();
             int             bytes_to_transfer;
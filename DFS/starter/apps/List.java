@@ -1,7 +1,9 @@
 package apps;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import rmi.*;
 import naming.*;
 
 /** Lists files and directories.
@@ -97,29 +99,45 @@ public class List extends ClientApplication
                                          t.getMessage());
         }
 
+        // Check whether the path is a directory, list it and unlock it in one
+        // round trip. The unlock call is made even if the other calls fail.
+        Batch<Service>                  batch = Stub.batch(naming_server);
+        CompletableFuture<Boolean>      directory =
+            batch.call(service -> service.isDirectory(object.path));
+        CompletableFuture<String[]>     children =
+            batch.call(service -> service.list(object.path));
+        CompletableFuture<Void>         unlocked =
+            batch.run(service -> service.unlock(object.path, false));
+
+        // A network failure completes every call of the batch with the same
+        // exception, which is reported below.
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            batch.execute();
+        }
+        catch(RMIException e) { }
+
+        try
+        {
+            unlocked.join();
+        }
+        catch(CompletionException e)
+        {
+            fatal("could not unlock " + object + ": " +
+                  e.getCause().getMessage());
+        }
+
+        try
+        {
+            if(directory.join())
+                components = children.join();
             else
                 components = new String[] {object.path.last()};
         }
-        catch(Throwable t)
+        catch(CompletionException e)
         {
             throw new ApplicationFailure("cannot list " + object + ": " +
-                                         t.getMessage());
-        }
-        finally
-        {
-            // In all cases, make an effort to unlock the path.
-            try
-            {
-                naming_server.unlock(object.path, false);
-            }
-            catch(Throwable t)
-            {
-                fatal("could not unlock " + object + ": " + t.getMessage());
-            }
+                                         e.getCause().getMessage());
         }
 
         // Sort the array of components that is returned by list and print it.
@@ -1,5 +1,8 @@
 package apps;
 
+import java.io.*;
+import java.nio.file.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +10,19 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application takes two optional arguments,
+    <code>--virtual-threads</code> and <code>--unix-socket-dir</code>
+    <i>directory</i>. It starts a naming server listening on the default client
+    and registration ports for clients and storage servers, respectively. With
+    <code>--virtual-threads</code>, the server serves remote calls in virtual
+    threads where the Java runtime provides them.
+
+    <p>
+    With <code>--unix-socket-dir</code>, the server also accepts calls on Unix
+    domain sockets in the given directory, and calls storage servers started
+    with the same directory through their sockets. The directory is created if
+    it does not exist, and must be private to the user running the server. On
+    Java runtimes without Unix domain sockets, all calls use TCP.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +45,45 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there are any command line arguments
+                                  other than <code>--virtual-threads</code>
+                                  and <code>--unix-socket-dir</code> followed
+                                  by a directory.
+        @throws IOException If the Unix domain socket directory cannot be
+                            created, or is not private to the current user.
         @throws RMIException If the naming server cannot be started.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, IOException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("usage: naming");
+        boolean     virtualThreads = false;
+        String      socketDirectory = null;
 
-        server = new StoppingNamingServer();
+        for(int index = 0; index < arguments.length; ++index)
+        {
+            if(arguments[index].equals("--virtual-threads"))
+                virtualThreads = true;
+            else if(arguments[index].equals("--unix-socket-dir") &&
+                    index + 1 < arguments.length)
+            {
+                socketDirectory = arguments[++index];
+            }
+            else
+            {
+                throw new BadUsageException("usage: naming " +
+                                            "[--virtual-threads] " +
+                                            "[--unix-socket-dir directory]");
+            }
+        }
+
+        if(socketDirectory != null)
+        {
+            Transports.setPreferred(
+                new UnixDomainTransport(Paths.get(socketDirectory)));
+        }
+
+        server = new StoppingNamingServer(virtualThreads);
         server.start();
     }
 
@@ -56,6 +97,15 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates the application naming server.
+
+            @param virtualThreads Whether to use virtual threads.
+         */
+        StoppingNamingServer(boolean virtualThreads)
+        {
+            super(virtualThreads);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
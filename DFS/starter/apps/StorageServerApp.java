@@ -2,6 +2,7 @@ package apps;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
 
 import rmi.*;
@@ -14,7 +15,8 @@ import storage.StorageServer;
     <p>
     The storage server application expects three arguments: in order, the
     local hostname, the hostname of the remote naming server, and the directory
-    that the storage server will use as its local storage for files.
+    that the storage server will use as its local storage for files. They may
+    be preceded by the option <code>--unix-socket-dir</code> <i>directory</i>.
 
     <p>
     The directory can be given as an absolute or a relative path. The current
@@ -31,6 +33,14 @@ import storage.StorageServer;
     <p>
     The user under which the storage server is run should have full read and
     write access to the directory in which the storage server is started.
+
+    <p>
+    With <code>--unix-socket-dir</code>, the storage server also accepts calls
+    on Unix domain sockets in the given directory, and calls a naming server
+    started on the same host with the same directory through its sockets. The
+    directory is created if it does not exist, and must be private to the user
+    running the server. On Java runtimes without Unix domain sockets, all calls
+    use TCP.
  */
 public class StorageServerApp extends ServerApplication
 {
@@ -54,7 +64,11 @@ public class StorageServerApp extends ServerApplication
 
         @param arguments The command line arguments.
         @throws BadUsageException If there are not three arguments on the
-                                  command line.
+                                  command line, after the optional
+                                  <code>--unix-socket-dir</code> and its
+                                  directory.
+        @throws IOException If the Unix domain socket directory cannot be
+                            created, or is not private to the current user.
         @throws UnknownHostException If a storage server stub cannot be created
                                      due to an unassigned address.
         @throws FileNotFoundException If the directory in which the storage
@@ -69,13 +83,30 @@ public class StorageServerApp extends ServerApplication
     @Override
     protected void startServer(String[] arguments)
         throws BadUsageException, UnknownHostException, FileNotFoundException,
-               RMIException
+               IOException, RMIException
     {
         // Check the command line arguments.
+        String          socket_directory = null;
+
+        if(arguments.length == 5 && arguments[0].equals("--unix-socket-dir"))
+        {
+            socket_directory = arguments[1];
+            arguments = Arrays.copyOfRange(arguments, 2, arguments.length);
+        }
+
         if(arguments.length != 3)
         {
-            throw new BadUsageException("usage: storage local_hostname " +
-                                        "naming_server directory");
+            throw new BadUsageException("usage: storage " +
+                                        "[--unix-socket-dir directory] " +
+                                        "local_hostname naming_server " +
+                                        "directory");
+        }
+
+        // Prefer Unix domain sockets for calls on this host if asked to.
+        if(socket_directory != null)
+        {
+            Transports.setPreferred(
+                new UnixDomainTransport(Paths.get(socket_directory)));
         }
 
         // Create the storage server object using the absolute version of the
@@ -1,7 +1,9 @@
 package apps;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import rmi.*;
 import common.*;
 import naming.*;
 
@@ -89,40 +91,46 @@ public class Touch extends ClientApplication
                                          t.getMessage());
         }
 
-        // Create the file, if it does not exist.
+        // Create the file, if it does not exist, and unlock the parent
+        // directory in one round trip. The result of createFile is ignored.
+        // This code relies on the behavior of isDirectory - this is because if
+        // the file already exists, createFile will fail, but the touch command
+        // does not fail in this case. The unlock call is made even if the
+        // other calls fail.
+        Batch<Service>                  batch = Stub.batch(naming_server);
+        batch.call(service -> service.createFile(file.path));
+        CompletableFuture<Boolean>      directory =
+            batch.call(service -> service.isDirectory(file.path));
+        CompletableFuture<Void>         unlocked =
+            batch.run(service -> service.unlock(parent, true));
+
+        // A network failure completes every call of the batch with the same
+        // exception, which is reported below.
         try
         {
-            // Ignore the result of createFile. This code relies on the behavior
-            // of isDirectory - this is because if the file already exists,
-            // createFile will fail, but the touch command does not fail in this
-            // case.
-            try
-            {
-                naming_server.createFile(file.path);
-            }
-            catch(Throwable t) { }
+            batch.execute();
+        }
+        catch(RMIException e) { }
 
-            if(naming_server.isDirectory(file.path))
-                throw new ApplicationFailure(file + " is a directory");
+        try
+        {
+            unlocked.join();
         }
-        catch(ApplicationFailure e) { throw e; }
-        catch(Throwable t)
+        catch(CompletionException e)
         {
-            throw new ApplicationFailure("cannot access " + file + ": " +
-                                         t.getMessage());
+            fatal("could not unlock " + file.parent() + ": " +
+                  e.getCause().getMessage());
         }
-        finally
+
+        try
         {
-            // Make an effort to unlock the parent directory.
-            try
-            {
-                naming_server.unlock(parent, true);
-            }
-            catch(Throwable t)
-            {
-                fatal("could not unlock " + file.parent() + ": " +
-                      t.getMessage());
-            }
+            if(directory.join())
+                throw new ApplicationFailure(file + " is a directory");
+        }
+        catch(CompletionException e)
+        {
+            throw new ApplicationFailure("cannot access " + file + ": " +
+                                         e.getCause().getMessage());
         }
     }
 }
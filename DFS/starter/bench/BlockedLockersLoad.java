@@ -0,0 +1,306 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import naming.*;
+import rmi.*;
+
+/** Load test measuring naming server threads and memory with many clients
+    blocked in <code>lock</code>.
+
+    <p>
+    The test starts a naming server in a separate JVM, so that its thread
+    count and memory are not mixed up with those of the clients. The driver
+    takes an exclusive lock on the root directory and then starts the given
+    number of lockers, each of which requests the same exclusive lock and
+    therefore blocks in the naming server. Once all lockers are waiting, the
+    server's live platform thread count, heap use after garbage collection,
+    and resident set size are reported. The root lock is then released and
+    the time for all lockers to acquire and release the lock in turn is
+    reported.
+
+    <p>
+    Usage:
+    <pre>
+    java bench.BlockedLockersLoad [lockers] [--virtual-threads]
+    </pre>
+    The default number of lockers is 10000. With
+    <code>--virtual-threads</code>, the naming server serves calls in virtual
+    threads. Both JVMs need one file descriptor per locker. The driver uses
+    virtual threads for its lockers where the runtime provides them.
+ */
+public class BlockedLockersLoad
+{
+    /** Default number of blocked lockers. */
+    private static final int        DEFAULT_LOCKERS = 10000;
+    /** Delay between starting lockers, in milliseconds. Lockers are ramped
+        up so that their connection attempts do not overflow the skeleton's
+        accept queue. */
+    private static final long       RAMP_DELAY = 1;
+    /** Time to wait for all lockers to block, in milliseconds. */
+    private static final long       BLOCK_TIMEOUT = 300000;
+    /** Argument starting the server side of the test. */
+    private static final String     SERVER_ARGUMENT = "--server";
+    /** Argument enabling virtual threads in the naming server. */
+    private static final String     VIRTUAL_ARGUMENT = "--virtual-threads";
+
+    /** Runs the driver, or the server side when started by the driver.
+
+        @param arguments Command line arguments.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int         lockers = DEFAULT_LOCKERS;
+        boolean     virtual = false;
+        boolean     server = false;
+
+        for(String argument : arguments)
+        {
+            if(argument.equals(VIRTUAL_ARGUMENT))
+                virtual = true;
+            else if(argument.equals(SERVER_ARGUMENT))
+                server = true;
+            else
+                lockers = Integer.parseInt(argument);
+        }
+
+        if(server)
+            runServer(virtual);
+        else
+            runDriver(lockers, virtual);
+    }
+
+    /** Starts the naming server JVM, blocks the lockers, and prints the
+        measurements.
+
+        @param lockers Number of lockers to block.
+        @param virtual Whether the naming server uses virtual threads.
+     */
+    private static void runDriver(int lockers, boolean virtual)
+        throws Exception
+    {
+        String          java = System.getProperty("java.home") +
+                               File.separator + "bin" + File.separator +
+                               "java";
+        List<String>    command = new ArrayList<>(Arrays.asList(
+            java, "-cp", System.getProperty("java.class.path"),
+            BlockedLockersLoad.class.getName(), SERVER_ARGUMENT));
+
+        if(virtual)
+            command.add(VIRTUAL_ARGUMENT);
+
+        Process         process = new ProcessBuilder(command)
+                                    .redirectError(ProcessBuilder.Redirect
+                                                   .INHERIT)
+                                    .start();
+        BufferedReader  serverOutput =
+            new BufferedReader(new InputStreamReader(
+                process.getInputStream()));
+        PrintWriter     serverInput =
+            new PrintWriter(new OutputStreamWriter(process.getOutputStream()),
+                            true);
+
+        try
+        {
+            String      ready = serverOutput.readLine();
+            if(!"ready".equals(ready))
+                throw new IllegalStateException("naming server did not start");
+
+            System.out.println("lockers: " + lockers + ", naming server " +
+                               "threads: " +
+                               (virtual ? "virtual" : "platform"));
+            System.out.println("idle:    " +
+                               report(serverInput, serverOutput));
+
+            final Service       service = NamingStubs.service("127.0.0.1");
+            final Path          root = new Path();
+            final CountDownLatch    done = new CountDownLatch(lockers);
+            final AtomicInteger failures = new AtomicInteger();
+            final AtomicReference<Throwable>    firstFailure =
+                new AtomicReference<>();
+            ExecutorService     clients =
+                VirtualThreads.newPerTaskExecutor(true);
+
+            service.lock(root, true);
+
+            for(int locker = 0; locker < lockers; ++locker)
+            {
+                clients.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            service.lock(root, true);
+                            service.unlock(root, true);
+                        }
+                        catch(Throwable t)
+                        {
+                            failures.incrementAndGet();
+                            firstFailure.compareAndSet(null, t);
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    }
+                });
+
+                Thread.sleep(RAMP_DELAY);
+            }
+
+            String      blocked = null;
+            long        deadline = System.currentTimeMillis() + BLOCK_TIMEOUT;
+            while(System.currentTimeMillis() < deadline)
+            {
+                blocked = report(serverInput, serverOutput);
+                if(blocked.startsWith("waiting=" + lockers + " "))
+                    break;
+                Thread.sleep(500);
+            }
+
+            System.out.println("blocked: " + blocked);
+
+            long        start = System.nanoTime();
+            service.unlock(root, true);
+            done.await();
+            long        drain = System.nanoTime() - start;
+
+            System.out.println("drained in " +
+                               TimeUnit.NANOSECONDS.toMillis(drain) + " ms, " +
+                               failures.get() + " failed lockers");
+            if(firstFailure.get() != null)
+                System.out.println("first failure: " + firstFailure.get());
+            clients.shutdown();
+        }
+        finally
+        {
+            serverInput.println("exit");
+            process.waitFor();
+        }
+    }
+
+    /** Asks the server for a measurement.
+
+        @param serverInput Stream of commands to the server.
+        @param serverOutput Stream of replies from the server.
+        @return The measurement line.
+     */
+    private static String report(PrintWriter serverInput,
+                                 BufferedReader serverOutput)
+        throws IOException
+    {
+        serverInput.println("report");
+        return serverOutput.readLine();
+    }
+
+    /** Runs the naming server and answers measurement requests read from
+        standard input until <code>exit</code> is read.
+
+        @param virtual Whether the naming server uses virtual threads.
+     */
+    private static void runServer(boolean virtual) throws Exception
+    {
+        CountingNamingServer    server = new CountingNamingServer(virtual);
+        BufferedReader          commands =
+            new BufferedReader(new InputStreamReader(System.in));
+
+        server.start();
+        System.out.println("ready");
+
+        String                  command;
+        while((command = commands.readLine()) != null &&
+              !command.equals("exit"))
+        {
+            System.out.println("waiting=" + server.waiting.get() + " " +
+                               measure());
+        }
+
+        server.stop();
+        System.exit(0);
+    }
+
+    /** Measures the threads and memory of this JVM.
+
+        @return The measurements, formatted for printing.
+     */
+    private static String measure()
+    {
+        ThreadMXBean    threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean    memory = ManagementFactory.getMemoryMXBean();
+
+        System.gc();
+
+        return "threads=" + threads.getThreadCount() +
+               " peakThreads=" + threads.getPeakThreadCount() +
+               " heapUsedMB=" +
+               memory.getHeapMemoryUsage().getUsed() / (1024 * 1024) +
+               " rssMB=" + residentSetSize();
+    }
+
+    /** Reads the resident set size of this process.
+
+        @return Resident set size in megabytes, or <code>"n/a"</code> where
+                it cannot be read.
+     */
+    private static String residentSetSize()
+    {
+        try(BufferedReader status =
+                new BufferedReader(new FileReader("/proc/self/status")))
+        {
+            String  line;
+            while((line = status.readLine()) != null)
+            {
+                if(line.startsWith("VmRSS:"))
+                {
+                    String  kilobytes = line.substring(6).trim().split(" ")[0];
+                    return Long.toString(Long.parseLong(kilobytes) / 1024);
+                }
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+        }
+
+        return "n/a";
+    }
+
+    /** Naming server counting the clients currently waiting in
+        <code>lock</code>. */
+    private static class CountingNamingServer extends NamingServer
+    {
+        /** Number of clients waiting for a lock. */
+        final AtomicInteger     waiting = new AtomicInteger();
+
+        /** Creates the server.
+
+            @param virtual Whether to use virtual threads.
+         */
+        CountingNamingServer(boolean virtual)
+        {
+            super(virtual);
+        }
+
+        /** Counts the caller as waiting until the lock is granted. */
+        @Override
+        public void lock(Path path, boolean exclusive)
+            throws FileNotFoundException, RMIException
+        {
+            waiting.incrementAndGet();
+            try
+            {
+                super.lock(path, exclusive);
+            }
+            finally
+            {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.file.Files;
+
+import common.*;
+import rmi.*;
+import rmi.io.*;
+import storage.*;
+
+/** Measures the throughput of 1 MB reads from a storage server.
+
+    <p>
+    A storage server is exported by a skeleton on the loopback interface, and
+    a single client repeatedly reads 1 MB from a file on it. The measurement
+    is repeated with each codec: the binary codec carries the returned array in
+    a bulk section, while the Java serialization codec copies it into the
+    serialized payload. For each codec, the benchmark prints the throughput in
+    MB/s and in MB per second of CPU time consumed by the process, client and
+    server together.
+
+    <p>
+    Usage:
+    <pre>
+    java bench.BulkReadThroughput [reads]
+    </pre>
+    The default is 2000 measured reads per codec, after an equal number of
+    warm-up reads.
+ */
+public class BulkReadThroughput
+{
+    /** Default number of measured reads. */
+    private static final int    DEFAULT_READS = 2000;
+    /** Size of each read. */
+    private static final int    READ_SIZE = 1024 * 1024;
+    /** Size of the file read. */
+    private static final int    FILE_SIZE = 16 * READ_SIZE;
+
+    /** Runs the benchmark.
+
+        @param arguments Command line arguments.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                 reads = (arguments.length > 0) ?
+                                    Integer.parseInt(arguments[0]) :
+                                    DEFAULT_READS;
+
+        File                root =
+            Files.createTempDirectory("bulk-read").toFile();
+        File                data = new File(root, "data");
+        try(FileOutputStream output = new FileOutputStream(data))
+        {
+            output.write(new byte[FILE_SIZE]);
+        }
+
+        Skeleton<Storage>   skeleton =
+            new Skeleton<Storage>(Storage.class, new StorageServer(root));
+        skeleton.start();
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort());
+        Path                file = new Path("/data");
+
+        System.out.printf("%-8s %10s %14s%n", "codec", "MB/s", "MB/cpu-s");
+
+        try
+        {
+            for(Codec codec : new Codec[] {new BinaryCodec(),
+                                           new JavaSerializationCodec()})
+            {
+                Codecs.setDefault(codec);
+                ConnectionPool.getShared().clear(address);
+                Storage     storage = Stub.create(Storage.class, address);
+
+                measure(storage, file, reads);
+                long        cpu = processCpuTime();
+                long        start = System.nanoTime();
+                measure(storage, file, reads);
+                long        elapsed = System.nanoTime() - start;
+                cpu = processCpuTime() - cpu;
+
+                double      megabytes = (double)reads * READ_SIZE /
+                                        (1024 * 1024);
+                System.out.printf("%-8s %10.0f %14s%n", codec.getName(),
+                                  megabytes * 1e9 / elapsed,
+                                  (cpu < 0) ? "n/a" :
+                                  String.format("%.0f", megabytes * 1e9 / cpu));
+            }
+        }
+        finally
+        {
+            skeleton.stop();
+            data.delete();
+            root.delete();
+        }
+    }
+
+    /** Reads 1 MB blocks from the file, cycling through it.
+
+        @param storage Stub for the storage server.
+        @param file File to read.
+        @param reads Number of reads.
+     */
+    private static void measure(Storage storage, Path file, int reads)
+        throws Exception
+    {
+        for(int read = 0; read < reads; ++read)
+        {
+            long    offset = (long)(read % (FILE_SIZE / READ_SIZE)) *
+                             READ_SIZE;
+            if(storage.read(file, offset, READ_SIZE).length != READ_SIZE)
+                throw new IOException("short read");
+        }
+    }
+
+    /** Returns the CPU time consumed by this process.
+
+        @return CPU time in nanoseconds, or -1 if the virtual machine does not
+                report it.
+     */
+    private static long processCpuTime()
+    {
+        OperatingSystemMXBean   system =
+            ManagementFactory.getOperatingSystemMXBean();
+
+        if(system instanceof com.sun.management.OperatingSystemMXBean)
+        {
+            return ((com.sun.management.OperatingSystemMXBean)system)
+                .getProcessCpuTime();
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+
+import common.*;
+import rmi.*;
+import rmi.io.*;
+import storage.*;
+
+/** Compares the encoded size and encoding latency of the RMI codecs.
+
+    <p>
+    For each of a set of representative naming and storage server messages,
+    the comparison prints the encoded size in bytes and the mean time to
+    encode and decode the message once, for the Java serialization codec and
+    for the binary codec.
+
+    <p>
+    Usage:
+    <pre>
+    java bench.CodecComparison [iterations]
+    </pre>
+    The default is 200000 iterations per message and codec, after an equal
+    number of warm-up iterations.
+ */
+public class CodecComparison
+{
+    /** Default number of measured iterations. */
+    private static final int    DEFAULT_ITERATIONS = 200000;
+
+    /** Runs the comparison.
+
+        @param arguments Command line arguments.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                 iterations = (arguments.length > 0) ?
+                                         Integer.parseInt(arguments[0]) :
+                                         DEFAULT_ITERATIONS;
+        Codec[]             codecs = new Codec[] {new JavaSerializationCodec(),
+                                                  new BinaryCodec()};
+        InetSocketAddress   address =
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 7000);
+        Storage             storage = Stub.create(Storage.class, address);
+        Command             command = Stub.create(Command.class, address);
+
+        Path[]              files = new Path[100];
+        for(int index = 0; index < files.length; ++index)
+            files[index] = new Path("/directory/subdirectory/file" + index);
+
+        String[]            names = new String[20];
+        for(int index = 0; index < names.length; ++index)
+            names[index] = "file" + index + ".txt";
+
+        Object[][]          messages = new Object[][]
+        {
+            {"lock request", request("naming.Service.lock",
+                new Path("/directory/file.txt"), true)},
+            {"getStorage response", new RMIResponse(storage)},
+            {"list response", new RMIResponse(names)},
+            {"read 4 KB response", new RMIResponse(new byte[4096])},
+            {"register request", request("naming.Registration.register",
+                storage, command, files)},
+            {"exception response",
+                new RMIResponse(new FileNotFoundException("/missing"))}
+        };
+
+        System.out.printf("%-22s %-8s %10s %12s%n", "message", "codec",
+                          "bytes", "ns/round");
+
+        for(Object[] message : messages)
+        {
+            for(Codec codec : codecs)
+            {
+                int     size = codec.encode(message[1]).length;
+
+                measure(codec, message[1], iterations);
+                double  nanos = measure(codec, message[1], iterations);
+
+                System.out.printf("%-22s %-8s %10d %12.0f%n", message[0],
+                                  codec.getName(), size, nanos);
+            }
+        }
+    }
+
+    /** Creates a request.
+
+        @param methodName Qualified method name, hashed to stand in for the
+                          method identifier.
+        @param arguments Method arguments.
+        @return The request.
+     */
+    private static RMIRequest request(String methodName, Object... arguments)
+    {
+        return new RMIRequest(methodName.hashCode(), arguments);
+    }
+
+    /** Measures the mean time to encode and decode a message.
+
+        @param codec Codec to measure.
+        @param message Message to encode.
+        @param iterations Number of round trips.
+        @return Mean time per round trip, in nanoseconds.
+     */
+    private static double measure(Codec codec, Object message,
+                                  int iterations) throws Exception
+    {
+        long    checksum = 0;
+        long    start = System.nanoTime();
+
+        for(int iteration = 0; iteration < iterations; ++iteration)
+        {
+            Object  decoded = codec.decode(codec.encode(message));
+            checksum += decoded.hashCode() & 1;
+        }
+
+        long    elapsed = System.nanoTime() - start;
+
+        if(checksum < 0)
+            System.out.println(checksum);
+
+        return (double)elapsed / iterations;
+    }
+}
@@ -0,0 +1,380 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import rmi.*;
+
+/** Measures the throughput and allocation rate of remote method calls.
+
+    <p>
+    A skeleton is started on the loopback interface, and stubs call it in
+    closed loops for a fixed time after a warm-up period. The suite covers
+    calls without arguments or result, calls taking and returning a
+    <code>Path</code>, calls sending and returning arrays of 1 byte to 4 MB,
+    and calls without arguments made by 1 to 256 concurrent callers. For each
+    benchmark the suite prints the calls completed per second and the bytes
+    allocated by the whole process per call, client and server together.
+    Allocation is read from the per-thread counters of the JVM; threads that
+    terminate during a measurement are not counted, and the column is
+    <code>n/a</code> where the JVM does not provide the counters.
+
+    <p>
+    The output can be saved as a baseline, and given back to a later run to
+    print the change of each measurement against it, so that the effect of a
+    change to the RMI library can be compared benchmark by benchmark.
+
+    <p>
+    Stubs reach the skeleton over loopback TCP by default. With
+    <code>--transport unix</code> they connect to its Unix domain socket
+    instead, which requires Java 16 or later, with
+    <code>--transport memory</code> they connect over in-memory pipes, and
+    with <code>--transport local</code> calls are dispatched to the skeleton
+    directly. Comparing a run over another transport with a TCP baseline
+    gives the gain of that transport for each benchmark.
+
+    <p>
+    Usage:
+    <pre>
+    java bench.RmiBenchmark [seconds] [--transport tcp|unix|memory|local]
+                            [--baseline file]
+    </pre>
+    The default is 2 measured seconds per benchmark, after 1 second of
+    warm-up.
+ */
+public class RmiBenchmark
+{
+    /** Default measurement time per benchmark, in seconds. */
+    private static final int    DEFAULT_SECONDS = 2;
+    /** Array sizes sent by the payload benchmarks. */
+    private static final int[]  PAYLOAD_SIZES =
+        {1, 256, 4 * 1024, 64 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+    /** Numbers of concurrent callers of the null call benchmark, beyond the
+        single caller measured first. */
+    private static final int[]  CALLERS = {4, 16, 64, 256};
+    /** Line format of the results. */
+    private static final String FORMAT = "%-8s %-8s %8s %14s %12s";
+
+    /** Per-thread allocation counters, or <code>null</code> if the JVM does
+        not provide them. */
+    private static final com.sun.management.ThreadMXBean    allocation =
+        allocationCounters();
+
+    /** Runs the suite.
+
+        @param arguments Command line arguments.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                 seconds = DEFAULT_SECONDS;
+        String              transport = "tcp";
+        Map<String, double[]>   baseline = null;
+
+        for(int index = 0; index < arguments.length; ++index)
+        {
+            if(arguments[index].equals("--baseline"))
+                baseline = readBaseline(arguments[++index]);
+            else if(arguments[index].equals("--transport"))
+                transport = arguments[++index];
+            else
+                seconds = Integer.parseInt(arguments[index]);
+        }
+
+        if(!Arrays.asList("tcp", "unix", "memory", "local")
+                .contains(transport))
+        {
+            throw new IllegalArgumentException("unknown transport " +
+                                               transport);
+        }
+        if(transport.equals("unix") && !UnixDomainTransport.isSupported())
+        {
+            throw new IllegalStateException("Unix domain sockets are not " +
+                                            "available in this runtime");
+        }
+
+        Stub.setLocalDispatch(transport.equals("local"));
+        if(transport.equals("unix"))
+            Transports.setPreferred(new UnixDomainTransport());
+        else if(transport.equals("memory"))
+            Transports.setPreferred(new InMemoryTransport());
+        else
+            Transports.setPreferred();
+
+        Skeleton<Service>   skeleton =
+            new Skeleton<Service>(Service.class, new Server());
+        skeleton.start();
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort());
+        Service             stub = Stub.create(Service.class, address);
+        Path                path = new Path("/directory/subdirectory/file");
+
+        System.out.println("# Java " + System.getProperty("java.version") +
+                           ", " + Runtime.getRuntime().availableProcessors() +
+                           " processors, " + seconds + " s per benchmark, " +
+                           transport + " transport");
+        System.out.println(String.format(FORMAT, "call", "param", "callers",
+                                         "calls/s", "B/call") +
+                           (baseline == null ? "" : "   vs baseline"));
+
+        try
+        {
+            run("null", "-", 1, seconds, baseline, () -> stub.ping());
+            run("path", "-", 1, seconds, baseline, () -> stub.touch(path));
+
+            for(int size : PAYLOAD_SIZES)
+            {
+                byte[]  data = new byte[size];
+                run("bytes", size(size), 1, seconds, baseline,
+                    () -> stub.echo(data));
+            }
+
+            for(int callers : CALLERS)
+            {
+                run("null", "-", callers, seconds, baseline,
+                    () -> stub.ping());
+            }
+        }
+        finally
+        {
+            skeleton.stop();
+        }
+    }
+
+    /** Runs one benchmark and prints its line of results.
+
+        @param name Name of the call.
+        @param parameter Parameter of the benchmark.
+        @param callers Number of concurrent callers.
+        @param seconds Measurement time, in seconds.
+        @param baseline Results to compare with, or <code>null</code>.
+        @param call The call to make.
+     */
+    private static void run(String name, String parameter, int callers,
+                            int seconds, Map<String, double[]> baseline,
+                            Call call) throws Exception
+    {
+        LongAdder           calls = new LongAdder();
+        AtomicBoolean       stopped = new AtomicBoolean();
+        AtomicReference<Exception>  failure = new AtomicReference<>();
+        Thread[]            threads = new Thread[callers];
+
+        for(int index = 0; index < callers; ++index)
+        {
+            threads[index] = new Thread(() ->
+            {
+                try
+                {
+                    while(!stopped.get())
+                    {
+                        call.make();
+                        calls.increment();
+                    }
+                }
+                catch(Exception e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[index].start();
+        }
+
+        Thread.sleep(1000);
+
+        long                startCalls = calls.sum();
+        long                startBytes = allocatedBytes();
+        long                start = System.nanoTime();
+
+        Thread.sleep(seconds * 1000L);
+
+        long                endCalls = calls.sum();
+        long                endBytes = allocatedBytes();
+        long                elapsed = System.nanoTime() - start;
+
+        stopped.set(true);
+        for(Thread thread : threads)
+            thread.join();
+
+        if(failure.get() != null)
+            throw failure.get();
+
+        long                completed = endCalls - startCalls;
+        double              rate = completed * 1e9 / elapsed;
+        double              bytes = (startBytes < 0 || completed == 0) ?
+                                    -1 : (double)(endBytes - startBytes) /
+                                         completed;
+        String              line =
+            String.format(FORMAT, name, parameter, callers,
+                          String.format("%.0f", rate),
+                          bytes < 0 ? "n/a" : String.format("%.0f", bytes));
+
+        if(baseline != null)
+        {
+            double[]        previous =
+                baseline.get(name + " " + parameter + " " + callers);
+            line += (previous == null) ? "   (new)" :
+                    "   " + change(rate, previous[0]) + " calls/s, " +
+                    change(bytes, previous[1]) + " B/call";
+        }
+
+        System.out.println(line);
+    }
+
+    /** Formats the change of a measurement against its baseline.
+
+        @param value Measured value, negative if unavailable.
+        @param previous Baseline value, negative if unavailable.
+        @return The change in percent, or <code>n/a</code>.
+     */
+    private static String change(double value, double previous)
+    {
+        if(value < 0 || previous <= 0)
+            return "n/a";
+
+        return String.format("%+.1f%%", (value - previous) * 100 / previous);
+    }
+
+    /** Reads the results of an earlier run.
+
+        @param name Name of the file holding the output of the earlier run.
+        @return Calls per second and bytes per call, by call, parameter and
+                number of callers.
+        @throws IOException If the file cannot be read.
+     */
+    private static Map<String, double[]> readBaseline(String name)
+        throws IOException
+    {
+        Map<String, double[]>   results = new HashMap<>();
+
+        try(BufferedReader reader = new BufferedReader(new FileReader(name)))
+        {
+            String      line;
+            while((line = reader.readLine()) != null)
+            {
+                String[]    fields = line.trim().split("\\s+");
+                if(fields.length < 5 || fields[0].equals("call") ||
+                   fields[0].startsWith("#"))
+                {
+                    continue;
+                }
+
+                double      bytes = fields[4].equals("n/a") ?
+                                    -1 : Double.parseDouble(fields[4]);
+                results.put(fields[0] + " " + fields[1] + " " + fields[2],
+                            new double[] {Double.parseDouble(fields[3]),
+                                          bytes});
+            }
+        }
+
+        return results;
+    }
+
+    /** Returns the bytes allocated so far by the live threads of the
+        process.
+
+        @return The number of bytes, or -1 if it cannot be read.
+     */
+    private static long allocatedBytes()
+    {
+        if(allocation == null)
+            return -1;
+
+        long        total = 0;
+        for(long bytes :
+                allocation.getThreadAllocatedBytes(
+                    allocation.getAllThreadIds()))
+        {
+            if(bytes > 0)
+                total += bytes;
+        }
+
+        return total;
+    }
+
+    /** Returns the per-thread allocation counters of the JVM, enabling them.
+
+        @return The counters, or <code>null</code> if not provided.
+     */
+    private static com.sun.management.ThreadMXBean allocationCounters()
+    {
+        ThreadMXBean    threads = ManagementFactory.getThreadMXBean();
+
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean counters =
+            (com.sun.management.ThreadMXBean)threads;
+        if(!counters.isThreadAllocatedMemorySupported())
+            return null;
+
+        counters.setThreadAllocatedMemoryEnabled(true);
+        return counters;
+    }
+
+    /** Formats an array size.
+
+        @param size Size in bytes.
+        @return The size with a unit.
+     */
+    private static String size(int size)
+    {
+        if(size >= 1024 * 1024)
+            return (size / (1024 * 1024)) + "MB";
+        if(size >= 1024)
+            return (size / 1024) + "KB";
+        return size + "B";
+    }
+
+    /** A call made by the callers of a benchmark. */
+    private interface Call
+    {
+        void make() throws Exception;
+    }
+
+    /** Remote interface called by the benchmarks. */
+    public interface Service
+    {
+        /** Does nothing. */
+        void ping() throws RMIException;
+
+        /** Returns its argument.
+
+            @param path Any path.
+            @return The path.
+         */
+        Path touch(Path path) throws RMIException;
+
+        /** Returns its argument.
+
+            @param data Any array.
+            @return The array.
+         */
+        byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Implementation of <code>Service</code>. */
+    private static class Server implements Service
+    {
+        @Override
+        public void ping()
+        {
+        }
+
+        @Override
+        public Path touch(Path path)
+        {
+            return path;
+        }
+
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -17,6 +18,13 @@ import storage.*;
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
 
+    <p>
+    When read-ahead is enabled, each read also starts an asynchronous request
+    for the same number of bytes following those read, so that the next
+    sequential read finds them already transferred. Read-ahead assumes the file
+    does not change while it is being read, and is therefore disabled by
+    default.
+
     <p>
     <code>DFSInputStream</code> does not support marks.
     <code>DFSInputStream</code> does not provide locking. This must be done
@@ -30,8 +38,10 @@ public class DFSInputStream extends InputStream
 {
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
+    /** Storage servers hosting the file, as one stub. */
     private final Storage   storage_server;
+    /** Storage server holding the first replica of the file. */
+    private final Storage   primary_server;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -43,6 +53,16 @@ public class DFSInputStream extends InputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Asynchronous stub for the storage server, used to read ahead;
+        <code>null</code> if read-ahead is disabled. */
+    private AsyncStub<Storage>          read_ahead = null;
+    /** Bytes being read ahead, or <code>null</code> if there are none. */
+    private CompletableFuture<byte[]>   prefetch = null;
+    /** Offset in the file of the bytes being read ahead. */
+    private long                        prefetch_offset;
+    /** Number of bytes being read ahead. */
+    private int                         prefetch_length;
+
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
         naming server.
 
@@ -62,10 +82,20 @@ public class DFSInputStream extends InputStream
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve stubs for the storage servers hosting the file. Streams
+        // to the same storage server share one multiplexed connection. With
+        // several replicas, reads are hedged across them, so that a slow
+        // storage server does not hold up the stream.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            Storage[]   replicas = naming_server.getStorages(file);
+
+            for(int index = 0; index < replicas.length; ++index)
+                replicas[index] = Stub.multiplexed(replicas[index]);
+
+            primary_server = replicas[0];
+            storage_server = (replicas.length == 1) ? primary_server
+                : Stub.group(Storage.class, replicas);
         }
         catch(RMIException e)
         {
@@ -154,6 +184,21 @@ public class DFSInputStream extends InputStream
         this(NamingStubs.service(hostname), new Path(filename));
     }
 
+    /** Enables or disables read-ahead.
+
+        <p>
+        Read-ahead should only be enabled while the file is locked for shared
+        access, so that no bytes are written to it between being read ahead and
+        being returned.
+
+        @param enabled <code>true</code> to read ahead of sequential reads.
+     */
+    public void setReadAhead(boolean enabled)
+    {
+        read_ahead = enabled ? Stub.async(primary_server) : null;
+        prefetch = null;
+    }
+
     /** Closes the input stream.
 
         <p>
@@ -164,6 +209,7 @@ public class DFSInputStream extends InputStream
     public void close()
     {
         closed = true;
+        prefetch = null;
     }
 
     /** Reads bytes from the input stream into a byte buffer.
@@ -238,7 +284,7 @@ public class DFSInputStream extends InputStream
 
         try
         {
-            result = storage_server.read(path, offset, read_length);
+            result = fetch(read_length);
             offset += read_length;
         }
         catch(FileNotFoundException e)
@@ -250,6 +296,19 @@ public class DFSInputStream extends InputStream
             throw new IOException("unable to contact storage server", e);
         }
 
+        // Start reading the bytes a sequential reader will ask for next.
+        if(read_ahead != null && offset < length)
+        {
+            final long  next_offset = offset;
+            final int   next_length =
+                (int)Math.min(read_length, length - offset);
+
+            prefetch = read_ahead.call(
+                storage -> storage.read(path, next_offset, next_length));
+            prefetch_offset = next_offset;
+            prefetch_length = next_length;
+        }
+
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
         for(int index = 0; index < read_length; ++index)
@@ -259,6 +318,48 @@ public class DFSInputStream extends InputStream
         return read_length;
     }
 
+    /** Retrieves bytes at the current stream offset from the storage server.
+
+        <p>
+        If the bytes have been read ahead, the result of the earlier request is
+        used. Otherwise, any bytes read ahead are dropped, and the bytes are
+        read in a new request.
+
+        @param read_length Number of bytes to retrieve. The bytes must be
+                           within the file.
+        @return An array starting with the requested bytes.
+        @throws FileNotFoundException If the file is missing on the storage
+                                      server.
+        @throws RMIException If the storage server cannot be contacted.
+        @throws IOException If a read error occurs on the storage server.
+     */
+    private byte[] fetch(int read_length) throws IOException, RMIException
+    {
+        CompletableFuture<byte[]>   ahead = prefetch;
+        prefetch = null;
+
+        if(ahead == null || prefetch_offset != offset ||
+           prefetch_length < read_length)
+        {
+            return storage_server.read(path, offset, read_length);
+        }
+
+        try
+        {
+            return ahead.join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+
+            if(e.getCause() instanceof RMIException)
+                throw (RMIException)e.getCause();
+
+            throw new RMIException(e.getCause());
+        }
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
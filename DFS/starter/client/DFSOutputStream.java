@@ -56,10 +56,11 @@ public class DFSOutputStream extends OutputStream
     public DFSOutputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve a stub for the storage server hosting the file. Streams
+        // to the same storage server share one multiplexed connection.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            storage_server = Stub.multiplexed(naming_server.getStorage(file));
         }
         catch(RMIException e)
         {
@@ -26,15 +26,32 @@ import test.*;
     <li>{@link conformance.naming.ReplicationTest}</li>
     <li>{@link conformance.naming.DeletionTest}</li>
     </ul>
+
+    <p>
+    With the argument <code>--transport memory</code>, stubs reach skeletons,
+    including those of the naming and storage servers, over in-memory pipes
+    instead of TCP.
  */
 public class ConformanceTests
 {
     /** Runs the tests.
 
-        @param arguments Ignored.
+        @param arguments Optionally <code>--transport memory</code>.
      */
     public static void main(String[] arguments)
     {
+        if(arguments.length == 2 && arguments[0].equals("--transport") &&
+           arguments[1].equals("memory"))
+        {
+            rmi.Transports.setPreferred(new rmi.InMemoryTransport());
+        }
+        else if(arguments.length != 0)
+        {
+            System.err.println("usage: java conformance.ConformanceTests " +
+                               "[--transport memory]");
+            System.exit(1);
+        }
+
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
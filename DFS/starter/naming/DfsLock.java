@@ -3,6 +3,7 @@ package naming;
 import common.Path;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Sreejith Unnikrishnan on 5/9/16.
@@ -34,7 +35,25 @@ public class DfsLock {
         notification.countDown();
     }
 
+    /** Checks whether the lock has been granted.
+
+        @return <code>true</code> if the lock is held.
+     */
+    public boolean isGranted() {
+        return notification.getCount() == 0;
+    }
+
     public void waitLock() throws InterruptedException {
         notification.await();
     }
+
+    /** Waits until the lock is granted, or the given time has passed.
+
+        @param timeoutMillis The time to wait, in milliseconds.
+        @return <code>true</code> if the lock was granted.
+        @throws InterruptedException If the thread is interrupted.
+     */
+    public boolean waitLock(long timeoutMillis) throws InterruptedException {
+        return notification.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
 }
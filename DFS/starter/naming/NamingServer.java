@@ -5,8 +5,10 @@ import java.net.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import common.DfsUtils;
 import rmi.*;
@@ -35,6 +37,14 @@ import storage.*;
     specifying the remote network address. To make this possible, the client and
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
+
+    <p>
+    Calls to <code>lock</code> block until the lock is granted, or until the
+    deadline of the call passes (see <code>rmi.Deadline</code>). A lock given up
+    at its deadline is released as soon as it is granted. When the server
+    is created with virtual threads enabled, such calls, and the replication
+    tasks started by the server, run in virtual threads, so that many waiting
+    clients do not each hold an operating system thread.
  */
 public class NamingServer implements Service, Registration
 {
@@ -46,7 +56,8 @@ public class NamingServer implements Service, Registration
     private Random random = new Random();
     private DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss:SSSZ");
     
-    private ExecutorService replicationThreadPool = Executors.newCachedThreadPool();
+    private boolean virtualThreads;
+    private ExecutorService replicationThreadPool;
 
     /** Creates the naming server object.
 
@@ -54,6 +65,22 @@ public class NamingServer implements Service, Registration
         The naming server is not started.
      */
     public NamingServer() {
+        this(false);
+    }
+
+    /** Creates the naming server object, optionally using virtual threads.
+
+        <p>
+        The naming server is not started. Virtual threads are only used if
+        the Java runtime provides them.
+
+        @param virtualThreads <code>true</code> to serve remote calls and run
+                              replication tasks in virtual threads.
+     */
+    public NamingServer(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        this.replicationThreadPool =
+            VirtualThreads.newPerTaskExecutor(virtualThreads);
     }
 
     /** Starts the naming server.
@@ -75,10 +102,12 @@ public class NamingServer implements Service, Registration
         try{
             InetSocketAddress regAddress = new InetSocketAddress(NamingStubs.REGISTRATION_PORT);
             registrationSkeleton = new Skeleton<>(Registration.class, this, regAddress);
+            registrationSkeleton.setVirtualThreads(virtualThreads);
             registrationSkeleton.start();
 
             InetSocketAddress serviceAddress = new InetSocketAddress(NamingStubs.SERVICE_PORT);
             serviceSkeleton = new Skeleton<>(Service.class, this, serviceAddress);
+            serviceSkeleton.setVirtualThreads(virtualThreads);
             serviceSkeleton.start();
         } finally {
             wasStartAttempted = true;
@@ -120,7 +149,8 @@ public class NamingServer implements Service, Registration
 
     // The following public methods are documented in Service.java.
     @Override
-    public void lock(Path path, boolean exclusive) throws FileNotFoundException
+    public void lock(Path path, boolean exclusive)
+        throws FileNotFoundException, RMIException
     {
 //    	System.out.println("Requesting for : " + path + ":" + exclusive);
         //DfsUtils.safePrintln("Attempt to lock, exclusive: "+exclusive+ " " +path.toString());
@@ -129,7 +159,13 @@ public class NamingServer implements Service, Registration
         //DfsUtils.safePrintln("Waiting for lock for "+path.toString());
         try {
 //        	System.out.println("waiting for : " + mainLock.lockedPath + ":" + mainLock.isExclusive);
-            mainLock.waitLock();
+            if (!Deadline.isSet()) {
+                mainLock.waitLock();
+            } else if (!mainLock.waitLock(Deadline.remainingMillis())) {
+                abandonLock(mainLock);
+                throw new RMITimeoutException("Lock on " + path
+                                              + " not granted before the deadline of the call.");
+            }
 //            System.out.println("Got lock on : " + mainLock.lockedPath + ":" + mainLock.isExclusive);
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -137,6 +173,24 @@ public class NamingServer implements Service, Registration
         //DfsUtils.safePrintln("Lock acuired for "+path.toString());
     }
 
+    /** Releases a client lock whose caller stopped waiting for it, as soon as
+        it is granted. The lock keeps its place in the queues until then, so
+        that the waiters behind it are granted in the same order. */
+    private void abandonLock(final DfsLock lock) {
+        try {
+            replicationThreadPool.execute(() -> {
+                try {
+                    lock.waitLock();
+                } catch (InterruptedException e) {
+                    return; // The server is shutting down.
+                }
+                releaseInternalLock(lock);
+            });
+        } catch (RejectedExecutionException e) {
+            // The server has stopped; nobody waits for the lock any more.
+        }
+    }
+
     private synchronized DfsLock propagateLock(Path path, boolean exclusive) throws FileNotFoundException {
         // TODO: check if path.isRoot
         TreeNode last = tryGetNodeFor(path);
@@ -176,8 +230,9 @@ public class NamingServer implements Service, Registration
 	        if(replicaManagementRequired) {
 		        DfsLock replicationLock = new DfsLock(createLockId(), path, exclusive, true);
 		        filesystem.addLock(replicationLock);
+		        last.replicationLocks.add(replicationLock);
 		        
-	        	Runnable task = new ReplicaManagementTask(this, path, last, !exclusive);
+	        	Runnable task = new ReplicaManagementTask(this, path, last, !exclusive, replicationLock);
 	        	replicationThreadPool.execute(task);
 	        }
         }
@@ -359,32 +414,175 @@ public class NamingServer implements Service, Registration
         if (isValidCreationPath(path)) {
             TreeNode node = tryGetNodeFor(path);
 
-            boolean result = true;
-            if(node.nodeType == TreeNode.NodeType.DIRECTORY) {
-            	for(StorageInfo info : availableStorages) {
-            		result = result && info.commandStub.delete(path);
-            	}
-            } else {
-	            for (StorageInfo info : node.storages) {
-	                result = info.commandStub.delete(path);
-	                if(result) {
-	                	info.paths.remove(path);
-	                }
-	            }
+            // Wait for replication tasks holding their locks, which may be
+            // copying or invalidating the files, but not for tasks still
+            // waiting for their locks: the caller may hold a lock they wait
+            // for. Those skip the files once they find them deleted.
+            synchronized (this) {
+                while (isReplicating(node)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RMIException(e);
+                    }
+                }
+                node.deletions++;
             }
-            
-            if(result) {
-        		removeFromTree(node);
-        	}
-            
+
+            try {
+                deleteLocked(path, node);
+            } finally {
+                synchronized (this) {
+                    node.deletions--;
+                }
+            }
+
             return true;
         }
         
         return false;
     }
 
+    private void deleteLocked(Path path, TreeNode node) throws RMIException {
+        boolean directory = node.nodeType == TreeNode.NodeType.DIRECTORY;
+        ArrayList<StorageInfo> targets;
+        synchronized (this) {
+            // Replication tasks add and remove replicas concurrently.
+            targets = new ArrayList<>(directory ? availableStorages
+                                                : node.storages);
+        }
+
+        // Delete from all storage servers at once rather than one by one.
+        ArrayList<CompletableFuture<Boolean>> deletions = new ArrayList<>();
+        for (StorageInfo info : targets) {
+            deletions.add(Stub.async(info.commandStub)
+                              .call(command -> command.delete(path)));
+        }
+
+        boolean result = true;
+        for (int i = 0; i < targets.size(); i++) {
+            boolean deleted = awaitCommand(deletions.get(i));
+            if (!directory && deleted) {
+                targets.get(i).paths.remove(path);
+            }
+            result = result && deleted;
+        }
+
+        if(result) {
+            removeFromTree(node);
+        }
+    }
+
+    /** Waits for the result of an asynchronous call to a storage server.
+
+        @param call The future of the call.
+        @return The result of the call.
+        @throws RMIException If the call failed.
+     */
+    static <R> R awaitCommand(CompletableFuture<R> call) throws RMIException {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RMIException) {
+                throw (RMIException) e.getCause();
+            }
+            throw new RMIException(e.getCause());
+        }
+    }
+
+    /** Checks whether replication tasks holding their locks have yet to
+        finish on a node or on any node below it. Locks are granted under the
+        naming server's monitor, so tasks that do not hold theirs cannot get
+        them while the caller holds it. */
+    private static boolean isReplicating(TreeNode node) {
+        for (DfsLock lock : node.replicationLocks) {
+            if (lock.isGranted()) {
+                return true;
+            }
+        }
+        for (TreeNode child : node.children.values()) {
+            if (isReplicating(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Checks that a replication task holding its lock may run on a file:
+        the file must not have been deleted, nor be being deleted, since the
+        task was scheduled. A task that may not run is finished at once.
+
+        @param node The node of the file.
+        @param lock The lock of the task.
+        @return <code>true</code> if the task may run, in which case it must
+                call <code>endReplication</code> once done.
+     */
+    synchronized boolean beginReplication(TreeNode node, DfsLock lock) {
+        for (TreeNode current = node; current != filesystem;
+             current = current.parent) {
+            if (current.deletions > 0 || current.parent == null
+                || current.parent.getChild(current.nodeName) != current) {
+                endReplication(node, lock);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Marks a replication task as finished on a file, and wakes deletions
+        waiting for it.
+
+        @param node The node of the file.
+        @param lock The lock of the task.
+     */
+    synchronized void endReplication(TreeNode node, DfsLock lock) {
+        node.replicationLocks.remove(lock);
+        notifyAll();
+    }
+
+    /** Releases a lock taken by the naming server itself, or abandoned by a
+        client. Nodes removed from the tree while the lock was held are
+        skipped. */
+    synchronized void releaseInternalLock(DfsLock lock) {
+        TreeNode current = filesystem;
+        current.removeLock(lock.id);
+        for (String component: lock.lockedPath){
+            current = current.getChild(component);
+            if (current == null) {
+                return;
+            }
+            current.removeLock(lock.id);
+        }
+    }
+
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException
+    {
+        TreeNode node = getFileNode(file);
+        
+        // TODO: ping the Storage Server before giving it to client. Maybe it's dead and file isn't available
+        
+        StorageInfo chosenStorageInfo = node.storages.get(0);
+        
+        return chosenStorageInfo.clientStub;
+    }
+
+    @Override
+    public Storage[] getStorages(Path file) throws FileNotFoundException
+    {
+        TreeNode node = getFileNode(file);
+
+        // Replica tasks change the list of storages under this lock.
+        synchronized (this) {
+            Storage[] stubs = new Storage[node.storages.size()];
+            for (int i = 0; i < stubs.length; i++) {
+                stubs[i] = node.storages.get(i).clientStub;
+            }
+            return stubs;
+        }
+    }
+
+    private TreeNode getFileNode(Path file) throws FileNotFoundException
     {
         if (file == null) {
             throw new NullPointerException("Given null Path argument");
@@ -396,12 +594,7 @@ public class NamingServer implements Service, Registration
         if (node.nodeType == TreeNode.NodeType.DIRECTORY){
             throw new FileNotFoundException("Expected path to file, found directory along the path " + file.toString());
         }
-        
-        // TODO: ping the Storage Server before giving it to client. Maybe it's dead and file isn't available
-        
-        StorageInfo chosenStorageInfo = node.storages.get(0);
-        
-        return chosenStorageInfo.clientStub;
+        return node;
     }
 
     // The method register is documented in Registration.java.
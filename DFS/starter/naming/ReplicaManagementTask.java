@@ -3,6 +3,9 @@ package naming;
 import common.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import rmi.*;
 import storage.*;
 
 /**
@@ -27,33 +30,67 @@ public class ReplicaManagementTask implements Runnable {
 	 */
 	private boolean isReplicationTask;
 
+	/**
+	 * The internal lock requested for this task. Several tasks may wait for
+	 * internal locks on the same file, so each must release its own.
+	 */
+	private DfsLock lock;
+
+	/**
+	 * The span of the call that started the task, so that the copies and
+	 * deletions it makes are traced with that call; {@code null} if the call
+	 * was not traced.
+	 */
+	private Trace.Context trace;
+
 	public ReplicaManagementTask(NamingServer namingServer, Path file, TreeNode node,
-			boolean isReplicationTask) {
+			boolean isReplicationTask, DfsLock lock) {
 		this.file = file;
 		this.node = node;
 		this.namingServer = namingServer;
 		this.currentStorageInfo = node.storages.get(0);
 		this.isReplicationTask = isReplicationTask;
+		this.lock = lock;
+		this.trace = Trace.current();
 	}
 
+	@SuppressWarnings("try") // The span traces the copies and deletions made.
 	public void run() {
+		try (Trace.Scope scope = Trace.resume(trace,
+				(isReplicationTask ? "replicate " : "invalidate ") + file)) {
+			manageReplicas();
+		}
+	}
+
+	private void manageReplicas() {
 
 		// TODO: perform replication or invalidation based on isReplicationTask;
 		// (try to) acquire locks accordingly for replication and invalidation
 		// on other servers
 		
 		// Lock was already requested
-		boolean isExclusiveLock = !isReplicationTask;
-		DfsLock lock = node.getInternalLock(file, isExclusiveLock);
-		
 		try {
-//			System.err.println("waiting to replicate : " + lock.lockedPath + ":" + isExclusiveLock);
+//			System.err.println("waiting to replicate : " + lock.lockedPath + ":" + lock.isExclusive);
             lock.waitLock();
-//            System.err.println("Beginning replication : " + lock.lockedPath + ":" + isExclusiveLock);
+//            System.err.println("Beginning replication : " + lock.lockedPath + ":" + lock.isExclusive);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-		
+
+		// The file may have been deleted while the task waited for its lock.
+		if (!namingServer.beginReplication(node, lock)) {
+			namingServer.releaseInternalLock(lock);
+			return;
+		}
+		try {
+			replicate();
+		} finally {
+			namingServer.endReplication(node, lock);
+			namingServer.releaseInternalLock(lock);
+		}
+	}
+
+	private void replicate() {
 		// Do file replication on new storage nodes
 		if (isReplicationTask) {
 			StorageInfo src = currentStorageInfo;
@@ -76,7 +113,9 @@ public class ReplicaManagementTask implements Runnable {
 				try {
 					dest.commandStub.copy(file, src.clientStub);
 					dest.addFile(node);
-		            node.storages.add(dest);
+					synchronized (namingServer) {
+						node.storages.add(dest);
+					}
 				} catch(Exception e) {
 					System.err.println("[ERROR] Replication on new storage nodes failed!");
 					e.printStackTrace();
@@ -86,32 +125,31 @@ public class ReplicaManagementTask implements Runnable {
 		} else {
 			StorageInfo src = currentStorageInfo;
 
-            HashSet<StorageInfo> availableStorages = namingServer.availableStorages;
-            Iterator<StorageInfo> it = availableStorages.iterator();
-            while(it.hasNext()) {
-                StorageInfo considerInfo = it.next();
-                Command consider = considerInfo.commandStub;
-                if (!consider.equals(src.commandStub) && considerInfo.paths.contains(node)) {
-					try {	
-							consider.delete(file);
-							node.storages.remove(considerInfo);
-							considerInfo.paths.remove(node);
-							
-					} catch (Exception e) {
-						System.err.println("[ERROR] Failed during invalidation of replicas");
-						e.printStackTrace();
+			// Invalidate all stale replicas at once rather than one by one.
+			ArrayList<StorageInfo> stale = new ArrayList<>();
+			ArrayList<CompletableFuture<Boolean>> deletions = new ArrayList<>();
+			for (StorageInfo considerInfo : namingServer.availableStorages) {
+				Command consider = considerInfo.commandStub;
+				if (!consider.equals(src.commandStub) && considerInfo.paths.contains(node)) {
+					stale.add(considerInfo);
+					deletions.add(Stub.async(consider).call(command -> command.delete(file)));
+				}
+			}
+
+			for (int i = 0; i < stale.size(); i++) {
+				StorageInfo considerInfo = stale.get(i);
+				try {
+					NamingServer.awaitCommand(deletions.get(i));
+					synchronized (namingServer) {
+						node.storages.remove(considerInfo);
 					}
+					considerInfo.paths.remove(node);
+				} catch (Exception e) {
+					System.err.println("[ERROR] Failed during invalidation of replicas");
+					e.printStackTrace();
 				}
-            }
-            
+			}
 		}
-		
-		TreeNode current = namingServer.filesystem;
-        current.removeLock(lock.id);
-        for (String component: file){
-            current = current.getChild(component);
-            current.removeLock(lock.id);
-        }
 	}
 
 }
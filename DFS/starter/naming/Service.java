@@ -2,6 +2,7 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -228,4 +229,23 @@ public interface Service
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all storage servers hosting a replica of a file.
+
+        <p>
+        The first stub is the one returned by <code>getStorage</code>. Clients
+        that only call <code>read</code> and <code>size</code> can combine the
+        stubs with <code>Stub.group</code>, so that a slow storage server does
+        not hold up their reads. The file should be locked for shared access
+        while the stubs are used.
+
+        @param file Path to the file.
+        @return Stubs for communicating with the storage servers.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public Storage[] getStorages(Path file)
+        throws RMIException, FileNotFoundException;
 }
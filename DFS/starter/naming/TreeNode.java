@@ -30,6 +30,11 @@ public class TreeNode {
     public LinkedList<DfsLock> currentLocks = new LinkedList<>();
     public LinkedList<DfsLock> pendingLocks = new LinkedList<>();
 
+    // Replication, guarded by the naming server
+    public ArrayList<DfsLock> replicationLocks = new ArrayList<>();
+    // Number of delete calls in progress on the node; several may overlap
+    public int deletions;
+
 
     public TreeNode(){
         this.nodeType = NodeType.DIRECTORY;
@@ -120,37 +125,23 @@ public class TreeNode {
     }
 
     public String getLockIdForRelease(Path path, boolean exclusive) {
+        // Internal locks are held by replication tasks and released by them;
+        // a client unlock must never release one of those.
         if (currentLocks.size() > 1){
             // currentLocks contain multiple read locks, let's find the one for curent path
             for (DfsLock dfsLock: currentLocks){
-                if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive){
+                if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive && !dfsLock.isInternal){
                     return dfsLock.id;
                 }
             }
             return null;
         } else if (currentLocks.size() > 0 && currentLocks.peek().isExclusive == exclusive &&
-                currentLocks.peek().lockedPath.equals(path)) {
+                currentLocks.peek().lockedPath.equals(path) && !currentLocks.peek().isInternal) {
             // only one lock, R or W, in the current locks available for release
             return currentLocks.peek().id;
         }
         return null;
     }
-    
-    public DfsLock getInternalLock(Path path, boolean exclusive) {
-    	for (DfsLock dfsLock: currentLocks){
-    		if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive && dfsLock.isInternal == true){
-                return dfsLock;
-            }
-        }
-    	
-    	for (DfsLock dfsLock: pendingLocks){
-    		if (dfsLock.lockedPath.equals(path) && dfsLock.isExclusive == exclusive && dfsLock.isInternal == true){
-                return dfsLock;
-            }
-        }
-    	
-    	return null;
-    }
 
 
     private void checkPendingQueue() {
@@ -0,0 +1,612 @@
+package rmi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+import rmi.io.RMIRequest;
+
+/**
+ * The admission limits of a skeleton: how many requests may execute at once,
+ * and how many more may wait for a slot.
+ *
+ * <p>
+ * Each request is admitted with {@link #admit()} as soon as it has been read,
+ * before it is handed to a thread, and joins the queue of its priority class
+ * with {@link #enter(Priority)} once decoded. Requests queued beyond the
+ * execution limit are parked by
+ * {@link #begin(RMIRequest, Priority, Executor, Runnable, Runnable)} without
+ * holding a thread, and started on their executor when a slot is released by
+ * {@link #end(Priority, long)}, or expired on it when their deadline passes.
+ * Once the execution slots and the queue are both full,
+ * {@link #admit()} fails, and the request is answered with an
+ * {@link RMIOverloadException} without being executed. Both limits are
+ * unbounded by default.
+ *
+ * <p>
+ * The queue includes requests waiting in the worker pool of the selector
+ * engine, and requests parked for a slot by either engine.
+ *
+ * <p>
+ * Each {@link Priority} class has execution and queue limits of its own
+ * besides the common ones, and {@link #enter(Priority)} rejects a request
+ * when its class is full even if the skeleton is not. When there are fewer
+ * free execution slots than requests able to take them, slots go to the
+ * classes by stride scheduling: each class advances by the inverse of its
+ * weight each time one of its requests starts, and the class furthest behind
+ * goes first. A class that was idle rejoins at the current position, so that
+ * idling earns it no credit.
+ */
+final class AdmissionControl {
+
+	/**
+	 * The smallest retry delay suggested to rejected clients, in
+	 * milliseconds.
+	 */
+	private static final long MIN_RETRY_MILLIS = 1;
+	/**
+	 * The largest retry delay suggested to rejected clients, in milliseconds.
+	 */
+	private static final long MAX_RETRY_MILLIS = 10000;
+	/**
+	 * The distance a class of weight one advances each time one of its
+	 * requests starts.
+	 */
+	private static final long STRIDE = 1 << 20;
+	/**
+	 * The timer expiring parked requests whose deadline passes, shared by all
+	 * skeletons.
+	 */
+	private static final Timer DEADLINES = new Timer("rmi-admission-deadlines", true);
+
+	/**
+	 * The number of requests that may execute at once.
+	 */
+	private int maxInFlight = Integer.MAX_VALUE;
+	/**
+	 * The number of requests that may wait for an execution slot.
+	 */
+	private int maxQueued = Integer.MAX_VALUE;
+	/**
+	 * The number of requests executing.
+	 */
+	private int inFlight = 0;
+	/**
+	 * The number of requests admitted and not executing yet.
+	 */
+	private int queued = 0;
+	/**
+	 * The largest number of queued requests seen.
+	 */
+	private int peakQueued = 0;
+	/**
+	 * The average execution time of requests, in nanoseconds, weighting
+	 * recent requests more.
+	 */
+	private long averageNanos = 0;
+	/**
+	 * The number of requests rejected.
+	 */
+	private final LongAdder rejected = new LongAdder();
+	/**
+	 * The number of requests not executed because their deadline passed.
+	 */
+	private final LongAdder expired = new LongAdder();
+	/**
+	 * The state of each priority class, by ordinal.
+	 */
+	private final Lane[] lanes;
+	/**
+	 * The position in the schedule of the class that last started a request.
+	 */
+	private long schedule = 0;
+
+	/**
+	 * Creates the limits of a skeleton, unbounded, with the default weight of
+	 * each priority class.
+	 */
+	AdmissionControl() {
+		Priority[] classes = Priority.values();
+		lanes = new Lane[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			lanes[i] = new Lane(classes[i].defaultWeight());
+		}
+	}
+
+	/**
+	 * Sets the number of requests that may execute at once. Requests already
+	 * executing are not affected.
+	 *
+	 * @param maxInFlight
+	 *            the limit.
+	 */
+	void setMaxInFlight(int maxInFlight) {
+		List<Waiter> started;
+		synchronized (this) {
+			this.maxInFlight = maxInFlight;
+			started = promote();
+		}
+		start(started);
+	}
+
+	/**
+	 * Returns the number of requests that may execute at once.
+	 *
+	 * @return the limit
+	 */
+	synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the number of requests that may wait for an execution slot.
+	 * Requests already waiting are not affected.
+	 *
+	 * @param maxQueued
+	 *            the limit.
+	 */
+	synchronized void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Returns the number of requests that may wait for an execution slot.
+	 *
+	 * @return the limit
+	 */
+	synchronized int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * Sets the number of requests of a priority class that may execute at
+	 * once. Requests already executing are not affected.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @param maxInFlight
+	 *            the limit.
+	 */
+	void setMaxInFlight(Priority priority, int maxInFlight) {
+		List<Waiter> started;
+		synchronized (this) {
+			lanes[priority.ordinal()].maxInFlight = maxInFlight;
+			started = promote();
+		}
+		start(started);
+	}
+
+	/**
+	 * Returns the number of requests of a priority class that may execute at
+	 * once.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @return the limit
+	 */
+	synchronized int getMaxInFlight(Priority priority) {
+		return lanes[priority.ordinal()].maxInFlight;
+	}
+
+	/**
+	 * Sets the number of requests of a priority class that may wait for an
+	 * execution slot. Requests already waiting are not affected.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @param maxQueued
+	 *            the limit.
+	 */
+	synchronized void setMaxQueued(Priority priority, int maxQueued) {
+		lanes[priority.ordinal()].maxQueued = maxQueued;
+	}
+
+	/**
+	 * Returns the number of requests of a priority class that may wait for an
+	 * execution slot.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @return the limit
+	 */
+	synchronized int getMaxQueued(Priority priority) {
+		return lanes[priority.ordinal()].maxQueued;
+	}
+
+	/**
+	 * Sets the weight of a priority class in the sharing of execution slots.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @param weight
+	 *            the weight, at least one.
+	 */
+	synchronized void setWeight(Priority priority, int weight) {
+		lanes[priority.ordinal()].weight = weight;
+	}
+
+	/**
+	 * Returns the weight of a priority class in the sharing of execution
+	 * slots.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @return the weight
+	 */
+	synchronized int getWeight(Priority priority) {
+		return lanes[priority.ordinal()].weight;
+	}
+
+	/**
+	 * Admits a request that has just been read, unless the skeleton is over
+	 * capacity. An admitted request must be passed to
+	 * {@link #enter(Priority)}, or given up with {@link #withdraw()}.
+	 *
+	 * @return {@code true} if the request is admitted
+	 */
+	synchronized boolean admit() {
+		if ((long) inFlight + queued >= (long) maxInFlight + maxQueued) {
+			rejected.increment();
+			return false;
+		}
+		queued++;
+		peakQueued = Math.max(peakQueued, queued);
+		return true;
+	}
+
+	/**
+	 * Places an admitted request in the queue of its priority class, unless
+	 * the class is over capacity.
+	 *
+	 * @param priority
+	 *            the class of the request.
+	 * @return {@code true} if the request is queued, and must be passed to
+	 *         {@link #begin(RMIRequest, Priority, Executor, Runnable, Runnable)};
+	 *         {@code false} if it is
+	 *         rejected, in which case it is no longer queued
+	 */
+	synchronized boolean enter(Priority priority) {
+		Lane lane = lanes[priority.ordinal()];
+		if ((long) lane.inFlight + lane.queued >= (long) lane.maxInFlight + lane.maxQueued) {
+			queued--;
+			rejected.increment();
+			return false;
+		}
+		if (lane.queued++ == 0) {
+			lane.pass = Math.max(lane.pass, schedule);
+		}
+		return true;
+	}
+
+	/**
+	 * Gives a queued request an execution slot, at once if one is free for
+	 * its class, otherwise once one is released. A request that cannot start
+	 * at once is parked without holding a thread: it is started by submitting
+	 * {@code start} to its executor when it gets a slot, or expired by
+	 * submitting {@code expire} to it if its deadline passes first.
+	 *
+	 * @param request
+	 *            the request.
+	 * @param priority
+	 *            the class the request was queued in.
+	 * @param executor
+	 *            the executor running the request once it is parked.
+	 * @param start
+	 *            runs the request holding a slot, which it must release with
+	 *            {@link #end(Priority, long)}.
+	 * @param expire
+	 *            answers the request once its deadline has passed, in which
+	 *            case it is no longer queued.
+	 * @return {@code true} if the request holds a slot, and the caller must
+	 *         run it; {@code false} if it is parked
+	 */
+	boolean begin(RMIRequest request, Priority priority, Executor executor, Runnable start, Runnable expire) {
+		final Waiter waiter = new Waiter(lanes[priority.ordinal()], executor, start, expire);
+		List<Waiter> started;
+		boolean now;
+		synchronized (this) {
+			waiter.lane.waiting.add(waiter);
+			started = promote();
+			now = started.remove(waiter);
+			if (!now && request.hasDeadline()) {
+				waiter.timeout = new TimerTask() {
+					@Override
+					public void run() {
+						timeOut(waiter);
+					}
+				};
+				DEADLINES.schedule(waiter.timeout, Math.max(0, request.getRemainingMillis()));
+			}
+		}
+		start(started);
+		return now;
+	}
+
+	/**
+	 * Hands free execution slots to parked requests. While the skeleton has a
+	 * free slot, the class furthest behind in the schedule among those with a
+	 * parked request and a free slot of their own starts its oldest request.
+	 *
+	 * @return the requests given a slot, to be started once the lock is
+	 *         released
+	 */
+	private List<Waiter> promote() {
+		List<Waiter> started = Collections.emptyList();
+		while (inFlight < maxInFlight) {
+			Lane next = null;
+			for (Lane lane : lanes) {
+				if (!lane.waiting.isEmpty() && lane.inFlight < lane.maxInFlight
+						&& (next == null || lane.pass - next.pass < 0)) {
+					next = lane;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+
+			Waiter waiter = next.waiting.poll();
+			if (waiter.timeout != null) {
+				waiter.timeout.cancel();
+			}
+			queued--;
+			next.queued--;
+			inFlight++;
+			next.inFlight++;
+			schedule = next.pass;
+			next.pass += STRIDE / next.weight;
+			if (started.isEmpty()) {
+				started = new ArrayList<>();
+			}
+			started.add(waiter);
+		}
+		return started;
+	}
+
+	/**
+	 * Starts the requests given a slot on their executors.
+	 *
+	 * @param started
+	 *            the requests.
+	 */
+	private static void start(List<Waiter> started) {
+		for (Waiter waiter : started) {
+			waiter.executor.execute(waiter.start);
+		}
+	}
+
+	/**
+	 * Expires a parked request whose deadline has passed, unless it was given
+	 * a slot in the meantime.
+	 *
+	 * @param waiter
+	 *            the request.
+	 */
+	private void timeOut(Waiter waiter) {
+		synchronized (this) {
+			if (!waiter.lane.waiting.remove(waiter)) {
+				return;
+			}
+			queued--;
+			waiter.lane.queued--;
+		}
+		expired.increment();
+		waiter.executor.execute(waiter.expire);
+	}
+
+	/**
+	 * Releases the execution slot of a request that has completed.
+	 *
+	 * @param priority
+	 *            the class of the request.
+	 * @param start
+	 *            the time at which the request started executing, in
+	 *            nanoseconds.
+	 */
+	void end(Priority priority, long start) {
+		long elapsed = System.nanoTime() - start;
+		List<Waiter> started;
+		synchronized (this) {
+			averageNanos = (averageNanos == 0) ? elapsed : averageNanos + (elapsed - averageNanos) / 8;
+			inFlight--;
+			lanes[priority.ordinal()].inFlight--;
+			started = promote();
+		}
+		start(started);
+	}
+
+	/**
+	 * Gives up an admitted request that will not be executed.
+	 */
+	synchronized void withdraw() {
+		queued--;
+	}
+
+	/**
+	 * Suggests how long a rejected client should wait before retrying: the
+	 * time needed to drain the requests ahead of it at the average execution
+	 * time.
+	 *
+	 * @return the delay in milliseconds
+	 */
+	synchronized long retryAfterMillis() {
+		long waves = ((long) inFlight + queued) / Math.max(1, Math.min(maxInFlight, inFlight)) + 1;
+		long millis = waves * averageNanos / 1000000;
+		return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, millis));
+	}
+
+	/**
+	 * Returns the number of requests executing.
+	 *
+	 * @return the number of requests
+	 */
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of requests of a priority class executing.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @return the number of requests
+	 */
+	synchronized int getInFlight(Priority priority) {
+		return lanes[priority.ordinal()].inFlight;
+	}
+
+	/**
+	 * Returns the number of requests admitted and not executing yet.
+	 *
+	 * @return the number of requests
+	 */
+	synchronized int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * Returns the number of requests of a priority class queued and not
+	 * executing yet.
+	 *
+	 * @param priority
+	 *            the class.
+	 * @return the number of requests
+	 */
+	synchronized int getQueued(Priority priority) {
+		return lanes[priority.ordinal()].queued;
+	}
+
+	/**
+	 * Returns the largest number of requests that have waited at once.
+	 *
+	 * @return the number of requests
+	 */
+	synchronized int getPeakQueued() {
+		return peakQueued;
+	}
+
+	/**
+	 * Returns the number of requests rejected.
+	 *
+	 * @return the number of requests
+	 */
+	long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Records a request not executed because its deadline had passed by the
+	 * time it held a slot.
+	 */
+	void expire() {
+		expired.increment();
+	}
+
+	/**
+	 * Returns the number of requests not executed because their deadline
+	 * passed.
+	 *
+	 * @return the number of requests
+	 */
+	long getExpired() {
+		return expired.sum();
+	}
+
+	/**
+	 * The limits and state of a priority class. Guarded by the admission
+	 * control.
+	 */
+	private static final class Lane {
+
+		/**
+		 * The number of requests of the class that may execute at once.
+		 */
+		int maxInFlight = Integer.MAX_VALUE;
+		/**
+		 * The number of requests of the class that may wait for an execution
+		 * slot.
+		 */
+		int maxQueued = Integer.MAX_VALUE;
+		/**
+		 * The weight of the class in the sharing of execution slots.
+		 */
+		int weight;
+		/**
+		 * The number of requests of the class executing.
+		 */
+		int inFlight = 0;
+		/**
+		 * The number of requests of the class queued and not executing yet.
+		 */
+		int queued = 0;
+		/**
+		 * The position of the class in the schedule.
+		 */
+		long pass = 0;
+		/**
+		 * The requests of the class parked for a slot, oldest first.
+		 */
+		final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+
+		/**
+		 * Creates the state of a class.
+		 *
+		 * @param weight
+		 *            the weight of the class.
+		 */
+		Lane(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A request parked for an execution slot. Guarded by the admission
+	 * control.
+	 */
+	private static final class Waiter {
+
+		/**
+		 * The class the request was queued in.
+		 */
+		final Lane lane;
+		/**
+		 * The executor running the request once it is parked.
+		 */
+		final Executor executor;
+		/**
+		 * Runs the request holding a slot.
+		 */
+		final Runnable start;
+		/**
+		 * Answers the request once its deadline has passed.
+		 */
+		final Runnable expire;
+		/**
+		 * The task expiring the request at its deadline, if it has one.
+		 */
+		TimerTask timeout;
+
+		/**
+		 * Creates a parked request.
+		 *
+		 * @param lane
+		 *            the class the request was queued in.
+		 * @param executor
+		 *            the executor running the request.
+		 * @param start
+		 *            runs the request holding a slot.
+		 * @param expire
+		 *            answers the request once its deadline has passed.
+		 */
+		Waiter(Lane lane, Executor executor, Runnable start, Runnable expire) {
+			this.lane = lane;
+			this.executor = executor;
+			this.start = start;
+			this.expire = expire;
+		}
+	}
+}
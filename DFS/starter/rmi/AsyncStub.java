@@ -0,0 +1,291 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * Asynchronous view of a remote object.
+ *
+ * <p>
+ * An asynchronous stub starts remote calls without waiting for them. Each
+ * call is written as a lambda expression that calls one remote method on the
+ * given object, for example
+ *
+ * <pre>
+ * CompletableFuture&lt;Boolean&gt; deleted = async.call(command -&gt; command.delete(path));
+ * </pre>
+ *
+ * The lambda expression is run immediately, against an object that only
+ * records which method was called and with which arguments. The call is then
+ * sent over the multiplexed connection to the skeleton, and the returned
+ * future is completed when the response arrives. No thread waits for the
+ * response: the future is completed by the reader thread of the connection,
+ * so starting many calls at once costs no more threads than starting one.
+ *
+ * <p>
+ * The future of a call that the remote method answers with an exception is
+ * completed exceptionally with that exception. If the call cannot be
+ * completed due to a network error, the future is completed exceptionally
+ * with an <code>RMIException</code>.
+ *
+ * <p>
+ * The future of a call to a {@link OneWay} method is completed as soon as the
+ * request has been written.
+ *
+ * <p>
+ * A call started within a {@link Deadline} carries it to the skeleton, which
+ * does not execute the call once the deadline has passed. The future itself is
+ * not completed when the deadline passes; callers bound their wait with
+ * <code>get(long, TimeUnit)</code>.
+ *
+ * <p>
+ * Actions chained to the futures without an executor may run in the reader
+ * thread of the connection, which reads no further responses until they
+ * return. Such actions must not block, and in particular must not wait for
+ * other calls to the same skeleton; blocking actions should be chained with
+ * one of the <code>Async</code> methods of <code>CompletableFuture</code>.
+ *
+ * @param <T>
+ *            the remote interface
+ */
+public final class AsyncStub<T> {
+
+	/**
+	 * The remote interface.
+	 */
+	private final Class<T> c;
+	/**
+	 * The address of the remote skeleton.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The remote methods of the interface.
+	 */
+	private final MethodTable methods;
+	/**
+	 * The invocation handler through which the cursors of streaming methods
+	 * are read.
+	 */
+	private final Stub.StubInvocationHandler handler;
+
+	/**
+	 * A remote call returning a value, expressed as a call on the remote
+	 * object.
+	 *
+	 * @param <T>
+	 *            the remote interface
+	 * @param <R>
+	 *            the return type of the remote method
+	 */
+	@FunctionalInterface
+	public interface Call<T, R> {
+		/**
+		 * Calls one remote method on the given object and returns its result.
+		 *
+		 * @param remote
+		 *            the object to call the method on.
+		 * @return the result of the method.
+		 * @throws Exception
+		 *             declared so that remote methods may be called directly.
+		 */
+		R apply(T remote) throws Exception;
+	}
+
+	/**
+	 * A remote call returning no value, expressed as a call on the remote
+	 * object.
+	 *
+	 * @param <T>
+	 *            the remote interface
+	 */
+	@FunctionalInterface
+	public interface Procedure<T> {
+		/**
+		 * Calls one remote method on the given object.
+		 *
+		 * @param remote
+		 *            the object to call the method on.
+		 * @throws Exception
+		 *             declared so that remote methods may be called directly.
+		 */
+		void apply(T remote) throws Exception;
+	}
+
+	/**
+	 * Creates an asynchronous stub. Callers use the factory methods of
+	 * {@link Stub}.
+	 *
+	 * @param c
+	 *            the remote interface.
+	 * @param address
+	 *            the address of the remote skeleton.
+	 */
+	AsyncStub(Class<T> c, InetSocketAddress address) {
+		this.c = c;
+		this.address = address;
+		this.methods = MethodTable.forInterface(c);
+		this.handler = new Stub.StubInvocationHandler(address, c, true);
+	}
+
+	/**
+	 * Starts a remote call returning a value.
+	 *
+	 * @param call
+	 *            lambda expression calling exactly one remote method on its
+	 *            argument.
+	 * @param <R>
+	 *            the return type of the remote method
+	 * @return a future completed with the result of the remote method.
+	 * @throws IllegalArgumentException
+	 *             if <code>call</code> does not call exactly one remote method.
+	 */
+	public <R> CompletableFuture<R> call(Call<? super T, R> call) {
+		RMIRequest request = CallRecorder.record(c, methods, call);
+
+		CompletableFuture<R> result = new CompletableFuture<>();
+		try {
+			Deadline.apply(request, 0);
+			Trace.apply(request);
+			Priority.apply(request);
+		} catch (RMITimeoutException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		send(request, result);
+		return result;
+	}
+
+	/**
+	 * Starts a remote call returning no value.
+	 *
+	 * @param procedure
+	 *            lambda expression calling exactly one remote method on its
+	 *            argument.
+	 * @return a future completed when the remote method returns.
+	 * @throws IllegalArgumentException
+	 *             if <code>procedure</code> does not call exactly one remote
+	 *             method.
+	 */
+	public CompletableFuture<Void> run(Procedure<? super T> procedure) {
+		return call(remote -> {
+			procedure.apply(remote);
+			return null;
+		});
+	}
+
+	/**
+	 * Sends a request built by the caller, such as a {@link StubGroup}.
+	 *
+	 * @param request
+	 *            the request, with its deadline applied.
+	 * @return a future completed with the result of the remote method.
+	 */
+	CompletableFuture<Object> send(RMIRequest request) {
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		send(request, result);
+		return result;
+	}
+
+	/**
+	 * Returns the remote interface of this stub.
+	 *
+	 * @return the remote interface.
+	 */
+	public Class<T> getRemoteInterface() {
+		return c;
+	}
+
+	/**
+	 * Returns the address of the skeleton this stub calls.
+	 *
+	 * @return the address of the remote skeleton.
+	 */
+	public InetSocketAddress getRemoteAddress() {
+		return address;
+	}
+
+	/**
+	 * Sends a request over the multiplexed connection to the skeleton, and
+	 * completes a future with its result when the response arrives.
+	 *
+	 * <p>
+	 * A request that never reached the skeleton whole, because its connection
+	 * had failed before or while it was written, is sent again on a new
+	 * connection, as is a request to an {@link Idempotent} method whose
+	 * reused connection failed. The calls are recorded in the method's client
+	 * {@link Metrics}, as those of other stubs.
+	 *
+	 * @param request
+	 *            the request to send.
+	 * @param result
+	 *            the future to complete.
+	 */
+	@SuppressWarnings("unchecked")
+	private <R> void send(RMIRequest request, CompletableFuture<R> result) {
+		ConnectionPool pool = ConnectionPool.getShared();
+		MultiplexedConnection connection;
+		try {
+			connection = pool.acquireMultiplexed(address);
+		} catch (IOException e) {
+			result.completeExceptionally(new RMIException(e));
+			return;
+		}
+
+		if (methods.getEntry(request.getMethodId()).oneWay) {
+			try {
+				connection.sendOneWay(request);
+				result.complete(null);
+			} catch (MultiplexedConnection.StaleConnectionException e) {
+				pool.discard(connection);
+				send(request, result);
+			} catch (IOException e) {
+				pool.discard(connection);
+				result.completeExceptionally(new RMIException(e));
+			}
+			return;
+		}
+
+		MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+		long start = System.nanoTime();
+		connection.send(request).whenComplete((RMIResponse response, Throwable failure) -> {
+			boolean resend = failure instanceof MultiplexedConnection.StaleConnectionException
+					|| (failure instanceof IOException && entry.idempotent && connection.isReused());
+			if (!resend) {
+				entry.clientMetrics().record(System.nanoTime() - start,
+						failure != null || response.getException() != null,
+						(response == null) ? 0 : response.getFrameLength(), request.getFrameLength());
+			}
+			if (failure == null) {
+				if (response.getException() == null) {
+					try {
+						result.complete((R) RemoteCursor.wrap(entry, response.getReturnValue(), handler));
+					} catch (RMIException e) {
+						result.completeExceptionally(e);
+					}
+				} else {
+					result.completeExceptionally((Throwable) response.getException());
+				}
+			} else if (resend) {
+				pool.discard(connection);
+				send(request, result);
+			} else {
+				pool.discard(connection);
+				result.completeExceptionally(new RMIException(failure));
+			}
+		});
+	}
+
+	/**
+	 * Returns a string representation of this stub.
+	 *
+	 * @return the interface name and skeleton address.
+	 */
+	@Override
+	public String toString() {
+		return "AsyncStub " + c.getName() + " @ " + address;
+	}
+}
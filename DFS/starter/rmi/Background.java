@@ -0,0 +1,25 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a remote method whose calls are background work: no client waits
+ * interactively for them.
+ *
+ * <p>
+ * A skeleton executes calls to the method in the {@link Priority#BACKGROUND}
+ * class, whatever the class of the caller, and the calls the method makes to
+ * other skeletons are sent in that class too. Background calls are bounded by
+ * the limits a skeleton sets for the class, and only get the share of the
+ * common execution slots its weight allows, so that they cannot delay the
+ * interactive calls of the same skeleton for long.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Background {
+}
@@ -0,0 +1,184 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import rmi.io.RMIBatchRequest;
+import rmi.io.RMIBatchResponse;
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * A sequence of remote calls sent to a skeleton in one round trip.
+ *
+ * <p>
+ * Calls are recorded with {@link #call(AsyncStub.Call)} and
+ * {@link #run(AsyncStub.Procedure)}, in the same way as calls are started on
+ * an {@link AsyncStub}, and are not sent until {@link #execute()} is called.
+ * The skeleton then executes the calls in the order they were recorded and
+ * answers with the results of all of them at once. For example, a client can
+ * check and list a directory it has locked, and unlock it, with
+ *
+ * <pre>
+ * Batch&lt;Service&gt; batch = Stub.batch(naming_server);
+ * CompletableFuture&lt;Boolean&gt; directory = batch.call(service -&gt; service.isDirectory(path));
+ * CompletableFuture&lt;String[]&gt; children = batch.call(service -&gt; service.list(path));
+ * batch.run(service -&gt; service.unlock(path, false));
+ * batch.execute();
+ * </pre>
+ *
+ * <p>
+ * Every call of the batch is executed, whether or not the calls before it
+ * threw an exception; the future of each call is completed with its own result
+ * or exception. A call that should only be made if an earlier call succeeds
+ * belongs in a later batch.
+ *
+ * <p>
+ * The batch is sent over the same kind of connection as calls made through
+ * the stub it was created from. A batch is not thread-safe. After
+ * <code>execute</code> returns, the batch is empty and may be reused.
+ *
+ * @param <T>
+ *            the remote interface
+ */
+public final class Batch<T> {
+
+	/**
+	 * The remote interface.
+	 */
+	private final Class<T> c;
+	/**
+	 * The invocation handler of the stub the batch was created from, which
+	 * sends the batch.
+	 */
+	private final Stub.StubInvocationHandler handler;
+	/**
+	 * The remote methods of the interface.
+	 */
+	private final MethodTable methods;
+	/**
+	 * The recorded calls, in order.
+	 */
+	private final ArrayList<RMIRequest> calls = new ArrayList<>();
+	/**
+	 * The futures of the recorded calls, in the order of the calls.
+	 */
+	private final ArrayList<CompletableFuture<Object>> results = new ArrayList<>();
+
+	/**
+	 * Creates an empty batch. Callers use {@link Stub#batch(Object)}.
+	 *
+	 * @param c
+	 *            the remote interface.
+	 * @param handler
+	 *            the invocation handler of the stub.
+	 */
+	Batch(Class<T> c, Stub.StubInvocationHandler handler) {
+		this.c = c;
+		this.handler = handler;
+		this.methods = MethodTable.forInterface(c);
+	}
+
+	/**
+	 * Records a remote call returning a value.
+	 *
+	 * @param call
+	 *            lambda expression calling exactly one remote method on its
+	 *            argument.
+	 * @param <R>
+	 *            the return type of the remote method
+	 * @return a future completed with the result of the remote method when the
+	 *         batch is executed.
+	 * @throws IllegalArgumentException
+	 *             if <code>call</code> does not call exactly one remote method.
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> CompletableFuture<R> call(AsyncStub.Call<? super T, R> call) {
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		calls.add(CallRecorder.record(c, methods, call));
+		results.add(result);
+		return (CompletableFuture<R>) (CompletableFuture<?>) result;
+	}
+
+	/**
+	 * Records a remote call returning no value.
+	 *
+	 * @param procedure
+	 *            lambda expression calling exactly one remote method on its
+	 *            argument.
+	 * @return a future completed when the batch is executed and the remote
+	 *         method has returned.
+	 * @throws IllegalArgumentException
+	 *             if <code>procedure</code> does not call exactly one remote
+	 *             method.
+	 */
+	public CompletableFuture<Void> run(AsyncStub.Procedure<? super T> procedure) {
+		return call(remote -> {
+			procedure.apply(remote);
+			return null;
+		});
+	}
+
+	/**
+	 * Returns the number of calls recorded and not yet executed.
+	 *
+	 * @return number of calls
+	 */
+	public int size() {
+		return calls.size();
+	}
+
+	/**
+	 * Sends the recorded calls to the skeleton in one request, waits for their
+	 * results, and completes the future of each call. The batch is then empty.
+	 *
+	 * <p>
+	 * Exceptions thrown by the remote methods complete the futures of their
+	 * calls, and are not thrown by this method.
+	 *
+	 * @throws RMIException
+	 *             if the batch cannot be completed due to a network error. The
+	 *             future of every call is then completed exceptionally with
+	 *             the same exception.
+	 */
+	public void execute() throws RMIException {
+		if (calls.isEmpty()) {
+			return;
+		}
+
+		RMIRequest[] sent = calls.toArray(new RMIRequest[calls.size()]);
+		ArrayList<CompletableFuture<Object>> pending = new ArrayList<>(results);
+		calls.clear();
+		results.clear();
+
+		RMIResponse response;
+		try {
+			response = handler.call(new RMIBatchRequest(sent));
+			if (!(response instanceof RMIBatchResponse)
+					|| ((RMIBatchResponse) response).getResults().length != sent.length) {
+				Exception exception = response.getException();
+				throw (exception instanceof RMIException) ? (RMIException) exception
+						: new RMIException("Malformed batch response.", exception);
+			}
+		} catch (RMIException e) {
+			for (CompletableFuture<Object> result : pending) {
+				result.completeExceptionally(e);
+			}
+			throw e;
+		}
+
+		RMIResponse[] responses = ((RMIBatchResponse) response).getResults();
+		for (int i = 0; i < responses.length; i++) {
+			if (responses[i].getException() == null) {
+				try {
+					pending.get(i).complete(RemoteCursor.wrap(methods.getEntry(sent[i].getMethodId()),
+							responses[i].getReturnValue(), handler));
+				} catch (RMIException e) {
+					pending.get(i).completeExceptionally(e);
+				}
+			} else {
+				pending.get(i).completeExceptionally(responses[i].getException());
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a remote method whose results may be reused for a while by the stub
+ * that obtained them.
+ *
+ * <p>
+ * A stub keeps the results of calls to cacheable methods, by method and
+ * arguments, for {@link #ttlMillis()} milliseconds, and answers repeated calls
+ * with the same arguments from its cache without contacting the skeleton. The
+ * cache of a stub is bounded both in results and in the estimated bytes they
+ * hold, and drops the least recently used results when full. It is shared with the stubs returned for it by
+ * {@link Stub#multiplexed(Object)} and {@link Stub#withTimeout(Object, long)},
+ * and emptied by {@link Stub#invalidate(Object)}. Exceptions thrown by the
+ * method are not cached.
+ *
+ * <p>
+ * A call through the stub to a method that is neither cacheable nor
+ * {@link Idempotent} may change what the cached results describe, and empties
+ * the cache, both before it is sent and once it completes. Changes made
+ * through other stubs, or by other clients, are seen once the results expire.
+ * Calls made through an {@link AsyncStub} or a {@link Batch} neither use nor
+ * empty the cache.
+ *
+ * <p>
+ * Arrays returned from the cache are copies, so that callers may modify them.
+ * Other results are shared by the calls answered from the cache, and should
+ * be immutable. The annotation is ignored on <code>void</code> methods and on
+ * methods streaming their results.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+
+	/**
+	 * Returns the time for which results are reused.
+	 *
+	 * @return the time, in milliseconds; results are not cached if it is not
+	 *         positive.
+	 */
+	long ttlMillis() default 1000;
+}
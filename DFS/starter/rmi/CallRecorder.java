@@ -0,0 +1,103 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import rmi.io.RMIRequest;
+
+/**
+ * Records the remote method called on a proxy of a remote interface, turning
+ * a lambda expression that calls one remote method into a request.
+ *
+ * <p>
+ * Used by {@link AsyncStub} and {@link Batch}, which send the recorded
+ * requests themselves.
+ */
+final class CallRecorder implements InvocationHandler {
+
+	/**
+	 * The remote methods of the interface.
+	 */
+	private final MethodTable methods;
+	/**
+	 * Identifier of the recorded method; {@code null} until a method is
+	 * called.
+	 */
+	private Integer methodId;
+	/**
+	 * The arguments of the recorded call.
+	 */
+	private Object[] arguments;
+
+	/**
+	 * Creates a recorder.
+	 *
+	 * @param methods
+	 *            the remote methods of the interface.
+	 */
+	private CallRecorder(MethodTable methods) {
+		this.methods = methods;
+	}
+
+	/**
+	 * Runs a lambda expression against a recording proxy and returns the
+	 * request for the remote method it called.
+	 *
+	 * @param c
+	 *            the remote interface.
+	 * @param methods
+	 *            the remote methods of the interface.
+	 * @param call
+	 *            lambda expression calling exactly one remote method on its
+	 *            argument.
+	 * @param <T>
+	 *            the remote interface
+	 * @return the request for the recorded call.
+	 * @throws IllegalArgumentException
+	 *             if <code>call</code> does not call exactly one remote method.
+	 */
+	static <T> RMIRequest record(Class<T> c, MethodTable methods, AsyncStub.Call<? super T, ?> call) {
+		CallRecorder recorder = new CallRecorder(methods);
+		try {
+			call.apply(c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, recorder)));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		if (recorder.methodId == null) {
+			throw new IllegalArgumentException("No remote method called.");
+		}
+		return new RMIRequest(recorder.methodId, recorder.arguments);
+	}
+
+	/**
+	 * Records a call and returns a default value of the method's return type.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the method is not a remote method, or if a method has
+	 *             already been called.
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		Integer id = methods.getId(method);
+		if (id == null) {
+			throw new IllegalArgumentException(method + " is not a remote method.");
+		}
+		if (methodId != null) {
+			throw new IllegalArgumentException("Only one remote method may be called at a time.");
+		}
+
+		methodId = id;
+		arguments = args;
+
+		Class<?> returnType = method.getReturnType();
+		if (returnType.isPrimitive() && returnType != void.class) {
+			return Array.get(Array.newInstance(returnType, 1), 0);
+		}
+		return null;
+	}
+}
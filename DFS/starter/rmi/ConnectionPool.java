@@ -0,0 +1,371 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Per-endpoint pool of open connections to skeletons.
+ *
+ * <p>
+ * Stubs obtain a {@link PooledConnection} with <code>acquire</code> for each
+ * remote call and hand it back with <code>release</code> once the response has
+ * been read. Idle connections are kept per skeleton address, up to
+ * <code>maxIdlePerEndpoint</code> of them, and are closed by a background
+ * eviction task once they have been idle for longer than
+ * <code>idleTimeout</code> milliseconds. Connections that fail the health
+ * check are discarded instead of being handed out.
+ *
+ * <p>
+ * The pool does not bound the number of connections in use: a caller is never
+ * made to wait for another call to complete, since remote calls such as
+ * <code>NamingServer.lock</code> may block for an arbitrary time.
+ *
+ * <p>
+ * The pool also holds at most one {@link MultiplexedConnection} per skeleton
+ * address, shared by all multiplexed stubs calling that skeleton. It is
+ * handed out by <code>acquireMultiplexed</code> without being removed, and is
+ * closed by the eviction task once no call has used it for longer than
+ * <code>idleTimeout</code>.
+ *
+ * <p>
+ * Stubs share the pool returned by <code>getShared</code>.
+ */
+public class ConnectionPool {
+
+	/**
+	 * Default number of idle connections kept open per skeleton address.
+	 */
+	public static final int DEFAULT_MAX_IDLE_PER_ENDPOINT = 8;
+	/**
+	 * Default time, in milliseconds, after which an idle connection is closed.
+	 * This is kept below the skeleton's idle timeout so that the client side
+	 * normally closes first.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	/**
+	 * The pool shared by all stubs in this JVM.
+	 */
+	private static final ConnectionPool shared = new ConnectionPool(DEFAULT_MAX_IDLE_PER_ENDPOINT,
+			DEFAULT_IDLE_TIMEOUT);
+
+	/**
+	 * Idle connections per skeleton address, most recently used last.
+	 */
+	private final HashMap<InetSocketAddress, ArrayDeque<PooledConnection>> idle = new HashMap<>();
+	/**
+	 * The multiplexed connection per skeleton address.
+	 */
+	private final HashMap<InetSocketAddress, MultiplexedConnection> multiplexed = new HashMap<>();
+	/**
+	 * Maximum number of idle connections kept per skeleton address.
+	 */
+	private int maxIdlePerEndpoint;
+	/**
+	 * Time, in milliseconds, after which an idle connection is closed.
+	 */
+	private long idleTimeout;
+	/**
+	 * The timer running the idle eviction task; created lazily.
+	 */
+	private Timer evictionTimer;
+
+	/**
+	 * Creates a connection pool.
+	 *
+	 * @param maxIdlePerEndpoint
+	 *            maximum number of idle connections kept per skeleton address;
+	 *            zero disables pooling.
+	 * @param idleTimeout
+	 *            time, in milliseconds, after which an idle connection is
+	 *            closed.
+	 * @throws IllegalArgumentException
+	 *             if either argument is negative, or the timeout is zero.
+	 */
+	public ConnectionPool(int maxIdlePerEndpoint, long idleTimeout) {
+		if (maxIdlePerEndpoint < 0 || idleTimeout <= 0) {
+			throw new IllegalArgumentException("Invalid connection pool limits.");
+		}
+
+		this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+		this.idleTimeout = idleTimeout;
+		this.evictionTimer = null;
+	}
+
+	/**
+	 * Returns the pool shared by all stubs.
+	 *
+	 * @return shared connection pool
+	 */
+	public static ConnectionPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Returns a healthy idle connection to the given address, or opens a new
+	 * one if none is available.
+	 *
+	 * @param address
+	 *            the skeleton address.
+	 * @return a connection owned by the caller until it is released or
+	 *         discarded.
+	 * @throws IOException
+	 *             if a new connection cannot be opened.
+	 */
+	public PooledConnection acquire(InetSocketAddress address) throws IOException {
+		synchronized (this) {
+			ArrayDeque<PooledConnection> connections = idle.get(address);
+			while (connections != null && !connections.isEmpty()) {
+				PooledConnection connection = connections.pollLast();
+				if (connection.isHealthy()
+						&& System.currentTimeMillis() - connection.getLastUsed() < idleTimeout) {
+					return connection;
+				}
+				connection.close();
+			}
+		}
+
+		return new PooledConnection(address);
+	}
+
+	/**
+	 * Returns a connection to the pool after a successful call. The
+	 * connection is closed instead if it is unhealthy or the pool for its
+	 * address is full.
+	 *
+	 * @param connection
+	 *            the connection to return.
+	 */
+	public void release(PooledConnection connection) {
+		if (!connection.isHealthy()) {
+			connection.close();
+			return;
+		}
+
+		synchronized (this) {
+			ArrayDeque<PooledConnection> connections = idle.get(connection.getAddress());
+			if (connections == null) {
+				connections = new ArrayDeque<>();
+				idle.put(connection.getAddress(), connections);
+			}
+
+			if (connections.size() < maxIdlePerEndpoint) {
+				connection.markIdle();
+				connections.addLast(connection);
+				scheduleEviction();
+				return;
+			}
+		}
+
+		connection.close();
+	}
+
+	/**
+	 * Closes a connection that failed during a call. It is not returned to the
+	 * pool.
+	 *
+	 * @param connection
+	 *            the failed connection.
+	 */
+	public void discard(PooledConnection connection) {
+		connection.close();
+	}
+
+	/**
+	 * Returns the multiplexed connection to the given address, opening it if
+	 * there is none or the previous one has been closed. The connection stays
+	 * shared; callers do not release it.
+	 *
+	 * @param address
+	 *            the skeleton address.
+	 * @return the open multiplexed connection
+	 * @throws IOException
+	 *             if a new connection cannot be opened.
+	 */
+	public MultiplexedConnection acquireMultiplexed(InetSocketAddress address) throws IOException {
+		synchronized (this) {
+			MultiplexedConnection connection = multiplexed.get(address);
+			if (connection != null && connection.isOpen()) {
+				return connection;
+			}
+		}
+
+		// Connect without holding the pool lock. If another caller connected
+		// at the same time, its connection is kept and this one closed.
+		MultiplexedConnection opened = new MultiplexedConnection(address);
+		synchronized (this) {
+			MultiplexedConnection connection = multiplexed.get(address);
+			if (connection == null || !connection.isOpen()) {
+				multiplexed.put(address, opened);
+				scheduleEviction();
+				return opened;
+			}
+			opened.close();
+			return connection;
+		}
+	}
+
+	/**
+	 * Closes a multiplexed connection that failed during a call, so that the
+	 * next call opens a new one.
+	 *
+	 * @param connection
+	 *            the failed connection.
+	 */
+	public void discard(MultiplexedConnection connection) {
+		synchronized (this) {
+			multiplexed.remove(connection.getAddress(), connection);
+		}
+		connection.close();
+	}
+
+	/**
+	 * Checks whether an open multiplexed connection to the given address is
+	 * held.
+	 *
+	 * @param address
+	 *            the skeleton address.
+	 * @return {@code true} if calls to the address share an open connection
+	 */
+	public synchronized boolean hasMultiplexed(InetSocketAddress address) {
+		MultiplexedConnection connection = multiplexed.get(address);
+		return connection != null && connection.isOpen();
+	}
+
+	/**
+	 * Closes all idle connections to the given address. Connections currently
+	 * in use are not affected.
+	 *
+	 * @param address
+	 *            the skeleton address.
+	 */
+	public void clear(InetSocketAddress address) {
+		ArrayDeque<PooledConnection> connections;
+		synchronized (this) {
+			connections = idle.remove(address);
+		}
+
+		if (connections != null) {
+			for (PooledConnection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of idle connections kept per skeleton address.
+	 * Zero disables pooling.
+	 *
+	 * @param maxIdlePerEndpoint
+	 *            the new limit.
+	 */
+	public synchronized void setMaxIdlePerEndpoint(int maxIdlePerEndpoint) {
+		if (maxIdlePerEndpoint < 0) {
+			throw new IllegalArgumentException("Idle connection limit cannot be negative.");
+		}
+		this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+	}
+
+	/**
+	 * Sets the time after which idle connections are closed.
+	 *
+	 * @param idleTimeout
+	 *            the new timeout in milliseconds.
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout <= 0) {
+			throw new IllegalArgumentException("Idle timeout must be positive.");
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Returns the number of idle connections currently held for an address.
+	 *
+	 * @param address
+	 *            the skeleton address.
+	 * @return number of idle connections
+	 */
+	public synchronized int idleCount(InetSocketAddress address) {
+		ArrayDeque<PooledConnection> connections = idle.get(address);
+		return (connections == null) ? 0 : connections.size();
+	}
+
+	/**
+	 * Starts the eviction timer if it is not already running. Must be called
+	 * while holding the pool lock.
+	 */
+	private void scheduleEviction() {
+		if (evictionTimer != null) {
+			return;
+		}
+
+		long period = Math.max(idleTimeout / 2, 1);
+		evictionTimer = new Timer("rmi-connection-pool-evictor", true);
+		evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Closes every idle connection that has been idle longer than the idle
+	 * timeout or fails the health check, and every multiplexed connection
+	 * that is closed or has carried no call for longer than the idle timeout.
+	 */
+	void evictIdle() {
+		ArrayList<PooledConnection> expired = new ArrayList<>();
+		ArrayList<MultiplexedConnection> unused = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			Iterator<Map.Entry<InetSocketAddress, ArrayDeque<PooledConnection>>> entries = idle.entrySet()
+					.iterator();
+			while (entries.hasNext()) {
+				ArrayDeque<PooledConnection> connections = entries.next().getValue();
+				Iterator<PooledConnection> it = connections.iterator();
+				while (it.hasNext()) {
+					PooledConnection connection = it.next();
+					if (!connection.isHealthy() || now - connection.getLastUsed() >= idleTimeout) {
+						it.remove();
+						expired.add(connection);
+					}
+				}
+
+				if (connections.isEmpty()) {
+					entries.remove();
+				}
+			}
+
+			Iterator<MultiplexedConnection> shared = multiplexed.values().iterator();
+			while (shared.hasNext()) {
+				MultiplexedConnection connection = shared.next();
+				if (!connection.isOpen()
+						|| (connection.getInFlight() == 0 && now - connection.getLastUsed() >= idleTimeout)) {
+					shared.remove();
+					unused.add(connection);
+				}
+			}
+			if (idle.isEmpty() && multiplexed.isEmpty() && evictionTimer != null) {
+				evictionTimer.cancel();
+				evictionTimer = null;
+			}
+		}
+
+		for (PooledConnection connection : expired) {
+			connection.close();
+		}
+		for (MultiplexedConnection connection : unused) {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package rmi;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * The open cursors of a skeleton: the streams and iterators returned by its
+ * streaming methods, read by clients in chunks.
+ *
+ * <p>
+ * A call to a streaming method answers with the identifier of a new cursor.
+ * The client then reads the cursor with requests to the reserved method
+ * {@link MethodTable#CURSOR_NEXT}, passing the identifier and the largest
+ * chunk it accepts, and answered with a <code>byte[]</code> for a stream or an
+ * <code>Object[]</code> for an iterator. A chunk shorter than requested is the
+ * last one, after which the cursor is closed. A client that stops early closes
+ * the cursor with {@link MethodTable#CURSOR_CLOSE}. Cursors that are not read
+ * for {@link Skeleton#connectionIdleTimeout} milliseconds are closed when the
+ * next cursor is opened, and all cursors are closed when the skeleton stops.
+ */
+final class CursorTable {
+
+	/**
+	 * The largest chunk of a stream, in bytes, that a client may request.
+	 */
+	static final int MAX_CHUNK_BYTES = 1024 * 1024;
+	/**
+	 * The largest chunk of an iterator, in elements, that a client may
+	 * request.
+	 */
+	static final int MAX_CHUNK_ELEMENTS = 4096;
+
+	/**
+	 * The open cursors, by identifier.
+	 */
+	private final ConcurrentHashMap<Long, Cursor> cursors = new ConcurrentHashMap<>();
+	/**
+	 * The identifier of the last cursor opened.
+	 */
+	private final AtomicLong lastId = new AtomicLong();
+
+	/**
+	 * Opens a cursor over the result of a streaming method.
+	 *
+	 * @param source
+	 *            the <code>InputStream</code> or {@link RemoteIterator}
+	 *            returned by the server object.
+	 * @return the identifier of the cursor
+	 */
+	long open(Object source) {
+		expire();
+
+		long id = lastId.incrementAndGet();
+		cursors.put(id, new Cursor(source));
+		return id;
+	}
+
+	/**
+	 * Executes a request to one of the reserved cursor methods.
+	 *
+	 * @param request
+	 *            a request to {@link MethodTable#CURSOR_NEXT} or
+	 *            {@link MethodTable#CURSOR_CLOSE}.
+	 * @return the response carrying the next chunk, or the exception thrown
+	 *         while reading or closing the cursor.
+	 */
+	RMIResponse execute(RMIRequest request) {
+		Object[] arguments = request.getArguments();
+
+		try {
+			if (arguments.length == 0 || !(arguments[0] instanceof Long)) {
+				throw new IllegalArgumentException("Missing cursor identifier.");
+			}
+			long id = (Long) arguments[0];
+
+			if (request.getMethodId() == MethodTable.CURSOR_CLOSE) {
+				Cursor cursor = cursors.remove(id);
+				if (cursor != null) {
+					cursor.close();
+				}
+				return new RMIResponse(null);
+			}
+
+			if (arguments.length != 2 || !(arguments[1] instanceof Integer)) {
+				throw new IllegalArgumentException("Missing chunk length.");
+			}
+
+			Cursor cursor = cursors.get(id);
+			if (cursor == null) {
+				throw new IllegalStateException("No open cursor " + id + "; it may have expired.");
+			}
+			return new RMIResponse(next(id, cursor, (Integer) arguments[1]));
+		} catch (Exception e) {
+			return new RMIResponse(e);
+		}
+	}
+
+	/**
+	 * Reads the next chunk of a cursor, and closes the cursor if the chunk is
+	 * the last one or reading fails.
+	 *
+	 * @param id
+	 *            the identifier of the cursor.
+	 * @param cursor
+	 *            the cursor.
+	 * @param length
+	 *            the largest chunk the client accepts.
+	 * @return the chunk
+	 * @throws Exception
+	 *             if the length is invalid, or the stream or iterator fails.
+	 */
+	private Object next(long id, Cursor cursor, int length) throws Exception {
+		boolean last = true;
+		try {
+			synchronized (cursor) {
+				cursor.lastUsed = System.currentTimeMillis();
+
+				Object chunk;
+				if (cursor.source instanceof InputStream) {
+					if (length <= 0 || length > MAX_CHUNK_BYTES) {
+						throw new IllegalArgumentException("Invalid chunk length " + length);
+					}
+					InputStream stream = (InputStream) cursor.source;
+					byte[] bytes = new byte[length];
+					int count = 0;
+					int read;
+					while (count < length && (read = stream.read(bytes, count, length - count)) >= 0) {
+						count += read;
+					}
+					last = count < length;
+					chunk = (count < length) ? Arrays.copyOf(bytes, count) : bytes;
+				} else {
+					if (length <= 0 || length > MAX_CHUNK_ELEMENTS) {
+						throw new IllegalArgumentException("Invalid chunk length " + length);
+					}
+					RemoteIterator<?> iterator = (RemoteIterator<?>) cursor.source;
+					ArrayList<Object> elements = new ArrayList<>();
+					while (elements.size() < length && iterator.hasNext()) {
+						elements.add(iterator.next());
+					}
+					last = elements.size() < length;
+					chunk = elements.toArray();
+				}
+
+				cursor.lastUsed = System.currentTimeMillis();
+				return chunk;
+			}
+		} finally {
+			if (last && cursors.remove(id, cursor)) {
+				cursor.closeQuietly();
+			}
+		}
+	}
+
+	/**
+	 * Closes every open cursor.
+	 */
+	void closeAll() {
+		Iterator<Map.Entry<Long, Cursor>> iterator = cursors.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Cursor cursor = iterator.next().getValue();
+			iterator.remove();
+			cursor.closeQuietly();
+		}
+	}
+
+	/**
+	 * Closes the cursors that have not been read for
+	 * {@link Skeleton#connectionIdleTimeout} milliseconds.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long, Cursor> entry : cursors.entrySet()) {
+			Cursor cursor = entry.getValue();
+			if (now - cursor.lastUsed > Skeleton.connectionIdleTimeout && cursors.remove(entry.getKey(), cursor)) {
+				cursor.closeQuietly();
+			}
+		}
+	}
+
+	/**
+	 * The result of a streaming method and the time it was last read.
+	 */
+	private static final class Cursor {
+
+		/**
+		 * The <code>InputStream</code> or {@link RemoteIterator} read.
+		 */
+		final Object source;
+		/**
+		 * The time the cursor was opened or last read.
+		 */
+		volatile long lastUsed;
+
+		Cursor(Object source) {
+			this.source = source;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Closes the stream or iterator.
+		 *
+		 * @throws Exception
+		 *             if closing fails.
+		 */
+		void close() throws Exception {
+			((AutoCloseable) source).close();
+		}
+
+		/**
+		 * Closes the stream or iterator, ignoring failures: the client has
+		 * either read everything or given up on the cursor.
+		 */
+		void closeQuietly() {
+			try {
+				close();
+			} catch (Exception e) {
+				// Nobody is left to report to.
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package rmi;
+
+import java.util.concurrent.TimeUnit;
+
+import rmi.io.RMIRequest;
+
+/**
+ * The deadline of the remote method calls made, or executed, by the current
+ * thread.
+ *
+ * <p>
+ * A client bounds the calls it makes in a block of code with
+ * {@link #within(long)}:
+ *
+ * <pre>
+ * try (Deadline.Scope scope = Deadline.within(500)) {
+ *     service.lock(path, false);
+ *     storage.read(path, 0, length);
+ * }
+ * </pre>
+ *
+ * Every call made in the block carries the deadline, and throws an
+ * {@link RMITimeoutException} if it passes before the response arrives.
+ * Stubs may also carry a timeout of their own, see
+ * {@link Stub#withTimeout(Object, long)}; the earlier of the two applies.
+ *
+ * <p>
+ * A skeleton executes each call with the deadline of its request as the
+ * deadline of the executing thread. Server objects read it with
+ * {@link #remainingMillis()} to bound their own waits, and calls they make to
+ * other servers inherit whatever is left of it, so the budget of the original
+ * client cascades through every server involved.
+ */
+public final class Deadline {
+
+	/**
+	 * The deadline of each thread, in {@link System#nanoTime()} terms;
+	 * {@code null} if calls are not bounded.
+	 */
+	private static final ThreadLocal<Long> current = new ThreadLocal<>();
+
+	private Deadline() {
+	}
+
+	/**
+	 * Bounds the calls made by the current thread until the returned scope is
+	 * closed. A deadline already set for the thread is kept if it is earlier.
+	 *
+	 * @param timeoutMillis
+	 *            the time allowed, in milliseconds, from now.
+	 * @return the scope, restoring the previous deadline when closed
+	 * @throws IllegalArgumentException
+	 *             if the timeout is negative.
+	 */
+	public static Scope within(long timeoutMillis) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative.");
+		}
+		return enter(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	/**
+	 * Checks whether the calls of the current thread are bounded.
+	 *
+	 * @return {@code true} if a deadline is set
+	 */
+	public static boolean isSet() {
+		return current.get() != null;
+	}
+
+	/**
+	 * Returns the time remaining until the deadline of the current thread,
+	 * rounded up.
+	 *
+	 * @return the time in milliseconds, zero once the deadline has passed, or
+	 *         <code>Long.MAX_VALUE</code> if no deadline is set
+	 */
+	public static long remainingMillis() {
+		Long deadline = current.get();
+		if (deadline == null) {
+			return Long.MAX_VALUE;
+		}
+		long remaining = deadline - System.nanoTime();
+		return (remaining <= 0) ? 0 : (remaining + 999999) / 1000000;
+	}
+
+	/**
+	 * Checks whether the deadline of the current thread has passed.
+	 *
+	 * @return {@code true} if a deadline is set and has passed
+	 */
+	public static boolean isExpired() {
+		Long deadline = current.get();
+		return deadline != null && deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Throws if the deadline of the current thread has passed, for server
+	 * objects to stop work nobody waits for any more.
+	 *
+	 * @throws RMITimeoutException
+	 *             if the deadline has passed.
+	 */
+	public static void check() throws RMITimeoutException {
+		if (isExpired()) {
+			throw new RMITimeoutException("Deadline of the call has passed.");
+		}
+	}
+
+	/**
+	 * Sets the deadline of a request from the current thread's deadline and a
+	 * timeout of the stub making it, whichever is earlier.
+	 *
+	 * @param request
+	 *            the request about to be sent.
+	 * @param timeoutMillis
+	 *            the timeout of the stub, or zero if it has none.
+	 * @throws RMITimeoutException
+	 *             if the deadline has already passed; the request must not be
+	 *             sent.
+	 */
+	static void apply(RMIRequest request, long timeoutMillis) throws RMITimeoutException {
+		Long deadline = current.get();
+		if (timeoutMillis > 0) {
+			long own = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			deadline = (deadline == null || own - deadline < 0) ? own : deadline;
+		}
+		if (deadline == null) {
+			return;
+		}
+
+		request.setDeadline(deadline);
+		if (request.isExpired()) {
+			throw new RMITimeoutException("Deadline passed before the call was sent.");
+		}
+	}
+
+	/**
+	 * Makes the deadline of a request the deadline of the current thread,
+	 * until the returned scope is closed: while a stub sends the request and
+	 * waits for its response, and while a skeleton executes it.
+	 *
+	 * @param request
+	 *            the request being sent or executed.
+	 * @return the scope, restoring the previous deadline when closed
+	 */
+	static Scope follow(RMIRequest request) {
+		Long previous = current.get();
+		if (request.hasDeadline()) {
+			current.set(request.getDeadline());
+		} else {
+			current.remove();
+		}
+		return new Scope(previous);
+	}
+
+	/**
+	 * Returns a timeout for a blocking socket operation: the time remaining
+	 * until the deadline of the current thread, or the given limit if it is
+	 * shorter.
+	 *
+	 * @param limitMillis
+	 *            the longest the operation may block, in milliseconds, or
+	 *            zero if it is not limited.
+	 * @return the timeout in milliseconds, at least one; zero if neither the
+	 *         deadline nor the limit bound the operation
+	 */
+	static int socketTimeout(int limitMillis) {
+		long remaining = remainingMillis();
+		if (remaining == Long.MAX_VALUE) {
+			return limitMillis;
+		}
+		if (limitMillis > 0) {
+			remaining = Math.min(remaining, limitMillis);
+		}
+		return (int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Sets the deadline of the current thread, unless an earlier one is set.
+	 *
+	 * @param deadline
+	 *            the deadline, in {@link System#nanoTime()} terms.
+	 * @return the scope, restoring the previous deadline when closed
+	 */
+	private static Scope enter(long deadline) {
+		Long previous = current.get();
+		if (previous == null || deadline - previous < 0) {
+			current.set(deadline);
+		}
+		return new Scope(previous);
+	}
+
+	/**
+	 * A block of code with a deadline, restoring the previous deadline of the
+	 * thread when closed.
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		/**
+		 * The deadline of the thread when the scope was entered.
+		 */
+		private final Long previous;
+
+		private Scope(Long previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null) {
+				current.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+	}
+}
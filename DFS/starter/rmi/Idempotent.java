@@ -0,0 +1,30 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a remote method as idempotent: calling it several times, on one or
+ * several equivalent remote objects, has the same effect as calling it once.
+ *
+ * <p>
+ * A {@link Stub#group(Class, Object[]) group stub} sends a call to an
+ * idempotent method to one of its endpoints, and sends it again to another
+ * endpoint if the first does not answer in time or fails; the first answer
+ * wins. Calls to other methods are only sent to the first endpoint.
+ *
+ * <p>
+ * A stub also sends a call to an idempotent method again on a new connection
+ * if the connection it was sent on had carried earlier calls and fails before
+ * the response is read, as it does when the skeleton closed it while idle.
+ * Calls to other methods are only sent again if their request was not written
+ * in full, since the skeleton may have executed them.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
@@ -0,0 +1,172 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport carrying connections over in-process pipes.
+ *
+ * <p>
+ * Skeletons started while this transport is preferred register with it under
+ * their TCP port, and stubs in the same JVM connecting to them are handed one
+ * end of a pair of {@link PipeSocket}s, whose other end the skeleton's
+ * listener serves. Calls then go through framing, the handshake and dispatch
+ * as over TCP, without the operating system's network stack. This lets a
+ * whole cluster run in one JVM, for example under tests, and transports be
+ * compared with {@link LocalDispatch} disabled.
+ *
+ * <p>
+ * Each instance has its own registry; stubs only reach skeletons that
+ * registered with the same instance.
+ */
+public final class InMemoryTransport implements Transport {
+
+	/**
+	 * The listening skeletons, by TCP port.
+	 */
+	private final ConcurrentMap<Integer, Endpoint> endpoints = new ConcurrentHashMap<>();
+	/**
+	 * The number of connections made, used to name their client ends.
+	 */
+	private final AtomicLong connections = new AtomicLong();
+
+	@Override
+	public String getName() {
+		return "memory";
+	}
+
+	/**
+	 * Opens a pipe to a skeleton registered with this transport.
+	 *
+	 * @param address
+	 *            the TCP address of the skeleton.
+	 * @param timeout
+	 *            unused; opening a pipe does not block.
+	 * @return the client end of the pipe, or {@code null} if no skeleton
+	 *         listens on the address here.
+	 */
+	@Override
+	public Socket connect(InetSocketAddress address, int timeout) {
+		Endpoint endpoint = endpoints.get(address.getPort());
+		if (endpoint == null || !endpoint.accepts(address)) {
+			return null;
+		}
+
+		PipeSocket[] ends = PipeSocket.pair(new Address("client-" + connections.incrementAndGet()),
+				endpoint.address);
+		endpoint.server.serve(ends[1]);
+		return ends[0];
+	}
+
+	/**
+	 * Registers a skeleton, replacing a skeleton registered earlier on the
+	 * same port.
+	 *
+	 * @param address
+	 *            the TCP address the skeleton is bound to.
+	 * @param server
+	 *            the listener serving the skeleton's connections.
+	 * @return the registration
+	 */
+	@Override
+	public Listener listen(InetSocketAddress address, Server server) {
+		Endpoint endpoint = new Endpoint(address, server);
+		endpoints.put(address.getPort(), endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * The address of one end of an in-memory connection.
+	 */
+	private static final class Address extends SocketAddress {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The name of the end.
+		 */
+		private final String name;
+
+		/**
+		 * Creates the address.
+		 *
+		 * @param name
+		 *            the name of the end.
+		 */
+		Address(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return "memory:" + name;
+		}
+	}
+
+	/**
+	 * The registration of a skeleton with the transport.
+	 */
+	private final class Endpoint implements Listener {
+
+		/**
+		 * The TCP address the skeleton is bound to.
+		 */
+		private final InetSocketAddress bindAddress;
+		/**
+		 * The listener serving the skeleton's connections.
+		 */
+		private final Server server;
+		/**
+		 * The address of the skeleton's end of connections.
+		 */
+		private final Address address;
+
+		/**
+		 * Creates the registration.
+		 *
+		 * @param bindAddress
+		 *            the TCP address the skeleton is bound to.
+		 * @param server
+		 *            the listener serving the skeleton's connections.
+		 */
+		Endpoint(InetSocketAddress bindAddress, Server server) {
+			this.bindAddress = bindAddress;
+			this.server = server;
+			this.address = new Address(Integer.toString(bindAddress.getPort()));
+		}
+
+		/**
+		 * Checks whether a stub connecting to an address reaches this
+		 * skeleton.
+		 *
+		 * @param target
+		 *            the address the stub connects to, on the skeleton's
+		 *            port.
+		 * @return {@code true} if the skeleton is bound to that address, or to
+		 *         the wildcard address and the target is on this host.
+		 */
+		boolean accepts(InetSocketAddress target) {
+			if (target.getAddress() == null) {
+				return false;
+			}
+			if (bindAddress.getAddress().isAnyLocalAddress()) {
+				return LocalDispatch.isLocal(target.getAddress());
+			}
+			return bindAddress.getAddress().equals(target.getAddress());
+		}
+
+		@Override
+		public SocketAddress getAddress() {
+			return address;
+		}
+
+		@Override
+		public void close() {
+			endpoints.remove(bindAddress.getPort(), this);
+		}
+	}
+}
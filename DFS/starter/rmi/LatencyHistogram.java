@@ -0,0 +1,115 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, recorded without allocation or locking.
+ *
+ * <p>
+ * Latencies are counted in buckets of logarithmic size: each power of two is
+ * split into {@link #SUB_BUCKETS} linear buckets, so a percentile read from
+ * the histogram is within an eighth of the recorded value, over the whole
+ * range of a <code>long</code>. Recording a value increments a single counter.
+ */
+final class LatencyHistogram {
+
+	/**
+	 * The number of bits of a value, after its leading one, that select its
+	 * bucket within its power of two.
+	 */
+	private static final int SUB_BITS = 3;
+	/**
+	 * The number of buckets per power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/**
+	 * The number of buckets, covering every non-negative <code>long</code>.
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/**
+	 * The number of values recorded in each bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value
+	 *            the value, in nanoseconds; negative values count as zero.
+	 */
+	void record(long value) {
+		counts.incrementAndGet(bucket(Math.max(0, value)));
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded values
+	 * fall.
+	 *
+	 * @param fraction
+	 *            the fraction, between zero and one.
+	 * @return the upper bound of the bucket holding the percentile; zero if
+	 *         no value has been recorded
+	 */
+	long percentile(double fraction) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		// Values recorded while counting.
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Clears the histogram.
+	 */
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 *
+	 * @param value
+	 *            the non-negative value.
+	 * @return the index of the bucket
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket.
+	 *
+	 * @param bucket
+	 *            the index of the bucket.
+	 * @return the value
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
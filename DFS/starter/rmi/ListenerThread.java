@@ -9,8 +9,12 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The listener thread that hosts the server socket and accepts and services
@@ -20,16 +24,16 @@ import java.util.concurrent.Executors;
  * @param <T>
  *            the generic remote interface this listener thread represents.
  */
-public class ListenerThread<T> extends Thread {
+public class ListenerThread<T> extends Thread implements SkeletonListener {
 
 	/**
 	 * The skeleton object that this listener thread instance represents.
 	 */
 	private Skeleton<T> container;
 	/**
-	 * The server object on which remote method calls are executed.
+	 * The dispatcher executing remote method calls on the server object.
 	 */
-	private T serverObject;
+	private RequestDispatcher<T> dispatcher;
 	/**
 	 * The remote interface class object represented by this listener thread.
 	 */
@@ -42,7 +46,7 @@ public class ListenerThread<T> extends Thread {
 	 * The boolean status representing if the listener thread is
 	 * running/listening or not.
 	 */
-	private boolean isActive;
+	private volatile boolean isActive;
 	/**
 	 * The cause due to which the listener thread terminated. {@code null} if
 	 * termination was requested and not due to an exception.
@@ -50,9 +54,17 @@ public class ListenerThread<T> extends Thread {
 	private Throwable cause;
 	/**
 	 * The thread pool running the worker threads that service individual remote
-	 * method calls.
+	 * method calls; either a cached pool of platform threads or a virtual
+	 * thread per task.
 	 */
-	private ExecutorService threadPool = Executors.newCachedThreadPool();
+	private ExecutorService threadPool;
+	/**
+	 * The tasks currently serving client connections. They are shut down when
+	 * the listener terminates so that idle persistent connections do not keep
+	 * the skeleton alive.
+	 */
+	private Set<MethodInvocationTask<T>> tasks = Collections
+			.newSetFromMap(new ConcurrentHashMap<MethodInvocationTask<T>, Boolean>());
 
 	/**
 	 * The constructor for the listener thread.
@@ -61,17 +73,21 @@ public class ListenerThread<T> extends Thread {
 	 *		The skeleton object
 	 * @param serverClass
 	 *		The class object of server
-	 * @param serverObject
-	 *		The generic server object
+	 * @param dispatcher
+	 *		The dispatcher executing requests on the server object
 	 * @param listenerSocket
 	 *		The listener socket
+	 * @param virtualThreads
+	 *		Whether to serve connections in virtual threads
 	 */
-	public ListenerThread(Skeleton<T> container, Class<T> serverClass, T serverObject, ServerSocket listenerSocket) {
+	public ListenerThread(Skeleton<T> container, Class<T> serverClass, RequestDispatcher<T> dispatcher,
+			ServerSocket listenerSocket, boolean virtualThreads) {
 		this.container = container;
-		this.serverObject = serverObject;
+		this.dispatcher = dispatcher;
 		this.serverClass = serverClass;
 		this.listenerSocket = listenerSocket;
-		this.isActive = false;
+		this.threadPool = VirtualThreads.newPerTaskExecutor(virtualThreads);
+		this.isActive = true;
 		this.cause = null;
 	}
 
@@ -80,7 +96,6 @@ public class ListenerThread<T> extends Thread {
 	 */
 	public void run() {
 
-		isActive = true;
 		while (isActive) {
 			Socket clientConnection = null;
 			try {
@@ -98,7 +113,8 @@ public class ListenerThread<T> extends Thread {
 						break;
 					}
 				} else {
-					// Do nothing; it is an expected behaviour.
+					// Expected behaviour; the socket was closed by terminate().
+					break;
 				}
 			} catch (IOException e) {
 				System.err.println("Failed to accept client connection: " + "ServerClass: " + serverClass.getName()
@@ -113,9 +129,13 @@ public class ListenerThread<T> extends Thread {
 				}
 			}
 
-			MethodInvocationTask<T> handler = new MethodInvocationTask<T>(container, serverObject, serverClass,
-					clientConnection);
-			threadPool.execute(handler);
+			if (clientConnection != null) {
+				serve(clientConnection);
+			}
+		}
+
+		for (MethodInvocationTask<T> task : tasks) {
+			task.shutdown();
 		}
 
 		//System.out.println("Shutting down thread pool...");
@@ -131,9 +151,80 @@ public class ListenerThread<T> extends Thread {
 		container.confirmTermination(cause);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void serve(SocketChannel channel) {
+		Socket socket;
+		try {
+			socket = new UnixDomainSocket(channel);
+		} catch (IOException e) {
+			container.service_error(new RMIException(e));
+			return;
+		}
+		serve(socket);
+	}
+
+	/**
+	 * Serves a client connection in a new {@link MethodInvocationTask}. The
+	 * connection is closed if the pool has been shut down.
+	 * 
+	 * @param clientConnection
+	 *            the accepted connection.
+	 */
+	@Override
+	public void serve(Socket clientConnection) {
+		MethodInvocationTask<T> handler = new MethodInvocationTask<T>(container, serverClass, dispatcher,
+				clientConnection, this);
+		tasks.add(handler);
+		try {
+			threadPool.execute(handler);
+		} catch (RejectedExecutionException e) {
+			tasks.remove(handler);
+			try {
+				clientConnection.close();
+			} catch (IOException ioe) {
+				// Nothing more can be done.
+			}
+		}
+	}
+
+	/**
+	 * Runs a request of a multiplexed connection in the listener's pool. The
+	 * pool is unbounded, so requests of every class share it.
+	 * 
+	 * @param task
+	 *            the request to run.
+	 * @param priority
+	 *            the class of the request.
+	 * @return {@code false} if the pool has been shut down.
+	 */
+	@Override
+	public boolean execute(Runnable task, Priority priority) {
+		try {
+			threadPool.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Called by a task when it stops serving its connection.
+	 * 
+	 * @param task
+	 *            the finished task.
+	 */
+	@Override
+	public void taskFinished(MethodInvocationTask<?> task) {
+		tasks.remove(task);
+	}
+
 	/**
 	 * The method to initiate termination of the listener thread.
 	 */
+	@Override
 	public void terminate() {
 		if (this.isActive) {
 			this.isActive = false;
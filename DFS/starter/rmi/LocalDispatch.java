@@ -0,0 +1,385 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import rmi.io.Codec;
+import rmi.io.Codecs;
+import rmi.io.RMIBatchRequest;
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * The static class short-circuiting calls from stubs to skeletons running in
+ * the same JVM.
+ *
+ * <p>
+ * Running skeletons are registered by port. Before sending a call, a stub
+ * looks up a skeleton listening on the port of its address; if there is one,
+ * and the address is one the skeleton accepts connections on from this host,
+ * the call is handed to the skeleton's {@link RequestDispatcher} directly,
+ * without a connection or framing. Admission limits, deadlines and server
+ * metrics apply as for calls read from the network.
+ *
+ * <p>
+ * Arguments and results keep the copy semantics of remote calls: the server
+ * object and the caller never share mutable objects. Values of immutable types
+ * - <code>null</code>, strings, primitive wrappers and stubs - are passed as
+ * they are, and <code>byte[]</code> values are cloned. A request or response
+ * carrying any other value is copied by encoding and decoding it with the
+ * default codec, in memory, which also rejects values that cannot be sent.
+ *
+ * <p>
+ * A call without a deadline is executed in the calling thread. Calls with a
+ * deadline, and one-way calls, are executed by a pool thread, so that the
+ * caller can give up at the deadline or go on without waiting, as it would on
+ * a connection. One-way calls to a skeleton are executed one at a time, in the
+ * order they were made, as they would be on a single connection.
+ */
+final class LocalDispatch {
+
+	/**
+	 * {@code true} if calls to local skeletons are short-circuited.
+	 */
+	private static volatile boolean enabled = false;
+	/**
+	 * The running skeletons, by port.
+	 */
+	private static final ConcurrentHashMap<Integer, Skeleton<?>> skeletons = new ConcurrentHashMap<>();
+	/**
+	 * Whether each address seen so far belongs to this host.
+	 */
+	private static final ConcurrentHashMap<InetAddress, Boolean> localAddresses = new ConcurrentHashMap<>();
+	/**
+	 * The one-way calls waiting for each local skeleton, by dispatcher.
+	 */
+	private static final ConcurrentHashMap<RequestDispatcher<?>, OneWayQueue> oneWayQueues = new ConcurrentHashMap<>();
+	/**
+	 * The threads executing one-way calls and calls with a deadline.
+	 */
+	private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "rmi-local-dispatch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private LocalDispatch() {
+	}
+
+	/**
+	 * Enables or disables the short-circuit. Disabled by default.
+	 *
+	 * @param enabled
+	 *            {@code true} to short-circuit calls to local skeletons.
+	 */
+	static void setEnabled(boolean enabled) {
+		LocalDispatch.enabled = enabled;
+	}
+
+	/**
+	 * Checks whether calls to local skeletons are short-circuited.
+	 *
+	 * @return {@code true} if enabled
+	 */
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Registers a skeleton that has started.
+	 *
+	 * @param skeleton
+	 *            the skeleton, bound to its address.
+	 */
+	static void register(Skeleton<?> skeleton) {
+		skeletons.put(skeleton.getBindAddress().getPort(), skeleton);
+	}
+
+	/**
+	 * Unregisters a skeleton that is stopping. Calls already handed to it
+	 * complete.
+	 *
+	 * @param skeleton
+	 *            the skeleton.
+	 */
+	static void unregister(Skeleton<?> skeleton) {
+		InetSocketAddress address = skeleton.getBindAddress();
+		if (address != null) {
+			skeletons.remove(address.getPort(), skeleton);
+		}
+		oneWayQueues.remove(skeleton.getDispatcher());
+	}
+
+	/**
+	 * Returns the dispatcher of the local skeleton reached by an address.
+	 *
+	 * @param address
+	 *            the address of a stub.
+	 * @return the dispatcher, or {@code null} if the call must be sent over
+	 *         a connection
+	 */
+	static RequestDispatcher<?> find(InetSocketAddress address) {
+		if (!enabled || skeletons.isEmpty()) {
+			return null;
+		}
+		Skeleton<?> skeleton = skeletons.get(address.getPort());
+		if (skeleton == null || address.getAddress() == null) {
+			return null;
+		}
+
+		InetAddress bound = skeleton.getBindAddress().getAddress();
+		InetAddress target = address.getAddress();
+		if (bound.isAnyLocalAddress() ? !isLocal(target) : !bound.equals(target)) {
+			return null;
+		}
+		return skeleton.getDispatcher();
+	}
+
+	/**
+	 * Executes a call on a local skeleton.
+	 *
+	 * @param dispatcher
+	 *            the dispatcher of the skeleton.
+	 * @param request
+	 *            the call, with its deadline applied.
+	 * @param oneWay
+	 *            {@code true} if the caller does not wait for the call.
+	 * @return the response; {@code null} for a one-way call
+	 * @throws RMITimeoutException
+	 *             if the deadline of the request passes before the call
+	 *             completes.
+	 * @throws RMIException
+	 *             if the arguments or the result cannot be copied.
+	 */
+	static RMIResponse call(RequestDispatcher<?> dispatcher, RMIRequest request, boolean oneWay)
+			throws RMIException {
+		RMIRequest copy = copy(request);
+		if (!dispatcher.admit()) {
+			return oneWay ? null : dispatcher.reject(copy);
+		}
+
+		if (oneWay) {
+			try {
+				oneWayQueues.computeIfAbsent(dispatcher, key -> new OneWayQueue())
+						.execute(() -> dispatcher.dispatch(copy));
+			} catch (RuntimeException e) {
+				dispatcher.withdraw();
+				throw new RMIException(e);
+			}
+			return null;
+		}
+
+		if (!copy.hasDeadline()) {
+			return copy(dispatcher.dispatch(copy));
+		}
+
+		Future<RMIResponse> response;
+		try {
+			response = executor.submit(() -> dispatcher.dispatch(copy));
+		} catch (RuntimeException e) {
+			dispatcher.withdraw();
+			throw new RMIException(e);
+		}
+
+		try {
+			return copy(response.get(Math.max(1, copy.getRemainingMillis()), TimeUnit.MILLISECONDS));
+		} catch (TimeoutException e) {
+			throw new RMITimeoutException("Local call did not complete before its deadline.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RMIException("Interrupted while waiting for a local call.", e);
+		} catch (ExecutionException e) {
+			throw new RMIException(e.getCause());
+		}
+	}
+
+	/**
+	 * Copies a request, unless all its arguments are immutable. Batches are
+	 * always copied.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return a request the server object may keep or modify the arguments
+	 *         of, with the same deadline
+	 * @throws RMIException
+	 *             if an argument cannot be encoded.
+	 */
+	private static RMIRequest copy(RMIRequest request) throws RMIException {
+		if (request instanceof RMIBatchRequest) {
+			return roundTrip(request);
+		}
+
+		Object[] arguments = request.getArguments();
+		Object[] copied = arguments.clone();
+		for (int i = 0; i < copied.length; i++) {
+			if (copied[i] instanceof byte[]) {
+				copied[i] = ((byte[]) copied[i]).clone();
+			} else if (!isImmutable(copied[i])) {
+				return roundTrip(request);
+			}
+		}
+
+		RMIRequest copy = new RMIRequest(request.getMethodId(), copied);
+		if (request.hasDeadline()) {
+			copy.setDeadline(request.getDeadline());
+		}
+		copy.setTrace(request.getTraceId(), request.getParentSpanId());
+		copy.setPriority(request.getPriority());
+		return copy;
+	}
+
+	/**
+	 * Copies a response, unless its return value is immutable.
+	 *
+	 * @param response
+	 *            the response, or {@code null}.
+	 * @return a response whose return value the caller may keep or modify
+	 * @throws RMIException
+	 *             if the response cannot be encoded.
+	 */
+	private static RMIResponse copy(RMIResponse response) throws RMIException {
+		if (response == null || response.getException() != null) {
+			// Exceptions are not shared with the server after they are thrown.
+			return response;
+		}
+
+		Object value = response.getReturnValue();
+		if (value instanceof byte[]) {
+			return new RMIResponse(((byte[]) value).clone());
+		}
+		return isImmutable(value) ? response : roundTrip(response);
+	}
+
+	/**
+	 * Copies a message by encoding and decoding it with the default codec.
+	 *
+	 * @param message
+	 *            the request or response.
+	 * @return the copy
+	 * @throws RMIException
+	 *             if the message cannot be encoded or decoded.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <M> M roundTrip(M message) throws RMIException {
+		Codec codec = Codecs.getDefault();
+		try {
+			M copy = (M) codec.decode(codec.encode(message));
+			if (message instanceof RMIRequest && ((RMIRequest) message).hasDeadline()) {
+				((RMIRequest) copy).setDeadline(((RMIRequest) message).getDeadline());
+			}
+			return copy;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RMIException(e);
+		}
+	}
+
+	/**
+	 * Checks whether a value may be shared by the caller and the server
+	 * object.
+	 *
+	 * @param value
+	 *            the value.
+	 * @return {@code true} if the value is of an immutable type
+	 */
+	private static boolean isImmutable(Object value) {
+		return value == null || value instanceof String || value instanceof Integer || value instanceof Long
+				|| value instanceof Boolean || value instanceof Double || value instanceof Float
+				|| value instanceof Short || value instanceof Byte || value instanceof Character || Stub.isStub(value);
+	}
+
+	/**
+	 * Checks whether an address belongs to this host.
+	 *
+	 * @param address
+	 *            the address.
+	 * @return {@code true} for loopback addresses and addresses of local
+	 *         network interfaces
+	 */
+	static boolean isLocal(InetAddress address) {
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+			return true;
+		}
+
+		Boolean local = localAddresses.get(address);
+		if (local == null) {
+			try {
+				local = NetworkInterface.getByInetAddress(address) != null;
+			} catch (SocketException e) {
+				local = false;
+			}
+			localAddresses.put(address, local);
+		}
+		return local;
+	}
+
+	/**
+	 * The one-way calls to a local skeleton, executed in order by one pool
+	 * thread at a time.
+	 */
+	private static final class OneWayQueue implements Runnable {
+
+		/**
+		 * The calls not executed yet.
+		 */
+		private final ArrayDeque<Runnable> calls = new ArrayDeque<>();
+		/**
+		 * {@code true} while a pool thread executes the calls.
+		 */
+		private boolean draining = false;
+
+		/**
+		 * Queues a call, and starts a pool thread executing the queue unless
+		 * one is running.
+		 *
+		 * @param call
+		 *            the call.
+		 * @throws RuntimeException
+		 *             if no thread can be started; the call is not queued.
+		 */
+		void execute(Runnable call) {
+			synchronized (this) {
+				calls.add(call);
+				if (draining) {
+					return;
+				}
+				draining = true;
+			}
+
+			try {
+				executor.execute(this);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					calls.removeLastOccurrence(call);
+					draining = false;
+				}
+				throw e;
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable call;
+				synchronized (this) {
+					call = calls.poll();
+					if (call == null) {
+						draining = false;
+						return;
+					}
+				}
+				call.run();
+			}
+		}
+	}
+}
@@ -4,13 +4,22 @@
 
 package rmi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
 
+import rmi.io.Codec;
+import rmi.io.Compression;
+import rmi.io.Frame;
+import rmi.io.Frames;
+import rmi.io.Handshake;
 import rmi.io.RMIRequest;
 import rmi.io.RMIResponse;
 
@@ -18,6 +27,20 @@ import rmi.io.RMIResponse;
  * The runnable object executed in the thread pool that services a client
  * connection to execute the remote method call on the {@link Skeleton} object.
  *
+ * <p>
+ * Connections are persistent: the task serves requests one after another until
+ * the client closes the connection, the connection stays idle for longer than
+ * {@link Skeleton#connectionIdleTimeout}, or the listener shuts the task down.
+ * The first frame on a connection is the client's {@link Handshake}, which
+ * selects the codec for the remaining frames. Each request is then handed to
+ * the skeleton's {@link RequestDispatcher}.
+ *
+ * <p>
+ * On a multiplexed connection the task only reads requests. Each request is
+ * executed in its own thread of the listener's pool, and its response is
+ * written as soon as it is ready, so responses may leave in a different order
+ * than the requests arrived.
+ *
  * @param <T>
  *            the generic remote interface this listener thread represents.
  */
@@ -27,20 +50,45 @@ public class MethodInvocationTask<T> implements Runnable {
 	 * The skeleton object on which the remote method call is executed.
 	 */
 	private Skeleton<T> container;
-	/**
-	 * The object that the skeleton and this {@link Runnable} task represents.
-	 */
-	private T serverObject;
 	/**
 	 * The remote interface class object that the skeleton and this
 	 * {@link Runnable} task represents.
 	 */
 	private Class<T> serverClass;
+	/**
+	 * The dispatcher executing requests on the server object.
+	 */
+	private RequestDispatcher<T> dispatcher;
 	/**
 	 * The client connection that the task accepts remote method calls and
 	 * returns the response on.
 	 */
 	private Socket clientConnection;
+	/**
+	 * The listener that accepted the connection and tracks this task.
+	 */
+	private SkeletonListener listener;
+	/**
+	 * The number of requests being executed; the connection is not closed by
+	 * {@link #shutdown()} while there are any.
+	 */
+	private int busy;
+	/**
+	 * {@code true} once the task has been asked to stop serving requests.
+	 */
+	private boolean closed;
+	/**
+	 * {@code true} once the task has stopped reading requests.
+	 */
+	private boolean finished;
+	/**
+	 * {@code true} if the client multiplexes requests on the connection.
+	 */
+	private boolean multiplexed;
+	/**
+	 * {@code true} if the client asked to compress frames on the connection.
+	 */
+	private boolean compressed;
 
 	/**
          * The constructor to create a new {@link MethodInvocationTask} instance.
@@ -49,59 +97,25 @@ public class MethodInvocationTask<T> implements Runnable {
          *              The skeleton object
          * @param serverClass
          *              The class object of server
-         * @param serverObject
-         *              The generic server object
+         * @param dispatcher
+         *              The dispatcher executing requests on the server object
          * @param clientConnection
          *              The listener socket
+         * @param listener
+         *              The listener tracking the task
          */
-	public MethodInvocationTask(Skeleton<T> container, T serverObject, Class<T> serverClass, Socket clientConnection) {
+	public MethodInvocationTask(Skeleton<T> container, Class<T> serverClass, RequestDispatcher<T> dispatcher,
+			Socket clientConnection, SkeletonListener listener) {
 		this.container = container;
-		this.serverObject = serverObject;
 		this.serverClass = serverClass;
+		this.dispatcher = dispatcher;
 		this.clientConnection = clientConnection;
-	}
-
-	/**
-	 * The method returns a member {@link Method} instance of the given remote
-	 * interface that matches with the given method signature provided in the
-	 * remote call requests.
-	 * 
-	 * @param clazz
-	 *            The remote interface class object that this
-	 *            {@link MethodInvocationTask} represents.
-	 * @param methodName
-	 *            The remote method name that has been requested in the remote
-	 *            call.
-	 * @param argumentTypes
-	 *            The expected argument types of the remote method to be called.
-	 * @return {@link Method} instance; {@code null} if not such method is
-	 *         found.
-	 */
-	private Method getMatchingMethod(Class clazz, String methodName, String[] argumentTypes) {
-		for (Method method : clazz.getDeclaredMethods()) {
-			Class[] paramTypes = method.getParameterTypes();
-			if (methodName.equals(method.getName()) && (argumentTypes.length == paramTypes.length)) {
-				boolean found = true;
-				for (int i = 0; i < argumentTypes.length; i++) {
-					if (!paramTypes[i].getName().equals(argumentTypes[i])) {
-						found = false;
-					}
-				}
-
-				if (found) {
-					return method;
-				}
-			}
-		}
-
-		for (Class iface : clazz.getInterfaces()) {
-			Method method = getMatchingMethod(iface, methodName, argumentTypes);
-			if (method != null) {
-				return method;
-			}
-		}
-
-		return null;
+		this.listener = listener;
+		this.busy = 0;
+		this.closed = false;
+		this.finished = false;
+		this.multiplexed = false;
+		this.compressed = false;
 	}
 
 	/**
@@ -109,12 +123,11 @@ public class MethodInvocationTask<T> implements Runnable {
 	 */
 	@Override
 	public void run() {
-		ObjectOutputStream outStream;
-		ObjectInputStream inStream;
+		DataOutputStream outStream;
+		DataInputStream inStream;
 
 		try {
-			outStream = new ObjectOutputStream(clientConnection.getOutputStream());
-			outStream.flush();
+			outStream = new DataOutputStream(new BufferedOutputStream(clientConnection.getOutputStream()));
 		} catch (IOException e) {
 			//System.err.println("Failed to get OutputStream from client connection: " + "ServerClass: "
 			//		+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
@@ -123,15 +136,17 @@ public class MethodInvocationTask<T> implements Runnable {
 			container.service_error(new RMIException(e));
 
 			closeConnection();
+			listener.taskFinished(this);
 			return; // Nothing can be done so simply exit.
 		} catch (NullPointerException e) {
 			container.service_error(new RMIException(e));
 
 			closeConnection();
+			listener.taskFinished(this);
 			return; // Nothing can be done so simply exit.
 		}
 		try {
-			inStream = new ObjectInputStream(clientConnection.getInputStream());
+			inStream = new DataInputStream(new BufferedInputStream(clientConnection.getInputStream()));
 		} catch (IOException e) {
 			//System.err.println("Failed to get IntputStream from client connection: " + "ServerClass: "
 			//		+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
@@ -140,109 +155,271 @@ public class MethodInvocationTask<T> implements Runnable {
 			container.service_error(new RMIException(e));
 
 			closeConnection();
+			listener.taskFinished(this);
 			return; // Nothing can be done so simply exit.
 		} catch (NullPointerException e) {
 			container.service_error(new RMIException(e));
 
 			closeConnection();
+			listener.taskFinished(this);
 			return; // Nothing can be done so simply exit.
 		}
 
-		RMIRequest request;
 		try {
-			request = (RMIRequest) inStream.readObject();
-		} catch (ClassNotFoundException | IOException e) {
-			System.err.println("Failed to get read request from client connection: " + "ServerClass: "
-					+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
-					+ ", " + "Port: " + container.getBindAddress().getPort());
+			clientConnection.setSoTimeout(Skeleton.connectionIdleTimeout);
+		} catch (SocketException e) {
 			container.service_error(new RMIException(e));
-
-			closeConnection();
-			return; // Nothing can be done so simply exit.
 		}
 
-		RMIResponse response;
-		String className = request.getClassName();
-		String methodName = request.getMethodName();
-		Object[] arguments = request.getArguments();
-		String[] argumentTypes = request.getArgumentTypes();
-
-		if (isAncestorOrEqual(serverClass, className)) {
-
-			Method matchingMethod = getMatchingMethod(serverClass, methodName, argumentTypes);
-			if (matchingMethod != null) {
-				try {
-					Object returnValue = matchingMethod.invoke(serverObject, arguments);
-					response = new RMIResponse(returnValue);
-				} catch (InvocationTargetException e) {
-					response = new RMIResponse((Exception) e.getTargetException());
-				} catch (IllegalArgumentException | IllegalAccessException e) {
-					System.err.println(
-							"Failed to invoke the designated method: " + "ServerClass: " + serverClass.getName() + ", "
-									+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", "
-									+ "Port: " + container.getBindAddress().getPort() + ", " + "ClientClass: "
-									+ className + ", " + "Method: " + methodName + ", " + "Arguments: " + arguments);
-					RMIException exception = new RMIException(e);
-					container.service_error(exception);
-					response = new RMIResponse(exception);
+		Codec codec = null;
+		while (true) {
+			RMIRequest request;
+			try {
+				if (codec == null) {
+					byte[] payload = Frames.readFrame(inStream);
+					codec = Handshake.accept(payload);
+					multiplexed = Handshake.isMultiplexed(payload);
+					compressed = Handshake.isCompressed(payload);
+					Frames.writeFrame(outStream, Handshake.reply(codec, payload));
+					outStream.flush();
+					continue;
 				}
-			} else {
-				System.err.println("Failed to find a matching method: " + "ServerClass: " + serverClass.getName() + ", "
-						+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
-						+ container.getBindAddress().getPort() + ", " + "ClientClass: " + className + ", " + "Method: "
-						+ methodName + ", " + "Arguments: " + arguments);
-				RMIException exception = new RMIException(new NoSuchMethodException("No such remote method."));
-				container.service_error(exception);
-				response = new RMIResponse(exception);
+				Frame frame = Frames.readFrameAndSections(inStream);
+				request = (RMIRequest) codec.decode(compressed ? Compression.decompress(frame) : frame);
+				request.setFrameLength(Frames.length(frame));
+			} catch (EOFException e) {
+				break; // The client closed the connection.
+			} catch (SocketTimeoutException e) {
+				if (isBusy()) {
+					continue; // Multiplexed requests are still executing.
+				}
+				abortConnection();
+				break; // The client left the connection idle for too long.
+			} catch (ClassNotFoundException | IOException e) {
+				if (isClosed()) {
+					break; // The connection was closed by shutdown().
+				}
+				container.service_error(new RMIException(e));
+				break; // Nothing can be done so simply exit.
 			}
-		} else {
-			System.err.println("Failed to find a matching class: " + "ServerClass: " + serverClass.getName() + ", "
-					+ "IPAddress: " + container.getBindAddress().getAddress().toString() + ", " + "Port: "
-					+ container.getBindAddress().getPort() + ", " + "ClientClass: " + className + ", " + "Method: "
-					+ methodName + ", " + "Arguments: " + arguments);
-			RMIException exception = new RMIException(new ClassNotFoundException("No such remote class."));
-			container.service_error(exception);
-			response = new RMIResponse(exception);
+
+			if (!beginRequest()) {
+				break;
+			}
+
+			boolean admitted = dispatcher.admit();
+			if (multiplexed && admitted) {
+				final RMIRequest pending = request;
+				final Codec responseCodec = codec;
+				final DataOutputStream responseStream = outStream;
+				final Priority priority = dispatcher.classify(pending);
+				final Executor executor = task -> {
+					if (!listener.execute(task, priority)) {
+						task.run(); // The listener has terminated; the slot must still be released.
+					}
+				};
+				if (!listener.execute(() -> dispatcher.dispatch(pending, executor,
+						response -> answer(pending, response, responseCodec, responseStream)), priority)) {
+					dispatcher.withdraw();
+					endRequest();
+					break; // The listener has terminated.
+				}
+				continue;
+			}
+
+			if (!respond(request, admitted, codec, outStream)) {
+				break;
+			}
+		}
+
+		finish();
+	}
+
+	/**
+	 * Executes a request in the calling thread and writes its response, if it
+	 * has one. A request the skeleton has no capacity for is answered without
+	 * being executed.
+	 *
+	 * @param request
+	 *            the request read from the client.
+	 * @param admitted
+	 *            {@code true} if the request was admitted by the dispatcher.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @param outStream
+	 *            the stream responses are written to.
+	 * @return {@code false} if the connection must not carry further
+	 *         requests.
+	 */
+	private boolean respond(RMIRequest request, boolean admitted, Codec codec, DataOutputStream outStream) {
+		return answer(request, admitted ? dispatcher.dispatch(request) : dispatcher.reject(request), codec,
+				outStream);
+	}
+
+	/**
+	 * Writes the response to a request, if it has one. On a multiplexed
+	 * connection, responses written by different threads are serialized on
+	 * the output stream.
+	 *
+	 * @param request
+	 *            the request read from the client.
+	 * @param response
+	 *            the response; {@code null} for a one-way call.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @param outStream
+	 *            the stream responses are written to.
+	 * @return {@code false} if the connection must not carry further
+	 *         requests.
+	 */
+	private boolean answer(RMIRequest request, RMIResponse response, Codec codec, DataOutputStream outStream) {
+		boolean written = true;
+
+		if (response == null) {
+			return endRequest(); // One-way calls are not answered.
 		}
 
 		try {
-			outStream.writeObject(response);
+			Frame frame = codec.encodeFrame(response);
+			if (compressed) {
+				frame = Compression.compress(frame, request);
+			}
+			response.setFrameLength(Frames.length(frame));
+			dispatcher.sent(request, response);
+			synchronized (outStream) {
+				Frames.writeFrame(outStream, frame);
+				outStream.flush();
+			}
 		} catch (IOException e) {
-			System.err.println("Failed to write response to client connection: " + "ServerClass: "
-					+ serverClass.getName() + ", " + "IPAddress: " + container.getBindAddress().getAddress().toString()
-					+ ", " + "Port: " + container.getBindAddress().getPort() + ", " + "ClientClass: " + className + ", "
-					+ "Method: " + methodName + ", " + "Arguments: " + arguments);
 			container.service_error(new RMIException(e));
+			written = false;
+			if (multiplexed) {
+				closeConnection(); // Stops the reading thread as well.
+			}
 		}
 
-		closeConnection();
+		return endRequest() && written;
 	}
 
 	/**
-	 * The methods checks if the expected {@code ancestorClass} represents the
-	 * interface either equal or inherited by the {@code currentClass} interface
-	 * class object.
-	 * 
-	 * @param currentClass
-	 *            the class object whose ancestry needs to searched in.
-	 * @param ancestorClassName
-	 *            the class to be expected in the ancestry of the
-	 *            {@code currentClass}
-	 * @return {@code true} if the expected interface is in the given classes
-	 *         hierarchy; {@code false} otherwise.
+	 * Called when the task stops reading requests. The connection is closed
+	 * once no request is executing any more.
 	 */
-	private boolean isAncestorOrEqual(Class currentClass, String ancestorClassName) {
-		if (currentClass.getName().equals(ancestorClassName)) {
-			return true;
-		} else {
-			for (Class iface : serverClass.getInterfaces()) {
-				if (isAncestorOrEqual(iface, ancestorClassName)) {
-					return true;
-				}
+	private void finish() {
+		boolean idle;
+		boolean reset;
+		synchronized (this) {
+			finished = true;
+			idle = busy == 0;
+			reset = closed;
+		}
+
+		if (idle) {
+			// A connection shut down between requests is reset, so that a
+			// client reusing it fails to write its next request and sends it
+			// again.
+			if (reset) {
+				abortConnection();
+			} else {
+				closeConnection();
 			}
+			listener.taskFinished(this);
+		}
+		// Otherwise the last executing request closes the connection.
+	}
+
+	/**
+	 * Marks the task as executing a request.
+	 *
+	 * @return {@code false} if the task has been shut down and the request
+	 *         must not be executed.
+	 */
+	private synchronized boolean beginRequest() {
+		if (closed) {
+			return false;
+		}
+		busy++;
+		return true;
+	}
+
+	/**
+	 * Marks a request as complete after its response has been written. The
+	 * last request to complete on a connection that is no longer read closes
+	 * the connection; on a multiplexed connection that was shut down while
+	 * requests executed, it aborts the connection to stop the reading thread.
+	 *
+	 * @return {@code false} if the task was shut down while the request was
+	 *         executing and must not read another one.
+	 */
+	private boolean endRequest() {
+		boolean last;
+		boolean abort;
+		boolean more;
+		synchronized (this) {
+			busy--;
+			last = finished && busy == 0;
+			abort = multiplexed && closed && !finished && busy == 0;
+			more = !closed;
+		}
+
+		if (last) {
+			closeConnection();
+			listener.taskFinished(this);
+		} else if (abort) {
+			abortConnection();
 		}
+		return more;
+	}
+
+	/**
+	 * Returns whether requests are executing.
+	 *
+	 * @return {@code true} if at least one request is executing.
+	 */
+	private synchronized boolean isBusy() {
+		return busy > 0;
+	}
+
+	/**
+	 * Returns whether the task has been shut down.
+	 *
+	 * @return {@code true} if the task has been shut down.
+	 */
+	private synchronized boolean isClosed() {
+		return closed;
+	}
 
-		return false;
+	/**
+	 * Stops the task from serving further requests. An idle connection is
+	 * closed immediately; a request that is currently executing is allowed to
+	 * complete and send its response first.
+	 */
+	public void shutdown() {
+		boolean idle;
+		synchronized (this) {
+			closed = true;
+			idle = busy == 0;
+		}
+
+		if (idle) {
+			abortConnection();
+		}
+	}
+
+	/**
+	 * Closes an idle client connection without lingering. The skeleton closes
+	 * idle connections first when it stops; a regular close would leave the
+	 * skeleton's port in <code>TIME_WAIT</code> and prevent the skeleton from
+	 * being restarted on the same address straight away. The client treats the
+	 * reset like any closed pooled connection.
+	 */
+	private void abortConnection() {
+		try {
+			clientConnection.setSoLinger(true, 0);
+		} catch (SocketException e) {
+			// Fall back to a regular close.
+		}
+		closeConnection();
 	}
 
 	/**
@@ -0,0 +1,232 @@
+package rmi;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The call counters and latency histogram of a remote method, on the client
+ * or on the server side.
+ *
+ * <p>
+ * On the client side, a call is timed by the stub from the moment it is made
+ * to the moment its result is returned, and fails if it throws any exception.
+ * On the server side, a call is timed by the skeleton around the execution of
+ * the method, and fails if the method throws. Bytes are counted from the
+ * frames carrying the call and its response, as they appear on the wire.
+ * Calls to {@link Cacheable} methods answered from a stub's cache are counted
+ * as cache hits on the client side, and not as calls; the calls that were
+ * sent are also counted as cache misses.
+ *
+ * <p>
+ * Recording a call allocates nothing and takes no lock, so that it can be
+ * done on every call. The metrics of all remote methods are listed by
+ * {@link Metrics}.
+ */
+public final class MethodMetrics implements MethodMetricsMXBean {
+
+	/**
+	 * The name of the remote method.
+	 */
+	private final String name;
+	/**
+	 * The side of the calls counted.
+	 */
+	private final String side;
+	/**
+	 * The number of calls completed.
+	 */
+	private final LongAdder calls = new LongAdder();
+	/**
+	 * The number of calls that failed.
+	 */
+	private final LongAdder errors = new LongAdder();
+	/**
+	 * The number of bytes received.
+	 */
+	private final LongAdder bytesIn = new LongAdder();
+	/**
+	 * The number of bytes sent.
+	 */
+	private final LongAdder bytesOut = new LongAdder();
+	/**
+	 * The number of calls answered from a stub's cache.
+	 */
+	private final LongAdder cacheHits = new LongAdder();
+	/**
+	 * The number of calls to a cacheable method sent to the skeleton.
+	 */
+	private final LongAdder cacheMisses = new LongAdder();
+	/**
+	 * The latencies of the calls, in nanoseconds.
+	 */
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	/**
+	 * Creates the metrics of a remote method.
+	 *
+	 * @param name
+	 *            the name of the method.
+	 * @param side
+	 *            <code>client</code> or <code>server</code>.
+	 */
+	MethodMetrics(String name, String side) {
+		this.name = name;
+		this.side = side;
+	}
+
+	/**
+	 * Records a completed call.
+	 *
+	 * @param nanos
+	 *            the latency of the call.
+	 * @param failed
+	 *            {@code true} if the call failed or threw an exception.
+	 * @param received
+	 *            the number of bytes received for the call.
+	 * @param sent
+	 *            the number of bytes sent for the call.
+	 */
+	void record(long nanos, boolean failed, long received, long sent) {
+		calls.increment();
+		if (failed) {
+			errors.increment();
+		}
+		if (received > 0) {
+			bytesIn.add(received);
+		}
+		if (sent > 0) {
+			bytesOut.add(sent);
+		}
+		latencies.record(nanos);
+	}
+
+	/**
+	 * Records bytes sent for a call after it was recorded, such as its
+	 * response.
+	 *
+	 * @param sent
+	 *            the number of bytes.
+	 */
+	void recordSent(long sent) {
+		if (sent > 0) {
+			bytesOut.add(sent);
+		}
+	}
+
+	/**
+	 * Records a call answered from a stub's cache.
+	 */
+	void recordCacheHit() {
+		cacheHits.increment();
+	}
+
+	/**
+	 * Records a call to a cacheable method sent to the skeleton.
+	 */
+	void recordCacheMiss() {
+		cacheMisses.increment();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getSide() {
+		return side;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of the calls
+	 * completed, within an eighth.
+	 *
+	 * @param fraction
+	 *            the fraction, between zero and one.
+	 * @return the latency in nanoseconds; zero if no call was recorded
+	 * @throws IllegalArgumentException
+	 *             if the fraction is not between zero and one.
+	 */
+	public long getLatencyNanos(double fraction) {
+		if (!(fraction >= 0 && fraction <= 1)) {
+			throw new IllegalArgumentException("Fraction must be between zero and one.");
+		}
+		return latencies.percentile(fraction);
+	}
+
+	@Override
+	public double getLatencyP50Micros() {
+		return latencies.percentile(0.5) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP99Micros() {
+		return latencies.percentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP999Micros() {
+		return latencies.percentile(0.999) / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		calls.reset();
+		errors.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		latencies.reset();
+	}
+
+	/**
+	 * Returns a summary of the metrics.
+	 *
+	 * @return the side, name, counters and latency percentiles, and the cache
+	 *         counters if the method is cacheable
+	 */
+	@Override
+	public String toString() {
+		long hits = getCacheHits();
+		long misses = getCacheMisses();
+		if (hits + misses > 0) {
+			return String.format("%s %s: %d calls, %d errors, %d cache hits, %d cache misses, %d bytes in, "
+					+ "%d bytes out, p50 %.1f us, p99 %.1f us, p99.9 %.1f us", side, name, getCalls(), getErrors(),
+					hits, misses, getBytesIn(), getBytesOut(), getLatencyP50Micros(), getLatencyP99Micros(),
+					getLatencyP999Micros());
+		}
+		return String.format("%s %s: %d calls, %d errors, %d bytes in, %d bytes out, p50 %.1f us, p99 %.1f us, "
+				+ "p99.9 %.1f us", side, name, getCalls(), getErrors(), getBytesIn(), getBytesOut(),
+				getLatencyP50Micros(), getLatencyP99Micros(), getLatencyP999Micros());
+	}
+}
@@ -0,0 +1,94 @@
+package rmi;
+
+/**
+ * The management interface of the {@link MethodMetrics} of a remote method,
+ * registered with the platform MBean server under
+ * {@link Metrics#DOMAIN}<code>:type=MethodMetrics,side=</code><i>side</i>
+ * <code>,method=</code><i>method</i>.
+ */
+public interface MethodMetricsMXBean {
+
+	/**
+	 * Returns the name of the remote method.
+	 *
+	 * @return the interface name, method name and parameter types
+	 */
+	String getName();
+
+	/**
+	 * Returns the side of the calls counted.
+	 *
+	 * @return <code>client</code> or <code>server</code>
+	 */
+	String getSide();
+
+	/**
+	 * Returns the number of calls completed.
+	 *
+	 * @return the number of calls
+	 */
+	long getCalls();
+
+	/**
+	 * Returns the number of calls that failed or threw an exception.
+	 *
+	 * @return the number of calls
+	 */
+	long getErrors();
+
+	/**
+	 * Returns the number of bytes received for the calls.
+	 *
+	 * @return the number of bytes
+	 */
+	long getBytesIn();
+
+	/**
+	 * Returns the number of bytes sent for the calls.
+	 *
+	 * @return the number of bytes
+	 */
+	long getBytesOut();
+
+	/**
+	 * Returns the number of calls to a cacheable method answered from a
+	 * stub's cache, see {@link Cacheable}.
+	 *
+	 * @return the number of calls; always zero on the server side
+	 */
+	long getCacheHits();
+
+	/**
+	 * Returns the number of calls to a cacheable method that were not
+	 * answered from a stub's cache and were sent to the skeleton.
+	 *
+	 * @return the number of calls; always zero on the server side
+	 */
+	long getCacheMisses();
+
+	/**
+	 * Returns the median latency of the calls.
+	 *
+	 * @return the latency in microseconds
+	 */
+	double getLatencyP50Micros();
+
+	/**
+	 * Returns the 99th percentile latency of the calls.
+	 *
+	 * @return the latency in microseconds
+	 */
+	double getLatencyP99Micros();
+
+	/**
+	 * Returns the 99.9th percentile latency of the calls.
+	 *
+	 * @return the latency in microseconds
+	 */
+	double getLatencyP999Micros();
+
+	/**
+	 * Clears the counters and the latency histogram.
+	 */
+	void reset();
+}
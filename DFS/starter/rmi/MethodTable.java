@@ -0,0 +1,381 @@
+package rmi;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import rmi.io.Compression;
+
+/**
+ * The remote methods of a remote interface, indexed by compact method
+ * identifiers.
+ *
+ * <p>
+ * A remote method is identified on the wire by a 32-bit hash of its declaring
+ * interface, name and parameter types. Stubs and skeletons compute the same
+ * identifier from the interface independently, so calls carry neither names
+ * nor type strings, and a skeleton finds the method to call with a single
+ * table lookup. Tables are built once per remote interface and shared by all
+ * stubs and skeletons of that interface.
+ *
+ * <p>
+ * Each method is invoked through a {@link MethodHandle} adapted to take the
+ * server object and an argument array, rather than through reflection.
+ *
+ * <p>
+ * Two identifiers are reserved for reading the cursors of streaming methods,
+ * see {@link CursorTable}. They are the same for every interface.
+ */
+final class MethodTable {
+
+	/**
+	 * Identifier of the reserved method reading the next chunk of a cursor.
+	 */
+	static final int CURSOR_NEXT = 0;
+	/**
+	 * Identifier of the reserved method closing a cursor.
+	 */
+	static final int CURSOR_CLOSE = 1;
+
+	/**
+	 * The tables built so far, by remote interface.
+	 */
+	private static final ConcurrentHashMap<Class<?>, MethodTable> tables = new ConcurrentHashMap<>();
+
+	static {
+		Compression.nameMethod(CURSOR_NEXT, "(cursor next)");
+		Compression.nameMethod(CURSOR_CLOSE, "(cursor close)");
+	}
+
+	/**
+	 * The remote methods, by method. Not modified after construction.
+	 */
+	private final Map<Method, Entry> byMethod = new HashMap<>();
+	/**
+	 * The remote methods, by identifier. Not modified after construction.
+	 */
+	private final Map<Integer, Entry> entries = new HashMap<>();
+	/**
+	 * {@code true} if a remote method of the interface is {@link Cacheable}.
+	 */
+	private boolean cacheable;
+
+	/**
+	 * Builds the table of a remote interface.
+	 *
+	 * @param c
+	 *            the remote interface.
+	 * @throws Error
+	 *             if two remote methods of the interface have the same
+	 *             identifier, or a method has a reserved identifier.
+	 */
+	private MethodTable(Class<?> c) {
+		for (Method method : c.getMethods()) {
+			if (!RemotePattern.isRemoteMethod(method)) {
+				continue;
+			}
+
+			int id = methodId(method);
+			if (id == CURSOR_NEXT || id == CURSOR_CLOSE) {
+				throw new Error("Remote method " + method + " has a reserved identifier.");
+			}
+			Entry existing = entries.get(id);
+			if (existing != null && !existing.method.equals(method)) {
+				throw new Error("Remote methods " + existing.method + " and " + method + " have the same identifier.");
+			}
+
+			Entry entry = new Entry(id, method);
+			cacheable |= entry.cacheTtlNanos > 0;
+			byMethod.put(method, entry);
+			entries.put(id, entry);
+			Compression.nameMethod(id, method.getDeclaringClass().getSimpleName() + "." + method.getName());
+		}
+	}
+
+	/**
+	 * Returns the table of a remote interface, building it on first use.
+	 *
+	 * @param c
+	 *            the remote interface.
+	 * @return the shared method table.
+	 */
+	static MethodTable forInterface(Class<?> c) {
+		MethodTable table = tables.get(c);
+		if (table == null) {
+			table = new MethodTable(c);
+			MethodTable raced = tables.putIfAbsent(c, table);
+			if (raced != null) {
+				table = raced;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the identifier of a method.
+	 *
+	 * @param method
+	 *            a method of the remote interface.
+	 * @return the identifier, or {@code null} if the method is not a remote
+	 *         method of the interface.
+	 */
+	Integer getId(Method method) {
+		Entry entry = byMethod.get(method);
+		return (entry == null) ? null : entry.id;
+	}
+
+	/**
+	 * Returns the entry of a method, as called through a stub.
+	 *
+	 * @param method
+	 *            a method of the remote interface.
+	 * @return the entry, or {@code null} if the method is not a remote method
+	 *         of the interface.
+	 */
+	Entry getEntry(Method method) {
+		return byMethod.get(method);
+	}
+
+	/**
+	 * Returns the remote method with the given identifier.
+	 *
+	 * @param id
+	 *            method identifier read from a request.
+	 * @return the method, or {@code null} if the interface has no remote
+	 *         method with this identifier.
+	 */
+	Entry getEntry(int id) {
+		return entries.get(id);
+	}
+
+	/**
+	 * Checks whether stubs of the interface need a {@link ResultCache}.
+	 *
+	 * @return {@code true} if a remote method of the interface is
+	 *         {@link Cacheable}
+	 */
+	boolean hasCacheableMethods() {
+		return cacheable;
+	}
+
+	/**
+	 * Computes the identifier of a method: the 32-bit FNV-1a hash of its
+	 * declaring interface name, name and parameter type names.
+	 *
+	 * @param method
+	 *            the method.
+	 * @return the identifier.
+	 */
+	static int methodId(Method method) {
+		StringBuilder signature = new StringBuilder();
+		signature.append(method.getDeclaringClass().getName()).append('.').append(method.getName()).append('(');
+		for (Class<?> type : method.getParameterTypes()) {
+			signature.append(type.getName()).append(',');
+		}
+		signature.append(')');
+
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < signature.length(); i++) {
+			hash ^= signature.charAt(i);
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	/**
+	 * A remote method and the handle used to invoke it.
+	 */
+	static final class Entry {
+
+		/**
+		 * The method's identifier.
+		 */
+		final int id;
+		/**
+		 * The remote method.
+		 */
+		final Method method;
+		/**
+		 * {@code true} if the method is marked {@link OneWay}.
+		 */
+		final boolean oneWay;
+		/**
+		 * {@code true} if the method is marked {@link Idempotent}.
+		 */
+		final boolean idempotent;
+		/**
+		 * {@code true} if the method is marked {@link Background}.
+		 */
+		final boolean background;
+		/**
+		 * {@code true} if the method streams its result: it returns an
+		 * <code>InputStream</code> or a {@link RemoteIterator}, which is read
+		 * through a cursor.
+		 */
+		final boolean streams;
+		/**
+		 * The time, in nanoseconds, for which stubs reuse the results of the
+		 * method; zero if the method is not {@link Cacheable}.
+		 */
+		final long cacheTtlNanos;
+		/**
+		 * The method's parameter types, with primitive types replaced by their
+		 * wrappers.
+		 */
+		private final Class<?>[] argumentTypes;
+		/**
+		 * Which parameters have primitive types and do not accept
+		 * {@code null}.
+		 */
+		private final boolean[] primitive;
+		/**
+		 * Handle of type <code>(Object, Object[])Object</code> invoking the
+		 * method; {@code null} if the method cannot be accessed.
+		 */
+		private final MethodHandle handle;
+		/**
+		 * The reason the method cannot be accessed, if it cannot.
+		 */
+		private final IllegalAccessException inaccessible;
+		/**
+		 * The metrics of calls made to the method; {@code null} until the
+		 * first call.
+		 */
+		private volatile MethodMetrics clientMetrics;
+		/**
+		 * The metrics of calls executed by the method; {@code null} until the
+		 * first call.
+		 */
+		private volatile MethodMetrics serverMetrics;
+
+		/**
+		 * Creates the entry of a remote method.
+		 *
+		 * @param id
+		 *            the method's identifier.
+		 * @param method
+		 *            the remote method.
+		 */
+		private Entry(int id, Method method) {
+			this.id = id;
+			this.method = method;
+			this.oneWay = method.isAnnotationPresent(OneWay.class);
+			this.idempotent = method.isAnnotationPresent(Idempotent.class);
+			this.background = method.isAnnotationPresent(Background.class);
+			this.streams = method.getReturnType() == InputStream.class
+					|| method.getReturnType() == RemoteIterator.class;
+			Cacheable cache = method.getAnnotation(Cacheable.class);
+			this.cacheTtlNanos = (cache == null || streams || method.getReturnType() == void.class) ? 0
+					: TimeUnit.MILLISECONDS.toNanos(Math.max(0, cache.ttlMillis()));
+
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			argumentTypes = new Class<?>[parameterTypes.length];
+			primitive = new boolean[parameterTypes.length];
+			for (int i = 0; i < parameterTypes.length; i++) {
+				primitive[i] = parameterTypes[i].isPrimitive();
+				argumentTypes[i] = MethodType.methodType(parameterTypes[i]).wrap().returnType();
+			}
+
+			MethodHandle invoker = null;
+			IllegalAccessException failure = null;
+			try {
+				// Remote interfaces need not be public.
+				method.setAccessible(true);
+			} catch (RuntimeException e) {
+				// Left to unreflect to report.
+			}
+			try {
+				invoker = MethodHandles.lookup().unreflect(method);
+				invoker = invoker.asType(MethodType.genericMethodType(parameterTypes.length + 1))
+						.asSpreader(Object[].class, parameterTypes.length);
+			} catch (IllegalAccessException e) {
+				failure = e;
+			}
+			handle = invoker;
+			inaccessible = failure;
+		}
+
+		/**
+		 * Checks that arguments read from a request can be passed to the
+		 * method.
+		 *
+		 * @param arguments
+		 *            the arguments.
+		 * @return {@code true} if the number and types of the arguments match
+		 *         the method's parameters.
+		 */
+		boolean accepts(Object[] arguments) {
+			if (arguments.length != argumentTypes.length) {
+				return false;
+			}
+			for (int i = 0; i < arguments.length; i++) {
+				if (arguments[i] == null ? primitive[i] : !argumentTypes[i].isInstance(arguments[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Checks that the method can be invoked.
+		 *
+		 * @throws IllegalAccessException
+		 *             if the method cannot be accessed.
+		 */
+		void checkAccess() throws IllegalAccessException {
+			if (handle == null) {
+				throw inaccessible;
+			}
+		}
+
+		/**
+		 * Invokes the method.
+		 *
+		 * @param target
+		 *            the server object.
+		 * @param arguments
+		 *            arguments accepted by {@link #accepts(Object[])}.
+		 * @return the return value; {@code null} for <code>void</code>
+		 *         methods.
+		 * @throws Throwable
+		 *             the exception thrown by the method.
+		 */
+		Object invoke(Object target, Object[] arguments) throws Throwable {
+			return (Object) handle.invokeExact(target, arguments);
+		}
+
+		/**
+		 * Returns the metrics recorded by stubs calling the method.
+		 *
+		 * @return the metrics, shared by all stubs of the interface
+		 */
+		MethodMetrics clientMetrics() {
+			MethodMetrics metrics = clientMetrics;
+			if (metrics == null) {
+				metrics = Metrics.forClient(method);
+				clientMetrics = metrics;
+			}
+			return metrics;
+		}
+
+		/**
+		 * Returns the metrics recorded by skeletons executing the method.
+		 *
+		 * @return the metrics, shared by all skeletons of the interface
+		 */
+		MethodMetrics serverMetrics() {
+			MethodMetrics metrics = serverMetrics;
+			if (metrics == null) {
+				metrics = Metrics.forServer(method);
+				serverMetrics = metrics;
+			}
+			return metrics;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The static class listing the {@link MethodMetrics} of every remote method
+ * used in this JVM.
+ *
+ * <p>
+ * Each remote method has client metrics, recorded by the stubs calling it,
+ * and server metrics, recorded by the skeletons executing it. They are
+ * created with the {@link MethodTable} of the remote interface, when the first
+ * stub or skeleton of the interface is used, and counted across all stubs or
+ * skeletons of the interface. Methods are named after their interface, name
+ * and parameter types, such as <code>Storage.read(Path,long,int)</code>.
+ *
+ * <p>
+ * The metrics are also registered with the platform MBean server, see
+ * {@link MethodMetricsMXBean}, so that they can be watched with any JMX
+ * console. Calls made through a {@link Batch} are counted on the server side
+ * only, and the reads of streaming results are not counted.
+ */
+public final class Metrics {
+
+	/**
+	 * The JMX domain of the metrics.
+	 */
+	public static final String DOMAIN = "rmi";
+
+	/**
+	 * Client metrics, by method name.
+	 */
+	private static final ConcurrentHashMap<String, MethodMetrics> client = new ConcurrentHashMap<>();
+	/**
+	 * Server metrics, by method name.
+	 */
+	private static final ConcurrentHashMap<String, MethodMetrics> server = new ConcurrentHashMap<>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Returns the client metrics of the remote methods called so far.
+	 *
+	 * @return the metrics, by method name; a sorted copy of the registry
+	 */
+	public static Map<String, MethodMetrics> getClientMetrics() {
+		return new TreeMap<>(client);
+	}
+
+	/**
+	 * Returns the server metrics of the remote methods executed so far.
+	 *
+	 * @return the metrics, by method name; a sorted copy of the registry
+	 */
+	public static Map<String, MethodMetrics> getServerMetrics() {
+		return new TreeMap<>(server);
+	}
+
+	/**
+	 * Clears the metrics of every remote method.
+	 */
+	public static void reset() {
+		for (MethodMetrics metrics : client.values()) {
+			metrics.reset();
+		}
+		for (MethodMetrics metrics : server.values()) {
+			metrics.reset();
+		}
+	}
+
+	/**
+	 * Returns the client metrics of a remote method, creating and registering
+	 * them on first use.
+	 *
+	 * @param method
+	 *            the remote method.
+	 * @return the metrics
+	 */
+	static MethodMetrics forClient(Method method) {
+		return register(client, method, "client");
+	}
+
+	/**
+	 * Returns the server metrics of a remote method, creating and registering
+	 * them on first use.
+	 *
+	 * @param method
+	 *            the remote method.
+	 * @return the metrics
+	 */
+	static MethodMetrics forServer(Method method) {
+		return register(server, method, "server");
+	}
+
+	/**
+	 * Returns the metrics of a remote method from a registry, creating them
+	 * and registering them with JMX on first use.
+	 *
+	 * @param registry
+	 *            the metrics of one side.
+	 * @param method
+	 *            the remote method.
+	 * @param side
+	 *            the side of the registry.
+	 * @return the metrics
+	 */
+	private static MethodMetrics register(ConcurrentHashMap<String, MethodMetrics> registry, Method method,
+			String side) {
+		String name = name(method);
+		MethodMetrics metrics = registry.get(name);
+		if (metrics != null) {
+			return metrics;
+		}
+
+		metrics = new MethodMetrics(name, side);
+		MethodMetrics raced = registry.putIfAbsent(name, metrics);
+		if (raced != null) {
+			return raced;
+		}
+
+		try {
+			MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+			beans.registerMBean(metrics, new ObjectName(
+					DOMAIN + ":type=MethodMetrics,side=" + side + ",method=" + ObjectName.quote(name)));
+		} catch (JMException | SecurityException e) {
+			// Metrics remain available through this class.
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns the name under which the metrics of a method are listed.
+	 *
+	 * @param method
+	 *            the remote method.
+	 * @return the simple name of the interface, the method name and the
+	 *         simple names of the parameter types
+	 */
+	private static String name(Method method) {
+		StringBuilder name = new StringBuilder();
+		name.append(method.getDeclaringClass().getSimpleName()).append('.').append(method.getName()).append('(');
+		Class<?>[] types = method.getParameterTypes();
+		for (int i = 0; i < types.length; i++) {
+			name.append(i == 0 ? "" : ",").append(types[i].getSimpleName());
+		}
+		return name.append(')').toString();
+	}
+}
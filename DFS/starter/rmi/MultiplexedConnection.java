@@ -0,0 +1,450 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rmi.io.Codec;
+import rmi.io.Codecs;
+import rmi.io.Compression;
+import rmi.io.Frame;
+import rmi.io.Frames;
+import rmi.io.Handshake;
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * A client connection to a skeleton that carries many calls at once.
+ *
+ * <p>
+ * Any number of threads may send requests on the connection concurrently.
+ * Each request is tagged with an identifier unique among the requests in
+ * flight, and is written without waiting for the responses to earlier ones.
+ * The skeleton executes the requests concurrently and answers each as it
+ * completes. A reader thread owned by the connection reads the responses, in
+ * whatever order they arrive, and completes the future of the matching
+ * request.
+ *
+ * <p>
+ * When the connection fails, every request in flight fails with the cause. A
+ * request sent on a reused connection that had already failed, or that failed
+ * while the request was written, fails with a {@link StaleConnectionException}
+ * instead: the skeleton reads whole frames only, so such a request was never
+ * executed and may be sent again. A request written in full may have been
+ * executed even if no response arrives, and is never reported as stale.
+ */
+public class MultiplexedConnection {
+
+	/**
+	 * The address of the skeleton at the other end of the connection.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The connected socket.
+	 */
+	private final Socket socket;
+	/**
+	 * The stream requests are written to, shared by all callers.
+	 */
+	private final DataOutputStream outStream;
+	/**
+	 * The stream responses are read from by the reader thread.
+	 */
+	private final DataInputStream inStream;
+	/**
+	 * The codec negotiated with the skeleton.
+	 */
+	private final Codec codec;
+	/**
+	 * {@code true} if the skeleton accepted to compress frames.
+	 */
+	private final boolean compressed;
+	/**
+	 * The requests in flight, by request identifier.
+	 */
+	private final ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<>();
+	/**
+	 * The last request identifier handed out.
+	 */
+	private final AtomicInteger lastRequestId = new AtomicInteger();
+	/**
+	 * The number of calls completed over this connection.
+	 */
+	private final AtomicInteger completed = new AtomicInteger();
+	/**
+	 * The time, in milliseconds, at which the last call was sent or completed.
+	 */
+	private volatile long lastUsed;
+	/**
+	 * The cause with which the connection was closed; {@code null} while it is
+	 * open. Guarded by the connection's lock.
+	 */
+	private IOException failure;
+
+	/**
+	 * Opens a new multiplexed connection to the given skeleton address and
+	 * starts its reader thread.
+	 *
+	 * @param address
+	 *            the address of the remote skeleton.
+	 * @throws IOException
+	 *             if the socket cannot be connected, the handshake fails, or
+	 *             the skeleton does not multiplex requests.
+	 */
+	public MultiplexedConnection(InetSocketAddress address) throws IOException {
+		this.address = address;
+		this.socket = Transports.connect(address, Deadline.socketTimeout(PooledConnection.connectTimeout));
+		try {
+			socket.setSoTimeout(Deadline.socketTimeout(PooledConnection.connectTimeout));
+			outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			Frames.writeFrame(outStream, Handshake.offer(Codecs.getDefault(), true, Compression.isEnabled()));
+			outStream.flush();
+			byte[] reply = Frames.readFrame(inStream);
+			socket.setSoTimeout(0); // The reader thread waits for responses.
+			codec = Handshake.confirm(reply);
+			if (!Handshake.isMultiplexed(reply)) {
+				throw new StreamCorruptedException("Skeleton does not multiplex requests.");
+			}
+			compressed = Handshake.isCompressed(reply);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		this.lastUsed = System.currentTimeMillis();
+		this.failure = null;
+
+		Thread reader = new Thread(this::readResponses, "rmi-multiplexer-" + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends a request without waiting for its response.
+	 *
+	 * <p>
+	 * The returned future is completed by the connection's reader thread, and
+	 * actions chained to it without an executor run in that thread.
+	 *
+	 * @param request
+	 *            the remote method call to send. Its request identifier is
+	 *            assigned by the connection.
+	 * @return a future completed with the response, or completed
+	 *         exceptionally with an <code>IOException</code> or
+	 *         <code>ClassNotFoundException</code> if the call fails.
+	 */
+	public CompletableFuture<RMIResponse> send(RMIRequest request) {
+		Call call = new Call();
+		int requestId = lastRequestId.incrementAndGet();
+		request.setRequestId(requestId);
+
+		Frame frame;
+		try {
+			frame = encode(request);
+		} catch (IOException e) {
+			call.future.completeExceptionally(e);
+			return call.future;
+		}
+
+		// Futures are completed outside the connection's lock, since actions
+		// chained to them may acquire other locks, such as the pool's.
+		IOException closedWith;
+		IOException writeFailure = null;
+		synchronized (this) {
+			closedWith = failure;
+			call.retryable = completed.get() > 0;
+			if (closedWith == null) {
+				calls.put(requestId, call);
+				lastUsed = System.currentTimeMillis();
+				try {
+					Frames.writeFrame(outStream, frame);
+					outStream.flush();
+					call.retryable = false; // The skeleton may execute it.
+				} catch (IOException e) {
+					writeFailure = e;
+				}
+			}
+		}
+
+		if (closedWith != null) {
+			call.fail(closedWith);
+		} else if (writeFailure != null) {
+			close(writeFailure);
+		}
+		return call.future;
+	}
+
+	/**
+	 * Sends a request that the skeleton does not answer, without waiting.
+	 *
+	 * @param request
+	 *            the one-way call to send.
+	 * @throws StaleConnectionException
+	 *             if the connection had already been closed; the request was
+	 *             not sent.
+	 * @throws IOException
+	 *             if the request cannot be written.
+	 */
+	public void sendOneWay(RMIRequest request) throws IOException {
+		request.setRequestId(lastRequestId.incrementAndGet());
+		Frame frame = encode(request);
+
+		IOException writeFailure;
+		synchronized (this) {
+			if (failure != null) {
+				throw new StaleConnectionException(failure);
+			}
+			lastUsed = System.currentTimeMillis();
+			try {
+				Frames.writeFrame(outStream, frame);
+				outStream.flush();
+				return;
+			} catch (IOException e) {
+				writeFailure = e;
+			}
+		}
+
+		close(writeFailure);
+		throw writeFailure;
+	}
+
+	/**
+	 * Sends a request and waits for its response, until the deadline of the
+	 * request if it has one.
+	 *
+	 * @param request
+	 *            the remote method call to send.
+	 * @return the response sent by the skeleton.
+	 * @throws SocketTimeoutException
+	 *             if the deadline of the request passes first. The connection
+	 *             remains usable; the response, if it arrives, is dropped.
+	 * @throws IOException
+	 *             if the request cannot be written or the connection fails
+	 *             before the response is read.
+	 * @throws ClassNotFoundException
+	 *             if the response refers to a class unknown to this JVM.
+	 */
+	public RMIResponse call(RMIRequest request) throws IOException, ClassNotFoundException {
+		CompletableFuture<RMIResponse> future = send(request);
+		Throwable cause;
+		try {
+			if (!request.hasDeadline()) {
+				return future.join();
+			}
+			return future.get(Math.max(1, request.getRemainingMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// The reader thread drops the response if it arrives later.
+			calls.remove(request.getRequestId());
+			throw new SocketTimeoutException("No response from " + address + " before the deadline.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a response from " + address);
+		} catch (CompletionException | ExecutionException e) {
+			cause = e.getCause();
+		}
+
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		}
+		if (cause instanceof ClassNotFoundException) {
+			throw (ClassNotFoundException) cause;
+		}
+		throw new CompletionException(cause);
+	}
+
+	/**
+	 * Encodes a request, compressing it if the skeleton accepted compression.
+	 * Requests are encoded outside the connection's lock.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return the frame to send
+	 * @throws IOException
+	 *             if the request cannot be encoded.
+	 */
+	private Frame encode(RMIRequest request) throws IOException {
+		Frame frame = codec.encodeFrame(request);
+		frame = compressed ? Compression.compress(frame, request) : frame;
+		request.setFrameLength(Frames.length(frame));
+		return frame;
+	}
+
+	/**
+	 * Reads responses and completes the matching calls until the connection
+	 * fails or is closed.
+	 */
+	private void readResponses() {
+		while (true) {
+			RMIResponse response;
+			try {
+				Frame frame = Frames.readFrameAndSections(inStream);
+				response = (RMIResponse) codec.decode(compressed ? Compression.decompress(frame) : frame);
+				response.setFrameLength(Frames.length(frame));
+			} catch (IOException e) {
+				close(e);
+				return;
+			} catch (ClassNotFoundException | ClassCastException e) {
+				close(new IOException("Unreadable response.", e));
+				return;
+			}
+
+			int requestId = response.getRequestId();
+			Call call = calls.remove(requestId);
+			if (call == null && requestId > 0 && requestId <= lastRequestId.get()) {
+				// The caller stopped waiting for the response at its deadline.
+				lastUsed = System.currentTimeMillis();
+				continue;
+			}
+			if (call == null) {
+				close(new StreamCorruptedException("Response to unknown request " + requestId));
+				return;
+			}
+
+			completed.incrementAndGet();
+			lastUsed = System.currentTimeMillis();
+			call.future.complete(response);
+		}
+	}
+
+	/**
+	 * Returns the address of the skeleton this connection is connected to.
+	 *
+	 * @return skeleton address
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Checks whether the connection has already carried a call.
+	 *
+	 * @return {@code true} if at least one call completed on this connection.
+	 */
+	public boolean isReused() {
+		return completed.get() > 0;
+	}
+
+	/**
+	 * Returns the number of requests waiting for their response.
+	 *
+	 * @return number of requests in flight
+	 */
+	public int getInFlight() {
+		return calls.size();
+	}
+
+	/**
+	 * Returns the time at which a call was last sent or completed.
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Checks whether the connection may carry further calls.
+	 *
+	 * @return {@code true} if the connection has not been closed.
+	 */
+	public synchronized boolean isOpen() {
+		return failure == null;
+	}
+
+	/**
+	 * Closes the connection. Requests in flight fail.
+	 */
+	public void close() {
+		close(new SocketException("Multiplexed connection closed."));
+	}
+
+	/**
+	 * Closes the connection and fails the requests in flight.
+	 *
+	 * @param cause
+	 *            the reason the connection is closed.
+	 */
+	private void close(IOException cause) {
+		ArrayList<Call> failed;
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = cause;
+			failed = new ArrayList<>(calls.values());
+			calls.clear();
+		}
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// The connection is discarded either way.
+		}
+
+		for (Call call : failed) {
+			call.fail(cause);
+		}
+	}
+
+	/**
+	 * Signals that a request did not reach the skeleton whole, because the
+	 * connection had failed before or while it was written. The request was
+	 * not executed, and may be sent again on a new connection.
+	 */
+	public static class StaleConnectionException extends IOException {
+
+		private static final long serialVersionUID = 5106347386406421733L;
+
+		/**
+		 * Creates the exception.
+		 *
+		 * @param cause
+		 *            the failure of the connection.
+		 */
+		StaleConnectionException(IOException cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * A request in flight.
+	 */
+	private static final class Call {
+
+		/**
+		 * The future completed with the response.
+		 */
+		final CompletableFuture<RMIResponse> future = new CompletableFuture<>();
+		/**
+		 * {@code true} if the request was sent on a reused connection and was
+		 * not written in full.
+		 */
+		boolean retryable;
+
+		/**
+		 * Fails the call.
+		 *
+		 * @param cause
+		 *            the failure of the connection.
+		 */
+		void fail(IOException cause) {
+			future.completeExceptionally(retryable ? new StaleConnectionException(cause) : cause);
+		}
+	}
+}
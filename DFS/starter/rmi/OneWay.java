@@ -0,0 +1,37 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a <code>void</code> remote method as one-way.
+ *
+ * <p>
+ * A call to a one-way method through a stub returns as soon as the request
+ * has been written to the connection. The skeleton executes the method but
+ * sends no response, so the caller learns neither when the method completes
+ * nor whether it threw. An exception thrown by the method is reported to the
+ * skeleton's {@link Skeleton#service_error(RMIException)}. A failure to send
+ * the request is thrown to the caller as an <code>RMIException</code>, or
+ * passed to the handler set with
+ * {@link Stub#setOneWayFailureHandler(java.util.function.BiConsumer)}.
+ *
+ * <p>
+ * One-way calls are delivered at most once: a request written to a
+ * connection that the skeleton has already closed is lost without notice.
+ * One-way calls sent by one thread over a pooled connection are executed in
+ * the order they were sent, and before any later call on the same connection.
+ * Within a {@link Batch}, one-way methods are answered like any other method.
+ *
+ * <p>
+ * Interfaces that mark a method returning a value as one-way are not remote
+ * interfaces.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay {
+}
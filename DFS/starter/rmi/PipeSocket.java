@@ -0,0 +1,385 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One end of an in-process connection made of two pipes, presented as a
+ * {@link Socket}.
+ *
+ * <p>
+ * Each pipe is a bounded ring buffer: writes wait while it is full, and reads
+ * wait while it is empty, honouring the socket timeout as TCP sockets do.
+ * Closing one end makes reads at the other end return end of stream once the
+ * buffered bytes are consumed, and makes writes at the other end fail with a
+ * {@link SocketException}, as with a TCP connection reset by its peer. Options
+ * that only apply to TCP are ignored.
+ *
+ * <p>
+ * One thread may read while another writes, as with a TCP socket.
+ */
+final class PipeSocket extends Socket {
+
+	/**
+	 * Capacity, in bytes, of each pipe.
+	 */
+	private static final int PIPE_SIZE = 256 * 1024;
+
+	/**
+	 * The pipe this end reads from.
+	 */
+	private final Pipe in;
+	/**
+	 * The pipe this end writes to.
+	 */
+	private final Pipe out;
+	/**
+	 * The address of the other end, used in {@link #toString()}.
+	 */
+	private final SocketAddress remote;
+	/**
+	 * The stream reading from the pipe.
+	 */
+	private final InputStream inStream = new PipeInputStream();
+	/**
+	 * The stream writing to the pipe.
+	 */
+	private final OutputStream outStream = new PipeOutputStream();
+	/**
+	 * The read timeout, in milliseconds; zero if reads wait indefinitely.
+	 */
+	private volatile int timeout;
+	/**
+	 * {@code true} once the socket has been closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates one end of a connection.
+	 *
+	 * @param in
+	 *            the pipe read by this end.
+	 * @param out
+	 *            the pipe written by this end.
+	 * @param remote
+	 *            the address of the other end.
+	 */
+	private PipeSocket(Pipe in, Pipe out, SocketAddress remote) {
+		this.in = in;
+		this.out = out;
+		this.remote = remote;
+		this.timeout = 0;
+		this.closed = false;
+	}
+
+	/**
+	 * Creates a connected pair of sockets.
+	 *
+	 * @param client
+	 *            the address of the client end.
+	 * @param server
+	 *            the address of the server end.
+	 * @return the client end, then the server end
+	 */
+	static PipeSocket[] pair(SocketAddress client, SocketAddress server) {
+		Pipe toServer = new Pipe();
+		Pipe toClient = new Pipe();
+		return new PipeSocket[] { new PipeSocket(toClient, toServer, server),
+				new PipeSocket(toServer, toClient, client) };
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		checkOpen();
+		return inStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		checkOpen();
+		return outStream;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative.");
+		}
+		checkOpen();
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		checkOpen();
+		return timeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		checkOpen();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		checkOpen();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return remote;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return closed;
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		in.closeReader();
+		out.closeWriter();
+	}
+
+	@Override
+	public String toString() {
+		return "PipeSocket[" + (closed ? "closed" : remote) + "]";
+	}
+
+	/**
+	 * Checks that the socket has not been closed.
+	 *
+	 * @throws SocketException
+	 *             if it has.
+	 */
+	private void checkOpen() throws SocketException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	/**
+	 * A bounded buffer carrying bytes from one end of the connection to the
+	 * other.
+	 */
+	private static final class Pipe {
+
+		/**
+		 * The buffered bytes, starting at {@link #head} and wrapping around.
+		 */
+		private final byte[] buffer = new byte[PIPE_SIZE];
+		/**
+		 * The index of the next byte to read.
+		 */
+		private int head;
+		/**
+		 * The number of buffered bytes.
+		 */
+		private int count;
+		/**
+		 * {@code true} once the reading end has been closed.
+		 */
+		private boolean readerClosed;
+		/**
+		 * {@code true} once the writing end has been closed.
+		 */
+		private boolean writerClosed;
+
+		/**
+		 * Reads buffered bytes, waiting until there are some.
+		 *
+		 * @param bytes
+		 *            the array receiving the bytes.
+		 * @param offset
+		 *            the index of the first byte to set.
+		 * @param length
+		 *            the maximum number of bytes to read, at least one.
+		 * @param timeout
+		 *            the time to wait, in milliseconds; zero to wait
+		 *            indefinitely.
+		 * @return the number of bytes read, or -1 at end of stream.
+		 * @throws IOException
+		 *             if the reading end is closed, the time passes or the
+		 *             thread is interrupted.
+		 */
+		synchronized int read(byte[] bytes, int offset, int length, int timeout) throws IOException {
+			long deadline = (timeout == 0) ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			while (count == 0) {
+				if (readerClosed) {
+					throw new SocketException("Socket closed");
+				}
+				if (writerClosed) {
+					return -1;
+				}
+				long millis = 0;
+				if (deadline != 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+					millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+				}
+				await(millis);
+			}
+			if (readerClosed) {
+				throw new SocketException("Socket closed");
+			}
+
+			int read = Math.min(length, count);
+			int first = Math.min(read, buffer.length - head);
+			System.arraycopy(buffer, head, bytes, offset, first);
+			System.arraycopy(buffer, 0, bytes, offset + first, read - first);
+			head = (head + read) % buffer.length;
+			count -= read;
+			notifyAll();
+			return read;
+		}
+
+		/**
+		 * Writes bytes, waiting for room in the buffer as needed.
+		 *
+		 * @param bytes
+		 *            the array holding the bytes.
+		 * @param offset
+		 *            the index of the first byte to write.
+		 * @param length
+		 *            the number of bytes to write.
+		 * @throws IOException
+		 *             if either end is closed or the thread is interrupted.
+		 */
+		synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (writerClosed) {
+					throw new SocketException("Socket closed");
+				}
+				if (readerClosed) {
+					throw new SocketException("Broken pipe");
+				}
+				if (count == buffer.length) {
+					await(0);
+					continue;
+				}
+
+				int tail = (head + count) % buffer.length;
+				int written = Math.min(length, buffer.length - count);
+				int first = Math.min(written, buffer.length - tail);
+				System.arraycopy(bytes, offset, buffer, tail, first);
+				System.arraycopy(bytes, offset + first, buffer, 0, written - first);
+				count += written;
+				offset += written;
+				length -= written;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Closes the reading end, discarding the buffered bytes.
+		 */
+		synchronized void closeReader() {
+			readerClosed = true;
+			count = 0;
+			notifyAll();
+		}
+
+		/**
+		 * Closes the writing end. The buffered bytes can still be read.
+		 */
+		synchronized void closeWriter() {
+			writerClosed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the other end reads, writes or closes, or the given time
+		 * has passed.
+		 *
+		 * @param millis
+		 *            the time to wait, in milliseconds; zero to wait
+		 *            indefinitely.
+		 * @throws InterruptedIOException
+		 *             if the thread is interrupted.
+		 */
+		private void await(long millis) throws InterruptedIOException {
+			try {
+				wait(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting on an in-memory connection.");
+			}
+		}
+	}
+
+	/**
+	 * The stream reading from the pipe.
+	 */
+	private final class PipeInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			return in.read(bytes, offset, length, timeout);
+		}
+
+		@Override
+		public void close() {
+			PipeSocket.this.close();
+		}
+	}
+
+	/**
+	 * The stream writing to the pipe.
+	 */
+	private final class PipeOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public void close() {
+			PipeSocket.this.close();
+		}
+	}
+}
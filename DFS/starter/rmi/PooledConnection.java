@@ -0,0 +1,277 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import rmi.io.Codec;
+import rmi.io.Codecs;
+import rmi.io.Compression;
+import rmi.io.Frame;
+import rmi.io.Frames;
+import rmi.io.Handshake;
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * A client connection to a skeleton that stays open across remote method
+ * calls.
+ *
+ * <p>
+ * Requests and responses are exchanged as length-prefixed frames (see
+ * {@link Frames}), each carrying one independently encoded message. When the
+ * connection is opened, the client offers the default codec of
+ * {@link Codecs} in a {@link Handshake} and uses the codec the skeleton
+ * accepts. If {@link Compression} is enabled, the client also offers to
+ * compress large frames.
+ *
+ * <p>
+ * A connection is used by at most one caller at a time. Callers obtain
+ * connections from a {@link ConnectionPool} and hand them back when the call
+ * completes. Calls that should share one connection use a
+ * {@link MultiplexedConnection} instead.
+ */
+public class PooledConnection {
+
+	/**
+	 * Time, in milliseconds, after which connecting to a skeleton, and the
+	 * handshake that follows, are abandoned. The deadline of the call opening
+	 * the connection applies if it is earlier.
+	 */
+	public static final int connectTimeout = 10000;
+
+	/**
+	 * The address of the skeleton at the other end of the connection.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * The connected socket.
+	 */
+	private final Socket socket;
+	/**
+	 * The stream requests are written to.
+	 */
+	private final DataOutputStream outStream;
+	/**
+	 * The stream responses are read from.
+	 */
+	private final DataInputStream inStream;
+	/**
+	 * The codec negotiated with the skeleton.
+	 */
+	private final Codec codec;
+	/**
+	 * {@code true} if the skeleton accepted to compress frames.
+	 */
+	private final boolean compressed;
+	/**
+	 * The read timeout of the socket, in milliseconds; zero if reads wait
+	 * indefinitely.
+	 */
+	private int readTimeout;
+	/**
+	 * The time, in milliseconds, at which the connection was last returned to
+	 * the pool.
+	 */
+	private long lastUsed;
+	/**
+	 * The number of calls completed over this connection.
+	 */
+	private int useCount;
+	/**
+	 * {@code false} if writing the last request failed.
+	 */
+	private boolean requestWritten;
+
+	/**
+	 * Opens a new connection to the given skeleton address.
+	 *
+	 * @param address
+	 *            the address of the remote skeleton.
+	 * @throws IOException
+	 *             if the socket cannot be connected or the handshake fails.
+	 */
+	public PooledConnection(InetSocketAddress address) throws IOException {
+		this.address = address;
+		this.socket = Transports.connect(address, Deadline.socketTimeout(connectTimeout));
+		try {
+			readTimeout = Deadline.socketTimeout(connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			Frames.writeFrame(outStream, Handshake.offer(Codecs.getDefault(), false, Compression.isEnabled()));
+			outStream.flush();
+			byte[] reply = Frames.readFrame(inStream);
+			codec = Handshake.confirm(reply);
+			compressed = Handshake.isCompressed(reply);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		this.lastUsed = System.currentTimeMillis();
+		this.useCount = 0;
+	}
+
+	/**
+	 * Sends a request and waits for the matching response, until the deadline
+	 * of the request if it has one.
+	 *
+	 * @param request
+	 *            the remote method call to send.
+	 * @return the response sent by the skeleton.
+	 * @throws java.net.SocketTimeoutException
+	 *             if the deadline passes first. The response may still
+	 *             arrive, so the connection must be discarded.
+	 * @throws IOException
+	 *             if the request cannot be written or the response cannot be
+	 *             read.
+	 * @throws ClassNotFoundException
+	 *             if the response refers to a class unknown to this JVM.
+	 */
+	public RMIResponse call(RMIRequest request) throws IOException, ClassNotFoundException {
+		write(request);
+
+		int timeout = 0;
+		if (request.hasDeadline()) {
+			timeout = (int) Math.max(1, Math.min(request.getRemainingMillis(), Integer.MAX_VALUE));
+		}
+		if (timeout != readTimeout) {
+			socket.setSoTimeout(timeout);
+			readTimeout = timeout;
+		}
+
+		Frame frame = Frames.readFrameAndSections(inStream);
+		RMIResponse response = (RMIResponse) codec.decode(compressed ? Compression.decompress(frame) : frame);
+		response.setFrameLength(Frames.length(frame));
+		useCount++;
+		return response;
+	}
+
+	/**
+	 * Sends a request that the skeleton does not answer, without waiting.
+	 *
+	 * @param request
+	 *            the one-way call to send.
+	 * @throws IOException
+	 *             if the request cannot be written.
+	 */
+	public void send(RMIRequest request) throws IOException {
+		write(request);
+		useCount++;
+	}
+
+	/**
+	 * Encodes and writes a request, recording whether it was written in full.
+	 *
+	 * @param request
+	 *            the request.
+	 * @throws IOException
+	 *             if the request cannot be encoded or written.
+	 */
+	private void write(RMIRequest request) throws IOException {
+		Frame frame = encode(request);
+		requestWritten = false;
+		Frames.writeFrame(outStream, frame);
+		outStream.flush();
+		requestWritten = true;
+	}
+
+	/**
+	 * Encodes a request, compressing it if the skeleton accepted compression.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return the frame to send
+	 * @throws IOException
+	 *             if the request cannot be encoded.
+	 */
+	private Frame encode(RMIRequest request) throws IOException {
+		Frame frame = codec.encodeFrame(request);
+		frame = compressed ? Compression.compress(frame, request) : frame;
+		request.setFrameLength(Frames.length(frame));
+		return frame;
+	}
+
+	/**
+	 * Returns the codec negotiated with the skeleton.
+	 *
+	 * @return codec used on this connection
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the address of the skeleton this connection is connected to.
+	 *
+	 * @return skeleton address
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Checks whether the connection has already carried a call. A failure on
+	 * a reused connection usually means the skeleton closed it while it was
+	 * idle in the pool, before the new request was read.
+	 *
+	 * @return {@code true} if at least one call completed on this connection.
+	 */
+	public boolean isReused() {
+		return useCount > 0;
+	}
+
+	/**
+	 * Checks whether the last request was written in full. The skeleton reads
+	 * whole frames only, so a request whose writing failed was not executed.
+	 *
+	 * @return {@code false} if writing the last request failed.
+	 */
+	public boolean isRequestWritten() {
+		return requestWritten;
+	}
+
+	/**
+	 * Returns the time at which the connection was last returned to the pool.
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Records that the connection has just been returned to the pool.
+	 */
+	void markIdle() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks that the socket is still open in both directions. This is a
+	 * cheap local check; a connection closed by the peer is only detected on
+	 * the next call.
+	 *
+	 * @return {@code true} if the connection may be used for another call.
+	 */
+	public boolean isHealthy() {
+		return socket.isConnected() && !socket.isClosed() && !socket.isInputShutdown()
+				&& !socket.isOutputShutdown();
+	}
+
+	/**
+	 * Closes the connection, ignoring any error.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// The connection is discarded either way.
+		}
+	}
+}
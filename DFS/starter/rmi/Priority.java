@@ -0,0 +1,162 @@
+package rmi;
+
+import rmi.io.RMIRequest;
+
+/**
+ * The priority class of the remote method calls made, or executed, by the
+ * current thread.
+ *
+ * <p>
+ * Each request carries the class of the thread that made it. A skeleton
+ * executes the requests of each class with limits of its own, see
+ * {@link Skeleton#setMaxInFlightRequests(Priority, int)}, and shares the
+ * execution slots it has in common between the classes waiting for them in
+ * proportion to their weights, see
+ * {@link Skeleton#setPriorityWeight(Priority, int)}. The selector engine also
+ * executes {@link #BACKGROUND} requests in a worker pool of their own. Work a
+ * client does not wait for, such as copying replicas, can then neither hold
+ * the slots nor the threads interactive calls need.
+ *
+ * <p>
+ * A client lowers the class of the calls it makes in a block of code with
+ * {@link #enter()}:
+ *
+ * <pre>
+ * try (Priority.Scope scope = Priority.BACKGROUND.enter()) {
+ *     storage.read(path, 0, length);
+ * }
+ * </pre>
+ *
+ * Calls to methods marked {@link Background} are executed in the background
+ * class whatever class the caller is in. A skeleton executes each call with
+ * its class as the class of the executing thread, so the calls a server
+ * object makes on behalf of background work are themselves background work.
+ */
+public enum Priority {
+
+	/**
+	 * Calls a client waits for. The default class, weighted four times the
+	 * background class.
+	 */
+	INTERACTIVE(4),
+	/**
+	 * Calls made on behalf of background work.
+	 */
+	BACKGROUND(1);
+
+	/**
+	 * The class of each thread; {@code null} for the default class.
+	 */
+	private static final ThreadLocal<Priority> current = new ThreadLocal<>();
+
+	/**
+	 * The weight of the class when skeletons share execution slots.
+	 */
+	private final int defaultWeight;
+
+	private Priority(int defaultWeight) {
+		this.defaultWeight = defaultWeight;
+	}
+
+	/**
+	 * Returns the weight the class has in skeletons that do not set one.
+	 *
+	 * @return the weight
+	 */
+	int defaultWeight() {
+		return defaultWeight;
+	}
+
+	/**
+	 * Makes this class the class of the calls made by the current thread
+	 * until the returned scope is closed.
+	 *
+	 * @return the scope, restoring the previous class when closed
+	 */
+	public Scope enter() {
+		Priority previous = current.get();
+		current.set(this);
+		return new Scope(previous);
+	}
+
+	/**
+	 * Returns the class of the calls made by the current thread.
+	 *
+	 * @return the class; {@link #INTERACTIVE} unless another was entered
+	 */
+	public static Priority current() {
+		Priority priority = current.get();
+		return (priority == null) ? INTERACTIVE : priority;
+	}
+
+	/**
+	 * Sets the class of a request to the class of the current thread.
+	 *
+	 * @param request
+	 *            the request about to be sent.
+	 */
+	static void apply(RMIRequest request) {
+		request.setPriority(current().ordinal());
+	}
+
+	/**
+	 * Returns the class in which a skeleton executes a request: the class
+	 * the request carries, or {@link #BACKGROUND} if it calls a method marked
+	 * {@link Background}. Classes unknown to this runtime are taken as the
+	 * lowest.
+	 *
+	 * @param request
+	 *            the request.
+	 * @param methods
+	 *            the remote methods of the skeleton.
+	 * @return the class
+	 */
+	static Priority of(RMIRequest request, MethodTable methods) {
+		Priority[] classes = values();
+		Priority priority = classes[Math.min(Math.max(request.getPriority(), 0), classes.length - 1)];
+
+		MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+		if (entry != null && entry.background && priority.compareTo(BACKGROUND) < 0) {
+			priority = BACKGROUND;
+		}
+		return priority;
+	}
+
+	/**
+	 * Makes the class of a request the class of the current thread while a
+	 * skeleton executes it.
+	 *
+	 * @param priority
+	 *            the class of the request, from
+	 *            {@link #of(RMIRequest, MethodTable)}.
+	 * @return the scope, restoring the previous class when closed
+	 */
+	static Scope follow(Priority priority) {
+		return priority.enter();
+	}
+
+	/**
+	 * A block of code in a priority class, restoring the previous class of
+	 * the thread when closed.
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		/**
+		 * The class of the thread when the scope was entered.
+		 */
+		private final Priority previous;
+
+		private Scope(Priority previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null) {
+				current.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+	}
+}
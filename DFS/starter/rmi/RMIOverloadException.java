@@ -0,0 +1,48 @@
+package rmi;
+
+/**
+ * Thrown by a stub when the skeleton rejected the call because it was over
+ * capacity.
+ *
+ * <p>
+ * A skeleton with bounded admission (see
+ * {@link Skeleton#setMaxInFlightRequests(int)} and
+ * {@link Skeleton#setMaxQueuedRequests(int)}) answers requests that arrive
+ * while all execution slots and queue places are taken with this exception,
+ * without executing them. The call had no effect on the server, so it may be
+ * retried, preferably after the suggested delay.
+ */
+public class RMIOverloadException extends RMIException {
+
+	private static final long serialVersionUID = 3121590743652213851L;
+
+	/**
+	 * The delay, in milliseconds, after which the skeleton suggests retrying.
+	 */
+	private final long retryAfterMillis;
+
+	/**
+	 * Creates an <code>RMIOverloadException</code> with the given message and
+	 * retry hint.
+	 *
+	 * @param message
+	 *            the description of the overload.
+	 * @param retryAfterMillis
+	 *            the delay, in milliseconds, after which the call may be
+	 *            retried.
+	 */
+	public RMIOverloadException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	/**
+	 * Returns the delay after which the skeleton suggests retrying the call,
+	 * estimated from the work queued ahead of it when it was rejected.
+	 *
+	 * @return the delay in milliseconds, at least one
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+}
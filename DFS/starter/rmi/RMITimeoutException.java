@@ -0,0 +1,40 @@
+package rmi;
+
+/**
+ * Thrown when a remote method call does not complete before its deadline.
+ *
+ * <p>
+ * A stub throws this exception when the deadline of a call passes before the
+ * response arrives, or before the connection to the skeleton is established.
+ * The call may then still be executed by the server. A skeleton answers with
+ * this exception, without executing the call, when the deadline has passed
+ * before an execution slot was free. Server objects may also throw it when
+ * they give up waiting on behalf of a call, see {@link Deadline}.
+ */
+public class RMITimeoutException extends RMIException {
+
+	private static final long serialVersionUID = -2602858148715313420L;
+
+	/**
+	 * Creates an <code>RMITimeoutException</code> with the given message.
+	 *
+	 * @param message
+	 *            the description of the call that timed out.
+	 */
+	public RMITimeoutException(String message) {
+		super(message);
+	}
+
+	/**
+	 * Creates an <code>RMITimeoutException</code> with the given message and
+	 * cause.
+	 *
+	 * @param message
+	 *            the description of the call that timed out.
+	 * @param cause
+	 *            the exception reporting the timeout.
+	 */
+	public RMITimeoutException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,274 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * The client side of the cursors of streaming methods.
+ *
+ * <p>
+ * A stub calling a streaming method receives the identifier of a cursor kept
+ * by the skeleton's {@link CursorTable}, and returns an
+ * <code>InputStream</code> or {@link RemoteIterator} reading it. Chunks are
+ * requested one at a time, when the previous chunk has been consumed, over the
+ * same kind of connection as the stub's own calls.
+ */
+final class RemoteCursor {
+
+	/**
+	 * The number of bytes requested per chunk of a stream.
+	 */
+	static final int CHUNK_BYTES = 256 * 1024;
+	/**
+	 * The number of elements requested per chunk of an iterator.
+	 */
+	static final int CHUNK_ELEMENTS = 512;
+
+	/**
+	 * The invocation handler of the stub that called the streaming method.
+	 */
+	private final Stub.StubInvocationHandler handler;
+	/**
+	 * The identifier of the cursor.
+	 */
+	private final long id;
+	/**
+	 * {@code true} once the cursor has been read to the end or closed, after
+	 * which the skeleton has released it.
+	 */
+	private boolean finished;
+
+	/**
+	 * Creates the client side of a cursor.
+	 *
+	 * @param handler
+	 *            the invocation handler of the stub.
+	 * @param id
+	 *            the identifier of the cursor.
+	 */
+	private RemoteCursor(Stub.StubInvocationHandler handler, long id) {
+		this.handler = handler;
+		this.id = id;
+		this.finished = false;
+	}
+
+	/**
+	 * Returns the value a stub returns from a remote method: for a streaming
+	 * method, a stream or iterator reading the cursor named by the response,
+	 * and otherwise the value of the response itself.
+	 *
+	 * @param entry
+	 *            the remote method.
+	 * @param value
+	 *            the return value carried by the response.
+	 * @param handler
+	 *            the invocation handler of the stub.
+	 * @return the value to return to the caller
+	 * @throws RMIException
+	 *             if a streaming method was answered with something other
+	 *             than a cursor identifier.
+	 */
+	static Object wrap(MethodTable.Entry entry, Object value, Stub.StubInvocationHandler handler)
+			throws RMIException {
+		if (!entry.streams || value == null) {
+			return value;
+		}
+		if (!(value instanceof Long)) {
+			throw new RMIException("Streaming method answered without a cursor: " + entry.method);
+		}
+
+		RemoteCursor cursor = new RemoteCursor(handler, (Long) value);
+		if (entry.method.getReturnType() == InputStream.class) {
+			return cursor.new Input();
+		}
+		return cursor.new Elements<Object>();
+	}
+
+	/**
+	 * Requests the next chunk of the cursor.
+	 *
+	 * @param length
+	 *            the largest chunk to return.
+	 * @param type
+	 *            the type of chunk expected.
+	 * @return the chunk
+	 * @throws RMIException
+	 *             if the request fails, or the skeleton cannot read the
+	 *             cursor.
+	 * @throws Exception
+	 *             the exception thrown by the stream or iterator on the
+	 *             server.
+	 */
+	private <C> C fetch(int length, Class<C> type) throws Exception {
+		RMIResponse response = handler.call(new RMIRequest(MethodTable.CURSOR_NEXT, new Object[] { id, length }));
+		if (response.getException() != null) {
+			finished = true; // The skeleton closes cursors that fail.
+			throw response.getException();
+		}
+		if (!type.isInstance(response.getReturnValue())) {
+			finished = true;
+			throw new RMIException("Malformed cursor chunk.");
+		}
+		return type.cast(response.getReturnValue());
+	}
+
+	/**
+	 * Releases the cursor, unless it has been read to the end.
+	 *
+	 * @throws RMIException
+	 *             if the request fails.
+	 */
+	private void close() throws RMIException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		RMIResponse response = handler.call(new RMIRequest(MethodTable.CURSOR_CLOSE, new Object[] { id }));
+		if (response.getException() != null) {
+			throw new RMIException("Unable to close remote cursor.", response.getException());
+		}
+	}
+
+	/**
+	 * A stream reading the cursor over a remote <code>InputStream</code>.
+	 */
+	private final class Input extends InputStream {
+
+		/**
+		 * The chunk being read.
+		 */
+		private byte[] chunk = new byte[0];
+		/**
+		 * The position of the next byte to read in the chunk.
+		 */
+		private int position = 0;
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return chunk[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+
+			int count = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return chunk.length - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				RemoteCursor.this.close();
+			} catch (RMIException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Makes sure unread bytes are buffered, fetching the next chunk if
+		 * needed.
+		 *
+		 * @return {@code false} at the end of the stream
+		 * @throws IOException
+		 *             if the next chunk cannot be read.
+		 */
+		private boolean fill() throws IOException {
+			while (position == chunk.length) {
+				if (finished) {
+					return false;
+				}
+
+				try {
+					chunk = fetch(CHUNK_BYTES, byte[].class);
+				} catch (IOException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				position = 0;
+				if (chunk.length < CHUNK_BYTES) {
+					finished = true; // The skeleton released the cursor.
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * An iterator reading the cursor over a remote {@link RemoteIterator}.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 */
+	private final class Elements<T> implements RemoteIterator<T> {
+
+		/**
+		 * The chunk being read.
+		 */
+		private Object[] chunk = new Object[0];
+		/**
+		 * The position of the next element to return in the chunk.
+		 */
+		private int position = 0;
+
+		@Override
+		public boolean hasNext() throws RMIException {
+			while (position == chunk.length) {
+				if (finished) {
+					return false;
+				}
+
+				try {
+					chunk = fetch(CHUNK_ELEMENTS, Object[].class);
+				} catch (RMIException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RMIException(e);
+				}
+				position = 0;
+				if (chunk.length < CHUNK_ELEMENTS) {
+					finished = true; // The skeleton released the cursor.
+				}
+			}
+			return true;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public T next() throws RMIException {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return (T) chunk[position++];
+		}
+
+		@Override
+		public void close() throws RMIException {
+			RemoteCursor.this.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package rmi;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over elements produced by a remote object.
+ *
+ * <p>
+ * A remote method declared to return a <code>RemoteIterator</code>, or an
+ * <code>java.io.InputStream</code>, streams its result: the server object
+ * returns a local iterator or stream, which the skeleton keeps as a cursor,
+ * and the stub returns an iterator or stream that fetches the elements or
+ * bytes from the cursor in chunks as they are consumed. Neither side ever
+ * holds the whole result. At most one chunk is requested at a time, so a slow
+ * consumer holds back the producer.
+ *
+ * <p>
+ * A cursor is released by the skeleton once it has been read to the end, when
+ * it is closed, or when it has not been read for
+ * {@link Skeleton#connectionIdleTimeout} milliseconds. Callers that stop
+ * before the end should close the iterator.
+ *
+ * <p>
+ * Elements are sent with the codec of the connection and must be
+ * transferable, as arguments and return values are.
+ *
+ * @param <T>
+ *            the type of the elements
+ */
+public interface RemoteIterator<T> extends AutoCloseable {
+
+	/**
+	 * Returns {@code true} if the iteration has more elements.
+	 *
+	 * @return {@code true} if {@link #next()} would return an element
+	 * @throws RMIException
+	 *             if the next chunk of elements cannot be fetched.
+	 */
+	boolean hasNext() throws RMIException;
+
+	/**
+	 * Returns the next element of the iteration.
+	 *
+	 * @return the next element
+	 * @throws NoSuchElementException
+	 *             if the iteration has no more elements.
+	 * @throws RMIException
+	 *             if the next chunk of elements cannot be fetched.
+	 */
+	T next() throws RMIException;
+
+	/**
+	 * Releases the iteration before its end. Closing an iterator that has
+	 * been read to the end, or closed, has no effect.
+	 *
+	 * @throws RMIException
+	 *             if the remote cursor cannot be released.
+	 */
+	@Override
+	void close() throws RMIException;
+
+	/**
+	 * Returns a remote iterator over the elements of a local iterator, for
+	 * server objects to return from streaming methods.
+	 *
+	 * @param iterator
+	 *            the local iterator.
+	 * @param <T>
+	 *            the type of the elements
+	 * @return an iterator returning the same elements
+	 */
+	static <T> RemoteIterator<T> of(Iterator<? extends T> iterator) {
+		return new RemoteIterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public T next() {
+				return iterator.next();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -62,7 +62,9 @@ public final class RemotePattern {
 	}
 
 	/**
-	 * Checks if the given method is a remote method.
+	 * Checks if the given method is a remote method. Remote methods declare
+	 * <code>RMIException</code>, and return <code>void</code> if they are
+	 * marked {@link OneWay}.
 	 * 
 	 * @param method
 	 *            method object
@@ -70,6 +72,10 @@ public final class RemotePattern {
 	 *         {@code false} otherwise.
 	 */
 	public static boolean isRemoteMethod(Method method) {
+		if (method.isAnnotationPresent(OneWay.class) && method.getReturnType() != void.class) {
+			return false;
+		}
+
 		for (Class exceptionClass : method.getExceptionTypes()) {
 			if (exceptionClass.equals(RMIException.class)) {
 				return true;
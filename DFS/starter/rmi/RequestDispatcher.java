@@ -0,0 +1,412 @@
+package rmi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import rmi.io.RMIBatchRequest;
+import rmi.io.RMIBatchResponse;
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * Executes remote method call requests on the server object of a
+ * {@link Skeleton}.
+ *
+ * <p>
+ * The dispatcher is independent of how requests reach the skeleton. Both the
+ * blocking {@link ListenerThread} engine and the {@link SelectorListener}
+ * engine hand decoded requests to the same dispatcher and send back the
+ * response it returns.
+ *
+ * <p>
+ * Requests name the method to call by identifier. The dispatcher looks it up
+ * in the {@link MethodTable} of the remote interface, built when the skeleton
+ * is constructed, and invokes it through a method handle.
+ *
+ * <p>
+ * The results of streaming methods are kept in the dispatcher's
+ * {@link CursorTable} and read by the client in chunks.
+ *
+ * <p>
+ * The engines admit each request with {@link #admit()} as soon as it has been
+ * read, and answer the requests the skeleton has no capacity for with
+ * {@link #reject(RMIRequest)} instead of dispatching them, see
+ * {@link AdmissionControl}. Each request then waits for an execution slot in
+ * the queue of its {@link Priority} class. The selector engine, and the
+ * multiplexed connections of the blocking engine, dispatch with
+ * {@link #dispatch(RMIRequest, Executor, Consumer)}, so that a queued request
+ * does not hold a thread while it waits.
+ *
+ * <p>
+ * Each call executed is recorded in the server {@link MethodMetrics} of its
+ * method, timed around the invocation of the method.
+ *
+ * @param <T>
+ *            the generic remote interface the skeleton represents.
+ */
+public class RequestDispatcher<T> {
+
+	/**
+	 * The skeleton on whose behalf requests are executed.
+	 */
+	private Skeleton<T> container;
+	/**
+	 * The object on which remote method calls are executed.
+	 */
+	private T serverObject;
+	/**
+	 * The remote interface class object represented by the skeleton.
+	 */
+	private Class<T> serverClass;
+	/**
+	 * The remote methods of the remote interface.
+	 */
+	private MethodTable methods;
+	/**
+	 * The open cursors over the results of streaming methods.
+	 */
+	private final CursorTable cursors = new CursorTable();
+	/**
+	 * The limits on the requests executing and waiting to execute.
+	 */
+	final AdmissionControl admission = new AdmissionControl();
+
+	/**
+	 * The constructor to create a new {@link RequestDispatcher} instance.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverObject
+	 *            The generic server object
+	 * @param serverClass
+	 *            The class object of server
+	 */
+	public RequestDispatcher(Skeleton<T> container, T serverObject, Class<T> serverClass) {
+		this.container = container;
+		this.serverObject = serverObject;
+		this.serverClass = serverClass;
+		this.methods = MethodTable.forInterface(serverClass);
+	}
+
+	/**
+	 * Admits a request that has just been read. An admitted request must be
+	 * passed to {@link #dispatch(RMIRequest)}, or given up with
+	 * {@link #withdraw()}; a request that is not admitted must be passed to
+	 * {@link #reject(RMIRequest)}.
+	 *
+	 * @return {@code true} if the skeleton has capacity for the request
+	 */
+	public boolean admit() {
+		return admission.admit();
+	}
+
+	/**
+	 * Gives up an admitted request that will not be dispatched, because the
+	 * skeleton is stopping.
+	 */
+	public void withdraw() {
+		admission.withdraw();
+	}
+
+	/**
+	 * Returns the priority class in which a request is executed: the class
+	 * it carries, lowered to {@link Priority#BACKGROUND} if it calls a method
+	 * marked {@link Background}.
+	 *
+	 * @param request
+	 *            the remote method call, or batch of calls, read from the
+	 *            client.
+	 * @return the class
+	 */
+	public Priority classify(RMIRequest request) {
+		return Priority.of(request, methods);
+	}
+
+	/**
+	 * Answers a request that was not admitted, without executing it.
+	 *
+	 * @param request
+	 *            the remote method call, or batch of calls, read from the
+	 *            client.
+	 * @return the response carrying an {@link RMIOverloadException}, tagged
+	 *         with the identifier of the request; {@code null} for a one-way
+	 *         call, which is dropped.
+	 */
+	public RMIResponse reject(RMIRequest request) {
+		return refuse(request, new RMIOverloadException("Skeleton over capacity: " + serverClass.getName(),
+				admission.retryAfterMillis()));
+	}
+
+	/**
+	 * Answers a request without executing it.
+	 *
+	 * @param request
+	 *            the remote method call, or batch of calls.
+	 * @param exception
+	 *            the reason the request is not executed.
+	 * @return the response carrying the exception, tagged with the identifier
+	 *         of the request; {@code null} for a one-way call, which is
+	 *         dropped.
+	 */
+	private RMIResponse refuse(RMIRequest request, RMIException exception) {
+		if (!(request instanceof RMIBatchRequest)) {
+			MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+			if (entry != null && entry.oneWay) {
+				return null;
+			}
+		}
+
+		RMIResponse response = new RMIResponse(exception);
+		response.setRequestId(request.getRequestId());
+		return response;
+	}
+
+	/**
+	 * Executes an admitted remote method call, or batch of calls, on the
+	 * server object, once an execution slot is free for its priority class.
+	 * The calling thread waits for the slot, and executes the request.
+	 *
+	 * @param request
+	 *            the remote method call, or batch of calls, read from the
+	 *            client and admitted with {@link #admit()}.
+	 * @return the response carrying the return value or the exception thrown,
+	 *         or the responses to the calls of a batch, tagged with the
+	 *         identifier of the request; {@code null} for a one-way call.
+	 * @see #dispatch(RMIRequest, Executor, Consumer)
+	 */
+	public RMIResponse dispatch(RMIRequest request) {
+		CompletableFuture<Runnable> handoff = new CompletableFuture<>();
+		CompletableFuture<RMIResponse> response = new CompletableFuture<>();
+		dispatch(request, handoff::complete, response::complete);
+		if (!response.isDone()) {
+			handoff.join().run(); // The request was queued; run it here once it has a slot.
+		}
+		return response.join();
+	}
+
+	/**
+	 * Executes an admitted remote method call, or batch of calls, on the
+	 * server object, once an execution slot is free for its priority class.
+	 *
+	 * <p>
+	 * If a slot is free, the request is executed in the calling thread.
+	 * Otherwise it is queued without holding a thread, and executed by
+	 * {@code executor} once it gets a slot, or answered by it once its
+	 * deadline passes.
+	 *
+	 * <p>
+	 * A request whose class is over capacity is answered with an
+	 * {@link RMIOverloadException}, and a request whose deadline passes
+	 * before it is executed with an {@link RMITimeoutException} instead.
+	 * Otherwise the request is executed with its deadline as the
+	 * {@link Deadline} of the executing thread, its class as the
+	 * {@link Priority} of the thread, and in a span of its {@link Trace}, if
+	 * it has one.
+	 *
+	 * @param request
+	 *            the remote method call, or batch of calls, read from the
+	 *            client and admitted with {@link #admit()}.
+	 * @param executor
+	 *            the executor running the request if it is queued. It must
+	 *            run every task it is given, even once the skeleton has
+	 *            stopped.
+	 * @param reply
+	 *            receives the response carrying the return value or the
+	 *            exception thrown, or the responses to the calls of a batch,
+	 *            tagged with the identifier of the request; {@code null} for a
+	 *            one-way call.
+	 */
+	public void dispatch(final RMIRequest request, Executor executor, final Consumer<RMIResponse> reply) {
+		final Priority priority = classify(request);
+		if (!admission.enter(priority)) {
+			reply.accept(reject(request));
+			return;
+		}
+
+		Runnable start = () -> reply.accept(run(request, priority));
+		Runnable expire = () -> reply.accept(
+				refuse(request, new RMITimeoutException("Deadline passed while queued: " + describe(request))));
+		if (admission.begin(request, priority, executor, start, expire)) {
+			start.run();
+		}
+	}
+
+	/**
+	 * Executes a request holding an execution slot, and releases the slot.
+	 *
+	 * @param request
+	 *            the request.
+	 * @param priority
+	 *            the class of the request.
+	 * @return the response, tagged with the identifier of the request;
+	 *         {@code null} for a one-way call.
+	 */
+	@SuppressWarnings("try") // The scopes set the deadline, trace and priority of the thread.
+	private RMIResponse run(RMIRequest request, Priority priority) {
+		long start = System.nanoTime();
+		try {
+			if (request.isExpired()) {
+				admission.expire();
+				return refuse(request, new RMITimeoutException("Deadline passed before execution: " + describe(request)));
+			}
+			try (Deadline.Scope scope = Deadline.follow(request);
+					Trace.Scope span = Trace.follow(request, methods);
+					Priority.Scope level = Priority.follow(priority)) {
+				return perform(request);
+			}
+		} finally {
+			admission.end(priority, start);
+		}
+	}
+
+	/**
+	 * Executes a remote method call, or a batch of calls, on the server
+	 * object.
+	 *
+	 * <p>
+	 * Exceptions thrown by the remote method are returned in the response.
+	 * Failures to find or invoke the method are reported to
+	 * {@link Skeleton#service_error(RMIException)} and returned to the client
+	 * as an {@link RMIException}.
+	 *
+	 * <p>
+	 * The calls of a batch are executed in order in the calling thread, and
+	 * answered together. Every call of the batch is executed, whether or not
+	 * the calls before it threw an exception.
+	 *
+	 * <p>
+	 * A call to a {@link OneWay} method outside a batch is not answered.
+	 * Exceptions it throws are reported to
+	 * {@link Skeleton#service_error(RMIException)} instead.
+	 *
+	 * @param request
+	 *            the remote method call, or batch of calls, read from the
+	 *            client.
+	 * @return the response carrying the return value or the exception thrown,
+	 *         or the responses to the calls of a batch, tagged with the
+	 *         identifier of the request; {@code null} for a one-way call.
+	 */
+	private RMIResponse perform(RMIRequest request) {
+		RMIResponse response;
+		if (request instanceof RMIBatchRequest) {
+			RMIRequest[] calls = ((RMIBatchRequest) request).getCalls();
+			RMIResponse[] results = new RMIResponse[calls.length];
+			for (int i = 0; i < calls.length; i++) {
+				results[i] = execute(calls[i], true);
+			}
+			response = new RMIBatchResponse(results);
+		} else {
+			MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+			if (entry != null && entry.oneWay) {
+				execute(request, false);
+				return null;
+			}
+			response = execute(request, true);
+		}
+		response.setRequestId(request.getRequestId());
+		return response;
+	}
+
+	/**
+	 * Executes a remote method call.
+	 *
+	 * @param request
+	 *            the remote method call.
+	 * @param answered
+	 *            {@code false} if the response is not sent, in which case an
+	 *            exception thrown by the method is reported to
+	 *            {@link Skeleton#service_error(RMIException)}.
+	 * @return the response carrying the return value or the exception thrown.
+	 */
+	private RMIResponse execute(RMIRequest request, boolean answered) {
+		RMIResponse response;
+		Object[] arguments = request.getArguments();
+		if (request.getMethodId() == MethodTable.CURSOR_NEXT || request.getMethodId() == MethodTable.CURSOR_CLOSE) {
+			return cursors.execute(request);
+		}
+
+		MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+
+		if (entry == null) {
+			RMIException exception = new RMIException("Failed to find a matching method: " + describe(request),
+					new NoSuchMethodException("No such remote method."));
+			container.service_error(exception);
+			return new RMIResponse(exception);
+		}
+
+		try {
+			entry.checkAccess();
+			if (!entry.accepts(arguments)) {
+				throw new IllegalArgumentException("Arguments do not match " + entry.method);
+			}
+		} catch (IllegalArgumentException | IllegalAccessException e) {
+			RMIException exception = new RMIException("Failed to invoke the designated method: " + describe(request), e);
+			container.service_error(exception);
+			return new RMIResponse(exception);
+		}
+
+		long start = System.nanoTime();
+		try {
+			Object value = entry.invoke(serverObject, arguments);
+			if (entry.streams && value != null) {
+				value = cursors.open(value);
+			}
+			response = new RMIResponse(value);
+		} catch (Exception e) {
+			if (!answered) {
+				container.service_error(new RMIException("One-way method threw an exception: " + describe(request), e));
+			}
+			response = new RMIResponse(e);
+		} catch (Throwable t) {
+			RMIException exception = new RMIException(t);
+			container.service_error(exception);
+			response = new RMIResponse(exception);
+		}
+
+		entry.serverMetrics().record(System.nanoTime() - start, response.getException() != null,
+				request.getFrameLength(), 0);
+		return response;
+	}
+
+	/**
+	 * Records the bytes sent in response to a request, in the server metrics
+	 * of its method. Called by the engines once the response is encoded.
+	 *
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response, whose frame length has been recorded.
+	 */
+	public void sent(RMIRequest request, RMIResponse response) {
+		if (request instanceof RMIBatchRequest) {
+			return; // The calls of a batch share one response.
+		}
+		MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+		if (entry != null) {
+			entry.serverMetrics().recordSent(response.getFrameLength());
+		}
+	}
+
+	/**
+	 * Closes the cursors left open by clients. Called when the skeleton
+	 * stops.
+	 */
+	void closeCursors() {
+		cursors.closeAll();
+	}
+
+	/**
+	 * Describes a request for error messages.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return the description
+	 */
+	private String describe(RMIRequest request) {
+		return "ServerClass: " + serverClass.getName() + ", " + "IPAddress: "
+				+ container.getBindAddress().getAddress().toString() + ", " + "Port: "
+				+ container.getBindAddress().getPort() + ", " + "MethodId: "
+				+ Integer.toHexString(request.getMethodId()) + ", " + "Arguments: " + request.getArguments().length;
+	}
+}
@@ -0,0 +1,267 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The results of calls to {@link Cacheable} methods kept by a stub.
+ *
+ * <p>
+ * Results are kept by method and arguments until they expire, and the least
+ * recently used results are dropped once the cache holds {@link #CAPACITY}
+ * of them, or once their estimated size exceeds {@link #MAX_BYTES}. The size
+ * of a result counts the elements of arrays and the characters of strings,
+ * including the strings in an array; other objects count as a reference. A
+ * result larger than the whole budget is not kept. Each emptying of the cache starts a new
+ * generation; a result is only stored if the cache was not emptied while the
+ * call producing it was in progress, so that a call overlapping a change
+ * cannot store what it read before the change.
+ */
+final class ResultCache {
+
+	/**
+	 * The number of results kept by a cache.
+	 */
+	static final int CAPACITY = 1024;
+	/**
+	 * The estimated number of bytes of results kept by a cache.
+	 */
+	static final long MAX_BYTES = 1 << 20;
+	/**
+	 * The estimated size of a reference, in bytes.
+	 */
+	private static final int REFERENCE_BYTES = 8;
+
+	/**
+	 * The value returned by {@link #get(MethodTable.Entry, Object[])} when no
+	 * result is cached, since {@code null} is a valid result.
+	 */
+	static final Object MISS = new Object();
+
+	/**
+	 * The results, in order of use. Guarded by the cache.
+	 */
+	private final LinkedHashMap<Key, Result> results = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * The estimated size of the results, in bytes. Guarded by the cache.
+	 */
+	private long bytes;
+
+	/**
+	 * The number of times the cache was emptied. Guarded by the cache.
+	 */
+	private long generation;
+
+	/**
+	 * Returns the cached result of a call.
+	 *
+	 * @param entry
+	 *            the method called; {@link Cacheable}.
+	 * @param args
+	 *            the arguments of the call, or {@code null}.
+	 * @return the result, copied if it is an array; {@link #MISS} if no
+	 *         result is cached or it expired
+	 */
+	synchronized Object get(MethodTable.Entry entry, Object[] args) {
+		Key key = new Key(entry, args);
+		Result result = results.get(key);
+		if (result == null) {
+			return MISS;
+		}
+		if (System.nanoTime() - result.expiry >= 0) {
+			results.remove(key);
+			bytes -= result.bytes;
+			return MISS;
+		}
+		return copy(result.value);
+	}
+
+	/**
+	 * Returns the current generation of the cache, to be passed to
+	 * {@link #put(MethodTable.Entry, Object[], Object, long)} once the call
+	 * completes.
+	 *
+	 * @return the generation
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Stores the result of a call, unless the cache was emptied since the call
+	 * started or the result is larger than {@link #MAX_BYTES}, and drops the
+	 * least recently used results until the cache is within its bounds.
+	 *
+	 * @param entry
+	 *            the method called; {@link Cacheable}.
+	 * @param args
+	 *            the arguments of the call, or {@code null}.
+	 * @param value
+	 *            the result; arrays are copied.
+	 * @param started
+	 *            the generation of the cache when the call started.
+	 */
+	synchronized void put(MethodTable.Entry entry, Object[] args, Object value, long started) {
+		long size = sizeOf(value);
+		if (started != generation || size > MAX_BYTES) {
+			return;
+		}
+
+		Result previous = results.put(new Key(entry, args),
+				new Result(copy(value), System.nanoTime() + entry.cacheTtlNanos, size));
+		bytes += size - ((previous == null) ? 0 : previous.bytes);
+
+		Iterator<Result> eldest = results.values().iterator();
+		while (results.size() > CAPACITY || bytes > MAX_BYTES) {
+			bytes -= eldest.next().bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Empties the cache and starts a new generation.
+	 */
+	synchronized void clear() {
+		results.clear();
+		bytes = 0;
+		generation++;
+	}
+
+	/**
+	 * Copies a result if it is an array.
+	 *
+	 * @param value
+	 *            the result.
+	 * @return a shallow copy of <code>value</code> if it is an array;
+	 *         <code>value</code> itself otherwise
+	 */
+	private static Object copy(Object value) {
+		if (value == null || !value.getClass().isArray()) {
+			return value;
+		}
+
+		int length = Array.getLength(value);
+		Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+		System.arraycopy(value, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Estimates the memory held by a result.
+	 *
+	 * @param value
+	 *            the result.
+	 * @return the estimated size in bytes
+	 */
+	private static long sizeOf(Object value) {
+		if (value instanceof String) {
+			return 2L * ((String) value).length();
+		}
+		if (value == null || !value.getClass().isArray()) {
+			return REFERENCE_BYTES;
+		}
+
+		int length = Array.getLength(value);
+		Class<?> component = value.getClass().getComponentType();
+		if (component == byte.class || component == boolean.class) {
+			return length;
+		} else if (component == char.class || component == short.class) {
+			return 2L * length;
+		} else if (component == int.class || component == float.class) {
+			return 4L * length;
+		} else if (component.isPrimitive()) {
+			return 8L * length;
+		}
+
+		long size = 0;
+		for (Object element : (Object[]) value) {
+			size += (element instanceof String) ? REFERENCE_BYTES + sizeOf(element) : REFERENCE_BYTES;
+		}
+		return size;
+	}
+
+	/**
+	 * A method and the arguments of a call to it.
+	 */
+	private static final class Key {
+
+		/**
+		 * The method's identifier.
+		 */
+		private final int id;
+		/**
+		 * The arguments; empty for methods without parameters.
+		 */
+		private final Object[] args;
+		/**
+		 * The hash code of the key.
+		 */
+		private final int hash;
+
+		/**
+		 * Creates the key of a call.
+		 *
+		 * @param entry
+		 *            the method called.
+		 * @param args
+		 *            the arguments of the call, or {@code null}.
+		 */
+		Key(MethodTable.Entry entry, Object[] args) {
+			this.id = entry.id;
+			this.args = (args == null) ? new Object[0] : args.clone();
+			this.hash = 31 * id + Arrays.deepHashCode(this.args);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return hash == key.hash && id == key.id && Arrays.deepEquals(args, key.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * A cached result.
+	 */
+	private static final class Result {
+
+		/**
+		 * The result of the call.
+		 */
+		final Object value;
+		/**
+		 * The time, from <code>System.nanoTime</code>, at which the result
+		 * expires.
+		 */
+		final long expiry;
+		/**
+		 * The estimated size of the result, in bytes.
+		 */
+		final long bytes;
+
+		/**
+		 * Creates the cached result.
+		 *
+		 * @param value
+		 *            the result of the call.
+		 * @param expiry
+		 *            the time at which the result expires.
+		 * @param bytes
+		 *            the estimated size of the result.
+		 */
+		Result(Object value, long expiry, long bytes) {
+			this.value = value;
+			this.expiry = expiry;
+			this.bytes = bytes;
+		}
+	}
+}
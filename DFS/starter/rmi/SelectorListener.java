@@ -0,0 +1,933 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rmi.io.Codec;
+import rmi.io.Compression;
+import rmi.io.Frame;
+import rmi.io.FrameReader;
+import rmi.io.Frames;
+import rmi.io.Handshake;
+import rmi.io.RMIRequest;
+import rmi.io.RMIResponse;
+
+/**
+ * The listener of the {@link Skeleton.Engine#SELECTOR} engine.
+ *
+ * <p>
+ * The listener thread accepts connections on a {@link ServerSocketChannel}
+ * and hands them to a small, fixed number of I/O threads. Each I/O thread
+ * multiplexes its connections on a {@link Selector}, performs the
+ * {@link Handshake}, reads request frames without blocking, and writes back
+ * response frames. Decoding requests and
+ * executing them is done by a bounded pool of worker threads, so the number
+ * of threads does not grow with the number of clients.
+ *
+ * <p>
+ * As with the blocking engine, a connection carries one request at a time:
+ * the next request is not read until the response to the previous one has
+ * been written. On a multiplexed connection (see {@link Handshake}), requests
+ * are read as they arrive and executed concurrently, and responses are written
+ * in the order they complete. Connections idle for longer than
+ * {@link Skeleton#connectionIdleTimeout} are closed.
+ *
+ * <p>
+ * Because the worker pool is bounded, remote methods that block for a long
+ * time hold a worker for as long as they block. A skeleton whose methods may
+ * wait on each other, such as the naming server's <code>lock</code>, should
+ * use the blocking engine instead.
+ *
+ * <p>
+ * Connections handed over by transports without selectable channels, such as
+ * {@link InMemoryTransport}, are served as by the blocking engine, each by a
+ * {@link MethodInvocationTask} in a thread of its own. Requests of such
+ * connections that are multiplexed still run in the worker pool.
+ *
+ * <p>
+ * Requests executed in the {@link Priority#BACKGROUND} class run in a second,
+ * smaller pool of their own once decoded, so that background work waiting for
+ * execution slots never holds the workers interactive requests need.
+ *
+ * @param <T>
+ *            the generic remote interface this listener represents.
+ */
+public class SelectorListener<T> extends Thread implements SkeletonListener {
+
+	/**
+	 * Interval, in milliseconds, at which I/O threads look for idle
+	 * connections.
+	 */
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
+	/**
+	 * The skeleton object that this listener instance represents.
+	 */
+	private Skeleton<T> container;
+	/**
+	 * The remote interface class object represented by this listener.
+	 */
+	private Class<T> serverClass;
+	/**
+	 * The dispatcher executing remote method calls on the server object.
+	 */
+	private RequestDispatcher<T> dispatcher;
+	/**
+	 * The server channel on which the listener accepts connections.
+	 */
+	private ServerSocketChannel listenerChannel;
+	/**
+	 * The boolean status representing if the listener is running/listening or
+	 * not.
+	 */
+	private volatile boolean isActive;
+	/**
+	 * The cause due to which the listener terminated. {@code null} if
+	 * termination was requested and not due to an exception.
+	 */
+	private Throwable cause;
+	/**
+	 * The I/O threads serving accepted connections.
+	 */
+	private List<IoLoop> ioLoops;
+	/**
+	 * The index of the I/O thread that receives the next accepted connection.
+	 */
+	private int nextLoop;
+	/**
+	 * The bounded pool of worker threads executing remote method calls.
+	 */
+	private ThreadPoolExecutor workers;
+	/**
+	 * The bounded pool of worker threads executing background remote method
+	 * calls.
+	 */
+	private ThreadPoolExecutor backgroundWorkers;
+	/**
+	 * The threads serving connections without selectable channels.
+	 */
+	private ExecutorService streamThreads;
+	/**
+	 * The tasks currently serving connections without selectable channels.
+	 */
+	private Set<MethodInvocationTask<T>> streamTasks = Collections
+			.newSetFromMap(new ConcurrentHashMap<MethodInvocationTask<T>, Boolean>());
+
+	/**
+	 * The constructor for the selector listener.
+	 *
+	 * @param container
+	 *            The skeleton object
+	 * @param serverClass
+	 *            The class object of server
+	 * @param dispatcher
+	 *            The dispatcher executing requests on the server object
+	 * @param listenerChannel
+	 *            The bound server channel
+	 * @param workerThreads
+	 *            The number of worker threads executing remote method calls
+	 * @param backgroundWorkerThreads
+	 *            The number of worker threads executing background remote
+	 *            method calls
+	 * @throws IOException
+	 *             if the selectors of the I/O threads cannot be opened.
+	 */
+	public SelectorListener(Skeleton<T> container, Class<T> serverClass, RequestDispatcher<T> dispatcher,
+			ServerSocketChannel listenerChannel, int workerThreads, int backgroundWorkerThreads) throws IOException {
+		this.container = container;
+		this.serverClass = serverClass;
+		this.dispatcher = dispatcher;
+		this.listenerChannel = listenerChannel;
+		this.isActive = true;
+		this.cause = null;
+		this.nextLoop = 0;
+
+		int ioThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		this.ioLoops = new ArrayList<>(ioThreads);
+		try {
+			for (int i = 0; i < ioThreads; i++) {
+				ioLoops.add(new IoLoop(i));
+			}
+		} catch (IOException e) {
+			for (IoLoop loop : ioLoops) {
+				loop.closeSelector();
+			}
+			throw e;
+		}
+
+		this.workers = newPool(workerThreads, "rmi-worker-" + serverClass.getSimpleName() + "-");
+		this.backgroundWorkers = newPool(backgroundWorkerThreads,
+				"rmi-background-" + serverClass.getSimpleName() + "-");
+		this.streamThreads = VirtualThreads.newPerTaskExecutor(false);
+	}
+
+	/**
+	 * Creates a bounded pool of worker threads, which exit when idle.
+	 *
+	 * @param threads
+	 *            the number of threads.
+	 * @param name
+	 *            the prefix of the names of the threads.
+	 * @return the pool
+	 */
+	private static ThreadPoolExecutor newPool(int threads, final String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable task) {
+						return new Thread(task, name + count.incrementAndGet());
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+
+		for (IoLoop loop : ioLoops) {
+			loop.start();
+		}
+
+		while (isActive) {
+			SocketChannel clientChannel = null;
+			try {
+				clientChannel = listenerChannel.accept();
+			} catch (ClosedChannelException e) {
+				if (isActive) {
+					cause = (Throwable) e;
+				}
+				// Otherwise expected behaviour; the channel was closed by
+				// terminate().
+				break;
+			} catch (IOException e) {
+				isActive = container.listen_error(e);
+				if (!isActive) {
+					cause = (Throwable) e;
+					break;
+				}
+			}
+
+			if (clientChannel == null) {
+				continue;
+			}
+
+			try {
+				clientChannel.configureBlocking(false);
+				clientChannel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				container.service_error(new RMIException(e));
+				try {
+					clientChannel.close();
+				} catch (IOException closeException) {
+					// Nothing more can be done.
+				}
+				continue;
+			}
+
+			nextLoop().register(clientChannel);
+		}
+
+		for (IoLoop loop : ioLoops) {
+			loop.shutdown();
+		}
+
+		// Requests already read are still executed and answered; the I/O
+		// threads exit once their last connection is closed.
+		workers.shutdown();
+		backgroundWorkers.shutdown();
+
+		for (MethodInvocationTask<T> task : streamTasks) {
+			task.shutdown();
+		}
+		streamThreads.shutdown();
+
+		closeConnection();
+		container.confirmTermination(cause);
+	}
+
+	/**
+	 * The method to initiate termination of the listener.
+	 */
+	@Override
+	public void terminate() {
+		if (this.isActive) {
+			this.isActive = false;
+			closeConnection();
+		} else {
+			closeConnection();
+			container.confirmTermination(null);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void serve(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			container.service_error(new RMIException(e));
+			try {
+				channel.close();
+			} catch (IOException closeException) {
+				// Nothing more can be done.
+			}
+			return;
+		}
+
+		nextLoop().register(channel);
+	}
+
+	/**
+	 * Serves a connection without a selectable channel in a new
+	 * {@link MethodInvocationTask}. The connection is closed if the listener
+	 * has terminated.
+	 *
+	 * @param connection
+	 *            the accepted connection.
+	 */
+	@Override
+	public void serve(Socket connection) {
+		MethodInvocationTask<T> task = new MethodInvocationTask<T>(container, serverClass, dispatcher, connection,
+				this);
+		streamTasks.add(task);
+		try {
+			streamThreads.execute(task);
+		} catch (RejectedExecutionException e) {
+			streamTasks.remove(task);
+			try {
+				connection.close();
+			} catch (IOException closeException) {
+				// Nothing more can be done.
+			}
+		}
+	}
+
+	/**
+	 * Runs a multiplexed request of a connection served by a
+	 * {@link MethodInvocationTask} in the worker pool of its class.
+	 *
+	 * @param task
+	 *            the request to run.
+	 * @param priority
+	 *            the class of the request.
+	 * @return {@code false} if the pool has been shut down.
+	 */
+	@Override
+	public boolean execute(Runnable task, Priority priority) {
+		try {
+			(priority == Priority.BACKGROUND ? backgroundWorkers : workers).execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void taskFinished(MethodInvocationTask<?> task) {
+		streamTasks.remove(task);
+	}
+
+	/**
+	 * Returns the I/O thread that receives the next accepted connection.
+	 * Connections accepted by transports are handed out by other threads than
+	 * the listener.
+	 *
+	 * @return the I/O thread
+	 */
+	private synchronized IoLoop nextLoop() {
+		IoLoop loop = ioLoops.get(nextLoop);
+		nextLoop = (nextLoop + 1) % ioLoops.size();
+		return loop;
+	}
+
+	/**
+	 * Returns the address the server channel is bound to.
+	 *
+	 * @return the bound address; the skeleton's address if the channel is
+	 *         closed.
+	 */
+	private InetSocketAddress getLocalAddress() {
+		try {
+			return (InetSocketAddress) listenerChannel.getLocalAddress();
+		} catch (IOException e) {
+			return container.getBindAddress();
+		}
+	}
+
+	/**
+	 * The method to close the server channel to prevent it from accepting
+	 * anymore connections.
+	 */
+	private void closeConnection() {
+		try {
+			listenerChannel.close();
+		} catch (IOException e) {
+			container.listen_error(e); // The listener is stopping either way.
+		}
+	}
+
+	/**
+	 * Decodes and executes a request on a worker thread, and hands the
+	 * response back to the connection's I/O thread. A request the skeleton
+	 * has no capacity for is decoded and rejected on the I/O thread instead,
+	 * and a background request is executed in the background pool.
+	 *
+	 * @param connection
+	 *            the connection the request was read from.
+	 * @param input
+	 *            the request frame.
+	 * @param admitted
+	 *            {@code true} if the request was admitted by the dispatcher.
+	 */
+	private void serve(final Connection connection, Frame input, boolean admitted) {
+		RMIRequest request;
+		try {
+			request = (RMIRequest) connection.codec
+					.decode(connection.compressed ? Compression.decompress(input) : input);
+			request.setFrameLength(Frames.length(input));
+		} catch (ClassNotFoundException | IOException | ClassCastException e) {
+			container.service_error(new RMIException(e));
+			connection.loop.execute(connection::close);
+			if (admitted) {
+				dispatcher.withdraw();
+			}
+			return;
+		}
+
+		if (admitted && dispatcher.classify(request) == Priority.BACKGROUND) {
+			final RMIRequest background = request;
+			try {
+				backgroundWorkers.execute(() -> respond(connection, background, true));
+			} catch (RejectedExecutionException e) {
+				dispatcher.withdraw();
+				connection.loop.execute(connection::close); // The listener has terminated.
+			}
+			return;
+		}
+
+		respond(connection, request, admitted);
+	}
+
+	/**
+	 * Executes a decoded request, and hands the response back to the
+	 * connection's I/O thread. A request that has to wait for an execution
+	 * slot releases the worker, and is executed in the pool of its class once
+	 * it gets one.
+	 *
+	 * @param connection
+	 *            the connection the request was read from.
+	 * @param request
+	 *            the request.
+	 * @param admitted
+	 *            {@code true} if the request was admitted by the dispatcher.
+	 */
+	private void respond(final Connection connection, final RMIRequest request, boolean admitted) {
+		if (!admitted) {
+			reply(connection, request, dispatcher.reject(request));
+			return;
+		}
+
+		final Priority priority = dispatcher.classify(request);
+		dispatcher.dispatch(request, task -> {
+			if (!execute(task, priority)) {
+				task.run(); // The listener has terminated; the slot must still be released.
+			}
+		}, response -> reply(connection, request, response));
+	}
+
+	/**
+	 * Encodes the response to a request, and hands it to the connection's I/O
+	 * thread.
+	 *
+	 * @param connection
+	 *            the connection the request was read from.
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response; {@code null} for a one-way call.
+	 */
+	private void reply(final Connection connection, RMIRequest request, RMIResponse response) {
+		if (response == null) {
+			connection.loop.execute(connection::skip); // One-way calls are not answered.
+			return;
+		}
+
+		final Frame frame;
+		try {
+			Frame encoded = connection.codec.encodeFrame(response);
+			frame = connection.compressed ? Compression.compress(encoded, request) : encoded;
+			response.setFrameLength(Frames.length(frame));
+			dispatcher.sent(request, response);
+		} catch (IOException e) {
+			container.service_error(new RMIException(e));
+			connection.loop.execute(connection::close);
+			return;
+		}
+
+		connection.loop.execute(() -> connection.send(frame));
+	}
+
+	/**
+	 * An I/O thread multiplexing a set of connections on one selector.
+	 *
+	 * <p>
+	 * All connection state is owned by the I/O thread. Other threads submit
+	 * work to it with {@link #execute(Runnable)}.
+	 */
+	private final class IoLoop extends Thread {
+
+		/**
+		 * The selector on which the connections are registered.
+		 */
+		private final Selector selector;
+		/**
+		 * Work submitted by other threads, run by the I/O thread.
+		 */
+		private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+		/**
+		 * The open connections served by this thread.
+		 */
+		private final Set<Connection> connections = new HashSet<>();
+		/**
+		 * {@code true} once the listener has terminated. Busy connections are
+		 * closed after their last response is written.
+		 */
+		private boolean stopping;
+		/**
+		 * The time at which idle connections were last looked for.
+		 */
+		private long lastIdleCheck;
+
+		/**
+		 * Creates an I/O thread.
+		 *
+		 * @param index
+		 *            the index of the thread, used in its name.
+		 * @throws IOException
+		 *             if the selector cannot be opened.
+		 */
+		IoLoop(int index) throws IOException {
+			super("rmi-io-" + serverClass.getSimpleName() + "-" + index);
+			this.selector = Selector.open();
+			this.stopping = false;
+			this.lastIdleCheck = System.currentTimeMillis();
+		}
+
+		/**
+		 * Runs a task on the I/O thread.
+		 *
+		 * @param task
+		 *            the task to run.
+		 */
+		void execute(Runnable task) {
+			pending.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Starts serving a newly accepted connection.
+		 *
+		 * @param channel
+		 *            the connected, non-blocking channel.
+		 */
+		void register(final SocketChannel channel) {
+			execute(() -> {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					Connection connection = new Connection(channel, key, this);
+					key.attach(connection);
+					connections.add(connection);
+					if (stopping) {
+						connection.abort();
+					}
+				} catch (ClosedChannelException e) {
+					// The client is already gone.
+				}
+			});
+		}
+
+		/**
+		 * Closes idle connections and makes the thread exit once the busy
+		 * ones have been answered.
+		 */
+		void shutdown() {
+			execute(() -> {
+				stopping = true;
+				for (Connection connection : new ArrayList<>(connections)) {
+					if (connection.busy == 0) {
+						connection.abort();
+					} else {
+						connection.updateInterest();
+					}
+				}
+			});
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			while (!(stopping && connections.isEmpty())) {
+				try {
+					selector.select(IDLE_CHECK_INTERVAL);
+				} catch (IOException e) {
+					container.service_error(new RMIException(e));
+					break;
+				}
+
+				Runnable task;
+				while ((task = pending.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					SelectorListener<?>.Connection connection = (SelectorListener<?>.Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						connection.fail(e);
+					}
+				}
+
+				closeIdle();
+			}
+
+			for (Connection connection : new ArrayList<>(connections)) {
+				connection.close();
+			}
+			closeSelector();
+		}
+
+		/**
+		 * Closes connections that have carried no request for longer than
+		 * {@link Skeleton#connectionIdleTimeout}.
+		 */
+		private void closeIdle() {
+			long now = System.currentTimeMillis();
+			if (now - lastIdleCheck < IDLE_CHECK_INTERVAL) {
+				return;
+			}
+			lastIdleCheck = now;
+
+			for (Connection connection : new ArrayList<>(connections)) {
+				if (connection.busy == 0 && now - connection.lastActive > Skeleton.connectionIdleTimeout) {
+					connection.abort();
+				}
+			}
+		}
+
+		/**
+		 * Closes the selector, ignoring any error.
+		 */
+		void closeSelector() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing more can be done.
+			}
+		}
+	}
+
+	/**
+	 * The state of one client connection. Only accessed by the connection's
+	 * I/O thread.
+	 */
+	private final class Connection {
+
+		/**
+		 * The client channel.
+		 */
+		final SocketChannel channel;
+		/**
+		 * The registration of the channel with the I/O thread's selector.
+		 */
+		final SelectionKey key;
+		/**
+		 * The I/O thread serving the connection.
+		 */
+		final IoLoop loop;
+		/**
+		 * The reader assembling the request frame being read.
+		 */
+		final FrameReader reader = new FrameReader();
+		/**
+		 * The codec negotiated in the handshake; {@code null} until the
+		 * handshake frame has been read.
+		 */
+		Codec codec;
+		/**
+		 * The response frames waiting to be written, the one being written
+		 * first.
+		 */
+		final ArrayDeque<ByteBuffer[]> output = new ArrayDeque<>();
+		/**
+		 * The number of requests read whose response has not been written.
+		 */
+		int busy;
+		/**
+		 * {@code true} if the client multiplexes requests on the connection.
+		 */
+		boolean multiplexed;
+		/**
+		 * {@code true} if the client asked to compress frames on the
+		 * connection. Frames are compressed and restored on worker threads.
+		 */
+		boolean compressed;
+		/**
+		 * {@code true} once the channel has been closed.
+		 */
+		boolean closed;
+		/**
+		 * The time at which the connection last completed a request.
+		 */
+		long lastActive;
+
+		/**
+		 * Creates the state of a newly registered connection.
+		 *
+		 * @param channel
+		 *            the client channel.
+		 * @param key
+		 *            the selector registration of the channel.
+		 * @param loop
+		 *            the I/O thread serving the connection.
+		 */
+		Connection(SocketChannel channel, SelectionKey key, IoLoop loop) {
+			this.channel = channel;
+			this.key = key;
+			this.loop = loop;
+			this.codec = null;
+			this.busy = 0;
+			this.multiplexed = false;
+			this.compressed = false;
+			this.closed = false;
+			this.lastActive = System.currentTimeMillis();
+		}
+
+		/**
+		 * Reads as much of the next request frame as is available. Once the
+		 * frame is complete, the request is passed to the worker pool, and
+		 * reading stops until it is answered unless the connection is
+		 * multiplexed. The first frame is the client's handshake, which is
+		 * answered directly.
+		 *
+		 * @throws IOException
+		 *             if reading fails, the frame length is invalid or the
+		 *             handshake is malformed.
+		 */
+		void read() throws IOException {
+			final Frame frame;
+			try {
+				frame = reader.read(channel);
+			} catch (EOFException e) {
+				close(); // The client closed the connection.
+				return;
+			}
+			if (frame == null) {
+				return;
+			}
+
+			busy++;
+
+			if (codec == null) {
+				if (frame.getSections().length != 0) {
+					throw new StreamCorruptedException("Handshake with bulk sections.");
+				}
+				byte[] payload = frame.getPayload();
+				codec = Handshake.accept(payload);
+				multiplexed = Handshake.isMultiplexed(payload);
+				compressed = Handshake.isCompressed(payload);
+				updateInterest();
+				send(new Frame(Handshake.reply(codec, payload)));
+				return;
+			}
+
+			updateInterest();
+
+			if (!dispatcher.admit()) {
+				serve(this, frame, false);
+				return;
+			}
+			try {
+				workers.execute(() -> serve(this, frame, true));
+			} catch (RejectedExecutionException e) {
+				dispatcher.withdraw();
+				close(); // The listener has terminated.
+			}
+		}
+
+		/**
+		 * Queues a response frame and starts writing it.
+		 *
+		 * @param frame
+		 *            the encoded response.
+		 */
+		void send(Frame frame) {
+			if (closed) {
+				return;
+			}
+
+			output.addLast(Frames.toBuffers(frame));
+
+			try {
+				write();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Completes a request that is not answered, as if its response had
+		 * been written.
+		 */
+		void skip() {
+			if (closed) {
+				return;
+			}
+
+			busy--;
+			lastActive = System.currentTimeMillis();
+			if (loop.stopping && busy == 0) {
+				abort();
+			} else {
+				updateInterest();
+			}
+		}
+
+		/**
+		 * Writes as much of the queued responses as the channel accepts. Once
+		 * a connection has no request left to answer, it goes back to reading
+		 * requests, or is closed if the listener has terminated.
+		 *
+		 * @throws IOException
+		 *             if writing fails.
+		 */
+		void write() throws IOException {
+			while (!output.isEmpty()) {
+				ByteBuffer[] frame = output.peekFirst();
+				channel.write(frame);
+				if (frame[frame.length - 1].hasRemaining()) {
+					break;
+				}
+				output.removeFirst();
+				busy--;
+				lastActive = System.currentTimeMillis();
+			}
+
+			if (loop.stopping && busy == 0) {
+				abort();
+			} else {
+				updateInterest();
+			}
+		}
+
+		/**
+		 * Selects the operations the I/O thread waits for: writing while
+		 * responses are queued, and reading unless a request of a
+		 * non-multiplexed connection is outstanding or the listener has
+		 * terminated.
+		 */
+		void updateInterest() {
+			if (closed) {
+				return;
+			}
+
+			int ops = output.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+			if (!loop.stopping && (multiplexed || busy == 0)) {
+				ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Reports an I/O error on the connection and closes it.
+		 *
+		 * @param e
+		 *            the error.
+		 */
+		void fail(IOException e) {
+			if (closed) {
+				return;
+			}
+			container.service_error(new RMIException(e));
+			close();
+		}
+
+		/**
+		 * Closes the connection without lingering, as the blocking engine
+		 * does for connections it closes first.
+		 */
+		void abort() {
+			try {
+				channel.socket().setSoLinger(true, 0);
+			} catch (SocketException | UnsupportedOperationException e) {
+				// Fall back to a regular close; Unix domain channels have no
+				// socket adaptor, and leave no TIME_WAIT state behind.
+			}
+			close();
+		}
+
+		/**
+		 * Closes the connection and stops serving it.
+		 */
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			loop.connections.remove(this);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				container.service_error(new RMIException(e));
+			}
+		}
+	}
+}
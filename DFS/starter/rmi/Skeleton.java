@@ -7,6 +7,10 @@ package rmi;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * RMI skeleton
@@ -29,13 +33,91 @@ import java.net.ServerSocket;
  * The skeleton's response to these exceptions can be customized by deriving a
  * class from <code>Skeleton</code> and overriding <code>listen_error</code> or
  * <code>service_error</code>.
+ * 
+ * <p>
+ * Connections are served by one of two engines, chosen with
+ * <code>setEngine</code> before the skeleton is started. The default
+ * {@link Engine#BLOCKING} engine serves each connection in its own thread.
+ * The {@link Engine#SELECTOR} engine multiplexes connections on a few I/O
+ * threads and executes requests in a bounded pool of
+ * <code>setWorkerThreads</code> threads. The selector engine keeps the number
+ * of threads fixed under bursty load, but a method call that blocks holds a
+ * worker thread until it returns; skeletons whose methods may block waiting
+ * for other calls, such as the naming server's, should use the blocking
+ * engine.
+ * 
+ * <p>
+ * The blocking engine can serve connections in virtual threads instead of
+ * platform threads, see <code>setVirtualThreads</code>. Method calls that
+ * block then no longer each hold an operating system thread.
+ * 
+ * <p>
+ * With either engine, the number of requests executing at once and the number
+ * waiting to execute can be bounded, see <code>setMaxInFlightRequests</code>
+ * and <code>setMaxQueuedRequests</code>. Requests arriving while both are
+ * full are answered at once with an {@link RMIOverloadException} carrying a
+ * retry hint, rather than waiting behind work the skeleton cannot absorb.
+ * Skeletons whose methods wait for other calls, such as the naming server's
+ * locks, should leave enough execution slots for the calls they wait for.
+ * 
+ * <p>
+ * Each request is executed in a {@link Priority} class, which may have its
+ * own limits besides the skeleton's, see
+ * <code>setMaxInFlightRequests(Priority, int)</code> and
+ * <code>setMaxQueuedRequests(Priority, int)</code>. When requests of several
+ * classes wait for the skeleton's execution slots, the slots are shared in
+ * proportion to the weights of the classes, see
+ * <code>setPriorityWeight</code>. The selector engine executes background
+ * requests in a pool of <code>setBackgroundWorkerThreads</code> threads,
+ * apart from its other workers.
+ * 
+ * <p>
+ * Requests may carry a deadline, see {@link Deadline}. A request whose
+ * deadline passes before it is executed is answered with an
+ * {@link RMITimeoutException} and not executed. Otherwise the server object
+ * runs with the request's deadline as the deadline of its thread.
+ * 
+ * <p>
+ * Besides its TCP socket, a running skeleton accepts connections over the
+ * preferred transports of {@link Transports}, such as a Unix domain socket
+ * when one is configured, which stubs use in preference to TCP.
  */
 public class Skeleton<T> {
 
+	/**
+	 * The engines available to serve client connections.
+	 */
+	public enum Engine {
+		/**
+		 * A listener thread accepting connections, each served by its own
+		 * thread from an unbounded pool.
+		 */
+		BLOCKING,
+		/**
+		 * Non-blocking I/O threads framing requests, executed by a bounded
+		 * pool of worker threads.
+		 */
+		SELECTOR
+	}
+
 	/**
 	 * Max waiting connection queue length for server socket
 	 */
 	public static final int maxQueueLength = 50;
+	/**
+	 * Time, in milliseconds, after which a persistent client connection that
+	 * carries no request is closed by the skeleton.
+	 */
+	public static final int connectionIdleTimeout = 60000;
+	/**
+	 * Default number of worker threads of the selector engine.
+	 */
+	public static final int defaultWorkerThreads = 16;
+	/**
+	 * Default number of worker threads of the selector engine executing
+	 * background requests.
+	 */
+	public static final int defaultBackgroundWorkerThreads = 4;
 
 	/**
 	 * The server object on which the skeleton executes the remote method calls
@@ -55,16 +137,43 @@ public class Skeleton<T> {
 	 * The listener thread that implements the socket listener that listens on
 	 * the given bind address and spawns handler threads.
 	 */
-	private ListenerThread<T> listener;
+	private SkeletonListener listener;
 	/**
 	 * The listener socket on which skeleton accepts connections for remote
 	 * calls.
 	 */
 	private ServerSocket listenerSocket;
+	/**
+	 * The transports accepting connections on behalf of the skeleton besides
+	 * its TCP socket; empty if the skeleton is not running.
+	 */
+	private List<Transport.Listener> transportListeners = new ArrayList<>();
 	/**
 	 * A boolean status of whether the skeleton is running/listening or not.
 	 */
 	private boolean isActive;
+	/**
+	 * The engine used to serve connections.
+	 */
+	private Engine engine;
+	/**
+	 * The number of worker threads of the selector engine.
+	 */
+	private int workerThreads;
+	/**
+	 * The number of worker threads of the selector engine executing
+	 * background requests.
+	 */
+	private int backgroundWorkerThreads;
+	/**
+	 * Whether the blocking engine serves connections in virtual threads.
+	 */
+	private boolean virtualThreads;
+	/**
+	 * The dispatcher executing remote method calls on the server object,
+	 * created with the skeleton's method table.
+	 */
+	private RequestDispatcher<T> dispatcher;
 
 	/**
 	 * Creates a <code>Skeleton</code> with no initial server address. The
@@ -109,6 +218,11 @@ public class Skeleton<T> {
 		this.listenerSocket = null;
 		this.listener = null;
 		this.isActive = false;
+		this.engine = Engine.BLOCKING;
+		this.workerThreads = defaultWorkerThreads;
+		this.backgroundWorkerThreads = defaultBackgroundWorkerThreads;
+		this.virtualThreads = false;
+		this.dispatcher = new RequestDispatcher<T>(this, server, c);
 	}
 
 	/**
@@ -155,6 +269,11 @@ public class Skeleton<T> {
 		this.listenerSocket = null;
 		this.listener = null;
 		this.isActive = false;
+		this.engine = Engine.BLOCKING;
+		this.workerThreads = defaultWorkerThreads;
+		this.backgroundWorkerThreads = defaultBackgroundWorkerThreads;
+		this.virtualThreads = false;
+		this.dispatcher = new RequestDispatcher<T>(this, server, c);
 	}
 
 	/**
@@ -232,15 +351,25 @@ public class Skeleton<T> {
 
 		if (!isActive) {
 			try {
-				if (bindAddress != null) {
-					listenerSocket = new ServerSocket(bindAddress.getPort(), maxQueueLength, bindAddress.getAddress());
+				if (engine == Engine.SELECTOR) {
+					listener = createSelectorListener();
 				} else {
-					listenerSocket = new ServerSocket(0, maxQueueLength);
+					if (bindAddress != null) {
+						listenerSocket = new ServerSocket(bindAddress.getPort(), maxQueueLength,
+								bindAddress.getAddress());
+					} else {
+						listenerSocket = new ServerSocket(0, maxQueueLength);
+					}
+					listener = new ListenerThread<T>(this, serverClass, dispatcher, listenerSocket,
+							virtualThreads);
+				}
+				if (bindAddress == null) {
 					bindAddress = new InetSocketAddress(listenerSocket.getInetAddress(), listenerSocket.getLocalPort());
 				}
-				listener = new ListenerThread<T>(this, serverClass, serverObject, listenerSocket);
 				listener.start();
+				transportListeners = Transports.listen(bindAddress, listener);
 				isActive = true;
+				LocalDispatch.register(this);
 			} catch (IOException e) {
 				System.err.println("Failed to bind Skeleton listener: " + "ServerClass: " + serverClass.getName() + ", "
 						+ "IPAddress: " + bindAddress.getAddress().toString() + ", " + "Port: "
@@ -254,6 +383,364 @@ public class Skeleton<T> {
 		}
 	}
 
+	/**
+	 * Binds a server channel and creates the selector engine's listener.
+	 * 
+	 * @return the listener, not yet started.
+	 * @throws IOException
+	 *             When the channel cannot be bound or the selectors cannot be
+	 *             opened.
+	 */
+	private SkeletonListener createSelectorListener() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.bind((bindAddress != null) ? bindAddress : new InetSocketAddress(0), maxQueueLength);
+			listenerSocket = channel.socket();
+			return new SelectorListener<T>(this, serverClass, dispatcher, channel, workerThreads,
+					backgroundWorkerThreads);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Selects the engine used to serve connections. The engine takes effect
+	 * the next time the skeleton is started.
+	 * 
+	 * @param engine
+	 *            The engine to use.
+	 * @throws NullPointerException
+	 *             If <code>engine</code> is <code>null</code>.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setEngine(Engine engine) {
+		if (engine == null) {
+			throw new NullPointerException("Skeleton engine cannot be null.");
+		}
+
+		if (isActive) {
+			throw new IllegalStateException("Cannot change the engine of a running Skeleton.");
+		}
+
+		this.engine = engine;
+	}
+
+	/**
+	 * Returns the engine used to serve connections.
+	 * 
+	 * @return the skeleton's engine.
+	 */
+	public synchronized Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Sets the number of worker threads executing method calls when the
+	 * selector engine is used. The number takes effect the next time the
+	 * skeleton is started.
+	 * 
+	 * @param workerThreads
+	 *            The number of worker threads.
+	 * @throws IllegalArgumentException
+	 *             If <code>workerThreads</code> is less than one.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setWorkerThreads(int workerThreads) {
+		if (workerThreads < 1) {
+			throw new IllegalArgumentException("Skeleton needs at least one worker thread.");
+		}
+
+		if (isActive) {
+			throw new IllegalStateException("Cannot resize the worker pool of a running Skeleton.");
+		}
+
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the number of worker threads executing background method calls
+	 * when the selector engine is used, apart from the other worker threads.
+	 * The number takes effect the next time the skeleton is started.
+	 * 
+	 * @param backgroundWorkerThreads
+	 *            The number of worker threads.
+	 * @throws IllegalArgumentException
+	 *             If <code>backgroundWorkerThreads</code> is less than one.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setBackgroundWorkerThreads(int backgroundWorkerThreads) {
+		if (backgroundWorkerThreads < 1) {
+			throw new IllegalArgumentException("Skeleton needs at least one background worker thread.");
+		}
+
+		if (isActive) {
+			throw new IllegalStateException("Cannot resize the worker pool of a running Skeleton.");
+		}
+
+		this.backgroundWorkerThreads = backgroundWorkerThreads;
+	}
+
+	/**
+	 * Selects whether the blocking engine serves each connection in a virtual
+	 * thread rather than a platform thread. On Java runtimes without virtual
+	 * threads, platform threads are used regardless. The setting takes effect
+	 * the next time the skeleton is started and is ignored by the selector
+	 * engine.
+	 * 
+	 * @param virtualThreads
+	 *            <code>true</code> to use virtual threads.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		if (isActive) {
+			throw new IllegalStateException("Cannot change the threads of a running Skeleton.");
+		}
+
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Returns whether the blocking engine is set to serve connections in
+	 * virtual threads.
+	 * 
+	 * @return <code>true</code> if virtual threads were requested.
+	 */
+	public synchronized boolean getVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sets the number of requests the skeleton executes at once. Further
+	 * admitted requests wait for a slot. Unbounded by default. The limit may
+	 * be changed while the skeleton is running.
+	 * 
+	 * @param maxInFlightRequests
+	 *            The number of requests.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxInFlightRequests</code> is less than one.
+	 */
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		if (maxInFlightRequests < 1) {
+			throw new IllegalArgumentException("Skeleton needs to execute at least one request at once.");
+		}
+
+		dispatcher.admission.setMaxInFlight(maxInFlightRequests);
+	}
+
+	/**
+	 * Returns the number of requests the skeleton executes at once.
+	 * 
+	 * @return the limit; <code>Integer.MAX_VALUE</code> if unbounded.
+	 */
+	public int getMaxInFlightRequests() {
+		return dispatcher.admission.getMaxInFlight();
+	}
+
+	/**
+	 * Sets the number of requests that may wait for an execution slot.
+	 * Requests arriving while all slots and queue places are taken are
+	 * rejected with an {@link RMIOverloadException}. Unbounded by default.
+	 * The limit may be changed while the skeleton is running.
+	 * 
+	 * @param maxQueuedRequests
+	 *            The number of requests.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxQueuedRequests</code> is negative.
+	 */
+	public void setMaxQueuedRequests(int maxQueuedRequests) {
+		if (maxQueuedRequests < 0) {
+			throw new IllegalArgumentException("Skeleton queue length cannot be negative.");
+		}
+
+		dispatcher.admission.setMaxQueued(maxQueuedRequests);
+	}
+
+	/**
+	 * Returns the number of requests that may wait for an execution slot.
+	 * 
+	 * @return the limit; <code>Integer.MAX_VALUE</code> if unbounded.
+	 */
+	public int getMaxQueuedRequests() {
+		return dispatcher.admission.getMaxQueued();
+	}
+
+	/**
+	 * Sets the number of requests of a priority class the skeleton executes
+	 * at once, within the limit of all requests. Further requests of the
+	 * class wait for a slot. Unbounded by default. The limit may be changed
+	 * while the skeleton is running.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @param maxInFlightRequests
+	 *            The number of requests.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxInFlightRequests</code> is less than one.
+	 */
+	public void setMaxInFlightRequests(Priority priority, int maxInFlightRequests) {
+		if (maxInFlightRequests < 1) {
+			throw new IllegalArgumentException("Skeleton needs to execute at least one request at once.");
+		}
+
+		dispatcher.admission.setMaxInFlight(priority, maxInFlightRequests);
+	}
+
+	/**
+	 * Returns the number of requests of a priority class the skeleton
+	 * executes at once.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @return the limit; <code>Integer.MAX_VALUE</code> if unbounded.
+	 */
+	public int getMaxInFlightRequests(Priority priority) {
+		return dispatcher.admission.getMaxInFlight(priority);
+	}
+
+	/**
+	 * Sets the number of requests of a priority class that may wait for an
+	 * execution slot. Requests of the class arriving while all its slots and
+	 * queue places are taken are rejected with an
+	 * {@link RMIOverloadException}. Unbounded by default. The limit may be
+	 * changed while the skeleton is running.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @param maxQueuedRequests
+	 *            The number of requests.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxQueuedRequests</code> is negative.
+	 */
+	public void setMaxQueuedRequests(Priority priority, int maxQueuedRequests) {
+		if (maxQueuedRequests < 0) {
+			throw new IllegalArgumentException("Skeleton queue length cannot be negative.");
+		}
+
+		dispatcher.admission.setMaxQueued(priority, maxQueuedRequests);
+	}
+
+	/**
+	 * Returns the number of requests of a priority class that may wait for an
+	 * execution slot.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @return the limit; <code>Integer.MAX_VALUE</code> if unbounded.
+	 */
+	public int getMaxQueuedRequests(Priority priority) {
+		return dispatcher.admission.getMaxQueued(priority);
+	}
+
+	/**
+	 * Sets the weight of a priority class. When requests of several classes
+	 * wait for execution slots, each class gets a share of the slots
+	 * proportional to its weight. By default the interactive class weighs
+	 * four times the background class. The weight may be changed while the
+	 * skeleton is running.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @param weight
+	 *            The weight.
+	 * @throws IllegalArgumentException
+	 *             If <code>weight</code> is less than one.
+	 */
+	public void setPriorityWeight(Priority priority, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Priority weight must be at least one.");
+		}
+
+		dispatcher.admission.setWeight(priority, weight);
+	}
+
+	/**
+	 * Returns the weight of a priority class.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @return the weight.
+	 */
+	public int getPriorityWeight(Priority priority) {
+		return dispatcher.admission.getWeight(priority);
+	}
+
+	/**
+	 * Returns the number of requests executing.
+	 * 
+	 * @return the number of requests.
+	 */
+	public int getInFlightRequests() {
+		return dispatcher.admission.getInFlight();
+	}
+
+	/**
+	 * Returns the number of requests of a priority class executing.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @return the number of requests.
+	 */
+	public int getInFlightRequests(Priority priority) {
+		return dispatcher.admission.getInFlight(priority);
+	}
+
+	/**
+	 * Returns the number of requests of a priority class waiting for an
+	 * execution slot.
+	 * 
+	 * @param priority
+	 *            The class.
+	 * @return the number of requests.
+	 */
+	public int getQueuedRequests(Priority priority) {
+		return dispatcher.admission.getQueued(priority);
+	}
+
+	/**
+	 * Returns the number of requests admitted but not executing yet.
+	 * 
+	 * @return the current queue depth.
+	 */
+	public int getQueuedRequests() {
+		return dispatcher.admission.getQueued();
+	}
+
+	/**
+	 * Returns the largest number of requests that have waited for an
+	 * execution slot at once since the skeleton was created.
+	 * 
+	 * @return the peak queue depth.
+	 */
+	public int getPeakQueuedRequests() {
+		return dispatcher.admission.getPeakQueued();
+	}
+
+	/**
+	 * Returns the number of requests rejected because the skeleton was over
+	 * capacity since it was created.
+	 * 
+	 * @return the number of requests.
+	 */
+	public long getRejectedRequests() {
+		return dispatcher.admission.getRejected();
+	}
+
+	/**
+	 * Returns the number of requests answered with an
+	 * {@link RMITimeoutException} without being executed, because their
+	 * deadline passed while they were queued, since the skeleton was created.
+	 * 
+	 * @return the number of requests.
+	 */
+	public long getExpiredRequests() {
+		return dispatcher.admission.getExpired();
+	}
+
 	/**
 	 * Stops the skeleton server, if it is already running.
 	 * 
@@ -263,10 +750,40 @@ public class Skeleton<T> {
 	 * method return. The server stops at some later time; the method
 	 * <code>stopped</code> is called at that point. The server may then be
 	 * restarted.
+	 * 
+	 * <p>
+	 * Unless it is called from the listening thread itself, this method
+	 * returns only once the listening thread has exited. The listening socket
+	 * is then closed and the skeleton's address may be bound again straight
+	 * away.
 	 */
-	public synchronized void stop() {
-		if (isActive) {
-			listener.terminate();
+	public void stop() {
+		SkeletonListener stopping;
+		synchronized (this) {
+			if (!isActive) {
+				return;
+			}
+			stopping = listener;
+			LocalDispatch.unregister(this);
+			closeTransportListeners();
+			stopping.terminate();
+		}
+
+		if (stopping == Thread.currentThread()) {
+			return;
+		}
+
+		boolean interrupted = false;
+		while (stopping.isAlive()) {
+			try {
+				stopping.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -280,6 +797,41 @@ public class Skeleton<T> {
 		return bindAddress;
 	}
 
+	/**
+	 * Returns the addresses on which the skeleton accepts connections over
+	 * transports other than TCP, see {@link Transports}.
+	 * 
+	 * @return the addresses, in the form of each transport; empty if the
+	 *         skeleton is not running or only accepts TCP connections.
+	 */
+	public synchronized List<SocketAddress> getTransportAddresses() {
+		ArrayList<SocketAddress> addresses = new ArrayList<>();
+		for (Transport.Listener transportListener : transportListeners) {
+			addresses.add(transportListener.getAddress());
+		}
+		return addresses;
+	}
+
+	/**
+	 * Stops accepting connections over transports other than TCP.
+	 */
+	private synchronized void closeTransportListeners() {
+		for (Transport.Listener transportListener : transportListeners) {
+			transportListener.close();
+		}
+		transportListeners = new ArrayList<>();
+	}
+
+	/**
+	 * Returns the dispatcher executing the calls made to this skeleton, for
+	 * stubs calling it from the same JVM, see {@link LocalDispatch}.
+	 * 
+	 * @return the dispatcher
+	 */
+	RequestDispatcher<T> getDispatcher() {
+		return dispatcher;
+	}
+
 	/**
 	 * The method is called by the listener thread when it terminates. It is
 	 * used to clean-up and update inner state, before stopped is called.
@@ -299,8 +851,11 @@ public class Skeleton<T> {
 			//		+ "Port: " + bindAddress.getPort());
 		}
 		isActive = false;
+		LocalDispatch.unregister(this);
+		closeTransportListeners();
 		listenerSocket = null;
 		listener = null;
+		dispatcher.closeCursors();
 		stopped(cause);
 	}
 }
@@ -0,0 +1,67 @@
+package rmi;
+
+/**
+ * The thread accepting connections on behalf of a running {@link Skeleton}.
+ *
+ * <p>
+ * Each {@link Skeleton.Engine} provides its own listener: {@link ListenerThread}
+ * for the blocking engine and {@link SelectorListener} for the selector
+ * engine. When the listener exits, whether because {@link #terminate()} was
+ * called or because of an error, it calls
+ * {@link Skeleton#confirmTermination(Throwable)}.
+ *
+ * <p>
+ * The listener also serves the connections accepted on the skeleton's behalf
+ * by the preferred transports of {@link Transports}. Connections are closed if
+ * the listener has terminated.
+ */
+interface SkeletonListener extends Transport.Server {
+
+	/**
+	 * Starts accepting connections.
+	 */
+	void start();
+
+	/**
+	 * Initiates termination of the listener. The listening socket is closed
+	 * straight away; the listener thread exits at some later time.
+	 */
+	void terminate();
+
+	/**
+	 * Runs a request of a multiplexed connection served by a
+	 * {@link MethodInvocationTask} of this listener.
+	 *
+	 * @param task
+	 *            the request to run.
+	 * @param priority
+	 *            the class of the request, which may select the threads
+	 *            running it.
+	 * @return {@code false} if the listener has terminated.
+	 */
+	boolean execute(Runnable task, Priority priority);
+
+	/**
+	 * Called by a {@link MethodInvocationTask} of this listener when it stops
+	 * serving its connection.
+	 *
+	 * @param task
+	 *            the finished task.
+	 */
+	void taskFinished(MethodInvocationTask<?> task);
+
+	/**
+	 * Checks whether the listener thread is still running.
+	 *
+	 * @return {@code true} if the listener thread has not yet exited.
+	 */
+	boolean isAlive();
+
+	/**
+	 * Waits for the listener thread to exit.
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting.
+	 */
+	void join() throws InterruptedException;
+}
@@ -4,16 +4,18 @@
 
 package rmi;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 import rmi.io.RMIRequest;
 import rmi.io.RMIResponse;
@@ -31,8 +33,39 @@ import rmi.io.RMIResponse;
  * may not be modified afterwards. Two stubs are equal if they implement the
  * same interface and carry the same remote server address - and would therefore
  * connect to the same skeleton. Stubs are serializable.
+ *
+ * <p>
+ * Stubs do not open a new connection for every call. Connections to each
+ * skeleton address are kept open and reused through the shared
+ * {@link ConnectionPool}. A stub returned by <code>multiplexed</code> sends
+ * all its calls, from any number of threads, over a single
+ * {@link MultiplexedConnection} per skeleton address instead of one pooled
+ * connection per concurrent call. An {@link AsyncStub}, returned by
+ * <code>createAsync</code> or <code>async</code>, starts calls over that
+ * connection without waiting for them. A {@link Batch}, returned by
+ * <code>batch</code>, sends a sequence of calls in one request. Calls to
+ * methods marked {@link OneWay} return once the request is written. Methods
+ * returning an <code>InputStream</code> or a {@link RemoteIterator} stream
+ * their result in chunks as the caller reads it. The results of methods
+ * marked {@link Cacheable} are reused by the stub for a while. Calls to a
+ * skeleton running in the same JVM can skip the network, once enabled with
+ * <code>setLocalDispatch</code>.
+ *
+ * <p>
+ * Calls wait for their response for as long as it takes, unless they are
+ * made within a {@link Deadline} or through a stub returned by
+ * <code>withTimeout</code>. Connecting to a skeleton gives up after
+ * {@link PooledConnection#connectTimeout} milliseconds in any case. Calls
+ * made within a {@link Trace} carry it to the skeleton, and all calls carry
+ * the {@link Priority} class of the calling thread.
  */
 public abstract class Stub {
+	/**
+	 * Receives failures to send calls to one-way methods; {@code null} if
+	 * such failures are thrown to the caller.
+	 */
+	private static volatile BiConsumer<? super Method, ? super RMIException> oneWayFailureHandler;
+
 	/**
 	 * RMI StubInvocationHandler
 	 *
@@ -46,12 +79,39 @@ public abstract class Stub {
 	 * proxy's invocation handler.
 	 *
 	 */
-	private static class StubInvocationHandler implements Serializable, InvocationHandler {
+	static class StubInvocationHandler implements Serializable, InvocationHandler {
 
 		private static final long serialVersionUID = -9213645686207656988L;
 
 		private InetSocketAddress serverSocketAddress;
 		private Class<?> c;
+		/**
+		 * Whether calls share the multiplexed connection to the skeleton. This
+		 * is a local choice and is not transmitted with the stub.
+		 */
+		private transient boolean multiplexed;
+		/**
+		 * The time, in milliseconds, each call may take; zero if calls are
+		 * only bounded by the caller's {@link Deadline}. This is a local
+		 * choice and is not transmitted with the stub.
+		 */
+		private transient long timeoutMillis;
+		/**
+		 * The remote methods of the interface, looked up once per handler
+		 * rather than on each call.
+		 */
+		private transient MethodTable methods;
+		/**
+		 * The hash code of the stub, computed from the address and interface
+		 * without resolving host names.
+		 */
+		private transient int hash;
+		/**
+		 * The results of calls to cacheable methods; {@code null} if the
+		 * interface has none. Shared with the handlers of the stubs derived
+		 * from this one.
+		 */
+		private transient ResultCache cache;
 
 		/**
 		 * Creates a new StubInvocationHandler constructed with the specified
@@ -64,8 +124,75 @@ public abstract class Stub {
 		 *            The network address of the remote skeleton.
 		 */
 		public StubInvocationHandler(InetSocketAddress address, Class<?> c) {
+			this(address, c, false);
+		}
+
+		/**
+		 * Creates a new StubInvocationHandler constructed with the specified
+		 * InetSocketAddress, the class and the transport to use.
+		 *
+		 * @param c
+		 *            A <code>Class</code> object representing the interface
+		 *            implemented by the remote object.
+		 * @param address
+		 *            The network address of the remote skeleton.
+		 * @param multiplexed
+		 *            Whether calls share the multiplexed connection to the
+		 *            skeleton.
+		 */
+		public StubInvocationHandler(InetSocketAddress address, Class<?> c, boolean multiplexed) {
+			this(address, c, multiplexed, 0);
+		}
+
+		/**
+		 * Creates a new StubInvocationHandler constructed with the specified
+		 * InetSocketAddress, the class, the transport to use and the timeout
+		 * of each call.
+		 *
+		 * @param c
+		 *            A <code>Class</code> object representing the interface
+		 *            implemented by the remote object.
+		 * @param address
+		 *            The network address of the remote skeleton.
+		 * @param multiplexed
+		 *            Whether calls share the multiplexed connection to the
+		 *            skeleton.
+		 * @param timeoutMillis
+		 *            The time each call may take, or zero.
+		 */
+		StubInvocationHandler(InetSocketAddress address, Class<?> c, boolean multiplexed, long timeoutMillis) {
 			this.serverSocketAddress = address;
 			this.c = c;
+			this.multiplexed = multiplexed;
+			this.timeoutMillis = timeoutMillis;
+			resolve();
+		}
+
+		/**
+		 * Restores the fields that are not transmitted with the stub.
+		 *
+		 * @param in
+		 *            The stream the handler is read from
+		 * @throws IOException
+		 *             If the handler cannot be read
+		 * @throws ClassNotFoundException
+		 *             If a class of the handler cannot be found
+		 */
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			resolve();
+		}
+
+		/**
+		 * Looks up the method table of the interface, computes the stub's
+		 * hash code and creates its result cache if it needs one.
+		 * <code>InetSocketAddress.hashCode</code> uses the address bytes, or
+		 * the host name of an unresolved address, and never performs a lookup.
+		 */
+		private void resolve() {
+			methods = MethodTable.forInterface(c);
+			hash = 31 * serverSocketAddress.hashCode() + c.getName().hashCode();
+			cache = methods.hasCacheableMethods() ? new ResultCache() : null;
 		}
 
 		/**
@@ -91,14 +218,60 @@ public abstract class Stub {
 		 */
 		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 
-			try {
-				if (RemotePattern.isRemoteMethod(method)) {
-					return remoteInvoke(proxy, method, args);
-				} else {
-					return localInvoke(proxy, method, args);
+			MethodTable.Entry entry = methods.getEntry(method);
+			if (entry == null) {
+				return localInvoke(proxy, method, args);
+			} else if (cache != null) {
+				return cachedInvoke(proxy, entry, args);
+			} else {
+				return remoteInvoke(proxy, entry, args);
+			}
+		}
+
+		/**
+		 * Processes a remote method invocation made on a stub with a result
+		 * cache. Calls to {@link Cacheable} methods are answered from the
+		 * cache when possible, and their results stored in it. Calls to
+		 * methods that are neither cacheable nor {@link Idempotent} empty the
+		 * cache before and after they are made.
+		 *
+		 * @param proxy
+		 *            The proxy instance that the method was invoked on
+		 * @param entry
+		 *            The remote method invoked on the proxy instance
+		 * @param args
+		 *            The arguments of the call, or null if the method takes no
+		 *            arguments
+		 * @return The value to return from the method invocation on the proxy
+		 *         instance
+		 * @throws Throwable
+		 *             The exception to throw from the method invocation on the
+		 *             proxy instance
+		 */
+		private Object cachedInvoke(Object proxy, MethodTable.Entry entry, Object[] args) throws Throwable {
+			if (entry.cacheTtlNanos > 0) {
+				Object value = cache.get(entry, args);
+				if (value != ResultCache.MISS) {
+					entry.clientMetrics().recordCacheHit();
+					return value;
 				}
-			} catch (Throwable e) {
-				throw e;
+
+				entry.clientMetrics().recordCacheMiss();
+				long generation = cache.generation();
+				value = remoteInvoke(proxy, entry, args);
+				cache.put(entry, args, value, generation);
+				return value;
+			}
+
+			if (entry.idempotent) {
+				return remoteInvoke(proxy, entry, args);
+			}
+
+			cache.clear();
+			try {
+				return remoteInvoke(proxy, entry, args);
+			} finally {
+				cache.clear();
 			}
 		}
 
@@ -109,9 +282,9 @@ public abstract class Stub {
 		 *
 		 * @param proxy
 		 *            The proxy instance that the method was invoked on
-		 * @param method
-		 *            The Method instance corresponding to the interface method
-		 *            invoked on the proxy instance
+		 * @param entry
+		 *            The remote method invoked on the proxy instance, from the
+		 *            interface's {@link MethodTable}
 		 * @param args
 		 *            An array of objects containing the values of the arguments
 		 *            passed in the method invocation on the proxy instance, or
@@ -123,62 +296,307 @@ public abstract class Stub {
 		 *             proxy instance
 		 *
 		 */
-		@SuppressWarnings("rawtypes")
-		private Object remoteInvoke(Object proxy, Method method, Object[] args) throws Throwable {
-			Socket socket = null;
-			ObjectOutputStream out;
-			ObjectInputStream in;
-			RMIRequest request;
-			RMIResponse response;
+		@SuppressWarnings("try") // The span traces the call while it runs.
+		private Object remoteInvoke(Object proxy, MethodTable.Entry entry, Object[] args) throws Throwable {
+			RMIRequest request = new RMIRequest(entry.id, args);
+			RMIResponse response = null;
+			boolean failed = true;
+			long start = System.nanoTime();
 
-			try {
-				socket = new Socket();
-				socket.connect(serverSocketAddress);
-			} catch (IOException e) {
-				//System.err.println("Failed to connect to server skeleton.");
-				closeConnection(socket);
-				throw (Throwable) (new RMIException(e));
+			try (Trace.Scope span = Trace.call(entry)) {
+				if (entry.oneWay) {
+					try {
+						send(request);
+						failed = false;
+					} catch (RMIException e) {
+						BiConsumer<? super Method, ? super RMIException> handler = oneWayFailureHandler;
+						if (handler == null) {
+							throw e;
+						}
+						handler.accept(entry.method, e);
+					}
+					return null;
+				}
+
+				response = call(request);
+				Object value = RemoteCursor.wrap(entry, result(response), this);
+				failed = false;
+				return value;
+			} finally {
+				entry.clientMetrics().record(System.nanoTime() - start, failed,
+						(response == null) ? 0 : response.getFrameLength(), request.getFrameLength());
 			}
+		}
 
-			try {
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-			} catch (IOException e) {
-				closeConnection(socket);
-				//System.err.println("Failed to connect to get OutputStream from socket.");
-				throw (Throwable) (new RMIException(e));
+		/**
+		 * Sends a one-way request to the skeleton without waiting, over a
+		 * pooled connection or the multiplexed connection.
+		 *
+		 * @param request
+		 *            The request to send
+		 * @throws RMIException
+		 *             If the request cannot be written
+		 */
+		@SuppressWarnings("try") // The scope sets the deadline of the calling thread.
+		void send(RMIRequest request) throws RMIException {
+			ConnectionPool pool = ConnectionPool.getShared();
+			Deadline.apply(request, timeoutMillis);
+			Trace.apply(request);
+			Priority.apply(request);
+
+			RequestDispatcher<?> local = LocalDispatch.find(serverSocketAddress);
+			if (local != null) {
+				LocalDispatch.call(local, request, true);
+				return;
 			}
-			try {
-				in = new ObjectInputStream(socket.getInputStream());
-			} catch (IOException e) {
-				closeConnection(socket);
-				//System.err.println("Failed to connect to get InputStream from socket.");
-				throw (Throwable) (new RMIException(e));
+
+			try (Deadline.Scope scope = Deadline.follow(request)) {
+				sendBounded(pool, request);
 			}
+		}
 
-			String[] argumentTypes = getArgumentTypes(method);
-			// System.err.println("Calling Remote Method: " +
-			// method.getDeclaringClass().getName() + "." + method.getName()
-			// + "(" + args + " : " + argumentTypes.toString() + ")");
-			request = new RMIRequest(method.getDeclaringClass().getName(), method.getName(), args, argumentTypes);
-			try {
-				out.writeObject(request);
-			} catch (IOException e) {
-				closeConnection(socket);
-				System.err.println("Failed to write request to socket.");
-				throw (Throwable) (new RMIException(e));
+		/**
+		 * Sends a one-way request whose deadline is that of the current
+		 * thread.
+		 *
+		 * @param pool
+		 *            The pool holding the connections
+		 * @param request
+		 *            The request to send
+		 * @throws RMIException
+		 *             If the request cannot be written
+		 */
+		private void sendBounded(ConnectionPool pool, RMIRequest request) throws RMIException {
+			while (true) {
+				if (multiplexed) {
+					MultiplexedConnection connection;
+					try {
+						connection = pool.acquireMultiplexed(serverSocketAddress);
+					} catch (IOException e) {
+						throw failure(e);
+					}
+
+					try {
+						connection.sendOneWay(request);
+						return;
+					} catch (MultiplexedConnection.StaleConnectionException e) {
+						pool.discard(connection);
+						continue; // The request was not sent.
+					} catch (IOException e) {
+						pool.discard(connection);
+						throw new RMIException(e);
+					}
+				}
+
+				PooledConnection connection;
+				try {
+					connection = pool.acquire(serverSocketAddress);
+				} catch (IOException e) {
+					throw failure(e);
+				}
+
+				try {
+					connection.send(request);
+				} catch (IOException e) {
+					pool.discard(connection);
+					if (canResend(connection, request)) {
+						continue;
+					}
+					throw new RMIException(e);
+				}
+
+				pool.release(connection);
+				return;
 			}
+		}
 
-			try {
-				response = (RMIResponse) in.readObject();
-			} catch (ClassNotFoundException | IOException e) {
-				closeConnection(socket);
-				System.err.println("Failed to read response from socket.");
-				throw (Throwable) (new RMIException(e));
+		/**
+		 * Sends a request to the skeleton and waits for its response, over a
+		 * pooled connection or the multiplexed connection.
+		 *
+		 * @param request
+		 *            The request to send
+		 * @return The response read from the skeleton
+		 * @throws RMITimeoutException
+		 *             If the deadline of the request passes before the
+		 *             response is read
+		 * @throws RMIException
+		 *             If the request cannot be sent or its response cannot be
+		 *             read
+		 */
+		@SuppressWarnings("try") // The scope sets the deadline of the calling thread.
+		RMIResponse call(RMIRequest request) throws RMIException {
+			ConnectionPool pool = ConnectionPool.getShared();
+			Deadline.apply(request, timeoutMillis);
+			Trace.apply(request);
+			Priority.apply(request);
+
+			RequestDispatcher<?> local = LocalDispatch.find(serverSocketAddress);
+			if (local != null) {
+				return LocalDispatch.call(local, request, false);
+			}
+
+			try (Deadline.Scope scope = Deadline.follow(request)) {
+				return multiplexed ? callMultiplexed(pool, request) : callPooled(pool, request);
+			}
+		}
+
+		/**
+		 * Sends a request over a pooled connection and waits for its
+		 * response, until the deadline of the request.
+		 *
+		 * @param pool
+		 *            The pool holding the connections
+		 * @param request
+		 *            The request to send
+		 * @return The response read from the skeleton
+		 * @throws RMIException
+		 *             If the request cannot be sent or its response cannot be
+		 *             read in time
+		 */
+		private RMIResponse callPooled(ConnectionPool pool, RMIRequest request) throws RMIException {
+			RMIResponse response;
+
+			while (true) {
+				PooledConnection connection;
+				try {
+					connection = pool.acquire(serverSocketAddress);
+				} catch (IOException e) {
+					//System.err.println("Failed to connect to server skeleton.");
+					throw failure(e);
+				}
+
+				try {
+					response = connection.call(request);
+				} catch (SocketTimeoutException e) {
+					// The response may still arrive; the connection cannot
+					// carry another call.
+					pool.discard(connection);
+					throw failure(e);
+				} catch (EOFException | SocketException e) {
+					pool.discard(connection);
+					if (canResend(connection, request)) {
+						continue;
+					}
+					throw new RMIException(e);
+				} catch (ClassNotFoundException | IOException e) {
+					pool.discard(connection);
+					throw new RMIException(e);
+				}
+
+				pool.release(connection);
+				break;
 			}
 
-			closeConnection(socket);
+			return response;
+		}
 
+		/**
+		 * Checks whether a request that failed on a pooled connection may be
+		 * sent again on another connection. The skeleton closes idle
+		 * connections, so a failure on a reused connection usually means the
+		 * request was never read; but the skeleton may also have executed it
+		 * before the connection failed. The request is therefore only sent
+		 * again if it was not written in full, or if it calls an
+		 * {@link Idempotent} method.
+		 *
+		 * @param connection
+		 *            The connection that failed
+		 * @param request
+		 *            The request sent on it
+		 * @return {@code true} if the request may be sent again
+		 */
+		private boolean canResend(PooledConnection connection, RMIRequest request) {
+			if (!connection.isReused()) {
+				return false;
+			}
+			return !connection.isRequestWritten() || isIdempotent(request);
+		}
+
+		/**
+		 * Checks whether a request calls an {@link Idempotent} method.
+		 *
+		 * @param request
+		 *            The request
+		 * @return {@code true} if the request may be executed more than once
+		 */
+		private boolean isIdempotent(RMIRequest request) {
+			MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+			return entry != null && entry.idempotent;
+		}
+
+		/**
+		 * Sends a request over the shared multiplexed connection to the
+		 * skeleton and waits for its response.
+		 *
+		 * @param pool
+		 *            The pool holding the multiplexed connection
+		 * @param request
+		 *            The request to send
+		 * @return The response read from the skeleton
+		 * @throws RMIException
+		 *             If the connection cannot be opened or fails before the
+		 *             response is read
+		 */
+		private RMIResponse callMultiplexed(ConnectionPool pool, RMIRequest request) throws RMIException {
+			while (true) {
+				MultiplexedConnection connection;
+				try {
+					connection = pool.acquireMultiplexed(serverSocketAddress);
+				} catch (IOException e) {
+					throw failure(e);
+				}
+
+				try {
+					return connection.call(request);
+				} catch (MultiplexedConnection.StaleConnectionException e) {
+					// The request never reached the skeleton whole and can be
+					// sent again on a fresh connection.
+					pool.discard(connection);
+				} catch (SocketTimeoutException e) {
+					// Only this call gave up; the connection carries on.
+					throw failure(e);
+				} catch (IOException e) {
+					pool.discard(connection);
+					// As on pooled connections, the skeleton may have executed
+					// a request written in full.
+					if (!connection.isReused() || !isIdempotent(request)) {
+						throw new RMIException(e);
+					}
+				} catch (ClassNotFoundException e) {
+					pool.discard(connection);
+					throw new RMIException(e);
+				}
+			}
+		}
+
+		/**
+		 * Wraps the failure of a call, reporting timeouts as
+		 * <code>RMITimeoutException</code>.
+		 *
+		 * @param e
+		 *            The exception raised by the connection
+		 * @return The exception to throw to the caller
+		 */
+		private RMIException failure(IOException e) {
+			if (e instanceof SocketTimeoutException) {
+				return new RMITimeoutException("Call to " + c.getName() + " at " + serverSocketAddress
+						+ " did not complete before its deadline.", e);
+			}
+			return new RMIException(e);
+		}
+
+		/**
+		 * Returns the return value carried by a response, or throws the
+		 * exception it carries.
+		 *
+		 * @param response
+		 *            The response read from the skeleton
+		 * @return The return value of the remote method
+		 * @throws Throwable
+		 *             The exception thrown by the remote method
+		 */
+		private Object result(RMIResponse response) throws Throwable {
 			if (response.getException() == null) {
 				return response.getReturnValue();
 			} else {
@@ -186,7 +604,6 @@ public abstract class Stub {
 				// exception." + response.getException().getClass().getName());
 				throw (Throwable) response.getException();
 			}
-
 		}
 
 		/**
@@ -197,7 +614,7 @@ public abstract class Stub {
 		 *
 		 */
 		public int hashCode() {
-			return toString().hashCode();
+			return hash;
 		}
 
 		/**
@@ -224,11 +641,16 @@ public abstract class Stub {
 				return false;
 			}
 
-			if (!serverSocketAddress.equals(((StubInvocationHandler) sih).serverSocketAddress)) {
+			StubInvocationHandler other = (StubInvocationHandler) sih;
+			if (hash != other.hash) {
 				return false;
 			}
 
-			if (this.c.getName() != ((StubInvocationHandler) sih).c.getName()) {
+			if (!serverSocketAddress.equals(other.serverSocketAddress)) {
+				return false;
+			}
+
+			if (!this.c.getName().equals(other.c.getName())) {
 				return false;
 			}
 
@@ -244,9 +666,9 @@ public abstract class Stub {
 		 *
 		 */
 		public String toString() {
-			//System.err.println("PORT : " + serverSocketAddress.getPort() + " HOSTNAME : "
-			//		+ serverSocketAddress.getHostName() + " INTERFACE-NAME : " + c.getName());
-			return "PORT : " + serverSocketAddress.getPort() + " HOSTNAME : " + serverSocketAddress.getHostName()
+			// getHostString, unlike getHostName, never performs a reverse
+			// lookup.
+			return "PORT : " + serverSocketAddress.getPort() + " HOSTNAME : " + serverSocketAddress.getHostString()
 					+ " INTERFACE-NAME : " + c.getName();
 		}
 
@@ -272,49 +694,25 @@ public abstract class Stub {
 		 *
 		 */
 		private Object localInvoke(Object proxy, Method method, Object[] args) throws Throwable {
-			StubInvocationHandler sih = (StubInvocationHandler) Proxy.getInvocationHandler(proxy);
-
-			return method.invoke(sih, args);
-		}
-
-		/**
-		 * <p>
-		 * This function accepts the socket and closes the connection associated
-		 * with the socket
-		 *
-		 * @param socket
-		 *            The socket used for communication between the skeleton and
-		 *            the stub
-		 *
-		 */
-		private void closeConnection(Socket socket) {
-			try {
-				socket.close();
-			} catch (IOException e) {
-				System.err.println("Failed to close socket.");
-			}
-		}
-
-		/**
-		 * <p>
-		 * This function takes a method object and returns the array of strings
-		 * where each string is the type of an argument of the method
-		 *
-		 * @param method
-		 *            The method object
-		 *
-		 * @return Array of strings of argument types of method
-		 *
-		 */
-		private String[] getArgumentTypes(Method method) {
-			ArrayList<String> list = new ArrayList<>();
-			for (Class clazz : method.getParameterTypes()) {
-				list.add(clazz.getName());
+			// The methods of Object are called without reflection, as stubs
+			// are compared and hashed often, for example in sets of storage
+			// servers.
+			if (method.getDeclaringClass() == Object.class) {
+				switch (method.getName()) {
+				case "equals":
+					return equals(args[0]);
+				case "hashCode":
+					return hash;
+				case "toString":
+					return toString();
+				default:
+					break;
+				}
 			}
 
-			String[] argumentTypes = new String[list.size()];
+			StubInvocationHandler sih = (StubInvocationHandler) Proxy.getInvocationHandler(proxy);
 
-			return (String[]) list.toArray(argumentTypes);
+			return method.invoke(sih, args);
 		}
 	}
 
@@ -460,6 +858,336 @@ public abstract class Stub {
 		return doCreate(c, address);
 	}
 
+	/**
+	 * Creates an asynchronous stub, given the address of a remote server.
+	 *
+	 * <p>
+	 * The asynchronous stub starts calls without waiting for their results,
+	 * and returns futures completed when the responses arrive. Its calls share
+	 * the multiplexed connection to the skeleton.
+	 *
+	 * @param c
+	 *            A <code>Class</code> object representing the interface
+	 *            implemented by the remote object.
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @param <T>
+	 *            Generic class typeparameter
+	 * @return The asynchronous stub created.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface.
+	 */
+	public static <T> AsyncStub<T> createAsync(Class<T> c, InetSocketAddress address) {
+		if (c == null || address == null) {
+			throw new NullPointerException("Paramater of createAsync should be non-null.");
+		}
+
+		if (!RemotePattern.isRemoteInterface(c)) {
+			throw new Error("c is not a remote interface.");
+		}
+
+		return new AsyncStub<T>(c, address);
+	}
+
+	/**
+	 * Returns an asynchronous stub connecting to the same skeleton as the
+	 * given stub.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @param <T>
+	 *            Generic class typeparameter
+	 * @return The asynchronous stub.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> AsyncStub<T> async(T stub) {
+		StubInvocationHandler handler = getHandler(stub);
+		return new AsyncStub<T>((Class<T>) handler.c, handler.serverSocketAddress);
+	}
+
+	/**
+	 * Returns a stub that sends its calls over a multiplexed connection.
+	 *
+	 * <p>
+	 * The returned stub implements the same interface, connects to the same
+	 * skeleton, shares the result cache of and is equal to the given one, see
+	 * {@link Cacheable}. Its calls, from any number of
+	 * threads, share a single connection to the skeleton and are executed
+	 * concurrently by it, rather than each concurrent call using a pooled
+	 * connection of its own. Stubs received over the network are not
+	 * multiplexed; the choice is made by each user of a stub.
+	 *
+	 * @param stub
+	 *            A stub, or any other object implementing a remote interface.
+	 * @param <T>
+	 *            Generic class typeparameter
+	 * @return The multiplexed stub, or <code>stub</code> itself if it is not a
+	 *         stub created by this class or is already multiplexed.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T multiplexed(T stub) {
+		if (!isStub(stub) || getHandler(stub).multiplexed) {
+			return stub;
+		}
+
+		StubInvocationHandler handler = getHandler(stub);
+		StubInvocationHandler derived = new StubInvocationHandler(handler.serverSocketAddress, handler.c, true,
+				handler.timeoutMillis);
+		derived.cache = handler.cache;
+		return (T) Proxy.newProxyInstance(handler.c.getClassLoader(), new Class<?>[] { handler.c, Serializable.class },
+				derived);
+	}
+
+	/**
+	 * Returns a stub whose calls each time out after the given time.
+	 *
+	 * <p>
+	 * The returned stub connects to the same skeleton, over the same kind of
+	 * connection, shares the result cache of and is equal to the given one.
+	 * Each of its calls carries a
+	 * deadline, or the caller's {@link Deadline} if it is earlier, and throws
+	 * an {@link RMITimeoutException} if the deadline passes before the
+	 * response arrives. Stubs received over the network have no timeout; the
+	 * choice is made by each user of a stub.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @param timeoutMillis
+	 *            The time each call may take, in milliseconds, or zero for no
+	 *            timeout.
+	 * @param <T>
+	 *            Generic class typeparameter
+	 * @return The stub with the timeout.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub, or the timeout is
+	 *             negative.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T withTimeout(T stub, long timeoutMillis) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative.");
+		}
+
+		StubInvocationHandler handler = getHandler(stub);
+		StubInvocationHandler derived = new StubInvocationHandler(handler.serverSocketAddress, handler.c,
+				handler.multiplexed, timeoutMillis);
+		derived.cache = handler.cache;
+		return (T) Proxy.newProxyInstance(handler.c.getClassLoader(), new Class<?>[] { handler.c, Serializable.class },
+				derived);
+	}
+
+	/**
+	 * Empties the result cache of a stub, see {@link Cacheable}.
+	 *
+	 * <p>
+	 * The next call through the stub, or through the stubs sharing its cache,
+	 * to each cacheable method is sent to the skeleton. Stubs whose interface
+	 * has no cacheable methods are left unchanged.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	public static void invalidate(Object stub) {
+		ResultCache cache = getHandler(stub).cache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Returns an empty batch of calls to the skeleton a stub connects to.
+	 *
+	 * <p>
+	 * Calls recorded in the batch are sent together in one request when the
+	 * batch is executed, over the same kind of connection as the stub's own
+	 * calls.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @param <T>
+	 *            Generic class typeparameter
+	 * @return The empty batch.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Batch<T> batch(T stub) {
+		StubInvocationHandler handler = getHandler(stub);
+		return new Batch<T>((Class<T>) handler.c, handler);
+	}
+
+	/**
+	 * Sets the handler receiving failures to send calls to {@link OneWay}
+	 * methods.
+	 *
+	 * <p>
+	 * Without a handler, a one-way call that cannot be sent throws an
+	 * <code>RMIException</code> to its caller, like any other call. With a
+	 * handler, one-way calls never throw: the handler is called, in the
+	 * calling thread, with the method called and the failure, and the call
+	 * returns normally.
+	 *
+	 * @param handler
+	 *            The handler, or <code>null</code> to throw failures to the
+	 *            callers again.
+	 */
+	public static void setOneWayFailureHandler(BiConsumer<? super Method, ? super RMIException> handler) {
+		oneWayFailureHandler = handler;
+	}
+
+	/**
+	 * Enables or disables the dispatch of calls to skeletons running in this
+	 * JVM without a connection. Disabled by default, so that every call uses a
+	 * connection, as it would between JVMs.
+	 *
+	 * <p>
+	 * When enabled, a call whose stub address reaches a skeleton started in
+	 * this JVM is handed to the skeleton directly, with its arguments and
+	 * result copied where they could otherwise be shared, see
+	 * {@link LocalDispatch}. A call without a deadline then runs the server
+	 * object's method in the calling thread, so locks the server takes block
+	 * the caller, and connection failures no longer occur.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to dispatch calls to local skeletons
+	 *            directly.
+	 */
+	public static void setLocalDispatch(boolean enabled) {
+		LocalDispatch.setEnabled(enabled);
+	}
+
+	/**
+	 * Checks whether calls to skeletons running in this JVM are dispatched
+	 * without a connection.
+	 *
+	 * @return <code>true</code> if local dispatch is enabled
+	 */
+	public static boolean isLocalDispatch() {
+		return LocalDispatch.isEnabled();
+	}
+
+	/**
+	 * Returns a stub calling several equivalent remote objects, such as the
+	 * replicas of a file on different storage servers.
+	 *
+	 * <p>
+	 * Calls to {@link Idempotent} methods are sent to the first remote object
+	 * over its multiplexed connection, and hedged: if no response arrives
+	 * within the 95th percentile of the method's latency, see
+	 * {@link Metrics}, the call is also sent to the next remote object, and so
+	 * on. The first response wins. A call that fails with an
+	 * <code>RMIException</code> is sent to the next remote object at once.
+	 * Calls to other methods, and to streaming methods, are made through the
+	 * first stub only. A call is bounded by the {@link Deadline} of the
+	 * calling thread.
+	 *
+	 * <p>
+	 * The group stub is for use in this JVM. It is not a stub for
+	 * {@link #isStub(Object)}, cannot be sent over the network, and is only
+	 * equal to itself.
+	 *
+	 * @param c
+	 *            A <code>Class</code> object representing the interface
+	 *            implemented by the remote objects.
+	 * @param stubs
+	 *            Stubs for the remote objects, in order of preference.
+	 * @param <T>
+	 *            Generic class typeparameter
+	 * @return The group stub.
+	 * @throws NullPointerException
+	 *             If any argument or stub is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If no stub is given, or a stub is not a stub for
+	 *             <code>c</code>.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T group(Class<T> c, T[] stubs) {
+		if (c == null || stubs == null) {
+			throw new NullPointerException("Paramater of group should be non-null.");
+		}
+
+		if (!RemotePattern.isRemoteInterface(c)) {
+			throw new Error("c is not a remote interface.");
+		}
+
+		if (stubs.length == 0) {
+			throw new IllegalArgumentException("A group needs at least one stub.");
+		}
+		for (T stub : stubs) {
+			if (stub == null) {
+				throw new NullPointerException("Stub of a group cannot be null.");
+			}
+			if (getHandler(stub).c != c) {
+				throw new IllegalArgumentException("Stub does not implement " + c.getName() + ".");
+			}
+		}
+
+		return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c },
+				new StubGroup<T>(c, Arrays.asList(stubs)));
+	}
+
+	/**
+	 * Checks whether an object is a stub created by this class.
+	 *
+	 * @param object
+	 *            The object to check.
+	 * @return <code>true</code> if <code>object</code> is a stub.
+	 */
+	public static boolean isStub(Object object) {
+		return object != null && Proxy.isProxyClass(object.getClass())
+				&& Proxy.getInvocationHandler(object) instanceof StubInvocationHandler;
+	}
+
+	/**
+	 * Returns the remote interface implemented by a stub.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @return The <code>Class</code> object given when the stub was created.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	public static Class<?> getRemoteInterface(Object stub) {
+		return getHandler(stub).c;
+	}
+
+	/**
+	 * Returns the address of the skeleton a stub connects to.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @return The network address of the remote skeleton.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	public static InetSocketAddress getRemoteAddress(Object stub) {
+		return getHandler(stub).serverSocketAddress;
+	}
+
+	/**
+	 * Returns the invocation handler of a stub.
+	 *
+	 * @param stub
+	 *            A stub created by this class.
+	 * @return The stub's invocation handler.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub.
+	 */
+	private static StubInvocationHandler getHandler(Object stub) {
+		if (!isStub(stub)) {
+			throw new IllegalArgumentException("Not a stub.");
+		}
+		return (StubInvocationHandler) Proxy.getInvocationHandler(stub);
+	}
+
 	/**
 	 * <p>
 	 * Stub.create calls doCreate function with the class and InetSocketAddress
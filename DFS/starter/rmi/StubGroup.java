@@ -0,0 +1,261 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import rmi.io.RMIRequest;
+
+/**
+ * The invocation handler of group stubs, see
+ * {@link Stub#group(Class, Object[])}.
+ *
+ * <p>
+ * A call to an {@link Idempotent} method is sent to the first endpoint over
+ * its multiplexed connection. If no response arrives within the hedge delay,
+ * the call is also sent to the next endpoint, and so on until every endpoint
+ * has been tried; a call failing with an <code>RMIException</code> is sent to
+ * the next endpoint at once. The first response wins, whether it carries a
+ * result or an exception thrown by the remote method; later responses are
+ * ignored. The hedge delay is the 95th percentile of the method's client
+ * latency, see {@link Metrics}, so that about one call in twenty is sent
+ * twice.
+ *
+ * @param <T>
+ *            the remote interface
+ */
+final class StubGroup<T> implements InvocationHandler {
+
+	/**
+	 * The hedge delay, in nanoseconds, of methods with no recorded calls.
+	 */
+	static final long DEFAULT_HEDGE_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+	/**
+	 * The shortest hedge delay, in nanoseconds, so that calls faster than the
+	 * clock's resolution are not all sent twice.
+	 */
+	static final long MIN_HEDGE_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * The remote interface.
+	 */
+	private final Class<T> c;
+	/**
+	 * The stubs of the group, in order of preference.
+	 */
+	private final List<T> stubs;
+	/**
+	 * Asynchronous stubs for the same skeletons, sending idempotent calls.
+	 */
+	private final List<AsyncStub<T>> endpoints;
+	/**
+	 * The remote methods of the interface.
+	 */
+	private final MethodTable methods;
+
+	/**
+	 * Creates the handler. Callers use {@link Stub#group(Class, Object[])}.
+	 *
+	 * @param c
+	 *            the remote interface.
+	 * @param stubs
+	 *            the stubs of the group, in order of preference; at least
+	 *            one.
+	 */
+	StubGroup(Class<T> c, List<T> stubs) {
+		this.c = c;
+		this.stubs = new ArrayList<>(stubs);
+		this.endpoints = new ArrayList<>(stubs.size());
+		for (T stub : stubs) {
+			endpoints.add(new AsyncStub<T>(c, Stub.getRemoteAddress(stub)));
+		}
+		this.methods = MethodTable.forInterface(c);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		MethodTable.Entry entry = methods.getEntry(method);
+		if (entry == null) {
+			return localInvoke(proxy, method, args);
+		}
+
+		// Cursors of streaming methods belong to the skeleton that opened
+		// them, so streaming calls are not sent twice.
+		if (!entry.idempotent || entry.oneWay || entry.streams || stubs.size() == 1) {
+			T first = stubs.get(0);
+			return Proxy.getInvocationHandler(first).invoke(first, method, args);
+		}
+		return hedge(entry, args);
+	}
+
+	/**
+	 * Sends an idempotent call to the endpoints in turn until one answers.
+	 *
+	 * @param entry
+	 *            the remote method.
+	 * @param args
+	 *            the arguments of the call, or {@code null}.
+	 * @return the result of the first response
+	 * @throws Throwable
+	 *             the exception of the first response; the failure of the last
+	 *             endpoint if none could be reached; an
+	 *             {@link RMITimeoutException} if the deadline of the calling
+	 *             thread passes first.
+	 */
+	private Object hedge(MethodTable.Entry entry, Object[] args) throws Throwable {
+		BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+		long delay = hedgeDelay(entry);
+		int launched = 0;
+		int failed = 0;
+		RMIException failure = null;
+
+		while (true) {
+			if (failed == launched) {
+				if (launched == endpoints.size()) {
+					throw failure;
+				}
+				launch(entry, args, launched++, outcomes);
+			}
+
+			boolean hedging = launched < endpoints.size();
+			long remaining = Deadline.isSet() ? TimeUnit.MILLISECONDS.toNanos(Deadline.remainingMillis())
+					: Long.MAX_VALUE;
+			long wait = hedging ? Math.min(delay, remaining) : remaining;
+
+			Outcome outcome;
+			try {
+				outcome = (wait == Long.MAX_VALUE) ? outcomes.take() : outcomes.poll(wait, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RMIException("Interrupted while waiting for " + c.getName() + " replicas.", e);
+			}
+
+			if (outcome == null) {
+				if (Deadline.isExpired()) {
+					throw new RMITimeoutException(
+							"Call to " + c.getName() + " replicas did not complete before its deadline.");
+				}
+				if (hedging) {
+					launch(entry, args, launched++, outcomes);
+				}
+				continue;
+			}
+
+			if (outcome.failure == null) {
+				return outcome.value;
+			}
+			if (outcome.failure instanceof RMIException && !(outcome.failure instanceof RMITimeoutException)) {
+				failure = (RMIException) outcome.failure;
+				failed++;
+				continue;
+			}
+			throw outcome.failure;
+		}
+	}
+
+	/**
+	 * Sends a call to one endpoint.
+	 *
+	 * @param entry
+	 *            the remote method.
+	 * @param args
+	 *            the arguments of the call, or {@code null}.
+	 * @param index
+	 *            the index of the endpoint.
+	 * @param outcomes
+	 *            the queue receiving the outcome of the call.
+	 * @throws RMITimeoutException
+	 *             if the deadline of the calling thread has passed.
+	 */
+	private void launch(MethodTable.Entry entry, Object[] args, int index, BlockingQueue<Outcome> outcomes)
+			throws RMITimeoutException {
+		RMIRequest request = new RMIRequest(entry.id, args);
+		Deadline.apply(request, 0);
+		Trace.apply(request);
+		Priority.apply(request);
+		endpoints.get(index).send(request).whenComplete((Object value, Throwable failure) -> {
+			if (failure instanceof CompletionException && failure.getCause() != null) {
+				failure = failure.getCause();
+			}
+			outcomes.add(new Outcome(value, failure));
+		});
+	}
+
+	/**
+	 * Returns the time to wait for a response before sending a call to the
+	 * next endpoint.
+	 *
+	 * @param entry
+	 *            the remote method.
+	 * @return the delay, in nanoseconds
+	 */
+	private static long hedgeDelay(MethodTable.Entry entry) {
+		long p95 = entry.clientMetrics().getLatencyNanos(0.95);
+		return (p95 == 0) ? DEFAULT_HEDGE_DELAY : Math.max(MIN_HEDGE_DELAY, p95);
+	}
+
+	/**
+	 * Executes the methods of <code>Object</code> on the group stub. Group
+	 * stubs are only equal to themselves.
+	 *
+	 * @param proxy
+	 *            the group stub.
+	 * @param method
+	 *            the method.
+	 * @param args
+	 *            the arguments, or {@code null}.
+	 * @return the result of the method
+	 * @throws Throwable
+	 *             the exception thrown by the method.
+	 */
+	private Object localInvoke(Object proxy, Method method, Object[] args) throws Throwable {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			List<Object> addresses = new ArrayList<>();
+			for (AsyncStub<T> endpoint : endpoints) {
+				addresses.add(endpoint.getRemoteAddress());
+			}
+			return "StubGroup " + c.getName() + " @ " + addresses;
+		default:
+			return method.invoke(this, args);
+		}
+	}
+
+	/**
+	 * The outcome of a call sent to one endpoint.
+	 */
+	private static final class Outcome {
+
+		/**
+		 * The result of the remote method.
+		 */
+		final Object value;
+		/**
+		 * The exception of the call, or {@code null} if it returned.
+		 */
+		final Throwable failure;
+
+		/**
+		 * Creates the outcome.
+		 *
+		 * @param value
+		 *            the result of the remote method.
+		 * @param failure
+		 *            the exception of the call, or {@code null}.
+		 */
+		Outcome(Object value, Throwable failure) {
+			this.value = value;
+			this.failure = failure;
+		}
+	}
+}
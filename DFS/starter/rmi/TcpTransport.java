@@ -0,0 +1,68 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The TCP transport.
+ *
+ * <p>
+ * Every skeleton listens on TCP: its engine binds the server socket itself,
+ * and the TCP address is what identifies the skeleton. This transport
+ * therefore only opens connections, and is always tried after the preferred
+ * transports of {@link Transports}.
+ */
+public final class TcpTransport implements Transport {
+
+	/**
+	 * Creates the transport. The instance in {@link Transports#TCP} is the
+	 * one used by stubs.
+	 */
+	TcpTransport() {
+	}
+
+	@Override
+	public String getName() {
+		return "tcp";
+	}
+
+	/**
+	 * Opens a TCP connection, with <code>TCP_NODELAY</code> set.
+	 *
+	 * @param address
+	 *            the address of the skeleton.
+	 * @param timeout
+	 *            the connection timeout, in milliseconds; zero to wait
+	 *            indefinitely.
+	 * @return the connected socket
+	 * @throws IOException
+	 *             if the connection cannot be made.
+	 */
+	@Override
+	public Socket connect(InetSocketAddress address, int timeout) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(address, timeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Returns {@code null}: the skeleton's engine listens on TCP itself.
+	 *
+	 * @param address
+	 *            the address of the skeleton.
+	 * @param server
+	 *            the skeleton's listener.
+	 * @return {@code null}
+	 */
+	@Override
+	public Listener listen(InetSocketAddress address, Server server) {
+		return null;
+	}
+}
@@ -0,0 +1,581 @@
+package rmi;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import rmi.io.RMIBatchRequest;
+import rmi.io.RMIRequest;
+
+/**
+ * The trace of the remote method calls made, or executed, by the current
+ * thread.
+ *
+ * <p>
+ * A client traces an operation with {@link #begin(String)}:
+ *
+ * <pre>
+ * try (Trace.Scope scope = Trace.begin("create " + path)) {
+ *     service.createFile(path);
+ * }
+ * </pre>
+ *
+ * Every call made in the block carries the identifier of the trace and of the
+ * span making it. The stub records a span around each call, and the skeleton
+ * executing it records a span, child of the stub's, with the trace of the
+ * request as the trace of the executing thread. Calls that server objects
+ * make to other servers are therefore traced as well, however many hops they
+ * take. Work handed to another thread joins the trace with
+ * {@link #current()} and {@link #resume(Context, String)}.
+ *
+ * <p>
+ * Completed spans are kept in a ring buffer of the JVM holding the latest
+ * {@link #getCapacity()} spans, which can be read with {@link #getSpans(long)}
+ * or printed with {@link #dump(PrintStream)}. Each host involved keeps the
+ * spans it recorded; the spans of one operation are put together from the
+ * buffers of all hosts by their trace identifier. Calls made outside a trace
+ * record nothing.
+ */
+public final class Trace {
+
+	/**
+	 * The number of spans kept by default.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * The span the current thread is in; {@code null} if the thread is not
+	 * traced.
+	 */
+	private static final ThreadLocal<Context> current = new ThreadLocal<>();
+
+	/**
+	 * The scope of code that is not traced and leaves the thread untraced.
+	 */
+	private static final Scope UNTRACED = new Scope(null, null, null);
+
+	/**
+	 * The completed spans.
+	 */
+	private static volatile Ring spans = new Ring(DEFAULT_CAPACITY);
+
+	private Trace() {
+	}
+
+	/**
+	 * Starts a span in the current thread until the returned scope is closed:
+	 * a child of the span the thread is in, or the root of a new trace if it
+	 * is not traced.
+	 *
+	 * @param name
+	 *            the name of the span.
+	 * @return the scope, recording the span and restoring the previous span
+	 *         when closed
+	 */
+	public static Scope begin(String name) {
+		Context parent = current.get();
+		if (parent == null) {
+			return enter(new Context(newId(), 0), name);
+		}
+		return enter(new Context(parent.traceId, parent.spanId), name);
+	}
+
+	/**
+	 * Returns the span the current thread is in, to continue the trace in
+	 * another thread.
+	 *
+	 * @return the span, or {@code null} if the thread is not traced
+	 */
+	public static Context current() {
+		return current.get();
+	}
+
+	/**
+	 * Starts a span in the current thread as a child of a span of another
+	 * thread, until the returned scope is closed.
+	 *
+	 * @param parent
+	 *            the span, returned by {@link #current()} in the other thread,
+	 *            or {@code null}.
+	 * @param name
+	 *            the name of the span.
+	 * @return the scope, recording the span and restoring the previous span
+	 *         when closed; a scope doing nothing if <code>parent</code> is
+	 *         {@code null}
+	 */
+	public static Scope resume(Context parent, String name) {
+		if (parent == null) {
+			return UNTRACED;
+		}
+		return enter(new Context(parent.traceId, parent.spanId), name);
+	}
+
+	/**
+	 * Starts the client span of a call made by a stub, if the current thread
+	 * is traced.
+	 *
+	 * @param entry
+	 *            the method called.
+	 * @return the scope of the span; a scope doing nothing if the thread is
+	 *         not traced
+	 */
+	static Scope call(MethodTable.Entry entry) {
+		Context parent = current.get();
+		if (parent == null) {
+			return UNTRACED;
+		}
+		return enter(new Context(parent.traceId, parent.spanId), "call " + entry.clientMetrics().getName());
+	}
+
+	/**
+	 * Places a request in the trace of the current thread, as sent by the
+	 * span the thread is in.
+	 *
+	 * @param request
+	 *            the request about to be sent.
+	 */
+	static void apply(RMIRequest request) {
+		Context context = current.get();
+		if (context != null) {
+			request.setTrace(context.traceId, context.spanId);
+		}
+	}
+
+	/**
+	 * Starts the server span of a request being executed by a skeleton, as a
+	 * child of the span that sent it, until the returned scope is closed.
+	 * Requests that are not traced leave the executing thread untraced.
+	 *
+	 * @param request
+	 *            the request being executed.
+	 * @param methods
+	 *            the remote methods of the skeleton.
+	 * @return the scope, recording the span and restoring the previous span
+	 *         when closed
+	 */
+	static Scope follow(RMIRequest request, MethodTable methods) {
+		if (request.getTraceId() == 0) {
+			Context previous = current.get();
+			if (previous == null) {
+				return UNTRACED;
+			}
+			current.remove();
+			return new Scope(previous, null, null);
+		}
+		return enter(new Context(request.getTraceId(), request.getParentSpanId()),
+				"serve " + describe(request, methods));
+	}
+
+	/**
+	 * Returns the completed spans still held in the buffer, oldest first.
+	 *
+	 * @return the spans
+	 */
+	public static List<Span> getSpans() {
+		return spans.list(0);
+	}
+
+	/**
+	 * Returns the completed spans of a trace still held in the buffer, in the
+	 * order they completed.
+	 *
+	 * @param traceId
+	 *            the identifier of the trace.
+	 * @return the spans
+	 */
+	public static List<Span> getSpans(long traceId) {
+		return spans.list(traceId);
+	}
+
+	/**
+	 * Prints the completed spans still held in the buffer, oldest first, one
+	 * per line, see {@link Span#toString()}.
+	 *
+	 * @param out
+	 *            the stream to print to.
+	 */
+	public static void dump(PrintStream out) {
+		for (Span span : getSpans()) {
+			out.println(span);
+		}
+	}
+
+	/**
+	 * Returns the number of spans the buffer holds.
+	 *
+	 * @return the capacity of the buffer
+	 */
+	public static int getCapacity() {
+		return spans.length();
+	}
+
+	/**
+	 * Replaces the buffer with an empty buffer holding the given number of
+	 * spans.
+	 *
+	 * @param capacity
+	 *            the number of spans kept.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is not positive.
+	 */
+	public static void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+		spans = new Ring(capacity);
+	}
+
+	/**
+	 * Empties the buffer.
+	 */
+	public static void clear() {
+		spans = new Ring(spans.length());
+	}
+
+	/**
+	 * Makes a span the span of the current thread.
+	 *
+	 * @param context
+	 *            the new span.
+	 * @param name
+	 *            the name of the span.
+	 * @return the scope of the span
+	 */
+	private static Scope enter(Context context, String name) {
+		Context previous = current.get();
+		current.set(context);
+		return new Scope(previous, context, name);
+	}
+
+	/**
+	 * Returns a new non-zero identifier.
+	 *
+	 * @return the identifier
+	 */
+	private static long newId() {
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * Names the span of a request executed by a skeleton.
+	 *
+	 * @param request
+	 *            the request.
+	 * @param methods
+	 *            the remote methods of the skeleton.
+	 * @return the method called, or a description of the request
+	 */
+	private static String describe(RMIRequest request, MethodTable methods) {
+		if (request instanceof RMIBatchRequest) {
+			return "batch of " + ((RMIBatchRequest) request).getCalls().length + " calls";
+		}
+		switch (request.getMethodId()) {
+		case MethodTable.CURSOR_NEXT:
+			return "cursor next";
+		case MethodTable.CURSOR_CLOSE:
+			return "cursor close";
+		default:
+			MethodTable.Entry entry = methods.getEntry(request.getMethodId());
+			return (entry == null) ? "method " + Integer.toHexString(request.getMethodId())
+					: entry.serverMetrics().getName();
+		}
+	}
+
+	/**
+	 * A span in a trace, which other spans may be children of.
+	 */
+	public static final class Context {
+
+		/**
+		 * The identifier of the trace.
+		 */
+		final long traceId;
+		/**
+		 * The identifier of the span.
+		 */
+		final long spanId;
+		/**
+		 * The identifier of the parent span; zero for the root of a trace.
+		 */
+		final long parentId;
+
+		/**
+		 * Creates a new span.
+		 *
+		 * @param traceId
+		 *            the identifier of the trace.
+		 * @param parentId
+		 *            the identifier of the parent span, or zero.
+		 */
+		private Context(long traceId, long parentId) {
+			this.traceId = traceId;
+			this.spanId = newId();
+			this.parentId = parentId;
+		}
+
+		/**
+		 * Returns the identifier of the trace.
+		 *
+		 * @return the trace identifier
+		 */
+		public long getTraceId() {
+			return traceId;
+		}
+	}
+
+	/**
+	 * A block of code in a span, recording the span and restoring the previous
+	 * span of the thread when closed.
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		/**
+		 * The span of the thread when the scope was entered.
+		 */
+		private final Context previous;
+		/**
+		 * The span of the scope; {@code null} if the scope records nothing.
+		 */
+		private final Context context;
+		/**
+		 * The name of the span.
+		 */
+		private final String name;
+		/**
+		 * The time the scope was entered, from
+		 * <code>System.currentTimeMillis</code>.
+		 */
+		private final long startMillis;
+		/**
+		 * The time the scope was entered, from <code>System.nanoTime</code>.
+		 */
+		private final long startNanos;
+
+		private Scope(Context previous, Context context, String name) {
+			this.previous = previous;
+			this.context = context;
+			this.name = name;
+			this.startMillis = (context == null) ? 0 : System.currentTimeMillis();
+			this.startNanos = (context == null) ? 0 : System.nanoTime();
+		}
+
+		/**
+		 * Returns the span of the scope.
+		 *
+		 * @return the span, or {@code null} if the scope records nothing
+		 */
+		public Context getContext() {
+			return context;
+		}
+
+		@Override
+		public void close() {
+			if (this == UNTRACED) {
+				return;
+			}
+			if (context != null) {
+				spans.add(new Span(context, name, startMillis, System.nanoTime() - startNanos,
+						Thread.currentThread().getName()));
+			}
+			if (previous == null) {
+				current.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * A completed span.
+	 */
+	public static final class Span {
+
+		/**
+		 * The identifier of the trace.
+		 */
+		private final long traceId;
+		/**
+		 * The identifier of the span.
+		 */
+		private final long spanId;
+		/**
+		 * The identifier of the parent span, or zero.
+		 */
+		private final long parentId;
+		/**
+		 * The name of the span.
+		 */
+		private final String name;
+		/**
+		 * The time the span started, from
+		 * <code>System.currentTimeMillis</code>.
+		 */
+		private final long startMillis;
+		/**
+		 * The duration of the span, in nanoseconds.
+		 */
+		private final long durationNanos;
+		/**
+		 * The name of the thread that recorded the span.
+		 */
+		private final String thread;
+
+		private Span(Context context, String name, long startMillis, long durationNanos, String thread) {
+			this.traceId = context.traceId;
+			this.spanId = context.spanId;
+			this.parentId = context.parentId;
+			this.name = name;
+			this.startMillis = startMillis;
+			this.durationNanos = durationNanos;
+			this.thread = thread;
+		}
+
+		/**
+		 * Returns the identifier of the trace.
+		 *
+		 * @return the trace identifier
+		 */
+		public long getTraceId() {
+			return traceId;
+		}
+
+		/**
+		 * Returns the identifier of the span.
+		 *
+		 * @return the span identifier
+		 */
+		public long getSpanId() {
+			return spanId;
+		}
+
+		/**
+		 * Returns the identifier of the parent span.
+		 *
+		 * @return the parent span identifier, or zero for the root of a trace
+		 */
+		public long getParentId() {
+			return parentId;
+		}
+
+		/**
+		 * Returns the name of the span: the name given to
+		 * {@link Trace#begin(String)}, or <code>call</code> or
+		 * <code>serve</code> followed by the remote method for the spans of
+		 * stubs and skeletons.
+		 *
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the time the span started.
+		 *
+		 * @return the time, in milliseconds since the epoch
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * Returns the duration of the span.
+		 *
+		 * @return the duration, in nanoseconds
+		 */
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		/**
+		 * Returns the name of the thread that recorded the span.
+		 *
+		 * @return the thread name
+		 */
+		public String getThread() {
+			return thread;
+		}
+
+		/**
+		 * Returns a line describing the span.
+		 *
+		 * @return the trace, span and parent identifiers in hexadecimal, the
+		 *         start time, the duration, the name and the thread
+		 */
+		@Override
+		public String toString() {
+			return String.format("trace %016x span %016x parent %016x start %d %.3f ms %s [%s]", traceId, spanId,
+					parentId, startMillis, durationNanos / 1e6, name, thread);
+		}
+	}
+
+	/**
+	 * A fixed number of the latest spans, recorded without locking.
+	 */
+	private static final class Ring {
+
+		/**
+		 * The spans, by sequence number modulo the capacity.
+		 */
+		private final AtomicReferenceArray<Span> slots;
+		/**
+		 * The sequence number of the next span.
+		 */
+		private final AtomicLong next = new AtomicLong();
+
+		/**
+		 * Creates an empty buffer.
+		 *
+		 * @param capacity
+		 *            the number of spans kept.
+		 */
+		Ring(int capacity) {
+			slots = new AtomicReferenceArray<>(capacity);
+		}
+
+		/**
+		 * Returns the number of spans kept.
+		 *
+		 * @return the capacity
+		 */
+		int length() {
+			return slots.length();
+		}
+
+		/**
+		 * Adds a span, replacing the oldest if the buffer is full.
+		 *
+		 * @param span
+		 *            the span.
+		 */
+		void add(Span span) {
+			slots.set((int) (next.getAndIncrement() % slots.length()), span);
+		}
+
+		/**
+		 * Lists the spans held, oldest first.
+		 *
+		 * @param traceId
+		 *            the trace of the spans listed, or zero for all spans.
+		 * @return the spans
+		 */
+		List<Span> list(long traceId) {
+			long end = next.get();
+			List<Span> listed = new ArrayList<>();
+			for (long sequence = Math.max(0, end - slots.length()); sequence < end; sequence++) {
+				Span span = slots.get((int) (sequence % slots.length()));
+				if (span != null && (traceId == 0 || span.traceId == traceId)) {
+					listed.add(span);
+				}
+			}
+			return listed;
+		}
+	}
+}
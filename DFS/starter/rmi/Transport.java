@@ -0,0 +1,115 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A way of carrying the connections between stubs and skeletons.
+ *
+ * <p>
+ * Skeletons are identified by the TCP address they are bound to, which stubs
+ * keep and send to other hosts. A transport offers other routes to a
+ * skeleton: when a skeleton starts, each preferred transport in
+ * {@link Transports} may start listening on its behalf, and when a stub opens
+ * a connection, the preferred transports are asked in order to reach the
+ * skeleton's TCP address before TCP itself is used. Framing, the handshake
+ * and dispatch are the same on every transport; a transport only provides the
+ * byte stream, as a {@link Socket} on the client side and as a
+ * <code>Socket</code> or a {@link SocketChannel} on the skeleton side.
+ *
+ * <p>
+ * The library provides {@link TcpTransport}, {@link UnixDomainTransport} and
+ * {@link InMemoryTransport}. Implementations must be thread-safe.
+ */
+public interface Transport {
+
+	/**
+	 * Returns a readable name for the transport.
+	 *
+	 * @return transport name
+	 */
+	String getName();
+
+	/**
+	 * Opens a connection to a skeleton.
+	 *
+	 * @param address
+	 *            the TCP address of the skeleton.
+	 * @param timeout
+	 *            the time to wait for the connection, in milliseconds; zero to
+	 *            wait indefinitely.
+	 * @return the connected socket, or {@code null} if the transport cannot
+	 *         reach the skeleton. Reads from the socket must honour its
+	 *         <code>SO_TIMEOUT</code> and throw a
+	 *         {@link java.net.SocketTimeoutException} when it passes, and a
+	 *         connection closed by the peer must be reported as an
+	 *         {@link java.io.EOFException} or a
+	 *         {@link java.net.SocketException}, as by a TCP socket.
+	 * @throws IOException
+	 *             if the skeleton should be reachable but the connection
+	 *             fails. The next transport is tried.
+	 */
+	Socket connect(InetSocketAddress address, int timeout) throws IOException;
+
+	/**
+	 * Starts accepting connections on behalf of a skeleton that has started.
+	 *
+	 * @param address
+	 *            the TCP address the skeleton is bound to.
+	 * @param server
+	 *            the skeleton's listener, which serves accepted connections.
+	 * @return the running listener, or {@code null} if the transport does not
+	 *         offer a route to this skeleton.
+	 * @throws IOException
+	 *             if the transport cannot listen. The skeleton stays
+	 *             reachable over its other transports.
+	 */
+	Listener listen(InetSocketAddress address, Server server) throws IOException;
+
+	/**
+	 * The side of a skeleton that serves connections accepted by transports.
+	 */
+	interface Server {
+
+		/**
+		 * Serves a connection. The socket is closed if the skeleton has
+		 * stopped.
+		 *
+		 * @param connection
+		 *            the accepted connection.
+		 */
+		void serve(Socket connection);
+
+		/**
+		 * Serves a connection over a selectable channel, which the selector
+		 * engine multiplexes with its other connections. The channel is
+		 * closed if the skeleton has stopped.
+		 *
+		 * @param channel
+		 *            the accepted channel, in blocking mode.
+		 */
+		void serve(SocketChannel channel);
+	}
+
+	/**
+	 * A transport listening on behalf of a skeleton.
+	 */
+	interface Listener {
+
+		/**
+		 * Returns the address the transport listens on.
+		 *
+		 * @return the address, in the transport's own form
+		 */
+		SocketAddress getAddress();
+
+		/**
+		 * Stops accepting connections. Connections already accepted are
+		 * served until the skeleton stops.
+		 */
+		void close();
+	}
+}
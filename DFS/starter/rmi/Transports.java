@@ -0,0 +1,120 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The registry of transports used by stubs and skeletons in this JVM.
+ *
+ * <p>
+ * The preferred transports are tried in order before TCP, which is always
+ * tried last. By default there are none, and stubs and skeletons only use
+ * TCP. A deployment whose processes share a host can prefer Unix domain
+ * sockets in a directory private to its user, so that calls do not go
+ * through the loopback TCP stack:
+ *
+ * <pre>
+ * Transports.setPreferred(new UnixDomainTransport(directory));
+ * </pre>
+ *
+ * Skeletons started after a change listen on the new transports; connections
+ * already open are not affected.
+ */
+public final class Transports {
+
+	/**
+	 * The transport of last resort, always tried after the preferred ones.
+	 */
+	public static final TcpTransport TCP = new TcpTransport();
+
+	/**
+	 * The preferred transports, in order.
+	 */
+	private static volatile List<Transport> preferred = Collections.emptyList();
+
+	private Transports() {
+	}
+
+	/**
+	 * Returns the transports tried before TCP.
+	 *
+	 * @return the preferred transports, in order
+	 */
+	public static List<Transport> getPreferred() {
+		return preferred;
+	}
+
+	/**
+	 * Sets the transports tried before TCP. With none, stubs and skeletons
+	 * only use TCP.
+	 *
+	 * @param transports
+	 *            the preferred transports, in order.
+	 * @throws NullPointerException
+	 *             if a transport is {@code null}.
+	 */
+	public static void setPreferred(Transport... transports) {
+		for (Transport transport : transports) {
+			if (transport == null) {
+				throw new NullPointerException("Transport cannot be null.");
+			}
+		}
+		preferred = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(transports)));
+	}
+
+	/**
+	 * Opens a connection to a skeleton over the first transport that reaches
+	 * it.
+	 *
+	 * @param address
+	 *            the TCP address of the skeleton.
+	 * @param timeout
+	 *            the TCP connection timeout, in milliseconds; zero to wait
+	 *            indefinitely.
+	 * @return the connected socket
+	 * @throws IOException
+	 *             if the skeleton cannot be reached over TCP either.
+	 */
+	static Socket connect(InetSocketAddress address, int timeout) throws IOException {
+		for (Transport transport : preferred) {
+			try {
+				Socket socket = transport.connect(address, timeout);
+				if (socket != null) {
+					return socket;
+				}
+			} catch (IOException e) {
+				// TCP reaches every skeleton; this transport was a shortcut.
+			}
+		}
+		return TCP.connect(address, timeout);
+	}
+
+	/**
+	 * Starts the preferred transports listening on behalf of a skeleton.
+	 *
+	 * @param address
+	 *            the TCP address the skeleton is bound to.
+	 * @param server
+	 *            the skeleton's listener.
+	 * @return the running listeners
+	 */
+	static List<Transport.Listener> listen(InetSocketAddress address, Transport.Server server) {
+		ArrayList<Transport.Listener> listeners = new ArrayList<>();
+		for (Transport transport : preferred) {
+			try {
+				Transport.Listener listener = transport.listen(address, server);
+				if (listener != null) {
+					listeners.add(listener);
+				}
+			} catch (IOException e) {
+				// The skeleton stays reachable over TCP.
+			}
+		}
+		return listeners;
+	}
+}
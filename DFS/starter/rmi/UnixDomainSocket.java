@@ -0,0 +1,314 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connected Unix domain socket channel presented as a {@link Socket}.
+ *
+ * <p>
+ * Unix domain channels have no socket adaptor, so the connections of the
+ * blocking engine and of stubs, which are written against
+ * <code>Socket</code>, use this class instead. The channel is non-blocking;
+ * a read or write that cannot proceed waits on a selector of its own, so that
+ * reads honour the socket timeout as TCP sockets do, and throw a
+ * {@link SocketTimeoutException} when it passes. Errors of the channel are
+ * reported as {@link SocketException}s, as by a TCP socket. Options that only
+ * apply to TCP, such as <code>TCP_NODELAY</code> and lingering, are ignored.
+ *
+ * <p>
+ * One thread may read while another writes, as with a TCP socket.
+ */
+final class UnixDomainSocket extends Socket {
+
+	/**
+	 * The connected channel.
+	 */
+	private final SocketChannel channel;
+	/**
+	 * The selector reads wait on.
+	 */
+	private final Selector readSelector;
+	/**
+	 * The selector writes wait on.
+	 */
+	private final Selector writeSelector;
+	/**
+	 * The stream reading from the channel.
+	 */
+	private final InputStream inStream = new ChannelInputStream();
+	/**
+	 * The stream writing to the channel.
+	 */
+	private final OutputStream outStream = new ChannelOutputStream();
+	/**
+	 * The read timeout, in milliseconds; zero if reads wait indefinitely.
+	 */
+	private volatile int timeout;
+
+	/**
+	 * Wraps a connected channel. The channel is closed if it cannot be
+	 * wrapped.
+	 *
+	 * @param channel
+	 *            the channel, connected to a Unix domain socket.
+	 * @throws IOException
+	 *             if the channel cannot be made non-blocking or the
+	 *             selectors cannot be opened.
+	 */
+	UnixDomainSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		Selector reads = null;
+		Selector writes = null;
+		try {
+			channel.configureBlocking(false);
+			reads = Selector.open();
+			writes = Selector.open();
+			channel.register(reads, SelectionKey.OP_READ);
+			channel.register(writes, SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			channel.close();
+			if (reads != null) {
+				reads.close();
+			}
+			if (writes != null) {
+				writes.close();
+			}
+			throw e;
+		}
+		this.readSelector = reads;
+		this.writeSelector = writes;
+		this.timeout = 0;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		checkOpen();
+		return inStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		checkOpen();
+		return outStream;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative.");
+		}
+		checkOpen();
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		checkOpen();
+		return timeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		checkOpen();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		// A Unix domain socket leaves no TIME_WAIT state behind.
+		checkOpen();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isBound() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			// Closing the selectors wakes up threads waiting on them.
+			readSelector.close();
+			writeSelector.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return "UnixDomainSocket[" + channel.getRemoteAddress() + "]";
+		} catch (IOException e) {
+			return "UnixDomainSocket[closed]";
+		}
+	}
+
+	/**
+	 * Checks that the socket has not been closed.
+	 *
+	 * @throws SocketException
+	 *             if it has.
+	 */
+	private void checkOpen() throws SocketException {
+		if (!channel.isOpen()) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	/**
+	 * Converts an error of the channel to the exception a TCP socket stream
+	 * throws, so that callers tell a connection closed by the peer from other
+	 * I/O errors in the same way for both transports.
+	 *
+	 * @param e
+	 *            the error.
+	 * @return a {@link SocketException} with the error as its cause.
+	 */
+	private static SocketException socketException(IOException e) {
+		if (e instanceof SocketException) {
+			return (SocketException) e;
+		}
+		SocketException converted = new SocketException(
+				(e instanceof ClosedChannelException) ? "Socket closed" : e.getMessage());
+		converted.initCause(e);
+		return converted;
+	}
+
+	/**
+	 * Waits until the channel may be read or written, or the given time has
+	 * passed.
+	 *
+	 * @param selector
+	 *            the selector of the operation.
+	 * @param millis
+	 *            the time to wait, in milliseconds; zero to wait
+	 *            indefinitely.
+	 * @throws IOException
+	 *             if the socket is closed or the thread is interrupted.
+	 */
+	private static void await(Selector selector, long millis) throws IOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Interrupted while waiting on a Unix domain socket.");
+		}
+		try {
+			selector.select(millis);
+			selector.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			throw new SocketException("Socket closed");
+		}
+	}
+
+	/**
+	 * The stream reading from the channel.
+	 */
+	private final class ChannelInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			int wait = timeout;
+			long deadline = (wait == 0) ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+			while (true) {
+				int read;
+				try {
+					read = channel.read(buffer);
+				} catch (IOException e) {
+					throw socketException(e);
+				}
+				if (read != 0) {
+					return read;
+				}
+
+				long millis = 0;
+				if (deadline != 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+					millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+				}
+				await(readSelector, millis);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixDomainSocket.this.close();
+		}
+	}
+
+	/**
+	 * The stream writing to the channel.
+	 */
+	private final class ChannelOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			while (buffer.hasRemaining()) {
+				int written;
+				try {
+					written = channel.write(buffer);
+				} catch (IOException e) {
+					throw socketException(e);
+				}
+				if (written == 0) {
+					await(writeSelector, 0);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixDomainSocket.this.close();
+		}
+	}
+}
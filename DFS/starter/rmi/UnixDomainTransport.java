@@ -0,0 +1,460 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * The transport over Unix domain sockets, on Java runtimes that provide them.
+ *
+ * <p>
+ * A skeleton bound to the wildcard address also accepts connections on a Unix
+ * domain socket, whose file is named after the skeleton's port in the socket
+ * directory. A stub connecting to a skeleton on this host connects to that
+ * socket if it exists, and falls back to the next transport otherwise.
+ * Processes on the same host, such as a naming server and its storage
+ * servers, then exchange calls without going through the loopback TCP stack.
+ *
+ * <p>
+ * Anyone able to create files in the socket directory could impersonate the
+ * skeletons of this host, so the directory must be private: owned by the
+ * current user, and neither readable, writable nor searchable by others. The
+ * directory is checked when the transport is created, and a socket file not
+ * owned by the current user is never connected to. The transport is not
+ * used unless preferred with {@link Transports#setPreferred(Transport...)}.
+ *
+ * <p>
+ * The library is compiled for older runtimes, so Unix domain sockets are
+ * looked up reflectively. On runtimes without them, the transport reaches no
+ * skeleton.
+ */
+public final class UnixDomainTransport implements Transport {
+
+	/**
+	 * Size, in bytes, of the send and receive buffers of connections.
+	 */
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * <code>StandardProtocolFamily.UNIX</code>, or {@code null} if the
+	 * runtime does not provide Unix domain sockets.
+	 */
+	private static final ProtocolFamily UNIX = findFamily();
+	/**
+	 * <code>ServerSocketChannel.open(ProtocolFamily)</code>.
+	 */
+	private static final Method openServer = findMethod(ServerSocketChannel.class, "open", ProtocolFamily.class);
+	/**
+	 * <code>SocketChannel.open(ProtocolFamily)</code>.
+	 */
+	private static final Method openClient = findMethod(SocketChannel.class, "open", ProtocolFamily.class);
+	/**
+	 * <code>UnixDomainSocketAddress.of(Path)</code>.
+	 */
+	private static final Method addressOf = findAddressFactory();
+
+	/**
+	 * The permissions a socket directory may have: those of its owner only.
+	 */
+	private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rwx------");
+
+	/**
+	 * The directory holding the socket files of skeletons.
+	 */
+	private final Path directory;
+	/**
+	 * The current user, who owns the directory and the socket files in it.
+	 */
+	private final UserPrincipal owner;
+
+	/**
+	 * Creates a transport keeping socket files in a directory of the current
+	 * user, named after the user in the temporary directory of the runtime.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be created, or is not private to the
+	 *             current user.
+	 */
+	public UnixDomainTransport() throws IOException {
+		this(Paths.get(System.getProperty("java.io.tmpdir"), "rmi-" + System.getProperty("user.name")));
+	}
+
+	/**
+	 * Creates a transport keeping socket files in the given directory.
+	 * Processes calling each other must use the same directory, and run as
+	 * the same user. The directory is created, private to the current user,
+	 * if it does not exist.
+	 *
+	 * @param directory
+	 *            the directory.
+	 * @throws NullPointerException
+	 *             if <code>directory</code> is {@code null}.
+	 * @throws IOException
+	 *             if the directory cannot be created, or is not a directory
+	 *             owned by the current user with no permissions for others.
+	 */
+	public UnixDomainTransport(Path directory) throws IOException {
+		if (directory == null) {
+			throw new NullPointerException("Socket directory is null.");
+		}
+		this.directory = directory;
+		this.owner = checkDirectory(directory);
+	}
+
+	/**
+	 * Checks whether the running Java runtime provides Unix domain sockets.
+	 *
+	 * @return {@code true} if Unix domain sockets are available.
+	 */
+	public static boolean isSupported() {
+		return UNIX != null && openServer != null && openClient != null && addressOf != null;
+	}
+
+	/**
+	 * Returns the directory holding the socket files of skeletons.
+	 *
+	 * @return the directory.
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public String getName() {
+		return "unix";
+	}
+
+	/**
+	 * Opens a connection to a skeleton over its Unix domain socket, if it is
+	 * on this host and has one.
+	 *
+	 * @param address
+	 *            the TCP address of the skeleton.
+	 * @param timeout
+	 *            unused; connecting to a Unix domain socket does not block.
+	 * @return the connected socket, or {@code null} if the skeleton has no
+	 *         socket file here, or the file is not owned by the current user.
+	 * @throws IOException
+	 *             if the socket file exists but cannot be connected to, for
+	 *             example because it was left by a skeleton that is gone.
+	 */
+	@Override
+	public Socket connect(InetSocketAddress address, int timeout) throws IOException {
+		if (!isSupported() || address.getAddress() == null || !LocalDispatch.isLocal(address.getAddress())) {
+			return null;
+		}
+		Path file = socketFile(address.getPort());
+		try {
+			if (!Files.getOwner(file, LinkOption.NOFOLLOW_LINKS).equals(owner)) {
+				return null;
+			}
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		SocketChannel channel = (SocketChannel) invoke(openClient, UNIX);
+		try {
+			channel.connect(address(file));
+			setBuffers(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new UnixDomainSocket(channel);
+	}
+
+	/**
+	 * Starts accepting connections for a skeleton on its Unix domain socket.
+	 * A socket file left by an earlier skeleton on the same port is replaced.
+	 *
+	 * @param address
+	 *            the TCP address the skeleton is bound to.
+	 * @param server
+	 *            the listener serving the skeleton's connections.
+	 * @return the running acceptor, or {@code null} if Unix domain sockets are
+	 *         not available, or the skeleton is not bound to the wildcard
+	 *         address.
+	 * @throws IOException
+	 *             if the socket cannot be bound.
+	 */
+	@Override
+	public Listener listen(InetSocketAddress address, Server server) throws IOException {
+		if (!isSupported() || !address.getAddress().isAnyLocalAddress()) {
+			return null;
+		}
+
+		Path file = socketFile(address.getPort());
+		Files.deleteIfExists(file);
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(openServer, UNIX);
+		try {
+			channel.bind(address(file));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		Acceptor acceptor = new Acceptor(channel, file, server, address.getPort());
+		acceptor.start();
+		return acceptor;
+	}
+
+	/**
+	 * Enlarges the socket buffers of a connection. The default buffers of
+	 * Unix domain sockets are much smaller than those of loopback TCP, which
+	 * grow with the traffic, and large frames would take many more wakeups.
+	 *
+	 * @param channel
+	 *            the connected channel.
+	 * @throws IOException
+	 *             if the buffer sizes cannot be set.
+	 */
+	private static void setBuffers(SocketChannel channel) throws IOException {
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates the socket directory if it does not exist, and checks that it
+	 * is private to the current user.
+	 *
+	 * @param directory
+	 *            the directory.
+	 * @return the current user.
+	 * @throws IOException
+	 *             if the directory cannot be created, or is not a directory
+	 *             owned by the current user with no permissions for others.
+	 */
+	private static UserPrincipal checkDirectory(Path directory) throws IOException {
+		try {
+			Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PRIVATE));
+		} catch (FileAlreadyExistsException e) {
+			// Checked below like a directory created here.
+		} catch (UnsupportedOperationException e) {
+			throw new IOException("Socket directory " + directory + " is not on a POSIX file system.", e);
+		}
+
+		UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+		PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class,
+				LinkOption.NOFOLLOW_LINKS);
+		if (!attributes.isDirectory()) {
+			throw new IOException("Socket directory " + directory + " is not a directory.");
+		}
+		if (!attributes.owner().equals(user)) {
+			throw new IOException("Socket directory " + directory + " is not owned by " + user.getName() + ".");
+		}
+		if (!PRIVATE.containsAll(attributes.permissions())) {
+			throw new IOException("Socket directory " + directory + " is accessible to other users.");
+		}
+		return user;
+	}
+
+	/**
+	 * Returns the socket file of the skeleton listening on a port.
+	 *
+	 * @param port
+	 *            the TCP port of the skeleton.
+	 * @return the path of the file.
+	 */
+	private Path socketFile(int port) {
+		return directory.resolve("rmi-" + port + ".sock");
+	}
+
+	/**
+	 * Creates the Unix domain socket address of a socket file.
+	 *
+	 * @param file
+	 *            the path of the file.
+	 * @return the address.
+	 * @throws IOException
+	 *             if the address cannot be created.
+	 */
+	private static SocketAddress address(Path file) throws IOException {
+		return (SocketAddress) invoke(addressOf, file);
+	}
+
+	/**
+	 * Invokes one of the static methods looked up.
+	 *
+	 * @param method
+	 *            the method.
+	 * @param argument
+	 *            its argument.
+	 * @return the result.
+	 * @throws IOException
+	 *             if the method fails.
+	 */
+	private static Object invoke(Method method, Object argument) throws IOException {
+		try {
+			return method.invoke(null, argument);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Looks up the Unix domain protocol family.
+	 *
+	 * @return the family, or {@code null} if it does not exist.
+	 */
+	private static ProtocolFamily findFamily() {
+		try {
+			return StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Looks up a public static method.
+	 *
+	 * @param c
+	 *            the class declaring it.
+	 * @param name
+	 *            its name.
+	 * @param parameter
+	 *            the type of its parameter.
+	 * @return the method, or {@code null} if it does not exist.
+	 */
+	private static Method findMethod(Class<?> c, String name, Class<?> parameter) {
+		try {
+			return c.getMethod(name, parameter);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Looks up the factory of Unix domain socket addresses.
+	 *
+	 * @return the factory method, or {@code null} if it does not exist.
+	 */
+	private static Method findAddressFactory() {
+		try {
+			return findMethod(Class.forName("java.net.UnixDomainSocketAddress"), "of", Path.class);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The thread accepting connections on the Unix domain socket of a
+	 * skeleton and handing them to the skeleton's listener.
+	 */
+	private static final class Acceptor extends Thread implements Listener {
+
+		/**
+		 * The bound server channel.
+		 */
+		private final ServerSocketChannel channel;
+		/**
+		 * The socket file the channel is bound to.
+		 */
+		private final Path file;
+		/**
+		 * The listener serving the accepted connections.
+		 */
+		private final Server listener;
+
+		/**
+		 * Creates the thread.
+		 *
+		 * @param channel
+		 *            the bound server channel.
+		 * @param file
+		 *            the socket file.
+		 * @param listener
+		 *            the listener serving the connections.
+		 * @param port
+		 *            the TCP port of the skeleton, used in the thread's name.
+		 */
+		Acceptor(ServerSocketChannel channel, Path file, Server listener, int port) {
+			super("rmi-unix-acceptor-" + port);
+			this.channel = channel;
+			this.file = file;
+			this.listener = listener;
+			setDaemon(true);
+		}
+
+		/**
+		 * Returns the address the acceptor listens on.
+		 *
+		 * @return the <code>UnixDomainSocketAddress</code>.
+		 */
+		@Override
+		public SocketAddress getAddress() {
+			try {
+				return address(file);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				SocketChannel accepted;
+				try {
+					accepted = channel.accept();
+				} catch (ClosedChannelException e) {
+					return; // Closed by close().
+				} catch (IOException e) {
+					if (!channel.isOpen()) {
+						return;
+					}
+					continue;
+				}
+				try {
+					setBuffers(accepted);
+				} catch (IOException e) {
+					// Serve the connection with the default buffers.
+				}
+				listener.serve(accepted);
+			}
+		}
+
+		/**
+		 * Stops accepting connections and removes the socket file.
+		 * Connections already accepted are served by the listener until it
+		 * terminates.
+		 */
+		@Override
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more can be done.
+			}
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// A later skeleton on the same port replaces the file.
+			}
+		}
+	}
+}
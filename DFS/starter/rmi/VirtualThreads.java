@@ -0,0 +1,75 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads on Java runtimes that provide them.
+ *
+ * <p>
+ * Virtual threads are lightweight threads scheduled by the Java runtime rather
+ * than by the operating system. A virtual thread that blocks, for instance
+ * while a naming server client waits for a lock, releases its carrier thread,
+ * so thousands of blocked calls do not each hold an operating system thread.
+ *
+ * <p>
+ * The library is compiled for older runtimes, so virtual threads are looked
+ * up reflectively. On runtimes without them, <code>newPerTaskExecutor</code>
+ * falls back to a cached pool of platform threads.
+ */
+public final class VirtualThreads {
+
+	/**
+	 * <code>Executors.newVirtualThreadPerTaskExecutor</code>, or
+	 * {@code null} if the runtime does not provide virtual threads.
+	 */
+	private static final Method factory = findFactory();
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Checks whether the running Java runtime provides virtual threads.
+	 *
+	 * @return {@code true} if virtual threads are available.
+	 */
+	public static boolean isSupported() {
+		return factory != null;
+	}
+
+	/**
+	 * Creates an executor that runs each task in its own thread.
+	 *
+	 * @param virtual
+	 *            {@code true} to run tasks in virtual threads if the runtime
+	 *            provides them.
+	 * @return an executor starting a new virtual thread per task, or a cached
+	 *         pool of platform threads if virtual threads were not requested
+	 *         or are not available.
+	 */
+	public static ExecutorService newPerTaskExecutor(boolean virtual) {
+		if (virtual && factory != null) {
+			try {
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// Fall through to platform threads.
+			}
+		}
+
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Looks up the virtual thread executor factory.
+	 *
+	 * @return the factory method, or {@code null} if it does not exist.
+	 */
+	private static Method findFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
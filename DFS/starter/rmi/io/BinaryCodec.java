@@ -0,0 +1,971 @@
+package rmi.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Path;
+import rmi.Stub;
+
+/**
+ * The default codec, writing messages in a compact binary format.
+ *
+ * <p>
+ * Requests and responses are written field by field rather than as object
+ * graphs, and values of the types most common in filesystem calls are written
+ * without class descriptors: primitives and their wrappers, strings,
+ * <code>byte[]</code>, {@link Path}, <code>Path[]</code>,
+ * <code>String[]</code>, stubs, and <code>Object[]</code> of such values, as
+ * returned in the chunks of streaming methods. Integers are written as variable-length
+ * quantities. Any other value, including exceptions, is written with Java
+ * serialization, so the codec accepts everything the Java serialization codec
+ * accepts. A batch of calls, or of their results, is written as one message
+ * listing the calls or results in order. Requests carry the time remaining
+ * until their deadline, if they have one, their trace and parent span
+ * identifiers, if they are traced, and their priority class.
+ *
+ * <p>
+ * When encoding a {@link Frame}, <code>byte[]</code> values of at least
+ * {@link #SECTION_THRESHOLD} bytes are not copied into the payload, but
+ * carried as bulk sections of the frame in the order they occur in the
+ * message. Payloads encoded with {@link #encode(Object)} have no sections.
+ *
+ * <p>
+ * A decoded stub is created anew with {@link Stub#create(Class,
+ * InetSocketAddress)} and is equal to the encoded one. The host name of its
+ * address is transferred along with the IP address, so decoding never
+ * performs a name lookup.
+ */
+public class BinaryCodec implements Codec {
+
+	/**
+	 * Identifier of the codec in the handshake.
+	 */
+	public static final int ID = 1;
+	/**
+	 * The smallest <code>byte[]</code> value carried in a bulk section rather
+	 * than in the payload of a frame.
+	 */
+	public static final int SECTION_THRESHOLD = 8 * 1024;
+
+	/**
+	 * Message tags.
+	 */
+	private static final int REQUEST = 1;
+	private static final int RESPONSE_VALUE = 2;
+	private static final int RESPONSE_EXCEPTION = 3;
+	private static final int BATCH_REQUEST = 4;
+	private static final int BATCH_RESPONSE = 5;
+
+	/**
+	 * Value tags.
+	 */
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int BYTE = 3;
+	private static final int SHORT = 4;
+	private static final int CHAR = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int STRING = 10;
+	private static final int BYTES = 11;
+	private static final int PATH = 12;
+	private static final int PATH_ARRAY = 13;
+	private static final int STRING_ARRAY = 14;
+	private static final int STUB = 15;
+	private static final int SERIALIZED = 16;
+	private static final int SECTION = 17;
+	private static final int OBJECT_ARRAY = 18;
+
+	/**
+	 * Remote interfaces of decoded stubs, by name.
+	 */
+	private final ConcurrentHashMap<String, Class<?>> interfaces = new ConcurrentHashMap<>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return "binary";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encode(Object message) throws IOException {
+		Writer out = new Writer(false);
+		writeMessage(out, message);
+		return out.toByteArray();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Frame encodeFrame(Object message) throws IOException {
+		Writer out = new Writer(true);
+		writeMessage(out, message);
+		return new Frame(out.toByteArray(), out.sections.toArray(new byte[out.sections.size()][]));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+		return readMessage(new Reader(payload, null));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object decode(Frame frame) throws IOException, ClassNotFoundException {
+		return readMessage(new Reader(frame.getPayload(), frame.getSections()));
+	}
+
+	/**
+	 * Writes a request or response.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param message
+	 *            the message to write.
+	 * @throws IOException
+	 *             if the message, or a value it carries, cannot be encoded.
+	 */
+	private void writeMessage(Writer out, Object message) throws IOException {
+		if (message instanceof RMIBatchRequest) {
+			RMIBatchRequest batch = (RMIBatchRequest) message;
+			out.writeByte(BATCH_REQUEST);
+			out.writeVarInt(batch.getRequestId());
+			writeTimeout(out, batch);
+			writeTrace(out, batch);
+			out.writeByte(batch.getPriority());
+			out.writeVarInt(batch.getCalls().length);
+			for (RMIRequest call : batch.getCalls()) {
+				writeCall(out, call);
+			}
+		} else if (message instanceof RMIRequest) {
+			RMIRequest request = (RMIRequest) message;
+			out.writeByte(REQUEST);
+			out.writeVarInt(request.getRequestId());
+			writeTimeout(out, request);
+			writeTrace(out, request);
+			out.writeByte(request.getPriority());
+			writeCall(out, request);
+		} else if (message instanceof RMIBatchResponse) {
+			RMIBatchResponse batch = (RMIBatchResponse) message;
+			out.writeByte(BATCH_RESPONSE);
+			out.writeVarInt(batch.getRequestId());
+			out.writeVarInt(batch.getResults().length);
+			for (RMIResponse result : batch.getResults()) {
+				out.writeByte(result.getException() != null ? RESPONSE_EXCEPTION : RESPONSE_VALUE);
+				writeResult(out, result);
+			}
+		} else if (message instanceof RMIResponse) {
+			RMIResponse response = (RMIResponse) message;
+			out.writeByte(response.getException() != null ? RESPONSE_EXCEPTION : RESPONSE_VALUE);
+			out.writeVarInt(response.getRequestId());
+			writeResult(out, response);
+		} else {
+			throw new NotSerializableException("Not an RMI message: " + message);
+		}
+	}
+
+	/**
+	 * Reads a request or response.
+	 *
+	 * @param in
+	 *            the input buffer.
+	 * @return the message
+	 * @throws IOException
+	 *             if the message is malformed.
+	 * @throws ClassNotFoundException
+	 *             if the message refers to a class unknown to this JVM.
+	 */
+	private Object readMessage(Reader in) throws IOException, ClassNotFoundException {
+		Object message;
+
+		int tag = in.readByte();
+		int requestId = in.readVarInt();
+
+		long timeout = (tag == REQUEST || tag == BATCH_REQUEST) ? in.readVarInt() : 0;
+		long traceId = (tag == REQUEST || tag == BATCH_REQUEST) ? in.readVarLong() : 0;
+		long parentSpanId = (traceId != 0) ? in.readVarLong() : 0;
+		int priority = (tag == REQUEST || tag == BATCH_REQUEST) ? in.readByte() : 0;
+
+		switch (tag) {
+		case REQUEST:
+			message = readCall(in);
+			break;
+		case RESPONSE_VALUE:
+			message = new RMIResponse(readValue(in));
+			break;
+		case RESPONSE_EXCEPTION:
+			message = new RMIResponse(readException(in));
+			break;
+		case BATCH_REQUEST:
+			RMIRequest[] calls = new RMIRequest[in.readLength()];
+			for (int i = 0; i < calls.length; i++) {
+				calls[i] = readCall(in);
+			}
+			message = new RMIBatchRequest(calls);
+			break;
+		case BATCH_RESPONSE:
+			RMIResponse[] results = new RMIResponse[in.readLength()];
+			for (int i = 0; i < results.length; i++) {
+				boolean thrown = in.readByte() == RESPONSE_EXCEPTION;
+				results[i] = thrown ? new RMIResponse(readException(in)) : new RMIResponse(readValue(in));
+			}
+			message = new RMIBatchResponse(results);
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown message tag.");
+		}
+
+		if (message instanceof RMIRequest) {
+			((RMIRequest) message).setRequestId(requestId);
+			if (timeout != 0) {
+				((RMIRequest) message).setTimeout(timeout - 1);
+			}
+			((RMIRequest) message).setTrace(traceId, parentSpanId);
+			((RMIRequest) message).setPriority(priority);
+		} else {
+			((RMIResponse) message).setRequestId(requestId);
+		}
+
+		if (in.remaining() != 0) {
+			throw new StreamCorruptedException("Trailing bytes after message.");
+		}
+		if (in.sectionsRemaining() != 0) {
+			throw new StreamCorruptedException("Unreferenced bulk sections.");
+		}
+
+		return message;
+	}
+
+	/**
+	 * Writes the time remaining until the deadline of a request: zero if it
+	 * has none, and otherwise one more than the time in milliseconds.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param request
+	 *            the request.
+	 */
+	private void writeTimeout(Writer out, RMIRequest request) {
+		if (!request.hasDeadline()) {
+			out.writeVarInt(0);
+		} else {
+			out.writeVarInt((int) Math.min(request.getRemainingMillis(), Integer.MAX_VALUE - 1) + 1);
+		}
+	}
+
+	/**
+	 * Writes the trace of a request: zero if it is not traced, and otherwise
+	 * the trace identifier followed by the parent span identifier.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param request
+	 *            the request.
+	 */
+	private void writeTrace(Writer out, RMIRequest request) {
+		out.writeVarLong(request.getTraceId());
+		if (request.getTraceId() != 0) {
+			out.writeVarLong(request.getParentSpanId());
+		}
+	}
+
+	/**
+	 * Writes the method identifier and arguments of a call.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param call
+	 *            the call to write.
+	 * @throws IOException
+	 *             if an argument cannot be encoded.
+	 */
+	private void writeCall(Writer out, RMIRequest call) throws IOException {
+		out.writeFixedInt(call.getMethodId());
+
+		Object[] arguments = call.getArguments();
+		out.writeVarInt(arguments.length);
+		for (Object argument : arguments) {
+			writeValue(out, argument);
+		}
+	}
+
+	/**
+	 * Reads a call written by {@link #writeCall(Writer, RMIRequest)}.
+	 *
+	 * @param in
+	 *            the input buffer.
+	 * @return the call, with request identifier zero
+	 * @throws IOException
+	 *             if the call is malformed.
+	 * @throws ClassNotFoundException
+	 *             if an argument refers to a class unknown to this JVM.
+	 */
+	private RMIRequest readCall(Reader in) throws IOException, ClassNotFoundException {
+		int methodId = in.readFixedInt();
+
+		Object[] arguments = new Object[in.readLength()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = readValue(in);
+		}
+		return new RMIRequest(methodId, arguments);
+	}
+
+	/**
+	 * Writes the return value or exception carried by a response.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param response
+	 *            the response to write.
+	 * @throws IOException
+	 *             if the value cannot be encoded.
+	 */
+	private void writeResult(Writer out, RMIResponse response) throws IOException {
+		Exception exception = response.getException();
+		writeValue(out, exception != null ? exception : response.getReturnValue());
+	}
+
+	/**
+	 * Reads an exception value.
+	 *
+	 * @param in
+	 *            the input buffer.
+	 * @return the exception
+	 * @throws IOException
+	 *             if the value is malformed or not an exception.
+	 * @throws ClassNotFoundException
+	 *             if the value refers to a class unknown to this JVM.
+	 */
+	private Exception readException(Reader in) throws IOException, ClassNotFoundException {
+		Object exception = readValue(in);
+		if (!(exception instanceof Exception)) {
+			throw new StreamCorruptedException("Response carries no exception.");
+		}
+		return (Exception) exception;
+	}
+
+	/**
+	 * Writes a tagged value.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param value
+	 *            the value to write.
+	 * @throws IOException
+	 *             if the value is of no known type and is not serializable.
+	 */
+	private void writeValue(Writer out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte(((Boolean) value) ? TRUE : FALSE);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeVarInt(zigZag((Integer) value));
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			long v = (Long) value;
+			out.writeVarLong((v << 1) ^ (v >> 63));
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			out.writeString((String) value);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			if (out.sections != null && bytes.length >= SECTION_THRESHOLD) {
+				out.writeByte(SECTION);
+				out.sections.add(bytes);
+			} else {
+				out.writeByte(BYTES);
+				out.writeVarInt(bytes.length);
+				out.writeBytes(bytes, 0, bytes.length);
+			}
+		} else if (value.getClass() == Path.class) {
+			out.writeByte(PATH);
+			writePath(out, (Path) value);
+		} else if (value.getClass() == Path[].class && hasPlainPaths((Path[]) value)) {
+			Path[] paths = (Path[]) value;
+			out.writeByte(PATH_ARRAY);
+			out.writeVarInt(paths.length);
+			for (Path path : paths) {
+				writePath(out, path);
+			}
+		} else if (value.getClass() == String[].class) {
+			String[] strings = (String[]) value;
+			out.writeByte(STRING_ARRAY);
+			out.writeVarInt(strings.length);
+			for (String string : strings) {
+				out.writeString(string);
+			}
+		} else if (value.getClass() == Object[].class) {
+			Object[] elements = (Object[]) value;
+			out.writeByte(OBJECT_ARRAY);
+			out.writeVarInt(elements.length);
+			for (Object element : elements) {
+				// Nested arrays may refer to themselves, which only
+				// serialization handles.
+				if (element != null && element.getClass() == Object[].class) {
+					writeSerialized(out, element);
+				} else {
+					writeValue(out, element);
+				}
+			}
+		} else if (Stub.isStub(value)) {
+			out.writeByte(STUB);
+			out.writeString(Stub.getRemoteInterface(value).getName());
+			writeAddress(out, Stub.getRemoteAddress(value));
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeVarInt(zigZag((Short) value));
+		} else if (value instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeVarInt((Character) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFixedInt(Float.floatToIntBits((Float) value));
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeFixedLong(Double.doubleToLongBits((Double) value));
+		} else {
+			writeSerialized(out, value);
+		}
+	}
+
+	/**
+	 * Reads a tagged value.
+	 *
+	 * @param in
+	 *            the input buffer.
+	 * @return the value read
+	 * @throws IOException
+	 *             if the value is malformed.
+	 * @throws ClassNotFoundException
+	 *             if the value refers to a class unknown to this JVM.
+	 */
+	private Object readValue(Reader in) throws IOException, ClassNotFoundException {
+		switch (in.readByte()) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case INT:
+			return unZigZag(in.readVarInt());
+		case LONG:
+			long v = in.readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		case STRING:
+			return in.readString();
+		case BYTES:
+			return in.readBytes(in.readLength());
+		case SECTION:
+			return in.readSection();
+		case PATH:
+			return readPath(in);
+		case PATH_ARRAY:
+			Path[] paths = new Path[in.readLength()];
+			for (int i = 0; i < paths.length; i++) {
+				paths[i] = readPath(in);
+			}
+			return paths;
+		case STRING_ARRAY:
+			String[] strings = new String[in.readLength()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readString();
+			}
+			return strings;
+		case OBJECT_ARRAY:
+			Object[] elements = new Object[in.readLength()];
+			for (int i = 0; i < elements.length; i++) {
+				elements[i] = readValue(in);
+			}
+			return elements;
+		case STUB:
+			return readStub(in);
+		case BYTE:
+			return (byte) in.readByte();
+		case SHORT:
+			return (short) unZigZag(in.readVarInt());
+		case CHAR:
+			return (char) in.readVarInt();
+		case FLOAT:
+			return Float.intBitsToFloat(in.readFixedInt());
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readFixedLong());
+		case SERIALIZED:
+			int length = in.readLength();
+			ObjectInputStream stream = new ObjectInputStream(
+					new ByteArrayInputStream(in.buffer, in.skip(length), length));
+			return stream.readObject();
+		default:
+			throw new StreamCorruptedException("Unknown value tag.");
+		}
+	}
+
+	/**
+	 * Checks that no element of a path array is of a subclass of
+	 * {@link Path}, which the path encoding would not preserve.
+	 *
+	 * @param paths
+	 *            the array to check.
+	 * @return {@code true} if every element is {@code null} or a plain path.
+	 */
+	private static boolean hasPlainPaths(Path[] paths) {
+		for (Path path : paths) {
+			if (path != null && path.getClass() != Path.class) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a value with Java serialization.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param value
+	 *            the value to write.
+	 * @throws IOException
+	 *             if the value is not serializable.
+	 */
+	private void writeSerialized(Writer out, Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream stream = new ObjectOutputStream(bytes);
+		stream.writeObject(value);
+		stream.close();
+
+		out.writeByte(SERIALIZED);
+		out.writeVarInt(bytes.size());
+		out.writeBytes(bytes.toByteArray(), 0, bytes.size());
+	}
+
+	/**
+	 * Writes a path, or {@code null}, as its component count followed by the
+	 * components.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param path
+	 *            the path.
+	 */
+	private void writePath(Writer out, Path path) {
+		if (path == null) {
+			out.writeVarInt(0);
+			return;
+		}
+
+		out.writeVarInt(path.pathComponents.size() + 1);
+		for (String component : path.pathComponents) {
+			out.writeString(component);
+		}
+	}
+
+	/**
+	 * Reads a path written by <code>writePath</code>.
+	 *
+	 * @param in
+	 *            the input buffer.
+	 * @return the path, or {@code null}
+	 * @throws IOException
+	 *             if the path is malformed.
+	 */
+	private Path readPath(Reader in) throws IOException {
+		int count = in.readVarInt();
+		if (count == 0) {
+			return null;
+		}
+
+		int components = in.checkLength(count - 1);
+		ArrayList<String> list = new ArrayList<>(components);
+		for (int i = 0; i < components; i++) {
+			list.add(in.readString());
+		}
+		return new Path(list);
+	}
+
+	/**
+	 * Writes a socket address without resolving it.
+	 *
+	 * @param out
+	 *            the output buffer.
+	 * @param address
+	 *            the address.
+	 */
+	private void writeAddress(Writer out, InetSocketAddress address) {
+		InetAddress ip = address.getAddress();
+		if (ip == null) {
+			out.writeByte(0);
+			out.writeString(address.getHostString());
+		} else {
+			byte[] raw = ip.getAddress();
+			out.writeByte(raw.length);
+			out.writeBytes(raw, 0, raw.length);
+			// InetAddress.toString() is "hostname/literal", with an empty
+			// host name when none is known; it never performs a lookup.
+			String text = ip.toString();
+			int slash = text.indexOf('/');
+			out.writeString((slash > 0) ? text.substring(0, slash) : null);
+		}
+		out.writeVarInt(address.getPort());
+	}
+
+	/**
+	 * Reads a stub written by <code>writeValue</code>.
+	 *
+	 * @param in
+	 *            the input buffer.
+	 * @return a stub equal to the one written
+	 * @throws IOException
+	 *             if the stub is malformed.
+	 * @throws ClassNotFoundException
+	 *             if the remote interface is unknown to this JVM.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object readStub(Reader in) throws IOException, ClassNotFoundException {
+		String name = in.readString();
+		Class<?> remoteInterface = interfaces.get(name);
+		if (remoteInterface == null) {
+			remoteInterface = Class.forName(name, false, BinaryCodec.class.getClassLoader());
+			interfaces.put(name, remoteInterface);
+		}
+
+		InetSocketAddress address;
+		int rawLength = in.readByte();
+		if (rawLength == 0) {
+			String host = in.readString();
+			address = InetSocketAddress.createUnresolved(host, in.readVarInt());
+		} else {
+			byte[] raw = in.readBytes(rawLength);
+			String host = in.readString();
+			address = new InetSocketAddress(InetAddress.getByAddress(host, raw), in.readVarInt());
+		}
+
+		return Stub.create((Class<Object>) remoteInterface, address);
+	}
+
+	/**
+	 * Maps a signed integer to an unsigned one so that small magnitudes have
+	 * short encodings.
+	 *
+	 * @param v
+	 *            signed value.
+	 * @return zigzag-encoded value
+	 */
+	private static int zigZag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	/**
+	 * Reverses <code>zigZag</code>.
+	 *
+	 * @param v
+	 *            zigzag-encoded value.
+	 * @return signed value
+	 */
+	private static int unZigZag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * A growable output buffer.
+	 */
+	private static final class Writer {
+
+		/**
+		 * The bytes written so far, followed by free space.
+		 */
+		private byte[] buffer = new byte[128];
+		/**
+		 * The number of bytes written.
+		 */
+		private int length = 0;
+		/**
+		 * The values to carry in bulk sections, or {@code null} if every
+		 * value is written to the buffer.
+		 */
+		final ArrayList<byte[]> sections;
+
+		/**
+		 * Creates an empty buffer.
+		 *
+		 * @param bulk
+		 *            {@code true} if large <code>byte[]</code> values are
+		 *            carried in bulk sections.
+		 */
+		Writer(boolean bulk) {
+			this.sections = bulk ? new ArrayList<byte[]>() : null;
+		}
+
+		/**
+		 * Makes room for the given number of bytes.
+		 *
+		 * @param count
+		 *            the number of bytes about to be written.
+		 */
+		private void ensure(int count) {
+			if (length + count > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+			}
+		}
+
+		void writeByte(int v) {
+			ensure(1);
+			buffer[length++] = (byte) v;
+		}
+
+		void writeVarInt(int v) {
+			ensure(5);
+			while ((v & ~0x7F) != 0) {
+				buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buffer[length++] = (byte) v;
+		}
+
+		void writeVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buffer[length++] = (byte) v;
+		}
+
+		void writeFixedInt(int v) {
+			ensure(4);
+			buffer[length++] = (byte) (v >>> 24);
+			buffer[length++] = (byte) (v >>> 16);
+			buffer[length++] = (byte) (v >>> 8);
+			buffer[length++] = (byte) v;
+		}
+
+		void writeFixedLong(long v) {
+			writeFixedInt((int) (v >>> 32));
+			writeFixedInt((int) v);
+		}
+
+		void writeBytes(byte[] bytes, int offset, int count) {
+			ensure(count);
+			System.arraycopy(bytes, offset, buffer, length, count);
+			length += count;
+		}
+
+		/**
+		 * Writes a string, or {@code null}, as its UTF-8 length plus one
+		 * followed by its UTF-8 bytes. ASCII strings are copied directly.
+		 *
+		 * @param s
+		 *            the string.
+		 */
+		void writeString(String s) {
+			if (s == null) {
+				writeVarInt(0);
+				return;
+			}
+
+			int count = s.length();
+			boolean ascii = true;
+			for (int i = 0; i < count && ascii; i++) {
+				ascii = s.charAt(i) < 0x80;
+			}
+
+			if (ascii) {
+				writeVarInt(count + 1);
+				ensure(count);
+				for (int i = 0; i < count; i++) {
+					buffer[length++] = (byte) s.charAt(i);
+				}
+			} else {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarInt(bytes.length + 1);
+				writeBytes(bytes, 0, bytes.length);
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, length);
+		}
+	}
+
+	/**
+	 * An input buffer over a frame payload.
+	 */
+	private static final class Reader {
+
+		/**
+		 * The payload.
+		 */
+		final byte[] buffer;
+		/**
+		 * The position of the next byte to read.
+		 */
+		private int position;
+		/**
+		 * The bulk sections of the frame, or {@code null} if the payload was
+		 * decoded on its own.
+		 */
+		private final byte[][] sections;
+		/**
+		 * The number of sections read.
+		 */
+		private int section;
+
+		Reader(byte[] buffer, byte[][] sections) {
+			this.buffer = buffer;
+			this.position = 0;
+			this.sections = sections;
+			this.section = 0;
+		}
+
+		int remaining() {
+			return buffer.length - position;
+		}
+
+		/**
+		 * Advances past the given number of bytes.
+		 *
+		 * @param count
+		 *            the number of bytes to skip.
+		 * @return the position of the first skipped byte
+		 * @throws EOFException
+		 *             if fewer bytes remain.
+		 */
+		int skip(int count) throws EOFException {
+			if (count > remaining()) {
+				throw new EOFException("Truncated message.");
+			}
+			int start = position;
+			position += count;
+			return start;
+		}
+
+		int readByte() throws EOFException {
+			return buffer[skip(1)] & 0xFF;
+		}
+
+		int readVarInt() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new StreamCorruptedException("Malformed variable-length integer.");
+		}
+
+		long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new StreamCorruptedException("Malformed variable-length integer.");
+		}
+
+		int readFixedInt() throws EOFException {
+			int start = skip(4);
+			return ((buffer[start] & 0xFF) << 24) | ((buffer[start + 1] & 0xFF) << 16)
+					| ((buffer[start + 2] & 0xFF) << 8) | (buffer[start + 3] & 0xFF);
+		}
+
+		long readFixedLong() throws EOFException {
+			return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+		}
+
+		/**
+		 * Checks that a count read from the payload cannot exceed the bytes
+		 * left, since every counted element takes at least one byte.
+		 *
+		 * @param count
+		 *            the count to check.
+		 * @return the count
+		 * @throws StreamCorruptedException
+		 *             if the count is negative or too large.
+		 */
+		int checkLength(int count) throws StreamCorruptedException {
+			if (count < 0 || count > remaining()) {
+				throw new StreamCorruptedException("Invalid length: " + count);
+			}
+			return count;
+		}
+
+		int readLength() throws IOException {
+			return checkLength(readVarInt());
+		}
+
+		int sectionsRemaining() {
+			return (sections == null) ? 0 : sections.length - section;
+		}
+
+		/**
+		 * Returns the next bulk section. Sections are referred to in the
+		 * order they follow the payload.
+		 *
+		 * @return the section
+		 * @throws StreamCorruptedException
+		 *             if no section is left.
+		 */
+		byte[] readSection() throws StreamCorruptedException {
+			if (sectionsRemaining() == 0) {
+				throw new StreamCorruptedException("Missing bulk section.");
+			}
+			return sections[section++];
+		}
+
+		byte[] readBytes(int count) throws EOFException {
+			int start = skip(count);
+			return Arrays.copyOfRange(buffer, start, start + count);
+		}
+
+		String readString() throws IOException {
+			int count = readVarInt();
+			if (count == 0) {
+				return null;
+			}
+			int length = checkLength(count - 1);
+			return new String(buffer, skip(length), length, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package rmi.io;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Converts {@link RMIRequest} and {@link RMIResponse} messages to and from the
+ * payload of a frame.
+ *
+ * <p>
+ * The codec used on a connection is chosen by the client when the connection
+ * is opened, see {@link Handshake}. Each codec has a small numeric identifier
+ * that is sent in the handshake and must be the same on both ends. Codecs are
+ * made known to both ends with {@link Codecs#register(Codec)}.
+ *
+ * <p>
+ * Connections send messages as {@link Frame}s. A codec may carry large
+ * <code>byte[]</code> values in bulk sections of the frame by overriding
+ * {@link #encodeFrame(Object)} and {@link #decode(Frame)}; by default, the
+ * whole message is in the payload.
+ *
+ * <p>
+ * Implementations must be thread-safe: one codec instance serves all
+ * connections that negotiated it.
+ */
+public interface Codec {
+
+	/**
+	 * Returns the identifier of the codec sent in the handshake.
+	 *
+	 * @return identifier between 0 and 255
+	 */
+	int getId();
+
+	/**
+	 * Returns a readable name for the codec.
+	 *
+	 * @return codec name
+	 */
+	String getName();
+
+	/**
+	 * Encodes a message into a frame payload.
+	 *
+	 * @param message
+	 *            the request or response to encode.
+	 * @return encoded payload
+	 * @throws IOException
+	 *             if the message, or a value it carries, cannot be encoded.
+	 */
+	byte[] encode(Object message) throws IOException;
+
+	/**
+	 * Decodes a frame payload produced by {@link #encode(Object)}.
+	 *
+	 * @param payload
+	 *            the payload of one frame.
+	 * @return the request or response carried by the frame
+	 * @throws IOException
+	 *             if the payload is malformed.
+	 * @throws ClassNotFoundException
+	 *             if the payload refers to a class unknown to this JVM.
+	 */
+	Object decode(byte[] payload) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Encodes a message into a frame.
+	 *
+	 * @param message
+	 *            the request or response to encode.
+	 * @return the frame, with the payload returned by {@link #encode(Object)}
+	 *         and no sections unless overridden
+	 * @throws IOException
+	 *             if the message, or a value it carries, cannot be encoded.
+	 */
+	default Frame encodeFrame(Object message) throws IOException {
+		return new Frame(encode(message));
+	}
+
+	/**
+	 * Decodes a frame produced by {@link #encodeFrame(Object)}.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the request or response carried by the frame
+	 * @throws IOException
+	 *             if the frame is malformed, or has sections and the codec
+	 *             does not use them.
+	 * @throws ClassNotFoundException
+	 *             if the payload refers to a class unknown to this JVM.
+	 */
+	default Object decode(Frame frame) throws IOException, ClassNotFoundException {
+		if (frame.getSections().length != 0) {
+			throw new StreamCorruptedException("Unexpected bulk sections.");
+		}
+		return decode(frame.getPayload());
+	}
+}
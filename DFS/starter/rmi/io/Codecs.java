@@ -0,0 +1,96 @@
+package rmi.io;
+
+/**
+ * The registry of codecs known to this JVM.
+ *
+ * <p>
+ * The Java serialization codec and the binary codec are always registered.
+ * The default codec is the one requested by clients when they open a
+ * connection; it is the binary codec unless changed with
+ * <code>setDefault</code>.
+ */
+public final class Codecs {
+
+	/**
+	 * Registered codecs, indexed by identifier.
+	 */
+	private static final Codec[] codecs = new Codec[256];
+	/**
+	 * The codec requested by clients.
+	 */
+	private static volatile Codec defaultCodec;
+
+	static {
+		register(new JavaSerializationCodec());
+		register(new BinaryCodec());
+		defaultCodec = get(BinaryCodec.ID);
+	}
+
+	private Codecs() {
+	}
+
+	/**
+	 * Registers a codec, replacing any codec with the same identifier.
+	 *
+	 * @param codec
+	 *            the codec to register.
+	 * @throws NullPointerException
+	 *             if <code>codec</code> is {@code null}.
+	 * @throws IllegalArgumentException
+	 *             if the codec identifier is not between 0 and 255.
+	 */
+	public static void register(Codec codec) {
+		if (codec == null) {
+			throw new NullPointerException("Codec cannot be null.");
+		}
+
+		int id = codec.getId();
+		if (id < 0 || id >= codecs.length) {
+			throw new IllegalArgumentException("Invalid codec identifier: " + id);
+		}
+
+		synchronized (codecs) {
+			codecs[id] = codec;
+		}
+	}
+
+	/**
+	 * Returns the codec with the given identifier.
+	 *
+	 * @param id
+	 *            the codec identifier.
+	 * @return the codec, or {@code null} if no codec is registered with the
+	 *         identifier.
+	 */
+	public static Codec get(int id) {
+		if (id < 0 || id >= codecs.length) {
+			return null;
+		}
+
+		synchronized (codecs) {
+			return codecs[id];
+		}
+	}
+
+	/**
+	 * Returns the codec requested by clients when they open a connection.
+	 *
+	 * @return default codec
+	 */
+	public static Codec getDefault() {
+		return defaultCodec;
+	}
+
+	/**
+	 * Sets the codec requested by clients when they open a connection. The
+	 * codec is registered if it is not already. Connections already open keep
+	 * the codec they negotiated.
+	 *
+	 * @param codec
+	 *            the new default codec.
+	 */
+	public static void setDefault(Codec codec) {
+		register(codec);
+		defaultCodec = codec;
+	}
+}
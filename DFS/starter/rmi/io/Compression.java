@@ -0,0 +1,470 @@
+package rmi.io;
+
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The static class compressing frames on connections that negotiated
+ * compression in their {@link Handshake}.
+ *
+ * <p>
+ * Stubs offer compression when it is enabled with {@link #setEnabled(boolean)}
+ * in the client's JVM; skeletons always accept it. On such a connection, each
+ * side compresses the payload and the bulk sections of its frames
+ * independently with Deflate. Parts shorter than the threshold are sent as
+ * they are, since compressing them saves little and costs a round of
+ * <code>Deflater</code> setup. Parts that do not shrink by at least an eighth
+ * are sent as they are too: large parts are first probed by compressing their
+ * first {@link #PROBE_LENGTH} bytes, so that data that is already compressed
+ * costs little CPU time. A compressed part starts with the four-byte length of
+ * the original data, followed by the raw Deflate stream.
+ *
+ * <p>
+ * The compressing side records, per remote method, the bytes it considered,
+ * the bytes it sent for them and the CPU time spent, see
+ * {@link #getStatistics()}.
+ */
+public final class Compression {
+
+	/**
+	 * The default size, in bytes, below which parts are not compressed.
+	 */
+	public static final int DEFAULT_THRESHOLD = 4096;
+	/**
+	 * The number of bytes compressed to decide whether a large part is worth
+	 * compressing.
+	 */
+	public static final int PROBE_LENGTH = 4096;
+
+	/**
+	 * {@code true} if stubs offer compression.
+	 */
+	private static volatile boolean enabled = false;
+	/**
+	 * The size below which parts are not compressed.
+	 */
+	private static volatile int threshold = DEFAULT_THRESHOLD;
+	/**
+	 * Compression statistics, by method name.
+	 */
+	private static final ConcurrentHashMap<String, Statistics> statistics = new ConcurrentHashMap<>();
+	/**
+	 * Names of remote methods, by method identifier.
+	 */
+	private static final ConcurrentHashMap<Integer, String> methodNames = new ConcurrentHashMap<>();
+	/**
+	 * A deflater per thread, reset after each use.
+	 */
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+	/**
+	 * An inflater per thread, reset after each use.
+	 */
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+	/**
+	 * Source of per-thread CPU time.
+	 */
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private Compression() {
+	}
+
+	/**
+	 * Enables or disables compression on the connections stubs open from now
+	 * on. Disabled by default.
+	 *
+	 * @param enabled
+	 *            {@code true} to offer compression in handshakes.
+	 */
+	public static void setEnabled(boolean enabled) {
+		Compression.enabled = enabled;
+	}
+
+	/**
+	 * Checks whether stubs offer compression.
+	 *
+	 * @return {@code true} if compression is enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets the size below which parts of frames are not compressed, on both
+	 * stubs and skeletons in this JVM.
+	 *
+	 * @param threshold
+	 *            the threshold in bytes.
+	 * @throws IllegalArgumentException
+	 *             if the threshold is not positive.
+	 */
+	public static void setThreshold(int threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("Compression threshold must be positive.");
+		}
+		Compression.threshold = threshold;
+	}
+
+	/**
+	 * Records the name under which statistics for a remote method are
+	 * reported.
+	 *
+	 * @param methodId
+	 *            the identifier of the method.
+	 * @param name
+	 *            the name of the method.
+	 */
+	public static void nameMethod(int methodId, String name) {
+		methodNames.putIfAbsent(methodId, name);
+	}
+
+	/**
+	 * Compresses the parts of a frame that are large enough and compress
+	 * well.
+	 *
+	 * @param frame
+	 *            the frame, none of whose parts is compressed.
+	 * @param request
+	 *            the request the frame carries, or answers; statistics are
+	 *            recorded under its method.
+	 * @return the frame with its parts compressed, or the frame itself if
+	 *         none is
+	 */
+	public static Frame compress(Frame frame, RMIRequest request) {
+		byte[] payload = frame.getPayload();
+		byte[][] sections = frame.getSections();
+		int limit = threshold;
+
+		if (payload.length < limit || sections.length > 0) {
+			boolean large = false;
+			for (byte[] section : sections) {
+				large |= section.length >= limit;
+			}
+			if (!large) {
+				return frame;
+			}
+		}
+
+		Statistics counters = statistics.computeIfAbsent(nameOf(request), name -> new Statistics());
+		long start = cpuTime();
+		boolean[] compressed = null;
+
+		// The payload of a frame with sections stays uncompressed, see Frames.
+		if (sections.length == 0) {
+			byte[] deflated = deflate(payload, counters);
+			if (deflated != null) {
+				payload = deflated;
+				compressed = new boolean[] { true };
+			}
+		}
+
+		byte[][] parts = sections;
+		for (int i = 0; i < sections.length; i++) {
+			if (sections[i].length < limit) {
+				continue;
+			}
+			byte[] deflated = deflate(sections[i], counters);
+			if (deflated != null) {
+				if (parts == sections) {
+					parts = sections.clone();
+				}
+				parts[i] = deflated;
+				compressed = Frames.mark(compressed, i + 1, sections.length + 1);
+			}
+		}
+
+		counters.cpuNanos.add(cpuTime() - start);
+		return (compressed == null) ? frame : new Frame(payload, parts, compressed);
+	}
+
+	/**
+	 * Restores the compressed parts of a frame.
+	 *
+	 * @param frame
+	 *            the frame read from a connection.
+	 * @return the frame with no part compressed
+	 * @throws StreamCorruptedException
+	 *             if a compressed part is malformed.
+	 */
+	public static Frame decompress(Frame frame) throws StreamCorruptedException {
+		if (!frame.isCompressed()) {
+			return frame;
+		}
+
+		byte[] payload = frame.isCompressed(0) ? inflate(frame.getPayload()) : frame.getPayload();
+		byte[][] sections = frame.getSections().clone();
+		for (int i = 0; i < sections.length; i++) {
+			if (frame.isCompressed(i + 1)) {
+				sections[i] = inflate(sections[i]);
+			}
+		}
+		return new Frame(payload, sections);
+	}
+
+	/**
+	 * Returns the compression statistics recorded in this JVM, by remote
+	 * method.
+	 *
+	 * @return a snapshot of the statistics, sorted by method name
+	 */
+	public static Map<String, Statistics> getStatistics() {
+		TreeMap<String, Statistics> snapshot = new TreeMap<>();
+		for (Map.Entry<String, Statistics> entry : statistics.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().copy());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Discards the statistics recorded so far.
+	 */
+	public static void resetStatistics() {
+		statistics.clear();
+	}
+
+	/**
+	 * Compresses one part, unless it does not shrink by at least an eighth.
+	 *
+	 * @param part
+	 *            the part.
+	 * @param counters
+	 *            the statistics to update.
+	 * @return the compressed part, or {@code null} if it is sent as it is
+	 */
+	private static byte[] deflate(byte[] part, Statistics counters) {
+		Deflater deflater = deflaters.get();
+		counters.originalBytes.add(part.length);
+
+		try {
+			int budget = part.length - part.length / 8;
+
+			if (part.length > 2 * PROBE_LENGTH) {
+				byte[] probe = new byte[PROBE_LENGTH];
+				deflater.setInput(part, 0, PROBE_LENGTH);
+				deflater.finish();
+				int length = deflater.deflate(probe);
+				deflater.reset();
+				if (!deflater.finished() && length == PROBE_LENGTH || length > PROBE_LENGTH - PROBE_LENGTH / 8) {
+					return skip(part, counters);
+				}
+			}
+
+			byte[] output = new byte[Frames.HEADER_LENGTH + budget];
+			output[0] = (byte) (part.length >>> 24);
+			output[1] = (byte) (part.length >>> 16);
+			output[2] = (byte) (part.length >>> 8);
+			output[3] = (byte) part.length;
+
+			deflater.setInput(part);
+			deflater.finish();
+			int length = Frames.HEADER_LENGTH;
+			while (!deflater.finished() && length < output.length) {
+				length += deflater.deflate(output, length, output.length - length);
+			}
+			if (!deflater.finished()) {
+				return skip(part, counters);
+			}
+
+			counters.compressedParts.increment();
+			counters.sentBytes.add(length);
+			return (length == output.length) ? output : java.util.Arrays.copyOf(output, length);
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	/**
+	 * Records a part sent uncompressed because it does not compress well.
+	 *
+	 * @param part
+	 *            the part.
+	 * @param counters
+	 *            the statistics to update.
+	 * @return {@code null}
+	 */
+	private static byte[] skip(byte[] part, Statistics counters) {
+		counters.skippedParts.increment();
+		counters.sentBytes.add(part.length);
+		return null;
+	}
+
+	/**
+	 * Restores one compressed part.
+	 *
+	 * @param part
+	 *            the compressed part.
+	 * @return the original data
+	 * @throws StreamCorruptedException
+	 *             if the part is malformed.
+	 */
+	private static byte[] inflate(byte[] part) throws StreamCorruptedException {
+		if (part.length < Frames.HEADER_LENGTH) {
+			throw new StreamCorruptedException("Truncated compressed part.");
+		}
+		int length = Frames.checkLength(((part[0] & 0xFF) << 24) | ((part[1] & 0xFF) << 16)
+				| ((part[2] & 0xFF) << 8) | (part[3] & 0xFF));
+
+		Inflater inflater = inflaters.get();
+		try {
+			byte[] output = new byte[length];
+			inflater.setInput(part, Frames.HEADER_LENGTH, part.length - Frames.HEADER_LENGTH);
+			int inflated = 0;
+			while (inflated < length && !inflater.finished() && !inflater.needsInput()) {
+				inflated += inflater.inflate(output, inflated, length - inflated);
+			}
+			if (inflated != length || inflater.inflate(new byte[1]) != 0 || !inflater.finished()) {
+				throw new StreamCorruptedException("Compressed part does not match its length.");
+			}
+			return output;
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Malformed compressed part: " + e.getMessage());
+		} finally {
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * Returns the name under which statistics for a request are recorded.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return the name of its method
+	 */
+	private static String nameOf(RMIRequest request) {
+		if (request instanceof RMIBatchRequest) {
+			return "(batch)";
+		}
+		String name = methodNames.get(request.getMethodId());
+		return (name != null) ? name : Integer.toHexString(request.getMethodId());
+	}
+
+	/**
+	 * Returns the CPU time consumed by the current thread, or the wall-clock
+	 * time if the JVM does not measure it.
+	 *
+	 * @return a time in nanoseconds
+	 */
+	private static long cpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Compression statistics of one remote method.
+	 */
+	public static final class Statistics {
+
+		/**
+		 * The number of parts sent compressed.
+		 */
+		private final LongAdder compressedParts = new LongAdder();
+		/**
+		 * The number of parts large enough to compress but sent as they are.
+		 */
+		private final LongAdder skippedParts = new LongAdder();
+		/**
+		 * The size of the parts large enough to compress.
+		 */
+		private final LongAdder originalBytes = new LongAdder();
+		/**
+		 * The bytes sent for those parts, compressed or not.
+		 */
+		private final LongAdder sentBytes = new LongAdder();
+		/**
+		 * The CPU time spent compressing.
+		 */
+		private final LongAdder cpuNanos = new LongAdder();
+
+		/**
+		 * Returns a copy of these statistics.
+		 *
+		 * @return the copy
+		 */
+		private Statistics copy() {
+			Statistics copy = new Statistics();
+			copy.compressedParts.add(compressedParts.sum());
+			copy.skippedParts.add(skippedParts.sum());
+			copy.originalBytes.add(originalBytes.sum());
+			copy.sentBytes.add(sentBytes.sum());
+			copy.cpuNanos.add(cpuNanos.sum());
+			return copy;
+		}
+
+		/**
+		 * Returns the number of parts sent compressed.
+		 *
+		 * @return the number of compressed parts
+		 */
+		public long getCompressedParts() {
+			return compressedParts.sum();
+		}
+
+		/**
+		 * Returns the number of parts large enough to compress, but sent as
+		 * they are because they did not compress well.
+		 *
+		 * @return the number of skipped parts
+		 */
+		public long getSkippedParts() {
+			return skippedParts.sum();
+		}
+
+		/**
+		 * Returns the size of the parts large enough to compress.
+		 *
+		 * @return the size in bytes
+		 */
+		public long getOriginalBytes() {
+			return originalBytes.sum();
+		}
+
+		/**
+		 * Returns the bytes sent for the parts large enough to compress,
+		 * whether they were compressed or not.
+		 *
+		 * @return the size in bytes
+		 */
+		public long getSentBytes() {
+			return sentBytes.sum();
+		}
+
+		/**
+		 * Returns the compression ratio.
+		 *
+		 * @return the bytes sent divided by the original bytes; 1 if nothing
+		 *         was large enough to compress
+		 */
+		public double getRatio() {
+			long original = originalBytes.sum();
+			return (original == 0) ? 1 : (double) sentBytes.sum() / original;
+		}
+
+		/**
+		 * Returns the CPU time spent compressing.
+		 *
+		 * @return the time in nanoseconds
+		 */
+		public long getCpuNanos() {
+			return cpuNanos.sum();
+		}
+
+		/**
+		 * Returns a summary of these statistics.
+		 *
+		 * @return the counts, ratio and CPU time
+		 */
+		@Override
+		public String toString() {
+			return String.format("%d compressed, %d skipped, %d -> %d bytes (ratio %.3f), %.3f ms CPU",
+					getCompressedParts(), getSkippedParts(), getOriginalBytes(), getSentBytes(), getRatio(),
+					getCpuNanos() / 1e6);
+		}
+	}
+}
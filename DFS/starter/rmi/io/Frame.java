@@ -0,0 +1,117 @@
+package rmi.io;
+
+/**
+ * A message as it travels between stub and skeleton: an encoded payload,
+ * followed by bulk sections.
+ *
+ * <p>
+ * Sections carry large <code>byte[]</code> arguments and return values
+ * outside the encoded payload, which only refers to them by index. A section
+ * is written straight from the array passed to the remote method, and read
+ * straight into the array returned to the caller, so bulk data is not copied
+ * into or out of the payload. See {@link Frames} for the layout on the wire.
+ *
+ * <p>
+ * On connections that negotiated compression, the payload and each section
+ * may be compressed independently, see {@link Compression}. Codecs only see
+ * frames whose parts are not compressed.
+ */
+public final class Frame {
+
+	/**
+	 * The sections of a frame that has none.
+	 */
+	private static final byte[][] NO_SECTIONS = new byte[0][];
+
+	/**
+	 * The encoded message.
+	 */
+	private final byte[] payload;
+	/**
+	 * The bulk sections, in the order the payload refers to them.
+	 */
+	private final byte[][] sections;
+	/**
+	 * Which parts are compressed, the payload first and then each section;
+	 * {@code null} if none is.
+	 */
+	private final boolean[] compressed;
+
+	/**
+	 * Creates a frame without sections.
+	 *
+	 * @param payload
+	 *            the encoded message.
+	 */
+	public Frame(byte[] payload) {
+		this(payload, NO_SECTIONS);
+	}
+
+	/**
+	 * Creates a frame. The arrays are not copied.
+	 *
+	 * @param payload
+	 *            the encoded message.
+	 * @param sections
+	 *            the bulk sections.
+	 */
+	public Frame(byte[] payload, byte[][] sections) {
+		this(payload, sections, null);
+	}
+
+	/**
+	 * Creates a frame some of whose parts are compressed. The arrays are not
+	 * copied.
+	 *
+	 * @param payload
+	 *            the payload, possibly compressed.
+	 * @param sections
+	 *            the bulk sections, possibly compressed.
+	 * @param compressed
+	 *            which parts are compressed, the payload first and then each
+	 *            section; {@code null} if none is.
+	 */
+	public Frame(byte[] payload, byte[][] sections, boolean[] compressed) {
+		this.payload = payload;
+		this.sections = sections;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Returns the encoded message.
+	 *
+	 * @return the payload
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Returns the bulk sections.
+	 *
+	 * @return the sections, possibly none
+	 */
+	public byte[][] getSections() {
+		return sections;
+	}
+
+	/**
+	 * Checks whether a part of the frame is compressed.
+	 *
+	 * @param part
+	 *            0 for the payload, or one more than the index of a section.
+	 * @return {@code true} if the part is compressed
+	 */
+	public boolean isCompressed(int part) {
+		return compressed != null && compressed[part];
+	}
+
+	/**
+	 * Checks whether any part of the frame is compressed.
+	 *
+	 * @return {@code true} if a part is compressed
+	 */
+	public boolean isCompressed() {
+		return compressed != null;
+	}
+}
@@ -0,0 +1,162 @@
+package rmi.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads frames and their sections from a non-blocking channel.
+ *
+ * <p>
+ * A frame may arrive over several reads. The reader keeps the part read so
+ * far, and returns the frame once it is complete. Each section is read
+ * directly into an array of its exact length. See {@link Frames} for the
+ * layout of a frame.
+ */
+public final class FrameReader {
+
+	/**
+	 * The length prefix being read, followed by the section count if the
+	 * frame has sections.
+	 */
+	private final ByteBuffer header = ByteBuffer.allocate(2 * Frames.HEADER_LENGTH);
+	/**
+	 * The payload or section being read; {@code null} while a header is being
+	 * read.
+	 */
+	private ByteBuffer body;
+	/**
+	 * The payload of the frame, once read.
+	 */
+	private byte[] payload;
+	/**
+	 * The sections of the frame; {@code null} until the frame header is
+	 * complete.
+	 */
+	private byte[][] sections;
+	/**
+	 * Which parts of the frame are compressed; {@code null} if none is known
+	 * to be.
+	 */
+	private boolean[] compressed;
+	/**
+	 * The number of sections read.
+	 */
+	private int section;
+
+	/**
+	 * Creates a reader expecting the start of a frame.
+	 */
+	public FrameReader() {
+		reset();
+	}
+
+	/**
+	 * Reads as much of the next frame as is available.
+	 *
+	 * @param channel
+	 *            the channel to read from.
+	 * @return the frame, or {@code null} if it is not complete yet
+	 * @throws EOFException
+	 *             if the channel has reached the end of the stream.
+	 * @throws IOException
+	 *             if reading fails or a length is invalid.
+	 */
+	public Frame read(ReadableByteChannel channel) throws IOException {
+		if (sections == null) {
+			if (!fill(channel, header)) {
+				return null;
+			}
+			header.flip();
+			int length = header.getInt();
+			if ((length & Frames.SECTIONS) == 0) {
+				sections = new byte[0][];
+				if ((length & Frames.COMPRESSED) != 0) {
+					compressed = new boolean[] { true };
+					length &= ~Frames.COMPRESSED;
+				}
+			} else if (header.limit() == Frames.HEADER_LENGTH) {
+				header.limit(2 * Frames.HEADER_LENGTH);
+				header.position(Frames.HEADER_LENGTH);
+				return read(channel); // Read the section count.
+			} else {
+				length &= ~Frames.SECTIONS;
+				sections = new byte[Frames.checkSections(header.getInt(), Frames.checkLength(length))][];
+			}
+			body = ByteBuffer.allocate(Frames.checkLength(length));
+		}
+
+		if (payload == null) {
+			if (!fill(channel, body)) {
+				return null;
+			}
+			payload = body.array();
+			startSection();
+		}
+
+		while (section < sections.length) {
+			if (body == null) {
+				if (!fill(channel, header)) {
+					return null;
+				}
+				header.flip();
+				int length = header.getInt();
+				if ((length & Frames.COMPRESSED) != 0) {
+					compressed = Frames.mark(compressed, section + 1, sections.length + 1);
+				}
+				body = ByteBuffer.allocate(Frames.checkLength(length & ~Frames.COMPRESSED));
+			}
+			if (!fill(channel, body)) {
+				return null;
+			}
+			sections[section++] = body.array();
+			startSection();
+		}
+
+		Frame frame = new Frame(payload, sections, compressed);
+		reset();
+		return frame;
+	}
+
+	/**
+	 * Reads into a buffer until it is full or the channel has no more bytes
+	 * available.
+	 *
+	 * @param channel
+	 *            the channel to read from.
+	 * @param buffer
+	 *            the buffer to fill.
+	 * @return {@code true} if the buffer is full
+	 * @throws EOFException
+	 *             if the channel has reached the end of the stream.
+	 * @throws IOException
+	 *             if reading fails.
+	 */
+	private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		if (buffer.hasRemaining() && channel.read(buffer) < 0) {
+			throw new EOFException("Connection closed.");
+		}
+		return !buffer.hasRemaining();
+	}
+
+	/**
+	 * Prepares to read the length prefix of the next section.
+	 */
+	private void startSection() {
+		body = null;
+		header.clear();
+		header.limit(Frames.HEADER_LENGTH);
+	}
+
+	/**
+	 * Prepares to read the next frame.
+	 */
+	private void reset() {
+		startSection();
+		payload = null;
+		sections = null;
+		compressed = null;
+		section = 0;
+	}
+}
@@ -0,0 +1,279 @@
+package rmi.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * The static class implementing the framing of messages exchanged between
+ * stubs and skeletons.
+ *
+ * <p>
+ * Every {@link RMIRequest} and {@link RMIResponse} travels as one frame: a
+ * four-byte big-endian length followed by that many bytes of payload, encoded
+ * by the {@link Codec} negotiated in the connection's {@link Handshake}.
+ * Framing lets a skeleton find message boundaries without decoding, which the
+ * selector-based engine relies on to read requests without blocking.
+ *
+ * <p>
+ * A {@link Frame} with bulk sections sets {@link #SECTIONS} in its length
+ * prefix, and is followed by a four-byte count of sections, the payload, and
+ * then each section as a four-byte length followed by its raw bytes. Handshake
+ * frames never have sections.
+ *
+ * <p>
+ * {@link #COMPRESSED} is set in the length prefix of a payload or section
+ * sent compressed, see {@link Compression}. The payload of a frame with
+ * sections is never compressed, so that the section count can be checked
+ * against its length.
+ */
+public final class Frames {
+
+	/**
+	 * Number of bytes in the frame length prefix.
+	 */
+	public static final int HEADER_LENGTH = 4;
+	/**
+	 * The largest payload accepted in a single frame. Anything larger is
+	 * treated as a corrupt stream.
+	 */
+	public static final int MAX_FRAME_LENGTH = 512 * 1024 * 1024;
+	/**
+	 * Flag set in the length prefix of a frame followed by bulk sections.
+	 */
+	public static final int SECTIONS = 0x80000000;
+	/**
+	 * Flag set in the length prefix of a compressed payload or section.
+	 */
+	public static final int COMPRESSED = 0x40000000;
+
+	private Frames() {
+	}
+
+	/**
+	 * Writes one frame to the given stream. The stream is not flushed.
+	 *
+	 * @param out
+	 *            the stream to write to.
+	 * @param payload
+	 *            the frame payload.
+	 * @throws IOException
+	 *             if the frame cannot be written.
+	 */
+	public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	/**
+	 * Reads one frame from the given stream.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @return the frame payload
+	 * @throws java.io.EOFException
+	 *             if the stream ends before a complete frame is read.
+	 * @throws IOException
+	 *             if the frame cannot be read or its length is invalid.
+	 */
+	public static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = checkLength(in.readInt());
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Writes one frame and its sections to the given stream. The stream is
+	 * not flushed. The sections are written directly from their arrays, which
+	 * a buffered stream passes on without copying when they are larger than
+	 * its buffer.
+	 *
+	 * @param out
+	 *            the stream to write to.
+	 * @param frame
+	 *            the frame.
+	 * @throws IOException
+	 *             if the frame cannot be written.
+	 */
+	public static void writeFrame(DataOutputStream out, Frame frame) throws IOException {
+		byte[][] sections = frame.getSections();
+		int header = prefix(frame, 0, frame.getPayload().length);
+		if (sections.length == 0) {
+			out.writeInt(header);
+			out.write(frame.getPayload());
+			return;
+		}
+
+		out.writeInt(header | SECTIONS);
+		out.writeInt(sections.length);
+		out.write(frame.getPayload());
+		for (int i = 0; i < sections.length; i++) {
+			out.writeInt(prefix(frame, i + 1, sections[i].length));
+			out.write(sections[i]);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes {@link #writeFrame(DataOutputStream, Frame)}
+	 * writes for a frame, including the length prefixes.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the length of the frame on the wire
+	 */
+	public static int length(Frame frame) {
+		byte[][] sections = frame.getSections();
+		int length = HEADER_LENGTH + frame.getPayload().length;
+		if (sections.length > 0) {
+			length += HEADER_LENGTH;
+			for (byte[] section : sections) {
+				length += HEADER_LENGTH + section.length;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Reads one frame and its sections from the given stream. Each section is
+	 * read directly into an array of its exact length.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @return the frame
+	 * @throws java.io.EOFException
+	 *             if the stream ends before a complete frame is read.
+	 * @throws IOException
+	 *             if the frame cannot be read or a length is invalid.
+	 */
+	public static Frame readFrameAndSections(DataInputStream in) throws IOException {
+		int header = in.readInt();
+		if ((header & SECTIONS) == 0) {
+			byte[] payload = new byte[checkLength(header & ~COMPRESSED)];
+			in.readFully(payload);
+			return new Frame(payload, new byte[0][], ((header & COMPRESSED) != 0) ? new boolean[] { true } : null);
+		}
+
+		int length = checkLength(header & ~SECTIONS);
+		byte[][] sections = new byte[checkSections(in.readInt(), length)][];
+		boolean[] compressed = null;
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		for (int i = 0; i < sections.length; i++) {
+			int prefix = in.readInt();
+			if ((prefix & COMPRESSED) != 0) {
+				compressed = mark(compressed, i + 1, sections.length + 1);
+			}
+			sections[i] = new byte[checkLength(prefix & ~COMPRESSED)];
+			in.readFully(sections[i]);
+		}
+		return new Frame(payload, sections, compressed);
+	}
+
+	/**
+	 * Returns the buffers holding a frame as it is written on the wire, for
+	 * gathering writes to a channel. The payload and sections are wrapped, not
+	 * copied.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the headers, payload and sections of the frame, in order
+	 */
+	public static ByteBuffer[] toBuffers(Frame frame) {
+		byte[][] sections = frame.getSections();
+		ByteBuffer[] buffers = new ByteBuffer[2 + 2 * sections.length];
+
+		ByteBuffer header = ByteBuffer.allocate(2 * HEADER_LENGTH);
+		if (sections.length == 0) {
+			header.putInt(prefix(frame, 0, frame.getPayload().length));
+		} else {
+			header.putInt(prefix(frame, 0, frame.getPayload().length) | SECTIONS);
+			header.putInt(sections.length);
+		}
+		header.flip();
+		buffers[0] = header;
+		buffers[1] = ByteBuffer.wrap(frame.getPayload());
+
+		for (int i = 0; i < sections.length; i++) {
+			ByteBuffer length = ByteBuffer.allocate(HEADER_LENGTH);
+			length.putInt(prefix(frame, i + 1, sections[i].length));
+			length.flip();
+			buffers[2 + 2 * i] = length;
+			buffers[3 + 2 * i] = ByteBuffer.wrap(sections[i]);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Returns the length prefix of a part of a frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param part
+	 *            0 for the payload, or one more than the index of a section.
+	 * @param length
+	 *            the length of the part.
+	 * @return the length, with {@link #COMPRESSED} set if the part is
+	 *         compressed
+	 */
+	private static int prefix(Frame frame, int part, int length) {
+		return frame.isCompressed(part) ? length | COMPRESSED : length;
+	}
+
+	/**
+	 * Records that a part of a frame being read is compressed.
+	 *
+	 * @param compressed
+	 *            the parts known to be compressed so far, or {@code null}.
+	 * @param part
+	 *            the compressed part.
+	 * @param parts
+	 *            the number of parts of the frame.
+	 * @return the parts known to be compressed
+	 */
+	static boolean[] mark(boolean[] compressed, int part, int parts) {
+		if (compressed == null) {
+			compressed = new boolean[parts];
+		}
+		compressed[part] = true;
+		return compressed;
+	}
+
+	/**
+	 * Validates a section count read from the wire. Every section is referred
+	 * to by the payload, which takes at least one byte per section.
+	 *
+	 * @param count
+	 *            the number of sections of a frame.
+	 * @param length
+	 *            the length of the frame payload.
+	 * @return the count, if it is valid
+	 * @throws StreamCorruptedException
+	 *             if the count is negative or exceeds the payload length.
+	 */
+	public static int checkSections(int count, int length) throws StreamCorruptedException {
+		if (count < 0 || count > length) {
+			throw new StreamCorruptedException("Invalid section count: " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Validates a frame length read from the wire.
+	 *
+	 * @param length
+	 *            the length prefix of a frame.
+	 * @return the length, if it is valid
+	 * @throws StreamCorruptedException
+	 *             if the length is negative or exceeds
+	 *             {@link #MAX_FRAME_LENGTH}.
+	 */
+	public static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+		return length;
+	}
+}
@@ -0,0 +1,191 @@
+package rmi.io;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * The static class implementing the handshake that opens every connection
+ * between a stub and a skeleton.
+ *
+ * <p>
+ * The first frame sent by the client is an offer naming the codec the client
+ * wants to use. The skeleton answers with a frame naming the codec that will
+ * be used in both directions for the rest of the connection: the requested
+ * codec if the skeleton knows it, and Java serialization otherwise. Both
+ * frames have the same layout: a magic number, the protocol version, the
+ * codec identifier and a flags byte.
+ *
+ * <p>
+ * The client sets {@link #MULTIPLEXED} to send requests without waiting for
+ * earlier responses. The skeleton then executes the requests of the
+ * connection concurrently and answers each as soon as it completes, and echoes
+ * the flag in its reply. Without the flag, the connection carries one request
+ * at a time.
+ *
+ * <p>
+ * The client sets {@link #COMPRESSED} to compress large frames, see
+ * {@link Compression}. The skeleton echoes the flag, and then compresses its
+ * large responses as well.
+ */
+public final class Handshake {
+
+	/**
+	 * The magic number starting every handshake frame.
+	 */
+	public static final int MAGIC = 0x524D4946;
+	/**
+	 * The protocol version. Version 2 names methods by identifier; version 3
+	 * adds request identifiers and the flags byte; version 4 adds batches of
+	 * calls; version 5 adds bulk sections to frames; version 6 adds compressed
+	 * frames; version 7 adds request deadlines; version 8 adds request
+	 * traces; version 9 adds request priority classes.
+	 */
+	public static final int VERSION = 9;
+	/**
+	 * Flag requesting a multiplexed connection.
+	 */
+	public static final int MULTIPLEXED = 1;
+	/**
+	 * Flag requesting compression of large frames.
+	 */
+	public static final int COMPRESSED = 2;
+	/**
+	 * Length of a handshake frame payload.
+	 */
+	private static final int LENGTH = 7;
+
+	private Handshake() {
+	}
+
+	/**
+	 * Creates the client's offer.
+	 *
+	 * @param codec
+	 *            the codec the client wants to use.
+	 * @param multiplexed
+	 *            whether the client sends requests without waiting for
+	 *            earlier responses.
+	 * @param compressed
+	 *            whether the client wants large frames compressed.
+	 * @return the offer frame payload
+	 */
+	public static byte[] offer(Codec codec, boolean multiplexed, boolean compressed) {
+		return encode(codec, (multiplexed ? MULTIPLEXED : 0) | (compressed ? COMPRESSED : 0));
+	}
+
+	/**
+	 * Reads a client's offer and chooses the codec for the connection.
+	 *
+	 * @param payload
+	 *            the first frame read from the client.
+	 * @return the codec to use
+	 * @throws IOException
+	 *             if the frame is not a valid offer.
+	 */
+	public static Codec accept(byte[] payload) throws IOException {
+		Codec codec = Codecs.get(decode(payload));
+		return (codec != null) ? codec : Codecs.get(JavaSerializationCodec.ID);
+	}
+
+	/**
+	 * Creates the skeleton's reply.
+	 *
+	 * @param codec
+	 *            the codec chosen by <code>accept</code>.
+	 * @param offer
+	 *            the client's offer, whose flags are echoed.
+	 * @return the reply frame payload
+	 * @throws IOException
+	 *             if the offer is not a valid handshake frame.
+	 */
+	public static byte[] reply(Codec codec, byte[] offer) throws IOException {
+		decode(offer);
+		return encode(codec, offer[LENGTH - 1] & (MULTIPLEXED | COMPRESSED));
+	}
+
+	/**
+	 * Reads the skeleton's reply.
+	 *
+	 * @param payload
+	 *            the first frame read from the skeleton.
+	 * @return the codec to use
+	 * @throws IOException
+	 *             if the frame is not a valid reply or names an unknown codec.
+	 */
+	public static Codec confirm(byte[] payload) throws IOException {
+		int id = decode(payload);
+		Codec codec = Codecs.get(id);
+		if (codec == null) {
+			throw new StreamCorruptedException("Skeleton chose unknown codec " + id);
+		}
+		return codec;
+	}
+
+	/**
+	 * Checks whether a valid offer or reply sets {@link #MULTIPLEXED}.
+	 *
+	 * @param payload
+	 *            handshake frame payload.
+	 * @return {@code true} if the connection is multiplexed
+	 * @throws IOException
+	 *             if the frame is not a valid handshake frame.
+	 */
+	public static boolean isMultiplexed(byte[] payload) throws IOException {
+		decode(payload);
+		return (payload[LENGTH - 1] & MULTIPLEXED) != 0;
+	}
+
+	/**
+	 * Checks whether a valid offer or reply sets {@link #COMPRESSED}.
+	 *
+	 * @param payload
+	 *            handshake frame payload.
+	 * @return {@code true} if large frames are compressed
+	 * @throws IOException
+	 *             if the frame is not a valid handshake frame.
+	 */
+	public static boolean isCompressed(byte[] payload) throws IOException {
+		decode(payload);
+		return (payload[LENGTH - 1] & COMPRESSED) != 0;
+	}
+
+	/**
+	 * Encodes a handshake frame.
+	 *
+	 * @param codec
+	 *            the codec named in the frame.
+	 * @param flags
+	 *            the flags byte.
+	 * @return frame payload
+	 */
+	private static byte[] encode(Codec codec, int flags) {
+		ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+		buffer.putInt(MAGIC);
+		buffer.put((byte) VERSION);
+		buffer.put((byte) codec.getId());
+		buffer.put((byte) flags);
+		return buffer.array();
+	}
+
+	/**
+	 * Decodes a handshake frame.
+	 *
+	 * @param payload
+	 *            frame payload.
+	 * @return the codec identifier named in the frame
+	 * @throws StreamCorruptedException
+	 *             if the frame is not a handshake of this protocol version.
+	 */
+	private static int decode(byte[] payload) throws StreamCorruptedException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		if (payload.length != LENGTH || buffer.getInt() != MAGIC) {
+			throw new StreamCorruptedException("Not an RMI handshake.");
+		}
+		int version = buffer.get() & 0xFF;
+		if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported RMI protocol version " + version);
+		}
+		return buffer.get() & 0xFF;
+	}
+}
@@ -0,0 +1,61 @@
+package rmi.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The codec encoding each message with Java serialization.
+ *
+ * <p>
+ * Every frame carries an independent serialization stream, including the
+ * class descriptors of all objects in the message. The codec handles any
+ * serializable value and is used as the fallback when a peer does not know
+ * the codec requested by the other end.
+ */
+public class JavaSerializationCodec implements Codec {
+
+	/**
+	 * Identifier of the codec in the handshake.
+	 */
+	public static final int ID = 0;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return "java";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encode(Object message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+		return in.readObject();
+	}
+}
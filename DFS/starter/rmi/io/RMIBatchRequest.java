@@ -0,0 +1,48 @@
+package rmi.io;
+
+/**
+ * A sequence of remote method calls sent to a skeleton in one request.
+ *
+ * <p>
+ * The skeleton executes the calls in order, each on the same server object,
+ * and answers with a single {@link RMIBatchResponse} carrying the result of
+ * every call. A call that throws an exception does not stop the calls after
+ * it. Batches do not nest.
+ */
+public class RMIBatchRequest extends RMIRequest {
+
+	private static final long serialVersionUID = -3551813927264014562L;
+
+	/**
+	 * The calls of the batch, in the order they are executed.
+	 */
+	private RMIRequest[] calls;
+
+	/**
+	 * The constructor to create an instance of {@code RMIBatchRequest}.
+	 *
+	 * @param calls
+	 *            the calls of the batch, in the order they are to be executed.
+	 * @throws IllegalArgumentException
+	 *             if one of the calls is itself a batch.
+	 */
+	public RMIBatchRequest(RMIRequest[] calls) {
+		super(0, null);
+		for (RMIRequest call : calls) {
+			if (call instanceof RMIBatchRequest) {
+				throw new IllegalArgumentException("Batches do not nest.");
+			}
+		}
+		this.calls = calls;
+	}
+
+	/**
+	 * Returns the calls of the batch.
+	 *
+	 * @return calls in execution order
+	 */
+	public RMIRequest[] getCalls() {
+		return calls;
+	}
+
+}
@@ -0,0 +1,37 @@
+package rmi.io;
+
+/**
+ * The response to an {@link RMIBatchRequest}, carrying the return value or
+ * exception of each call of the batch.
+ */
+public class RMIBatchResponse extends RMIResponse {
+
+	private static final long serialVersionUID = 6004117295733526480L;
+
+	/**
+	 * The responses to the calls of the batch, in the order of the calls.
+	 */
+	private RMIResponse[] results;
+
+	/**
+	 * The constructor to create an instance of {@code RMIBatchResponse}.
+	 *
+	 * @param results
+	 *            the responses to the calls of the batch, in the order of the
+	 *            calls.
+	 */
+	public RMIBatchResponse(RMIResponse[] results) {
+		super((Object) null);
+		this.results = results;
+	}
+
+	/**
+	 * Returns the responses to the calls of the batch.
+	 *
+	 * @return one response per call, in the order of the calls
+	 */
+	public RMIResponse[] getResults() {
+		return results;
+	}
+
+}
@@ -4,83 +4,295 @@
 
 package rmi.io;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@code Serializable} class representing the remote method call sent from
  * stub to the skeleton.
+ *
+ * <p>
+ * The called method is named by its method identifier, a hash of the remote
+ * interface name, the method name and the parameter types computed alike by
+ * the stub and the skeleton.
+ *
+ * <p>
+ * A request identifier distinguishes the requests in flight on a multiplexed
+ * connection. The skeleton copies it into the response. Connections carrying
+ * one request at a time leave it at zero.
+ *
+ * <p>
+ * A request may carry a deadline, after which the caller no longer waits for
+ * its response. The deadline is kept as a point in time of the local JVM's
+ * {@link System#nanoTime()} clock, and is sent as the time remaining when the
+ * request is encoded, so that clocks of the two hosts need not agree. The
+ * transfer time is charged to the receiver's budget.
+ *
+ * <p>
+ * A request may also belong to a trace. It then carries the identifier of the
+ * trace and the identifier of the span that sent it, so that the skeleton can
+ * record its own span as a child of the caller's, see {@link rmi.Trace}.
+ *
+ * <p>
+ * A request carries the priority class of the thread that sent it, by the
+ * ordinal of its {@link rmi.Priority}, zero being the default class.
  */
 public class RMIRequest implements Serializable {
 
-	private static final long serialVersionUID = -2462856798587765532L;
+	private static final long serialVersionUID = 3145925474823401376L;
 
 	/**
-	 * The remote interface class name on which the remote method is called.
+	 * The identifier of the remote method that has been called.
 	 */
-	private String className;
-	/**
-	 * The remote method name that has been called.
-	 */
-	private String methodName;
+	private int methodId;
 	/**
 	 * The arguments objects passed to the remote method call.
 	 */
 	private Object[] arguments;
 	/**
-	 * The argument type names for the arguments being passed to the remote
-	 * method.
+	 * The identifier of the request on its connection.
+	 */
+	private int requestId;
+	/**
+	 * The identifier of the trace of the request; zero if it is not traced.
+	 */
+	private long traceId;
+	/**
+	 * The identifier of the span that sent the request, within its trace.
 	 */
-	private String[] argumentTypes;
+	private long parentSpanId;
+	/**
+	 * The ordinal of the priority class of the request.
+	 */
+	private int priority;
+	/**
+	 * {@code true} if the request has a deadline.
+	 */
+	private transient boolean bounded;
+	/**
+	 * The deadline of the request, in {@link System#nanoTime()} terms.
+	 */
+	private transient long deadline;
+	/**
+	 * The length of the frame that carried the request, in bytes.
+	 */
+	private transient int frameLength;
 
 	/**
 	 * The constructor to create an instance of {@code RMIRequest}.
 	 * 
-	 * @param className
-	 * @param methodName
+	 * @param methodId
 	 * @param arguments
-	 * @param argumentTypes
 	 */
-	public RMIRequest(String className, String methodName, Object[] arguments, String[] argumentTypes) {
-		this.className = className;
-		this.methodName = methodName;
+	public RMIRequest(int methodId, Object[] arguments) {
+		this.methodId = methodId;
 		this.arguments = ((arguments == null) ? new Object[] {} : arguments);
-		this.argumentTypes = ((argumentTypes == null) ? new String[] {} : argumentTypes);
+		this.requestId = 0;
 	}
 
 	/**
-	 * Returns the class name.
+	 * Returns the method identifier.
 	 * 
-	 * @return class name
+	 * @return method identifier
 	 */
-	public String getClassName() {
-		return className;
+	public int getMethodId() {
+		return methodId;
 	}
 
 	/**
-	 * Returns the method name.
+	 * Returns the arguments of the remote method.
 	 * 
-	 * @return method name
+	 * @return {@code Array} of {@code Object} arguments
 	 */
-	public String getMethodName() {
-		return methodName;
+	public Object[] getArguments() {
+		return arguments;
 	}
 
 	/**
-	 * Returns the arguments of the remote method.
+	 * Returns the request identifier.
 	 * 
-	 * @return {@code Array} of {@code Object} arguments
+	 * @return request identifier
 	 */
-	public Object[] getArguments() {
-		return arguments;
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Sets the request identifier.
+	 * 
+	 * @param requestId
+	 *            identifier unique among the requests in flight on the
+	 *            connection
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Returns the length of the frame that carried the request, as recorded
+	 * by the connection that sent or received it.
+	 * 
+	 * @return frame length in bytes, or zero if not recorded
+	 */
+	public int getFrameLength() {
+		return frameLength;
 	}
 
 	/**
-	 * Returns the argument type names of the remote method.
+	 * Records the length of the frame that carried the request.
 	 * 
-	 * @return {@code Array} of argument type names
+	 * @param frameLength
+	 *            frame length in bytes
 	 */
-	public String[] getArgumentTypes() {
-		return argumentTypes;
+	public void setFrameLength(int frameLength) {
+		this.frameLength = frameLength;
 	}
 
+	/**
+	 * Places the request in a trace.
+	 *
+	 * @param traceId
+	 *            the identifier of the trace; zero if the request is not
+	 *            traced.
+	 * @param parentSpanId
+	 *            the identifier of the span sending the request.
+	 */
+	public void setTrace(long traceId, long parentSpanId) {
+		this.traceId = traceId;
+		this.parentSpanId = (traceId == 0) ? 0 : parentSpanId;
+	}
+
+	/**
+	 * Returns the identifier of the trace of the request.
+	 *
+	 * @return the trace identifier, or zero if the request is not traced
+	 */
+	public long getTraceId() {
+		return traceId;
+	}
+
+	/**
+	 * Returns the identifier of the span that sent the request.
+	 *
+	 * @return the span identifier, or zero if the request is not traced
+	 */
+	public long getParentSpanId() {
+		return parentSpanId;
+	}
+
+	/**
+	 * Sets the priority class of the request.
+	 *
+	 * @param priority
+	 *            the ordinal of the class.
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns the priority class of the request.
+	 *
+	 * @return the ordinal of the class; zero for the default class
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the deadline of the request.
+	 *
+	 * @param deadline
+	 *            the deadline, in {@link System#nanoTime()} terms.
+	 */
+	public void setDeadline(long deadline) {
+		this.bounded = true;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Sets the deadline of the request to a given time from now.
+	 *
+	 * @param timeoutMillis
+	 *            the time remaining, in milliseconds.
+	 */
+	public void setTimeout(long timeoutMillis) {
+		setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	/**
+	 * Checks whether the request has a deadline.
+	 *
+	 * @return {@code true} if the request has a deadline
+	 */
+	public boolean hasDeadline() {
+		return bounded;
+	}
+
+	/**
+	 * Returns the deadline of the request.
+	 *
+	 * @return the deadline, in {@link System#nanoTime()} terms; meaningless
+	 *         if the request has no deadline
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Returns the time remaining until the deadline, rounded up.
+	 *
+	 * @return the time in milliseconds, zero once the deadline has passed, or
+	 *         <code>Long.MAX_VALUE</code> if the request has no deadline
+	 */
+	public long getRemainingMillis() {
+		if (!bounded) {
+			return Long.MAX_VALUE;
+		}
+		long remaining = deadline - System.nanoTime();
+		return (remaining <= 0) ? 0 : (remaining + 999999) / 1000000;
+	}
+
+	/**
+	 * Checks whether the deadline of the request has passed.
+	 *
+	 * @return {@code true} if the request has a deadline and it has passed
+	 */
+	public boolean isExpired() {
+		return bounded && deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Writes the request, with the time remaining until its deadline.
+	 *
+	 * @param out
+	 *            the stream.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeLong(bounded ? getRemainingMillis() : -1);
+	}
+
+	/**
+	 * Reads the request, and sets its deadline from the time remaining.
+	 *
+	 * @param in
+	 *            the stream.
+	 * @throws IOException
+	 *             if reading fails.
+	 * @throws ClassNotFoundException
+	 *             if an argument refers to a class unknown to this JVM.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		long remaining = in.readLong();
+		if (remaining >= 0) {
+			setTimeout(remaining);
+		}
+	}
 }
@@ -9,6 +9,11 @@ import java.io.Serializable;
 /**
  * The {@code Serializable} class representing the remote method call response
  * including the return or exception from the skeleton to the stub.
+ *
+ * <p>
+ * The response carries the identifier of the request it answers, so that
+ * responses arriving out of order on a multiplexed connection can be matched
+ * to their callers.
  */
 public class RMIResponse implements Serializable {
 
@@ -22,6 +27,14 @@ public class RMIResponse implements Serializable {
 	 * The exception thrown by the remote method call.
 	 */
 	private Exception exception;
+	/**
+	 * The identifier of the request this response answers.
+	 */
+	private int requestId;
+	/**
+	 * The length of the frame that carried the response, in bytes.
+	 */
+	private transient int frameLength;
 
 	/**
 	 * The constructor to create an instance of {@code RMIResponse}.
@@ -57,4 +70,43 @@ public class RMIResponse implements Serializable {
 		return exception;
 	}
 
+	/**
+	 * Returns the identifier of the request this response answers.
+	 * 
+	 * @return request identifier
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Sets the identifier of the request this response answers.
+	 * 
+	 * @param requestId
+	 *            identifier of the request
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Returns the length of the frame that carried the response, as recorded
+	 * by the connection that sent or received it.
+	 * 
+	 * @return frame length in bytes, or zero if not recorded
+	 */
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Records the length of the frame that carried the response.
+	 * 
+	 * @param frameLength
+	 *            frame length in bytes
+	 */
+	public void setFrameLength(int frameLength) {
+		this.frameLength = frameLength;
+	}
+
 }
@@ -3,6 +3,7 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Background;
 import rmi.RMIException;
 
 /** Storage server command interface.
@@ -47,6 +48,11 @@ public interface Command
 
     /** Copies a file from another storage server.
 
+        <p>
+        Copying is background work: the copy, and the reads it makes from the
+        other storage server, are executed after the interactive requests of
+        either server, see {@link Background}.
+
         @param file Path to the file to be copied.
         @param server Storage server from which the file is to be downloaded.
         @return <code>true</code> if the file is successfully copied;
@@ -60,6 +66,7 @@ public interface Command
                              error, whether between the caller and this storage
                              server, or between the two storage servers.
      */
+    @Background
     public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException;
 }
@@ -20,7 +20,18 @@ import naming.*;
  * local filesystem.
  */
 public class StorageServer implements Storage, Command {
-	
+
+	/**
+	 * The number of bytes fetched per read when copying a file from another
+	 * storage server, so that large files are never held in memory whole.
+	 */
+	private static final int COPY_CHUNK_LENGTH = 1024 * 1024;
+	/**
+	 * The number of reads made by other storage servers copying files that
+	 * the storage skeleton executes at once. Client reads are not limited.
+	 */
+	private static final int BACKGROUND_READS = 2;
+
 	private File root;
 	private int clientPort;
 	private int commandPort;
@@ -178,6 +189,7 @@ public class StorageServer implements Storage, Command {
 			} else {
 				storageSkeleton = new Skeleton(Storage.class, this);
 			}
+			storageSkeleton.setMaxInFlightRequests(Priority.BACKGROUND, BACKGROUND_READS);
 			storageSkeleton.start();
 			
 			storageServiceAddress = new InetSocketAddress(hostname, storageSkeleton.getBindAddress().getPort());
@@ -243,17 +255,23 @@ public class StorageServer implements Storage, Command {
 	@Override
 	public synchronized byte[] read(Path file, long offset, int length) throws FileNotFoundException, IOException {
 		File fileRead = file.toFile(root);
-		FileInputStream fis;
 		byte[] buffer;
 
 		if (fileRead != null && fileRead.exists()) {
 			if (fileRead.isFile()) {
 				if (offset >= 0 && offset + length <= size(file) && length >= 0) {
-					fis = new FileInputStream(fileRead);
-					fis.skip(offset);
+					// Positional reads fill the array returned to the caller
+					// directly; the rmi layer then sends it as a bulk section
+					// without copying it again.
 					buffer = new byte[length];
-					fis.read(buffer);
-					fis.close();
+					try (FileChannel channel = new FileInputStream(fileRead).getChannel()) {
+						ByteBuffer target = ByteBuffer.wrap(buffer);
+						while (target.hasRemaining()) {
+							if (channel.read(target, offset + target.position()) < 0) {
+								throw new EOFException("File ended before " + length + " bytes were read");
+							}
+						}
+					}
 					return buffer;
 				} else {
 					throw new IndexOutOfBoundsException("Length and offset should be positive");
@@ -269,18 +287,16 @@ public class StorageServer implements Storage, Command {
 	@Override
 	public synchronized void write(Path file, long offset, byte[] data) throws FileNotFoundException, IOException {
 		File fileToWrite = file.toFile(root);
-		FileChannel channel;
-		long bytesWritten;
 
 		if (fileToWrite.isFile()) {
 			if (offset >= 0) {
-				channel = new FileOutputStream(fileToWrite).getChannel();
-				channel.position(offset);
-				bytesWritten = channel.write(ByteBuffer.wrap(data));
-
-				if (data.length != bytesWritten) {
-					throw new IOException(
-							"Failed in writing data to the file. Wrote " + bytesWritten + " instead of " + data.length);
+				// The file is opened without truncation, so that a file can be
+				// written block by block, as copy and DFSOutputStream do.
+				try (FileChannel channel = new RandomAccessFile(fileToWrite, "rw").getChannel()) {
+					ByteBuffer source = ByteBuffer.wrap(data);
+					while (source.hasRemaining()) {
+						channel.write(source, offset + source.position());
+					}
 				}
 			} else {
 				throw new IndexOutOfBoundsException("Offset cannot be negative.");
@@ -333,7 +349,10 @@ public class StorageServer implements Storage, Command {
 		}
 		
 		boolean deleteSuccess = fileToDelete.delete();
-		while(!parentPath.isRoot() && parentPath.toFile(root).listFiles().length == 0) {
+		// listFiles returns null if the parent directory does not exist.
+		File[] siblings;
+		while (!parentPath.isRoot() && (siblings = parentPath.toFile(root).listFiles()) != null
+				&& siblings.length == 0) {
 			Path temp = parentPath.parent();
 			parentPath.toFile(root).delete();
 			parentPath = temp;
@@ -355,17 +374,22 @@ public class StorageServer implements Storage, Command {
 	}
 
 	@Override
-	public synchronized boolean copy(Path file, Storage server)
+	public boolean copy(Path file, Storage server)
 			throws RMIException, FileNotFoundException, IOException {
-		File f = file.toFile(root);
 		long fSize = server.size(file);
 		byte[] bytes;
-		int reads = Integer.MAX_VALUE;
-
-		if (f.exists()) {
-			f.delete();
+		int reads = COPY_CHUNK_LENGTH;
+
+		// The server is locked while the file is created and while each chunk
+		// is written, not while chunks are read from the other server, so that
+		// client requests are served during the copy.
+		synchronized (this) {
+			File f = file.toFile(root);
+			if (f.exists()) {
+				f.delete();
+			}
+			create(file);
 		}
-		create(file);
 
 		for (long offset = 0; offset < fSize; offset += reads) {
 			reads = (int) Math.min(reads, fSize - offset);
@@ -0,0 +1,673 @@
+package unit;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import common.*;
+import naming.*;
+import rmi.*;
+import storage.*;
+
+/** Open-loop load generator and soak test for skeletons.
+
+    <p>
+    A storage server, and for the <code>service</code> target a naming
+    server, are exported by skeletons on the loopback interface. Calls to one
+    of their remote interfaces are then started at a fixed rate, whether or
+    not earlier calls have completed. Each call is scheduled for an intended
+    start time, and its latency is measured from that time rather than from
+    the moment a caller thread was free to make it. A server that stalls is
+    therefore charged for the calls that queued up behind the stall, instead
+    of those calls being left out of the measurement (coordinated omission).
+    The latency from the actual start of each call is also reported, so that
+    the two can be compared.
+
+    <p>
+    The targets are:
+    <ul>
+    <li><code>service</code>: <code>Service.getStorages</code> on a file
+        registered by the storage server.</li>
+    <li><code>storage</code>: 4 KB <code>Storage.read</code> calls cycling
+        through a 64 KB file.</li>
+    <li><code>command</code>: <code>Command.create</code> and
+        <code>Command.delete</code> calls, alternately, on a set of
+        paths.</li>
+    </ul>
+
+    <p>
+    Every interval, the generator prints the calls started, completed and
+    failed, the completion rate, latency percentiles, and the live threads,
+    open file descriptors and heap in use after the last garbage collection
+    of the process. With <code>--restart</code>, the target skeleton is
+    stopped and started again at the given period while the load runs, and
+    calls made while it is down fail. In a long run, thread, descriptor or
+    heap counts that keep rising from one restart to the next point to a
+    leak in the lifecycle of skeletons and their listeners. The change of
+    each since the first interval is printed at the end.
+
+    <p>
+    Usage:
+    <pre>
+    java unit.LoadGenerator [--target service|storage|command]
+                             [--rate calls/s] [--seconds N] [--interval N]
+                             [--callers N] [--restart N]
+                             [--engine blocking|selector]
+    </pre>
+    The defaults are the storage target at 1000 calls per second for 10
+    seconds, reported every second, with 64 caller threads and no restarts.
+ */
+public class LoadGenerator
+{
+    /** Default call rate, in calls per second. */
+    private static final double DEFAULT_RATE = 1000;
+    /** Default duration of the run, in seconds. */
+    private static final int    DEFAULT_SECONDS = 10;
+    /** Default reporting interval, in seconds. */
+    private static final int    DEFAULT_INTERVAL = 1;
+    /** Default number of caller threads. */
+    private static final int    DEFAULT_CALLERS = 64;
+    /** Size of each read of the <code>storage</code> target. */
+    private static final int    READ_SIZE = 4 * 1024;
+    /** Size of the file read. */
+    private static final int    FILE_SIZE = 16 * READ_SIZE;
+    /** Number of paths created and deleted by the <code>command</code>
+        target. */
+    private static final int    PATHS = 1000;
+    /** Time to wait for calls in progress at the end of the run, in
+        seconds. */
+    private static final long   DRAIN_SECONDS = 30;
+    /** Line format of the interval reports. */
+    private static final String FORMAT =
+        "%6s %7s %7s %5s %8s %7s %7s %7s %7s %7s %5s %5s %6s";
+
+    /** Runs the load.
+
+        @param arguments Command line arguments.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        String          target = "storage";
+        double          rate = DEFAULT_RATE;
+        int             seconds = DEFAULT_SECONDS;
+        int             interval = DEFAULT_INTERVAL;
+        int             callers = DEFAULT_CALLERS;
+        int             restart = 0;
+        Skeleton.Engine engine = Skeleton.Engine.BLOCKING;
+
+        for(int index = 0; index < arguments.length; ++index)
+        {
+            String      option = arguments[index];
+            String      value = arguments[++index];
+
+            if(option.equals("--target"))
+                target = value;
+            else if(option.equals("--rate"))
+                rate = Double.parseDouble(value);
+            else if(option.equals("--seconds"))
+                seconds = Integer.parseInt(value);
+            else if(option.equals("--interval"))
+                interval = Integer.parseInt(value);
+            else if(option.equals("--callers"))
+                callers = Integer.parseInt(value);
+            else if(option.equals("--restart"))
+                restart = Integer.parseInt(value);
+            else if(option.equals("--engine"))
+                engine = Skeleton.Engine.valueOf(value.toUpperCase());
+            else
+                throw new IllegalArgumentException("unknown option " + option);
+        }
+
+        if(!Arrays.asList("service", "storage", "command").contains(target))
+            throw new IllegalArgumentException("unknown target " + target);
+        if(!(rate > 0) || seconds <= 0 || interval <= 0 || callers <= 0 ||
+           restart < 0)
+        {
+            throw new IllegalArgumentException("rate, duration, interval " +
+                                               "and callers must be " +
+                                               "positive");
+        }
+
+        File                root =
+            Files.createTempDirectory("load-generator").toFile();
+        File                data = new File(root, "data");
+        try(FileOutputStream output = new FileOutputStream(data))
+        {
+            output.write(new byte[FILE_SIZE]);
+        }
+
+        StorageServer       storageServer = new StorageServer(root);
+        List<Skeleton<?>>   skeletons = new ArrayList<>();
+        Skeleton<Storage>   storageSkeleton =
+            export(Storage.class, storageServer, engine, skeletons);
+        Skeleton<Command>   commandSkeleton =
+            export(Command.class, storageServer, engine, skeletons);
+        Storage             storage =
+            Stub.create(Storage.class, storageSkeleton);
+        Command             command =
+            Stub.create(Command.class, commandSkeleton);
+        Path                file = new Path("/data");
+
+        Skeleton<?>         restarted;
+        Call                call;
+
+        if(target.equals("service"))
+        {
+            NamingServer        namingServer = new NamingServer();
+            namingServer.register(storage, command, new Path[] {file});
+            Skeleton<Service>   serviceSkeleton =
+                export(Service.class, namingServer, engine, skeletons);
+            Service             service =
+                Stub.create(Service.class, serviceSkeleton);
+
+            restarted = serviceSkeleton;
+            call = sequence -> service.getStorages(file);
+        }
+        else if(target.equals("storage"))
+        {
+            restarted = storageSkeleton;
+            call = sequence -> storage.read(file,
+                (sequence % (FILE_SIZE / READ_SIZE)) * READ_SIZE, READ_SIZE);
+        }
+        else
+        {
+            restarted = commandSkeleton;
+            call = sequence ->
+            {
+                Path    path = new Path("/load/" + (sequence / 2) % PATHS);
+                if(sequence % 2 == 0)
+                    command.create(path);
+                else
+                    command.delete(path);
+            };
+        }
+
+        System.out.println("# Java " + System.getProperty("java.version") +
+                           ", " + target + " target, " +
+                           String.format("%.0f", rate) + " calls/s, " +
+                           callers + " callers, " +
+                           engine.toString().toLowerCase() + " engine" +
+                           (restart == 0 ? "" :
+                            ", restart every " + restart + " s"));
+        System.out.println("# latencies in ms from the intended start; " +
+                           "raw-p99 from the actual start");
+        System.out.println(String.format(FORMAT, "time", "started", "done",
+                                         "err", "calls/s", "p50", "p99",
+                                         "p99.9", "max", "raw-p99", "thr",
+                                         "fds", "heapMB"));
+
+        try
+        {
+            run(call, rate, seconds, interval, callers, restart, restarted);
+        }
+        finally
+        {
+            for(Skeleton<?> skeleton : skeletons)
+                skeleton.stop();
+            delete(root);
+        }
+    }
+
+    /** Generates the load and prints the reports.
+
+        @param call The call to make.
+        @param rate Calls started per second.
+        @param seconds Duration of the run, in seconds.
+        @param interval Reporting interval, in seconds.
+        @param callers Number of caller threads.
+        @param restart Restart period of the skeleton, in seconds, or zero.
+        @param skeleton The skeleton restarted.
+     */
+    private static void run(Call call, double rate, int seconds,
+                            int interval, int callers, int restart,
+                            Skeleton<?> skeleton) throws Exception
+    {
+        Recorder            recorder = new Recorder();
+        ThreadPoolExecutor  pool =
+            new ThreadPoolExecutor(callers, callers, 0, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>());
+        AtomicBoolean       stopped = new AtomicBoolean();
+        long                start = System.nanoTime();
+
+        Thread              scheduler = new Thread(() ->
+        {
+            for(long sequence = 0; !stopped.get(); ++sequence)
+            {
+                final long  index = sequence;
+                final long  intended = start + (long)(index * 1e9 / rate);
+
+                long        wait;
+                while((wait = intended - System.nanoTime()) > 0 &&
+                      !stopped.get())
+                {
+                    LockSupport.parkNanos(wait);
+                }
+
+                recorder.started.incrementAndGet();
+                pool.execute(() -> recorder.call(call, index, intended));
+            }
+        }, "load scheduler");
+        scheduler.setDaemon(true);
+        scheduler.start();
+
+        Resources           first = null;
+        Resources           last = null;
+        long                nextRestart = restart * 1000000000L;
+
+        for(int elapsed = interval; elapsed <= seconds; elapsed += interval)
+        {
+            long    wait = start + elapsed * 1000000000L - System.nanoTime();
+            if(wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+
+            last = new Resources();
+            if(first == null)
+                first = last;
+            System.out.println(recorder.report(Integer.toString(elapsed),
+                                               interval, last));
+
+            if(restart > 0 && elapsed < seconds &&
+               System.nanoTime() - start >= nextRestart)
+            {
+                skeleton.stop();
+                skeleton.start();
+                nextRestart += restart * 1000000000L;
+            }
+        }
+
+        stopped.set(true);
+        scheduler.join();
+        pool.shutdown();
+        if(!pool.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS))
+            System.out.println("# calls still in progress after draining");
+
+        long        drained = recorder.drainedCalls();
+        System.out.println("# total: " + recorder.summary() +
+                           (drained == 0 ? "" :
+                            ", " + drained + " completed after the end"));
+        if(first != null)
+        {
+            System.out.println("# since first interval: " +
+                               last.change(first));
+        }
+    }
+
+    /** Exports a server object through a skeleton bound to a fixed port of
+        the loopback interface, so that it can be restarted on the same
+        address.
+
+        @param c Remote interface exported.
+        @param server Server object.
+        @param engine Engine of the skeleton.
+        @param skeletons List to which the started skeleton is added.
+        @return The started skeleton.
+     */
+    private static <T> Skeleton<T> export(Class<T> c, T server,
+                                          Skeleton.Engine engine,
+                                          List<Skeleton<?>> skeletons)
+        throws IOException, RMIException
+    {
+        int         port;
+        try(ServerSocket socket = new ServerSocket(0))
+        {
+            port = socket.getLocalPort();
+        }
+
+        Skeleton<T> skeleton =
+            new Skeleton<T>(c, server, new InetSocketAddress("127.0.0.1",
+                                                             port));
+        skeleton.setEngine(engine);
+        skeleton.start();
+        skeletons.add(skeleton);
+        return skeleton;
+    }
+
+    /** Deletes a directory tree.
+
+        @param file Root of the tree.
+     */
+    private static void delete(File file)
+    {
+        File[]      children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+
+    /** A call made by the generator. */
+    private interface Call
+    {
+        /** Makes the call.
+
+            @param sequence Number of the call, counting from zero.
+         */
+        void make(long sequence) throws Exception;
+    }
+
+    /** Counters and latencies of the calls, for the current interval and
+        the whole run. */
+    private static class Recorder
+    {
+        /** Number of calls started. */
+        final AtomicLong    started = new AtomicLong();
+        /** Latencies from the intended start, this interval. */
+        private final Histogram corrected = new Histogram();
+        /** Latencies from the actual start, this interval. */
+        private final Histogram raw = new Histogram();
+        /** Latencies from the intended start, whole run. */
+        private final Histogram total = new Histogram();
+        /** Calls started when the last interval was reported. */
+        private long        reportedStarts;
+        /** Calls failed this interval. */
+        private long        errors;
+        /** Calls failed in the whole run. */
+        private long        totalErrors;
+        /** First failure of the interval, or <code>null</code>. */
+        private Exception   failure;
+        /** Calls completed since the last interval was reported. */
+        private long        unreported;
+
+        /** Makes a call and records its outcome.
+
+            @param call The call.
+            @param sequence Number of the call.
+            @param intended Time at which the call was to start.
+         */
+        void call(Call call, long sequence, long intended)
+        {
+            long        begin = System.nanoTime();
+
+            try
+            {
+                call.make(sequence);
+            }
+            catch(Exception e)
+            {
+                failed(e);
+                return;
+            }
+
+            long        end = System.nanoTime();
+            completed(end - intended, end - begin);
+        }
+
+        /** Records a completed call.
+
+            @param latency Latency from the intended start.
+            @param service Latency from the actual start.
+         */
+        private synchronized void completed(long latency, long service)
+        {
+            corrected.record(latency);
+            raw.record(service);
+            total.record(latency);
+            ++unreported;
+        }
+
+        /** Records a failed call.
+
+            @param e The failure.
+         */
+        private synchronized void failed(Exception e)
+        {
+            ++errors;
+            ++totalErrors;
+            ++unreported;
+            if(failure == null)
+                failure = e;
+        }
+
+        /** Formats the report of the interval and starts the next one.
+
+            @param time Time of the report, in seconds since the start.
+            @param interval Length of the interval, in seconds.
+            @param resources Resources of the process.
+            @return The line of the report.
+         */
+        synchronized String report(String time, int interval,
+                                   Resources resources)
+        {
+            long        starts = started.get();
+            long        done = corrected.count();
+            String      line =
+                String.format(FORMAT, time, starts - reportedStarts, done,
+                              errors, String.format("%.0f",
+                                                    (double)done / interval),
+                              millis(corrected.percentile(0.5)),
+                              millis(corrected.percentile(0.99)),
+                              millis(corrected.percentile(0.999)),
+                              millis(corrected.max()),
+                              millis(raw.percentile(0.99)),
+                              resources.threads,
+                              resources.descriptors < 0 ?
+                                  "n/a" : Long.toString(resources.descriptors),
+                              resources.heap / (1024 * 1024));
+
+            if(failure != null)
+                line += "  " + failure;
+
+            reportedStarts = starts;
+            corrected.reset();
+            raw.reset();
+            errors = 0;
+            failure = null;
+            unreported = 0;
+            return line;
+        }
+
+        /** Returns the number of calls completed since the last report.
+
+            @return The number of calls.
+         */
+        synchronized long drainedCalls()
+        {
+            return unreported;
+        }
+
+        /** Formats the totals of the run.
+
+            @return The calls started, completed and failed, and the latency
+                    percentiles of the whole run.
+         */
+        synchronized String summary()
+        {
+            return started.get() + " started, " + total.count() +
+                   " completed, " + totalErrors + " failed, p50 " +
+                   millis(total.percentile(0.5)) + " ms, p99 " +
+                   millis(total.percentile(0.99)) + " ms, p99.9 " +
+                   millis(total.percentile(0.999)) + " ms, max " +
+                   millis(total.max()) + " ms";
+        }
+
+        /** Formats a latency in milliseconds.
+
+            @param nanos Latency in nanoseconds.
+            @return The latency in milliseconds.
+         */
+        private static String millis(long nanos)
+        {
+            return String.format("%.2f", nanos / 1e6);
+        }
+    }
+
+    /** Histogram of latencies with buckets of logarithmic size.
+
+        <p>
+        Each power of two is split into eight linear buckets, so that a
+        percentile read from the histogram is within an eighth of the
+        recorded value, in constant space however long the run. Not thread
+        safe.
+     */
+    private static class Histogram
+    {
+        /** Bits of a value, after its leading one, selecting its bucket
+            within its power of two. */
+        private static final int    SUB_BITS = 3;
+        /** Buckets per power of two. */
+        private static final int    SUB_BUCKETS = 1 << SUB_BITS;
+
+        /** Values recorded in each bucket. */
+        private final long[]        counts =
+            new long[(64 - SUB_BITS) * SUB_BUCKETS];
+        /** Number of values recorded. */
+        private long                count;
+        /** Largest value recorded. */
+        private long                max;
+
+        /** Records a value.
+
+            @param value The value; negative values count as zero.
+         */
+        void record(long value)
+        {
+            value = Math.max(0, value);
+            ++counts[bucket(value)];
+            ++count;
+            max = Math.max(max, value);
+        }
+
+        /** Returns the number of values recorded.
+
+            @return The number of values.
+         */
+        long count()
+        {
+            return count;
+        }
+
+        /** Returns the largest value recorded.
+
+            @return The value, or zero if none was recorded.
+         */
+        long max()
+        {
+            return max;
+        }
+
+        /** Returns the value below which the given fraction of the values
+            fall.
+
+            @param fraction The fraction, between zero and one.
+            @return The upper bound of the bucket holding the percentile, or
+                    zero if no value was recorded.
+         */
+        long percentile(double fraction)
+        {
+            if(count == 0)
+                return 0;
+
+            long        rank = Math.max(1, (long)Math.ceil(fraction * count));
+            long        seen = 0;
+            for(int bucket = 0; bucket < counts.length; ++bucket)
+            {
+                seen += counts[bucket];
+                if(seen >= rank)
+                    return Math.min(max, upperBound(bucket));
+            }
+
+            return max;
+        }
+
+        /** Clears the histogram. */
+        void reset()
+        {
+            Arrays.fill(counts, 0);
+            count = 0;
+            max = 0;
+        }
+
+        /** Returns the bucket of a value.
+
+            @param value The non-negative value.
+            @return The index of the bucket.
+         */
+        private static int bucket(long value)
+        {
+            if(value < SUB_BUCKETS)
+                return (int)value;
+
+            int     exponent = 63 - Long.numberOfLeadingZeros(value);
+            int     sub = (int)(value >>> (exponent - SUB_BITS)) &
+                          (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** Returns the largest value counted in a bucket.
+
+            @param bucket The index of the bucket.
+            @return The value.
+         */
+        private static long upperBound(int bucket)
+        {
+            if(bucket < SUB_BUCKETS)
+                return bucket;
+
+            int     exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long    lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) <<
+                            (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    /** Threads, file descriptors and heap of the process at one time. */
+    private static class Resources
+    {
+        /** Number of live threads. */
+        final int   threads;
+        /** Number of open file descriptors, or -1 if not available. */
+        final long  descriptors;
+        /** Bytes of heap in use after the last garbage collection. */
+        final long  heap;
+
+        /** Reads the resources of the process. */
+        Resources()
+        {
+            threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            OperatingSystemMXBean   system =
+                ManagementFactory.getOperatingSystemMXBean();
+            if(system instanceof com.sun.management.UnixOperatingSystemMXBean)
+            {
+                descriptors =
+                    ((com.sun.management.UnixOperatingSystemMXBean)system)
+                        .getOpenFileDescriptorCount();
+            }
+            else
+                descriptors = -1;
+
+            long    used = 0;
+            for(MemoryPoolMXBean pool :
+                    ManagementFactory.getMemoryPoolMXBeans())
+            {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if(pool.getType() == MemoryType.HEAP && usage != null)
+                    used += usage.getUsed();
+            }
+            heap = used;
+        }
+
+        /** Formats the change of the resources since an earlier reading.
+
+            @param earlier The earlier reading.
+            @return The changes of threads, descriptors and heap.
+         */
+        String change(Resources earlier)
+        {
+            return String.format("threads %+d, fds %s, heap %+.1f MB",
+                                 threads - earlier.threads,
+                                 descriptors < 0 ? "n/a" :
+                                 String.format("%+d", descriptors -
+                                                      earlier.descriptors),
+                                 (heap - earlier.heap) / (1024.0 * 1024));
+        }
+    }
+}
@@ -5,20 +5,89 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.SelectorEngineTest}</li>
+    <li>{@link rmi.BinaryCodecTest}</li>
+    <li>{@link rmi.MethodTableTest}</li>
+    <li>{@link rmi.MultiplexingTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.OneWayTest}</li>
+    <li>{@link rmi.StreamingTest}</li>
+    <li>{@link rmi.CompressionTest}</li>
+    <li>{@link rmi.OverloadTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link rmi.LocalDispatchTest}</li>
+    <li>{@link rmi.UnixDomainSocketTest}</li>
+    <li>{@link rmi.TransportTest}</li>
+    <li>{@link rmi.StubGroupTest}</li>
+    <li>{@link rmi.ResultCacheTest}</li>
+    <li>{@link rmi.TraceTest}</li>
+    <li>{@link rmi.PriorityTest}</li>
+    <li>{@link naming.DeleteTest}</li>
+    <li>{@link naming.LockTest}</li>
+    <li>{@link storage.StorageServerTest}</li>
+    </ul>
+
+    <p>
+    The tests exercise the TCP connections between stubs and skeletons, which
+    other preferred transports would replace. The preferred transports are
+    therefore cleared for the series, except by the tests covering them, and
+    local dispatch is left disabled, as by default. With the argument
+    <code>--transport memory</code>, the series runs over in-memory pipes
+    instead of TCP.
  */
 public class UnitTests
 {
     /** Runs the tests.
 
-        @param arguments Ignored.
+        @param arguments Optionally <code>--transport memory</code>.
      */
     public static void main(String[] arguments)
     {
+        if(arguments.length == 2 && arguments[0].equals("--transport") &&
+           arguments[1].equals("memory"))
+        {
+            rmi.Transports.setPreferred(new rmi.InMemoryTransport());
+        }
+        else if(arguments.length == 0)
+            rmi.Transports.setPreferred();
+        else
+        {
+            System.err.println("usage: java unit.UnitTests " +
+                               "[--transport memory]");
+            System.exit(1);
+        }
+
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {rmi.ConnectionPoolTest.class,
+                         rmi.SelectorEngineTest.class,
+                         rmi.BinaryCodecTest.class,
+                         rmi.MethodTableTest.class,
+                         rmi.MultiplexingTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.BatchTest.class,
+                         rmi.OneWayTest.class,
+                         rmi.StreamingTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.OverloadTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.MetricsTest.class,
+                         rmi.LocalDispatchTest.class,
+                         rmi.UnixDomainSocketTest.class,
+                         rmi.TransportTest.class,
+                         rmi.StubGroupTest.class,
+                         rmi.ResultCacheTest.class,
+                         rmi.TraceTest.class,
+                         rmi.PriorityTest.class,
+                         naming.DeleteTest.class,
+                         naming.LockTest.class,
+                         storage.StorageServerTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
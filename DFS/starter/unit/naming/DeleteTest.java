@@ -0,0 +1,363 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Checks that files can be deleted under a lock held by the caller, that
+    other clients see deletions at once, and that overlapping deletions of a
+    file keep replication off it.
+
+    <p>
+    Clients such as <code>apps.Remove</code> lock the parent directory of a
+    file exclusively and then delete the file. The deletion must not wait for
+    the caller's own lock, and must remove the file from the naming server and
+    from the storage server.
+
+    <p>
+    A client that looked up a file before another client deleted it must find
+    it gone on its next call, and must find a file created meanwhile.
+
+    <p>
+    While any deletion of a file is in progress, replication tasks must not
+    start on it, even after another deletion of the same file has finished.
+ */
+public class DeleteTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking deletion under a lock";
+
+    /** Time allowed for the deletion, in milliseconds. */
+    private static final long   TIMEOUT = 5000;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Naming server used in the test. */
+    private NamingServer        naming_server;
+    /** Storage server used in the test. */
+    private GatedStorageServer  storage_server;
+    /** Thread making the deletion. */
+    private ExecutorService     caller;
+
+    /** Starts the naming server and a storage server with one file.
+
+        @throws TestFailed If the servers cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"dir", "f"});
+            directory.add(new String[] {"dir", "g"});
+            directory.add(new String[] {"dir", "h"});
+
+            naming_server = new NamingServer();
+            naming_server.start();
+
+            storage_server = new GatedStorageServer(directory.root());
+            storage_server.start("127.0.0.1",
+                                 NamingStubs.registration("127.0.0.1"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+
+        caller = Executors.newFixedThreadPool(2);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Service     service = NamingStubs.service("127.0.0.1");
+
+        testFreshResults(service, NamingStubs.service("127.0.0.1"));
+        testUnderLock(service);
+        testOverlapping(service);
+    }
+
+    /** Checks that a file can be deleted under an exclusive lock on its parent
+        held by the caller.
+
+        @param service Naming server stub.
+        @throws TestFailed If the test fails.
+     */
+    private void testUnderLock(Service service) throws TestFailed
+    {
+        Path        parent = new Path("/dir");
+        Path        file = new Path("/dir/f");
+
+        try
+        {
+            service.lock(parent, true);
+            try
+            {
+                Future<Boolean> deletion =
+                    caller.submit(() -> service.delete(file));
+                if(!deletion.get(TIMEOUT, TimeUnit.MILLISECONDS))
+                    throw new TestFailed("file not deleted");
+            }
+            catch(TimeoutException e)
+            {
+                throw new TestFailed("deletion waits for the caller's lock");
+            }
+            finally
+            {
+                service.unlock(parent, true);
+            }
+
+            if(Arrays.asList(service.list(parent)).contains("f"))
+                throw new TestFailed("file still listed by naming server");
+            if(new File(directory.root(), "dir/f").exists())
+                throw new TestFailed("file still present on storage server");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to delete file", t);
+        }
+    }
+
+    /** Checks that a client sees the changes made by another client to files
+        it has already looked up.
+
+        @param reader Naming server stub of the client looking files up.
+        @param writer Naming server stub of the client changing them.
+        @throws TestFailed If the test fails.
+     */
+    private void testFreshResults(Service reader, Service writer)
+        throws TestFailed
+    {
+        Path        parent = new Path("/dir");
+        Path        file = new Path("/dir/h");
+        Path        created = new Path("/dir/i");
+
+        try
+        {
+            if(!Arrays.asList(reader.list(parent)).contains("h"))
+                throw new TestFailed("file not listed by naming server");
+            if(reader.isDirectory(file))
+                throw new TestFailed("file reported as a directory");
+            reader.getStorage(file);
+
+            if(!writer.delete(file))
+                throw new TestFailed("file not deleted");
+            if(!writer.createFile(created))
+                throw new TestFailed("file not created");
+
+            List<String>            listed =
+                Arrays.asList(reader.list(parent));
+            if(listed.contains("h"))
+                throw new TestFailed("deleted file still listed");
+            if(!listed.contains("i"))
+                throw new TestFailed("created file not listed");
+
+            try
+            {
+                reader.isDirectory(file);
+                throw new TestFailed("deleted file still found");
+            }
+            catch(FileNotFoundException e) { }
+
+            try
+            {
+                reader.getStorage(file);
+                throw new TestFailed("storage server still given for " +
+                                     "deleted file");
+            }
+            catch(FileNotFoundException e) { }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to look up files", t);
+        }
+    }
+
+    /** Checks that replication cannot start on a file while one deletion of
+        it is in progress and another has finished.
+
+        <p>
+        Both deletions are held in the storage server. The first is released
+        and fails there, so the file stays in the naming server's tree while the
+        second is still in progress.
+
+        @param service Naming server stub.
+        @throws TestFailed If the test fails.
+     */
+    private void testOverlapping(Service service) throws TestFailed
+    {
+        Path        file = new Path("/dir/g");
+
+        storage_server.gated = true;
+        try
+        {
+            Future<Boolean> first = caller.submit(() -> service.delete(file));
+            Future<Boolean> second = caller.submit(() -> service.delete(file));
+            waitForDeletions(2);
+
+            storage_server.gate.release();
+            waitForDone(first, second);
+
+            TreeNode    node =
+                naming_server.filesystem.getChild("dir").getChild("g");
+            if(node == null)
+                throw new TestFailed("file removed by failed deletion");
+
+            DfsLock     lock = new DfsLock("test", file, false, true);
+            if(naming_server.beginReplication(node, lock))
+            {
+                naming_server.endReplication(node, lock);
+                throw new TestFailed("replication allowed while file is " +
+                                     "being deleted");
+            }
+
+            storage_server.gate.release();
+            first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            second.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if(new File(directory.root(), "dir/g").exists())
+                throw new TestFailed("file still present on storage server");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to delete file", t);
+        }
+        finally
+        {
+            storage_server.gated = false;
+            storage_server.gate.release(2);
+        }
+    }
+
+    /** Waits until the storage server has received a number of deletions.
+
+        @param count The number of deletions.
+        @throws TestFailed If the deletions are not received in time.
+        @throws InterruptedException If the thread is interrupted.
+     */
+    private void waitForDeletions(int count)
+        throws TestFailed, InterruptedException
+    {
+        long        deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(storage_server.deletions.get() < count)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("deletions not received by storage server");
+
+            Thread.sleep(10);
+        }
+    }
+
+    /** Waits until one of two deletions has finished.
+
+        @param first The first deletion.
+        @param second The second deletion.
+        @throws TestFailed If neither deletion finishes in time.
+        @throws InterruptedException If the thread is interrupted.
+     */
+    private void waitForDone(Future<Boolean> first, Future<Boolean> second)
+        throws TestFailed, InterruptedException
+    {
+        long        deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(!first.isDone() && !second.isDone())
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("released deletion did not finish");
+
+            Thread.sleep(10);
+        }
+    }
+
+    /** Stops the servers and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(caller != null)
+            caller.shutdownNow();
+
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+
+        if(naming_server != null)
+        {
+            naming_server.stop();
+            naming_server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Storage server that can hold deletions until the test releases them.
+
+        <p>
+        While gated, each deletion waits for a permit. The first one released
+        then fails without deleting anything.
+     */
+    private static class GatedStorageServer extends StorageServer
+    {
+        /** Whether deletions are held. */
+        volatile boolean            gated = false;
+        /** Permits releasing held deletions. */
+        final Semaphore             gate = new Semaphore(0);
+        /** Number of deletions received while gated. */
+        final AtomicInteger         deletions = new AtomicInteger();
+        /** Whether the next released deletion fails. */
+        private final AtomicBoolean fail_next = new AtomicBoolean(true);
+
+        /** Creates the storage server.
+
+            @param root Directory served by the storage server.
+         */
+        GatedStorageServer(File root)
+        {
+            super(root);
+        }
+
+        /** Deletes a file, once released if deletions are held. */
+        @Override
+        public boolean delete(Path path)
+        {
+            if(gated)
+            {
+                deletions.incrementAndGet();
+                gate.acquireUninterruptibly();
+
+                if(fail_next.getAndSet(false))
+                    return false;
+            }
+
+            return super.delete(path);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package naming;
+
+import common.*;
+import test.*;
+
+/** Checks that client unlocks never release the locks of replication tasks.
+
+    <p>
+    A replication task takes an internal lock on the file it replicates, of the
+    same kind as the client lock that triggered it, and releases it itself. The
+    test interleaves such a lock between two shared client locks on a file.
+    Releasing each client lock must find that client's lock, and once both are
+    released no lock may be left for a client to release. An exclusive client
+    lock queued behind the internal lock must be granted only once the
+    replication task releases it.
+ */
+public class LockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking replication locks";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        TreeNode    root = new TreeNode();
+        TreeNode    file =
+            root.addChild(new TreeNode(root, "f", TreeNode.NodeType.FILE));
+        Path        path = new Path("/f");
+
+        DfsLock     first = new DfsLock("first", path, false, false);
+        DfsLock     internal = new DfsLock("internal", path, false, true);
+        DfsLock     second = new DfsLock("second", path, false, false);
+
+        root.addLock(first);
+        root.addLock(internal);
+        root.addLock(second);
+        if(!first.isGranted() || !internal.isGranted() || !second.isGranted())
+            throw new TestFailed("shared locks not granted together");
+
+        release(root, file, path, first);
+        release(root, file, path, second);
+
+        if(file.getLockIdForRelease(path, false) != null)
+            throw new TestFailed("internal lock offered to a client unlock");
+
+        DfsLock     exclusive = new DfsLock("exclusive", path, true, false);
+        root.addLock(exclusive);
+        if(exclusive.isGranted())
+            throw new TestFailed("exclusive lock granted while replication " +
+                                 "holds the file");
+
+        root.removeLock(internal.id);
+        file.removeLock(internal.id);
+        if(!exclusive.isGranted())
+            throw new TestFailed("exclusive lock not granted after " +
+                                 "replication released the file");
+    }
+
+    /** Releases a client lock as <code>NamingServer.unlock</code> does,
+        checking that the lock found for release is the client's own.
+
+        @param root Root of the tree.
+        @param file Node of the locked file.
+        @param path Path to the locked file.
+        @param lock The client lock.
+        @throws TestFailed If another lock is found for release.
+     */
+    private void release(TreeNode root, TreeNode file, Path path,
+                         DfsLock lock) throws TestFailed
+    {
+        String      id = file.getLockIdForRelease(path, lock.isExclusive);
+        if(!lock.id.equals(id))
+        {
+            throw new TestFailed("unlock of " + lock.id + " found lock " +
+                                 id);
+        }
+
+        root.removeLock(id);
+        file.removeLock(id);
+    }
+}
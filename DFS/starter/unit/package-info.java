@@ -26,5 +26,11 @@
     tests, execute <code>java -cp .:unit unit.UnitTest</code> from the command
     line. On a Windows system, execute
     <code>java -cp ".;unit" unit.UnitTests</code> instead.
+
+    <p>
+    The package also holds <code>LoadGenerator</code>, which drives the
+    servers' remote interfaces at a fixed call rate and can run soak tests
+    restarting a skeleton under load. The <code>load-test</code> and
+    <code>soak</code> make targets run it.
  */
 package unit;
@@ -0,0 +1,263 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that asynchronous stubs start calls without waiting for them.
+
+    <p>
+    The test thread alone starts several calls to a method that blocks until
+    it is released, and checks that none of them completes before it is
+    released. Each future must then be completed with the result of its own
+    call. Exceptions thrown by the remote method, and network errors, must
+    complete the futures exceptionally, and lambda expressions that do not call
+    exactly one remote method must be rejected.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of concurrent calls. */
+    private static final int    CALLS = 8;
+
+    /** Skeleton used in the test. */
+    private Skeleton<LatchService>  skeleton;
+    /** Server object called by the skeleton. */
+    private final LatchServer       server = new LatchServer();
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<LatchService>(LatchService.class, server);
+        skeleton.setWorkerThreads(CALLS * 2);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        AsyncStub<LatchService>     stub =
+            Stub.createAsync(LatchService.class, address);
+
+        if(!Stub.async(Stub.create(LatchService.class, address))
+                .getRemoteAddress().equals(address))
+        {
+            throw new TestFailed("asynchronous view has another address");
+        }
+
+        testConcurrentCalls(stub);
+        testFailures(stub);
+    }
+
+    /** Starts blocked calls from the test thread and releases them.
+
+        @param stub Asynchronous stub for the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void testConcurrentCalls(AsyncStub<LatchService> stub)
+        throws TestFailed
+    {
+        List<CompletableFuture<Integer>>    results = new ArrayList<>();
+
+        for(int index = 0; index < CALLS; ++index)
+        {
+            final int   key = index;
+            results.add(stub.call(service -> service.await(key)));
+        }
+
+        try
+        {
+            while(server.waiting.get() < CALLS)
+                Thread.sleep(5);
+
+            for(CompletableFuture<Integer> result : results)
+            {
+                if(result.isDone())
+                    throw new TestFailed("call completed before release");
+            }
+
+            CompletableFuture<Void>     released = null;
+            for(int index = CALLS - 1; index >= 0; --index)
+            {
+                final int   key = index;
+                released = stub.run(service -> service.release(key));
+            }
+            released.get();
+
+            for(int index = 0; index < CALLS; ++index)
+            {
+                if(results.get(index).get() != index * 2)
+                    throw new TestFailed("call completed with another result");
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for calls", e);
+        }
+        catch(ExecutionException e)
+        {
+            throw new TestFailed("asynchronous call failed", e.getCause());
+        }
+    }
+
+    /** Checks that failed calls complete their futures exceptionally, and that
+        invalid lambda expressions are rejected.
+
+        @param stub Asynchronous stub for the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void testFailures(AsyncStub<LatchService> stub) throws TestFailed
+    {
+        expectFailure(stub.run(service -> service.fail("/missing")),
+                      FileNotFoundException.class,
+                      "exception thrown by remote method");
+
+        try
+        {
+            stub.run(service -> { });
+            throw new TestFailed("lambda calling no method accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            stub.run(service -> { service.release(0); service.release(1); });
+            throw new TestFailed("lambda calling two methods accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        skeleton.stop();
+        skeleton = null;
+
+        expectFailure(stub.run(service -> service.release(0)),
+                      RMIException.class, "call to stopped skeleton");
+    }
+
+    /** Checks that a call fails with the given exception.
+
+        @param call Future of the call.
+        @param expected Expected exception class.
+        @param description Description of the call for the failure message.
+        @throws TestFailed If the call does not fail as expected.
+     */
+    private void expectFailure(CompletableFuture<?> call,
+                               Class<? extends Throwable> expected,
+                               String description)
+        throws TestFailed
+    {
+        try
+        {
+            call.get();
+        }
+        catch(ExecutionException e)
+        {
+            if(expected.isInstance(e.getCause()))
+                return;
+
+            throw new TestFailed(description + " failed with wrong exception",
+                                 e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+
+        throw new TestFailed(description + " completed normally");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with a method that blocks until released. */
+    interface LatchService
+    {
+        int await(int key) throws RMIException;
+
+        void release(int key) throws RMIException;
+
+        void fail(String message) throws FileNotFoundException, RMIException;
+    }
+
+    /** Implementation of <code>LatchService</code>. */
+    private static class LatchServer implements LatchService
+    {
+        /** Number of calls that have started waiting. */
+        final AtomicInteger     waiting = new AtomicInteger();
+        /** Latches by key. */
+        private final ConcurrentHashMap<Integer, CountDownLatch>    latches =
+            new ConcurrentHashMap<>();
+
+        @Override
+        public int await(int key) throws RMIException
+        {
+            waiting.incrementAndGet();
+
+            try
+            {
+                latch(key).await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException(e);
+            }
+
+            return key * 2;
+        }
+
+        @Override
+        public void release(int key)
+        {
+            latch(key).countDown();
+        }
+
+        @Override
+        public void fail(String message) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(message);
+        }
+
+        /** Returns the latch for a key, creating it on first use.
+
+            @param key The key.
+            @return The latch.
+         */
+        private CountDownLatch latch(int key)
+        {
+            CountDownLatch  latch = new CountDownLatch(1);
+            CountDownLatch  existing = latches.putIfAbsent(key, latch);
+            return (existing != null) ? existing : latch;
+        }
+    }
+}
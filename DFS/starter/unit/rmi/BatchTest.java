@@ -0,0 +1,197 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that batches of calls are executed in one request.
+
+    <p>
+    Through a plain and a multiplexed stub, the test records calls appending to
+    a list on the server, one of which throws an exception, and executes the
+    batch. The calls must have been executed in order, by a single server
+    thread, and the calls after the one that threw must still have been
+    executed. Each future must carry the result or exception of its own call.
+    A batch executed after the skeleton has stopped must fail with an
+    <code>RMIException</code>, which must also complete every future.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched calls";
+
+    /** Skeleton used in the test. */
+    private Skeleton<LogService>    skeleton;
+    /** Server object called by the skeleton. */
+    private final LogServer         server = new LogServer();
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<LogService>(LogService.class, server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        LogService      stub = Stub.create(LogService.class, address);
+
+        testBatch(stub);
+        testBatch(Stub.multiplexed(stub));
+
+        Batch<LogService>           batch = Stub.batch(stub);
+        CompletableFuture<Integer>  size =
+            batch.call(service -> service.append("lost"));
+
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            batch.execute();
+            throw new TestFailed("batch sent to stopped skeleton executed");
+        }
+        catch(RMIException e) { }
+
+        if(!size.isCompletedExceptionally())
+            throw new TestFailed("failed batch did not complete its calls");
+
+        if(batch.size() != 0)
+            throw new TestFailed("executed batch not emptied");
+    }
+
+    /** Executes a batch through the given stub and checks its results.
+
+        @param stub Stub for the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void testBatch(LogService stub) throws TestFailed
+    {
+        server.clear();
+
+        Batch<LogService>           batch = Stub.batch(stub);
+        CompletableFuture<Integer>  first =
+            batch.call(service -> service.append("a"));
+        CompletableFuture<Void>     failed =
+            batch.run(service -> service.fail("/missing"));
+        CompletableFuture<Integer>  second =
+            batch.call(service -> service.append("b"));
+        CompletableFuture<String[]> entries =
+            batch.call(service -> service.entries());
+
+        if(batch.size() != 4 || first.isDone())
+            throw new TestFailed("calls executed before batch");
+
+        try
+        {
+            batch.execute();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to execute batch", e);
+        }
+
+        if(server.threads.size() != 1)
+            throw new TestFailed("batch executed by several server threads");
+
+        try
+        {
+            failed.join();
+            throw new TestFailed("exception not transmitted");
+        }
+        catch(CompletionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+                throw new TestFailed("wrong exception transmitted", e);
+        }
+
+        if(first.join() != 1 || second.join() != 2 ||
+           !Arrays.equals(entries.join(), new String[] {"a", "b"}))
+        {
+            throw new TestFailed("calls not executed in order");
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface appending to a list on the server. */
+    interface LogService
+    {
+        int append(String entry) throws RMIException;
+
+        String[] entries() throws RMIException;
+
+        void fail(String message) throws FileNotFoundException, RMIException;
+    }
+
+    /** Implementation of <code>LogService</code>, recording the threads that
+        executed its calls. */
+    private static class LogServer implements LogService
+    {
+        /** Entries appended so far. */
+        private final ArrayList<String> log = new ArrayList<>();
+        /** Threads that executed calls since the log was cleared. */
+        final Set<Thread>               threads =
+            Collections.synchronizedSet(new HashSet<Thread>());
+
+        /** Clears the log and the recorded threads. */
+        synchronized void clear()
+        {
+            log.clear();
+            threads.clear();
+        }
+
+        @Override
+        public synchronized int append(String entry)
+        {
+            threads.add(Thread.currentThread());
+            log.add(entry);
+            return log.size();
+        }
+
+        @Override
+        public synchronized String[] entries()
+        {
+            threads.add(Thread.currentThread());
+            return log.toArray(new String[log.size()]);
+        }
+
+        @Override
+        public void fail(String message) throws FileNotFoundException
+        {
+            threads.add(Thread.currentThread());
+            throw new FileNotFoundException(message);
+        }
+    }
+}
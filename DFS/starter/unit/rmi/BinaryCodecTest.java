@@ -0,0 +1,251 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import common.*;
+import rmi.io.*;
+import test.*;
+
+/** Checks that the binary codec preserves requests and responses.
+
+    <p>
+    The test encodes and decodes requests carrying every value type with a
+    fast path in the codec, as well as a value that is only handled by the
+    Java serialization fallback, responses carrying a return value and an
+    exception, and batches of both. Decoded values must equal the originals.
+    Large arrays encoded into a frame must be carried in bulk sections, and
+    the frame must survive being written to a stream and read back, both
+    from a stream and a few bytes at a time from a channel.
+ */
+public class BinaryCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary codec round trips";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Codec               codec = new BinaryCodec();
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", 7000);
+        EchoService         stub = Stub.create(EchoService.class, address);
+        ArrayList<String>   fallback =
+            new ArrayList<String>(Arrays.asList("a", "b"));
+
+        Object[]            arguments = new Object[]
+        {
+            null, true, false, (byte)-3, (short)-300, 'x', 0, -1,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE, 1.5f, -2.25,
+            "", "ascii", "unicod\u00e9 \u2603", new byte[] {1, 2, 3},
+            new Path(), new Path("/directory/file"),
+            new Path[] {new Path("/a"), null, new Path("/b/c")},
+            new String[] {"x", null, ""}, new Object[] {"y", 7, null, stub},
+            stub, fallback
+        };
+        int                 methodId = 0x9E3779B9;
+
+        RMIRequest          request =
+            (RMIRequest)roundTrip(codec, new RMIRequest(methodId, arguments));
+
+        if(request.getMethodId() != methodId)
+            throw new TestFailed("request method identifier not preserved");
+
+        if(!Arrays.deepEquals(request.getArguments(), arguments))
+            throw new TestFailed("request arguments not preserved");
+
+        for(int index = 0; index < arguments.length; ++index)
+        {
+            Object  original = arguments[index];
+            Object  decoded = request.getArguments()[index];
+
+            if(original != null && original.getClass() != decoded.getClass())
+            {
+                throw new TestFailed("argument " + index + " decoded as " +
+                                     decoded.getClass().getName());
+            }
+        }
+
+        RMIResponse         value =
+            (RMIResponse)roundTrip(codec, new RMIResponse(stub));
+
+        if(value.getException() != null || !stub.equals(value.getReturnValue()))
+            throw new TestFailed("response value not preserved");
+
+        RMIResponse         failure =
+            (RMIResponse)roundTrip(codec,
+                new RMIResponse(new FileNotFoundException("missing")));
+
+        if(!(failure.getException() instanceof FileNotFoundException) ||
+           !"missing".equals(failure.getException().getMessage()))
+        {
+            throw new TestFailed("response exception not preserved");
+        }
+
+        RMIBatchRequest     batch = new RMIBatchRequest(new RMIRequest[]
+            {new RMIRequest(methodId, arguments), new RMIRequest(1, null)});
+        batch.setRequestId(42);
+        batch = (RMIBatchRequest)roundTrip(codec, batch);
+
+        if(batch.getRequestId() != 42 || batch.getCalls().length != 2 ||
+           batch.getCalls()[1].getMethodId() != 1 ||
+           !Arrays.deepEquals(batch.getCalls()[0].getArguments(), arguments))
+        {
+            throw new TestFailed("batch request not preserved");
+        }
+
+        RMIBatchResponse    results = (RMIBatchResponse)roundTrip(codec,
+            new RMIBatchResponse(new RMIResponse[] {value, failure}));
+
+        if(!stub.equals(results.getResults()[0].getReturnValue()) ||
+           !(results.getResults()[1].getException()
+                instanceof FileNotFoundException))
+        {
+            throw new TestFailed("batch response not preserved");
+        }
+
+        testSections(codec);
+    }
+
+    /** Checks that large arrays are carried in bulk sections.
+
+        @param codec Codec to use.
+        @throws TestFailed If the test fails.
+     */
+    private void testSections(Codec codec) throws TestFailed
+    {
+        byte[]          first = new byte[BinaryCodec.SECTION_THRESHOLD];
+        byte[]          second = new byte[3 * BinaryCodec.SECTION_THRESHOLD];
+        new Random(1).nextBytes(first);
+        new Random(2).nextBytes(second);
+
+        Object[]        arguments = new Object[]
+            {first, new byte[] {4, 5}, "between", second};
+
+        try
+        {
+            Frame       frame =
+                codec.encodeFrame(new RMIRequest(7, arguments));
+
+            if(frame.getSections().length != 2 ||
+               frame.getSections()[0] != first ||
+               frame.getPayload().length >= first.length)
+            {
+                throw new TestFailed("large arrays not carried in sections");
+            }
+
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            Frames.writeFrame(new DataOutputStream(bytes), frame);
+
+            Frame       streamed = Frames.readFrameAndSections(
+                new DataInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray())));
+            checkArguments(codec.decode(streamed), arguments);
+
+            FrameReader reader = new FrameReader();
+            Frame       assembled = null;
+            ReadableByteChannel channel =
+                new TrickleChannel(bytes.toByteArray());
+            while(assembled == null)
+                assembled = reader.read(channel);
+            checkArguments(codec.decode(assembled), arguments);
+
+            try
+            {
+                codec.decode(new Frame(frame.getPayload(),
+                                       new byte[][] {first}));
+                throw new TestFailed("frame missing a section decoded");
+            }
+            catch(StreamCorruptedException e) { }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to encode and decode frame", e);
+        }
+    }
+
+    /** Checks that a decoded request carries the given arguments.
+
+        @param message Decoded message.
+        @param arguments Expected arguments.
+        @throws TestFailed If the arguments differ.
+     */
+    private void checkArguments(Object message, Object[] arguments)
+        throws TestFailed
+    {
+        if(!Arrays.deepEquals(((RMIRequest)message).getArguments(), arguments))
+            throw new TestFailed("arguments carried in sections not preserved");
+    }
+
+    /** Encodes and decodes a message.
+
+        @param codec Codec to use.
+        @param message Message to encode.
+        @return The decoded message.
+        @throws TestFailed If the message cannot be encoded or decoded.
+     */
+    private Object roundTrip(Codec codec, Object message) throws TestFailed
+    {
+        try
+        {
+            return codec.decode(codec.encode(message));
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to encode and decode message", e);
+        }
+    }
+
+    /** Channel returning a few bytes of an array at each read. */
+    private static class TrickleChannel implements ReadableByteChannel
+    {
+        /** Bytes to return. */
+        private final ByteBuffer    source;
+
+        /** Creates the channel.
+
+            @param bytes Bytes to return.
+         */
+        TrickleChannel(byte[] bytes)
+        {
+            source = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer target)
+        {
+            if(!source.hasRemaining())
+                return -1;
+
+            int         count = Math.min(Math.min(3, target.remaining()),
+                                         source.remaining());
+            ByteBuffer  slice = source.slice();
+            slice.limit(count);
+            target.put(slice);
+            source.position(source.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import rmi.io.*;
+
+import test.*;
+
+/** Checks that negotiated compression carries frames unchanged.
+
+    <p>
+    With compression enabled, and with each skeleton engine, the test sends
+    compressible and random arrays through a plain and a multiplexed stub, and
+    checks that they come back unchanged. The compressible arrays must be
+    counted as compressed in the statistics of their method, and the random
+    arrays as skipped. Frames compressed directly must be restored exactly,
+    and a corrupted compressed frame must be rejected.
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking compressed frames";
+
+    /** Length of the arrays sent. */
+    private static final int    LENGTH = 64 * 1024;
+
+    /** Skeleton used in the test. */
+    private Skeleton<BlockEchoService>  skeleton;
+
+    /** Enables compression. */
+    @Override
+    protected void initialize()
+    {
+        Compression.setEnabled(true);
+        Compression.resetStatistics();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testFrames();
+
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+        {
+            testEngine(engine);
+        }
+
+        Map<String, Compression.Statistics>    statistics =
+            Compression.getStatistics();
+        Compression.Statistics  packed =
+            statistics.get("BlockEchoService.packed");
+        Compression.Statistics  random =
+            statistics.get("BlockEchoService.random");
+
+        if(packed == null || packed.getCompressedParts() == 0 ||
+           packed.getRatio() > 0.5)
+        {
+            throw new TestFailed("compressible arrays not compressed");
+        }
+
+        if(random == null || random.getSkippedParts() == 0 ||
+           random.getCompressedParts() != 0)
+        {
+            throw new TestFailed("random arrays not skipped");
+        }
+    }
+
+    /** Compresses and restores frames directly.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testFrames() throws TestFailed
+    {
+        byte[]          text = packed(LENGTH);
+        Frame           frame = new Frame(new byte[] {1, 2, 3},
+                                          new byte[][] {text, new byte[10]});
+        RMIRequest      request = new RMIRequest(0x1234, new Object[0]);
+        Frame           compressed = Compression.compress(frame, request);
+
+        if(!compressed.isCompressed(1) || compressed.isCompressed(2) ||
+           compressed.isCompressed(0))
+        {
+            throw new TestFailed("wrong parts of frame compressed");
+        }
+
+        try
+        {
+            Frame       restored = Compression.decompress(compressed);
+            if(!Arrays.equals(restored.getPayload(), frame.getPayload()) ||
+               !Arrays.equals(restored.getSections()[0], text) ||
+               !Arrays.equals(restored.getSections()[1], new byte[10]))
+            {
+                throw new TestFailed("frame not restored");
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to restore frame", e);
+        }
+
+        byte[][]        sections = compressed.getSections().clone();
+        sections[0] = Arrays.copyOf(sections[0], sections[0].length - 8);
+
+        try
+        {
+            Compression.decompress(new Frame(frame.getPayload(), sections,
+                                             new boolean[] {false, true,
+                                                            false}));
+            throw new TestFailed("truncated compressed part accepted");
+        }
+        catch(StreamCorruptedException e) { }
+    }
+
+    /** Sends arrays to a skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine) throws TestFailed
+    {
+        skeleton = new Skeleton<BlockEchoService>(BlockEchoService.class,
+                                                  new BlockEchoServer());
+        skeleton.setEngine(engine);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort());
+        BlockEchoService    stub = Stub.create(BlockEchoService.class, address);
+        byte[]              packed = packed(LENGTH);
+        byte[]              random = new byte[LENGTH];
+        new Random(17).nextBytes(random);
+
+        try
+        {
+            for(BlockEchoService service :
+                    new BlockEchoService[] {stub, Stub.multiplexed(stub)})
+            {
+                if(!Arrays.equals(service.packed(packed), packed) ||
+                   !Arrays.equals(service.random(random), random) ||
+                   !Arrays.equals(service.packed(new byte[5]), new byte[5]))
+                {
+                    throw new TestFailed("array corrupted with " + engine +
+                                         " engine");
+                }
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Returns a highly compressible array.
+
+        @param length Length of the array.
+        @return The array.
+     */
+    private static byte[] packed(int length)
+    {
+        byte[]          data = new byte[length];
+        for(int index = 0; index < length; ++index)
+            data[index] = (byte)"compressible ".charAt(index % 13);
+
+        return data;
+    }
+
+    /** Stops the skeleton and disables compression. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        Compression.setEnabled(false);
+        Compression.resetStatistics();
+    }
+
+    /** Remote interface returning its byte array arguments. */
+    interface BlockEchoService
+    {
+        byte[] packed(byte[] data) throws RMIException;
+
+        byte[] random(byte[] data) throws RMIException;
+    }
+
+    /** Implementation of <code>BlockEchoService</code>. */
+    private static class BlockEchoServer implements BlockEchoService
+    {
+        @Override
+        public byte[] packed(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public byte[] random(byte[] data)
+        {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package rmi;
+
+import java.util.concurrent.Callable;
+
+import test.TestFailed;
+
+/** Polling of skeleton and server state shared by the RMI unit tests. */
+class Conditions
+{
+    /** Number of times a condition is checked before the wait fails. */
+    private static final int    ATTEMPTS = 500;
+    /** Interval between checks of a condition, in milliseconds. */
+    private static final long   INTERVAL = 10;
+
+    /** Prevents instantiation. */
+    private Conditions()
+    {
+    }
+
+    /** Waits until a condition holds.
+
+        @param condition The condition.
+        @param description Description of the failure if the condition never
+                           holds.
+        @throws TestFailed If the condition does not hold within a few seconds,
+                           or cannot be checked.
+     */
+    static void waitFor(Callable<Boolean> condition, String description)
+        throws TestFailed
+    {
+        try
+        {
+            for(int attempt = 0; attempt < ATTEMPTS; ++attempt)
+            {
+                if(condition.call())
+                    return;
+
+                Thread.sleep(INTERVAL);
+            }
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed(description, e);
+        }
+
+        throw new TestFailed(description);
+    }
+}
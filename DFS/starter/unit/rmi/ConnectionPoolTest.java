@@ -0,0 +1,200 @@
+package rmi;
+
+import java.net.*;
+
+import test.*;
+
+/** Checks that stubs reuse pooled connections.
+
+    <p>
+    The test starts a skeleton and makes several calls through a stub. After
+    the calls, exactly one idle connection to the skeleton should remain in
+    the shared pool. The skeleton is then restarted on the same address, which
+    leaves the pooled connection stale; the next call, to an idempotent
+    method, must still succeed on a fresh connection.
+
+    <p>
+    A call to a method that is not idempotent must not be sent again when a
+    reused connection fails after the request was written, since the
+    skeleton may have executed it.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub connection pooling";
+
+    /** Skeleton used in the test. */
+    private Skeleton<EchoService>   skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+    /** Skeleton counting the calls it executes. */
+    private Skeleton<CountService>  counter;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<EchoService>(EchoService.class,
+                                             new EchoServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        EchoService     stub = Stub.create(EchoService.class, address);
+        ConnectionPool  pool = ConnectionPool.getShared();
+
+        try
+        {
+            for(int call = 0; call < 10; ++call)
+            {
+                if(stub.echo(call) != call)
+                    throw new TestFailed("incorrect result from stub");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        if(pool.idleCount(address) != 1)
+        {
+            throw new TestFailed("expected one pooled connection, found " +
+                                 pool.idleCount(address));
+        }
+
+        // Restart the skeleton on the same port. The pooled connection is now
+        // closed at the server end.
+        skeleton.stop();
+        skeleton = new Skeleton<EchoService>(EchoService.class,
+                                             new EchoServer(), address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to restart skeleton", e);
+        }
+
+        try
+        {
+            if(stub.echo(42) != 42)
+                throw new TestFailed("incorrect result from stub");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("stale pooled connection was not replaced",
+                                 e);
+        }
+
+        testNotResent();
+    }
+
+    /** Checks that a call to a method that is not idempotent is not sent
+        again when a reused connection fails after the skeleton executed it.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testNotResent() throws TestFailed
+    {
+        counter = new Skeleton<CountService>(CountService.class,
+                                             new CountServer());
+
+        try
+        {
+            counter.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        CountService    stub = Stub.create(CountService.class,
+            new InetSocketAddress("127.0.0.1",
+                                  counter.getBindAddress().getPort()));
+
+        try
+        {
+            stub.count();
+
+            // The response cannot be written, so the skeleton closes the
+            // connection after executing the call.
+            try
+            {
+                stub.leak();
+                throw new TestFailed("unwritable response returned");
+            }
+            catch(RMIException e) { }
+
+            if(stub.count() != 3)
+                throw new TestFailed("failed call sent again");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(counter != null)
+        {
+            counter.stop();
+            counter = null;
+        }
+    }
+
+    /** Remote interface with methods that are not idempotent. */
+    interface CountService
+    {
+        int count() throws RMIException;
+
+        Object leak() throws RMIException;
+    }
+
+    /** Implementation of <code>CountService</code>. */
+    private static class CountServer implements CountService
+    {
+        /** Number of calls executed. */
+        private int     calls = 0;
+
+        @Override
+        public synchronized int count()
+        {
+            return ++calls;
+        }
+
+        @Override
+        public synchronized Object leak()
+        {
+            ++calls;
+            return new Object();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package rmi;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import rmi.io.*;
+
+import test.*;
+
+/** Checks that calls carry deadlines to the skeleton.
+
+    <p>
+    A stub with a timeout must give up on a slow call with an
+    <code>RMITimeoutException</code>, over a pooled and a multiplexed
+    connection, and stay usable afterwards. The server object must see the
+    deadline of the call it executes, with both codecs, and calls it makes to
+    another skeleton must inherit it. A call whose deadline passes while it
+    waits for an execution slot must not be executed.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+
+    /** Skeleton used in the test. */
+    private Skeleton<ClockService>  skeleton;
+    /** Second skeleton, called by the server of the first. */
+    private Skeleton<ClockService>  nested;
+    /** Server object called by the skeleton. */
+    private final ClockServer       server = new ClockServer();
+    /** Stub for the skeleton. */
+    private ClockService            stub;
+
+    /** Starts the skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        nested = new Skeleton<ClockService>(ClockService.class,
+                                            new ClockServer());
+        skeleton = new Skeleton<ClockService>(ClockService.class, server);
+
+        try
+        {
+            nested.start();
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        server.next = Stub.create(ClockService.class, address(nested));
+        stub = Stub.create(ClockService.class, address(skeleton));
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testTimeout(stub);
+            testTimeout(Stub.multiplexed(stub));
+            testPropagation();
+
+            Codec       codec = Codecs.getDefault();
+            Codecs.setDefault(new JavaSerializationCodec());
+            try
+            {
+                ConnectionPool.getShared().clear(address(skeleton));
+                testPropagation();
+            }
+            finally
+            {
+                Codecs.setDefault(codec);
+                ConnectionPool.getShared().clear(address(skeleton));
+            }
+
+            testExpiry();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+    }
+
+    /** Checks that a stub with a timeout gives up on a slow call.
+
+        @param service Stub for the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void testTimeout(ClockService service)
+        throws TestFailed, RMIException
+    {
+        ClockService    bounded = Stub.withTimeout(service, 200);
+        long            start = System.nanoTime();
+
+        if(!bounded.equals(service))
+            throw new TestFailed("stub with timeout not equal to stub");
+
+        try
+        {
+            bounded.sleep(1500);
+            throw new TestFailed("slow call did not time out");
+        }
+        catch(RMITimeoutException e) { }
+
+        if(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(1000))
+            throw new TestFailed("slow call timed out late");
+
+        if(bounded.sleep(0) != 0)
+            throw new TestFailed("stub unusable after timeout");
+    }
+
+    /** Checks that the server sees the deadline of the call, and passes it
+        on to the calls it makes.
+
+        @throws TestFailed If the test fails.
+     */
+    @SuppressWarnings("try") // The scope sets the deadline of the thread.
+    private void testPropagation() throws TestFailed, RMIException
+    {
+        if(stub.remaining(false) != Long.MAX_VALUE)
+            throw new TestFailed("call without deadline has one on server");
+
+        try(Deadline.Scope scope = Deadline.within(5000))
+        {
+            long        remaining = stub.remaining(false);
+            if(remaining <= 0 || remaining > 5000)
+                throw new TestFailed("deadline not seen by server");
+
+            long        inherited = stub.remaining(true);
+            if(inherited <= 0 || inherited > 5000)
+                throw new TestFailed("deadline not passed on by server");
+        }
+
+        if(Deadline.isSet())
+            throw new TestFailed("deadline scope not closed");
+
+        long            remaining = Stub.withTimeout(stub, 3000)
+                                        .remaining(false);
+        if(remaining <= 0 || remaining > 3000)
+            throw new TestFailed("stub timeout not seen by server");
+    }
+
+    /** Checks that a call is not executed once its deadline has passed while
+        it waited for an execution slot.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testExpiry() throws TestFailed, RMIException
+    {
+        Conditions.waitFor(() -> skeleton.getInFlightRequests() == 0,
+                           "earlier requests still executing");
+        skeleton.setMaxInFlightRequests(1);
+        server.gate = new CountDownLatch(1);
+        ExecutorService     callers = Executors.newSingleThreadExecutor();
+        int                 calls = server.calls.get() + 1;
+
+        try
+        {
+            Future<Long>    blocked = callers.submit(() -> stub.block());
+            Conditions.waitFor(() -> server.calls.get() == calls,
+                               "blocking call not executing");
+
+            try
+            {
+                Stub.withTimeout(stub, 100).block();
+                throw new TestFailed("queued call did not time out");
+            }
+            catch(RMITimeoutException e) { }
+
+            Conditions.waitFor(() -> skeleton.getExpiredRequests() == 1,
+                               "queued call did not expire");
+            server.gate.countDown();
+            blocked.get();
+
+            if(server.calls.get() != calls)
+                throw new TestFailed("expired call executed");
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("blocked call failed", e);
+        }
+        finally
+        {
+            server.gate.countDown();
+            callers.shutdown();
+        }
+    }
+
+    /** Returns the loopback address of a skeleton.
+
+        @param target The skeleton.
+        @return The address.
+     */
+    private static InetSocketAddress address(Skeleton<?> target)
+    {
+        return new InetSocketAddress("127.0.0.1",
+                                     target.getBindAddress().getPort());
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        server.gate.countDown();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(nested != null)
+        {
+            nested.stop();
+            nested = null;
+        }
+    }
+
+    /** Remote interface reporting the deadlines of its calls. */
+    interface ClockService
+    {
+        long sleep(long millis) throws RMIException;
+
+        long remaining(boolean nested) throws RMIException;
+
+        long block() throws RMIException;
+    }
+
+    /** Implementation of <code>ClockService</code>. */
+    private static class ClockServer implements ClockService
+    {
+        /** Stub for the nested skeleton. */
+        ClockService                next;
+        /** Gate blocking calls to <code>block</code>. */
+        volatile CountDownLatch     gate = new CountDownLatch(0);
+        /** Number of calls to <code>block</code> executed. */
+        final AtomicInteger         calls = new AtomicInteger();
+
+        @Override
+        public long sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return millis;
+        }
+
+        @Override
+        public long remaining(boolean nested) throws RMIException
+        {
+            return nested ? next.remaining(false) : Deadline.remainingMillis();
+        }
+
+        @Override
+        public long block()
+        {
+            calls.incrementAndGet();
+
+            try
+            {
+                gate.await();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package rmi;
+
+/** Implementation of <code>EchoService</code> used by the RMI unit tests. */
+public class EchoServer implements EchoService
+{
+    // Methods documented in EchoService.java.
+    @Override
+    public int echo(int value)
+    {
+        return value;
+    }
+}
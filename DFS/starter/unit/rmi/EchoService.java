@@ -0,0 +1,20 @@
+package rmi;
+
+/** Remote interface used by the RMI unit tests.
+
+    <p>
+    The implementation, <code>EchoServer</code>, returns its arguments so that
+    tests can check what was transmitted.
+ */
+public interface EchoService
+{
+    /** Returns its argument.
+
+        @param value Value to return.
+        @return <code>value</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public int echo(int value) throws RMIException;
+}
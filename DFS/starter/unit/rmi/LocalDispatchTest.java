@@ -0,0 +1,310 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+
+import test.*;
+
+/** Checks that calls to a skeleton in the same JVM skip the network.
+
+    <p>
+    With local dispatch enabled, calls through a stub to a running skeleton
+    must be executed in the calling thread without opening a connection. The
+    server object and the caller must not share mutable arguments or results.
+    Arguments that cannot be sent must still be rejected. Calls with a deadline
+    must time out, and one-way calls must return before they are executed, and
+    be executed in order. Once the skeleton is stopped, calls must fail as they
+    would over the network.
+ */
+public class LocalDispatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking local dispatch";
+
+    /** Skeleton used in the test. */
+    private Skeleton<LocalService>  skeleton;
+    /** Server object called by the skeleton. */
+    private final LocalServer       server = new LocalServer();
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+    /** Stub for the skeleton. */
+    private LocalService            stub;
+
+    /** Enables local dispatch and starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Stub.setLocalDispatch(true);
+
+        skeleton = new Skeleton<LocalService>(LocalService.class, server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+        stub = Stub.create(LocalService.class, address);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testDirect();
+            testCopies();
+            testUnsendable();
+            testTimeout();
+            testOneWay();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        testStopped();
+    }
+
+    /** Checks that calls are executed in the calling thread, without a
+        connection.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testDirect() throws TestFailed, RMIException
+    {
+        if(stub.thread() != Thread.currentThread().getId())
+            throw new TestFailed("local call not executed in calling thread");
+
+        if(ConnectionPool.getShared().idleCount(address) != 0)
+            throw new TestFailed("local call opened a connection");
+    }
+
+    /** Checks that the caller and the server object do not share mutable
+        arguments or results.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCopies() throws TestFailed, RMIException
+    {
+        byte[]      data = new byte[] {1, 2, 3};
+        Path        path = new Path("/directory/file");
+
+        stub.modify(data, path);
+        if(data[0] != 1 || !path.toString().equals("/directory/file"))
+            throw new TestFailed("server object modified caller's arguments");
+
+        stub.keep().clear();
+        stub.contents()[0] = 9;
+        if(!server.kept.contains("kept") || server.contents[0] != 0)
+            throw new TestFailed("caller modified server object's result");
+
+        Path[]      paths = stub.paths(new Path[] {path});
+        if(paths.length != 1 || !paths[0].equals(path) || paths[0] == path)
+            throw new TestFailed("array of paths not copied");
+    }
+
+    /** Checks that arguments that cannot be sent over the network are
+        rejected.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testUnsendable() throws TestFailed
+    {
+        try
+        {
+            stub.accept(new Object());
+            throw new TestFailed("unserializable argument accepted");
+        }
+        catch(RMIException e) { }
+    }
+
+    /** Checks that a slow call with a deadline times out.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testTimeout() throws TestFailed, RMIException
+    {
+        try
+        {
+            Stub.withTimeout(stub, 100).sleep(1000);
+            throw new TestFailed("slow local call did not time out");
+        }
+        catch(RMITimeoutException e) { }
+    }
+
+    /** Checks that one-way calls do not wait, and are executed in order.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testOneWay() throws TestFailed, RMIException
+    {
+        server.gate = new CountDownLatch(1);
+
+        for(int index = 0; index < 10; ++index)
+            stub.record(index);
+
+        if(!server.recorded.isEmpty())
+            throw new TestFailed("one-way call waited for execution");
+
+        server.gate.countDown();
+
+        try
+        {
+            for(int index = 0; index < 10; ++index)
+            {
+                Integer value = server.recorded.poll(5, TimeUnit.SECONDS);
+                if(value == null || value != index)
+                    throw new TestFailed("one-way calls lost or reordered");
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for calls", e);
+        }
+    }
+
+    /** Checks that calls fail once the skeleton is stopped.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testStopped() throws TestFailed
+    {
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            stub.thread();
+            throw new TestFailed("call to stopped skeleton succeeded");
+        }
+        catch(RMIException e) { }
+    }
+
+    /** Stops the skeleton and disables local dispatch again. */
+    @Override
+    protected void clean()
+    {
+        server.gate.countDown();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        Stub.setLocalDispatch(false);
+    }
+
+    /** Remote interface of the test. */
+    interface LocalService
+    {
+        long thread() throws RMIException;
+
+        void modify(byte[] data, Path path) throws RMIException;
+
+        List<String> keep() throws RMIException;
+
+        byte[] contents() throws RMIException;
+
+        Path[] paths(Path[] paths) throws RMIException;
+
+        void accept(Object value) throws RMIException;
+
+        void sleep(long millis) throws RMIException;
+
+        @OneWay
+        void record(int value) throws RMIException;
+    }
+
+    /** Implementation of <code>LocalService</code>. */
+    private static class LocalServer implements LocalService
+    {
+        /** List returned by <code>keep</code>. */
+        final List<String>                  kept =
+            new ArrayList<>(Arrays.asList("kept"));
+        /** Array returned by <code>contents</code>. */
+        final byte[]                        contents = new byte[4];
+        /** Values passed to <code>record</code>, in order. */
+        final BlockingQueue<Integer>        recorded =
+            new LinkedBlockingQueue<>();
+        /** Gate blocking calls to <code>record</code>. */
+        volatile CountDownLatch             gate = new CountDownLatch(0);
+
+        @Override
+        public long thread()
+        {
+            return Thread.currentThread().getId();
+        }
+
+        @Override
+        public void modify(byte[] data, Path path)
+        {
+            data[0] = 0;
+            path.removeLastComponent();
+        }
+
+        @Override
+        public List<String> keep()
+        {
+            return kept;
+        }
+
+        @Override
+        public byte[] contents()
+        {
+            return contents;
+        }
+
+        @Override
+        public Path[] paths(Path[] paths)
+        {
+            return paths;
+        }
+
+        @Override
+        public void accept(Object value)
+        {
+        }
+
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void record(int value)
+        {
+            try
+            {
+                gate.await();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            recorded.add(value);
+        }
+    }
+}
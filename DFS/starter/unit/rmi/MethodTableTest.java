@@ -0,0 +1,253 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+
+import rmi.io.*;
+import test.*;
+
+/** Checks that skeletons dispatch calls through the method table.
+
+    <p>
+    The test calls inherited, <code>void</code> and overloaded methods of a
+    non-public remote interface through a stub, and checks that exceptions
+    thrown by the server reach the caller. Requests with an unknown method
+    identifier or with arguments that do not match the method must be answered
+    with an <code>RMIException</code>. A stub read back from a stream must
+    equal the original, hash alike and be callable, and stubs for an
+    unresolved address must be compared and printed without resolving it.
+ */
+public class MethodTableTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking method table dispatch";
+
+    /** Skeleton used in the test. */
+    private Skeleton<CallService>   skeleton;
+    /** Server object called by the skeleton. */
+    private final CallServer        server = new CallServer();
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<CallService>(CallService.class, server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        CallService     stub = Stub.create(CallService.class, address);
+
+        try
+        {
+            if(stub.echo(7) != 7)
+                throw new TestFailed("incorrect result from inherited method");
+
+            stub.ping();
+            if(server.pings != 1)
+                throw new TestFailed("void method not called");
+
+            if(!stub.join("a", 2L).equals("a2") ||
+               !stub.join("a", "b").equals("ab"))
+            {
+                throw new TestFailed("overloaded methods confused");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        try
+        {
+            stub.fail("/missing");
+            throw new TestFailed("exception not transmitted");
+        }
+        catch(FileNotFoundException e)
+        {
+            if(!e.getMessage().equals("/missing"))
+                throw new TestFailed("exception message not transmitted");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        MethodTable     table = MethodTable.forInterface(CallService.class);
+        if(table != MethodTable.forInterface(CallService.class))
+            throw new TestFailed("method table not shared");
+
+        RequestDispatcher<CallService>  dispatcher =
+            new RequestDispatcher<CallService>(skeleton, server,
+                                               CallService.class);
+        int             join = 0;
+        for(java.lang.reflect.Method method : CallService.class.getMethods())
+        {
+            if(method.getName().equals("join") &&
+               method.getParameterTypes()[1] == long.class)
+            {
+                join = table.getId(method);
+            }
+        }
+
+        expectFailure(dispatcher, new RMIRequest(join ^ 1,
+                                                 new Object[] {"a", 2L}),
+                      "unknown method identifier");
+        expectFailure(dispatcher, new RMIRequest(join, new Object[] {"a"}),
+                      "missing argument");
+        expectFailure(dispatcher, new RMIRequest(join,
+                                                 new Object[] {"a", "b"}),
+                      "mismatched argument type");
+        expectFailure(dispatcher, new RMIRequest(join,
+                                                 new Object[] {"a", null}),
+                      "null primitive argument");
+
+        dispatcher.admit();
+        RMIResponse     response =
+            dispatcher.dispatch(new RMIRequest(join, new Object[] {"a", 3L}));
+        if(!"a3".equals(response.getReturnValue()))
+            throw new TestFailed("direct dispatch failed");
+
+        checkIdentity(stub);
+    }
+
+    /** Checks the identity of stubs read back from a stream and of stubs for
+        an unresolved address.
+
+        @param stub Stub for the skeleton.
+        @throws TestFailed If the check fails.
+     */
+    private void checkIdentity(CallService stub) throws TestFailed
+    {
+        CallService     copy;
+
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            try(ObjectOutputStream out = new ObjectOutputStream(bytes))
+            {
+                out.writeObject(stub);
+            }
+
+            try(ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())))
+            {
+                copy = (CallService)in.readObject();
+            }
+
+            if(!copy.equals(stub) || copy.hashCode() != stub.hashCode())
+                throw new TestFailed("stub changed identity when read back");
+
+            if(copy.echo(5) != 5)
+                throw new TestFailed("incorrect result from stub read back");
+        }
+        catch(IOException | ClassNotFoundException | RMIException e)
+        {
+            throw new TestFailed("unable to use stub read back", e);
+        }
+
+        InetSocketAddress   unresolved =
+            InetSocketAddress.createUnresolved("stub.invalid",
+                                               address.getPort());
+        CallService     first = Stub.create(CallService.class, unresolved);
+        CallService     second = Stub.create(CallService.class, unresolved);
+
+        if(!first.equals(second) || first.hashCode() != second.hashCode() ||
+           first.equals(stub) || !first.toString().contains("stub.invalid"))
+        {
+            throw new TestFailed("incorrect identity of unresolved stubs");
+        }
+    }
+
+    /** Checks that a request is answered with an <code>RMIException</code>.
+
+        @param dispatcher Dispatcher executing the request.
+        @param request The request.
+        @param description Description of the request for the failure message.
+        @throws TestFailed If the request is not rejected.
+     */
+    private void expectFailure(RequestDispatcher<CallService> dispatcher,
+                               RMIRequest request, String description)
+        throws TestFailed
+    {
+        dispatcher.admit();
+        RMIResponse     response = dispatcher.dispatch(request);
+
+        if(!(response.getException() instanceof RMIException))
+            throw new TestFailed("request with " + description + " accepted");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with inherited, <code>void</code> and overloaded
+        methods. */
+    interface CallService extends EchoService
+    {
+        void ping() throws RMIException;
+
+        String join(String prefix, long suffix) throws RMIException;
+
+        String join(String prefix, String suffix) throws RMIException;
+
+        void fail(String message) throws FileNotFoundException, RMIException;
+    }
+
+    /** Implementation of <code>CallService</code>. */
+    private static class CallServer extends EchoServer implements CallService
+    {
+        /** Number of calls to <code>ping</code>. */
+        volatile int    pings = 0;
+
+        @Override
+        public void ping()
+        {
+            ++pings;
+        }
+
+        @Override
+        public String join(String prefix, long suffix)
+        {
+            return prefix + suffix;
+        }
+
+        @Override
+        public String join(String prefix, String suffix)
+        {
+            return prefix + suffix;
+        }
+
+        @Override
+        public void fail(String message) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(message);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package rmi;
+
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+
+import javax.management.*;
+
+import test.*;
+
+/** Checks that stubs and skeletons record per-method metrics.
+
+    <p>
+    With each skeleton engine, the test makes a number of successful and
+    failing calls, and checks the client and server metrics of both methods:
+    the call and error counts must match, the bytes sent by one side must be
+    the bytes received by the other, and the latency percentiles must be
+    ordered. The metrics must also be readable through JMX, and must be
+    cleared by a reset.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+
+    /** Number of calls made to each method. */
+    private static final int    CALLS = 50;
+    /** Length of the arrays sent. */
+    private static final int    LENGTH = 1000;
+
+    /** Skeleton used in the test. */
+    private Skeleton<MeteredService>    skeleton;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+        {
+            Metrics.reset();
+            testEngine(engine);
+        }
+
+        testJmx();
+
+        Metrics.reset();
+        MethodMetrics   echo = metrics(Metrics.getClientMetrics(), "echo");
+        if(echo.getCalls() != 0 || echo.getBytesOut() != 0 ||
+           echo.getLatencyNanos(0.5) != 0)
+        {
+            throw new TestFailed("metrics not cleared by reset");
+        }
+    }
+
+    /** Makes calls to a skeleton using the given engine and checks the
+        metrics recorded.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine) throws TestFailed
+    {
+        skeleton = new Skeleton<MeteredService>(MeteredService.class,
+                                                new MeteredServer());
+        skeleton.setEngine(engine);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort());
+        MeteredService      stub = Stub.create(MeteredService.class, address);
+
+        try
+        {
+            for(int call = 0; call < CALLS; ++call)
+            {
+                stub.echo(new byte[LENGTH]);
+
+                try
+                {
+                    stub.fail();
+                    throw new TestFailed("failing method returned");
+                }
+                catch(IllegalStateException e) { }
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        skeleton.stop();
+        skeleton = null;
+
+        Map<String, MethodMetrics>  client = Metrics.getClientMetrics();
+        Map<String, MethodMetrics>  server = Metrics.getServerMetrics();
+
+        checkSides(metrics(client, "echo"), metrics(server, "echo"), 0, engine);
+        checkSides(metrics(client, "fail"), metrics(server, "fail"), CALLS,
+                   engine);
+
+        if(metrics(client, "echo").getBytesOut() < (long)CALLS * LENGTH)
+            throw new TestFailed("arguments not counted in bytes sent");
+    }
+
+    /** Checks that the client and server metrics of a method agree.
+
+        @param client Client metrics of the method.
+        @param server Server metrics of the method.
+        @param errors Expected number of errors.
+        @param engine The skeleton engine.
+        @throws TestFailed If the metrics are wrong.
+     */
+    private void checkSides(MethodMetrics client, MethodMetrics server,
+                            int errors, Skeleton.Engine engine)
+        throws TestFailed
+    {
+        for(MethodMetrics metrics : new MethodMetrics[] {client, server})
+        {
+            if(metrics.getCalls() != CALLS || metrics.getErrors() != errors)
+            {
+                throw new TestFailed("wrong call counts with " + engine +
+                                     " engine: " + metrics);
+            }
+
+            long    p50 = metrics.getLatencyNanos(0.5);
+            long    p99 = metrics.getLatencyNanos(0.99);
+            long    max = metrics.getLatencyNanos(1);
+            if(p50 <= 0 || p50 > p99 || p99 > max)
+                throw new TestFailed("latency percentiles out of order: " +
+                                     metrics);
+        }
+
+        if(client.getBytesOut() != server.getBytesIn() ||
+           client.getBytesIn() != server.getBytesOut() ||
+           client.getBytesIn() == 0)
+        {
+            throw new TestFailed("byte counts of client and server differ " +
+                                 "with " + engine + " engine: " + client +
+                                 "; " + server);
+        }
+    }
+
+    /** Checks that the metrics are registered with the platform MBean server.
+
+        @throws TestFailed If the metrics cannot be read through JMX.
+     */
+    private void testJmx() throws TestFailed
+    {
+        MBeanServer     beans = ManagementFactory.getPlatformMBeanServer();
+        MethodMetrics   echo = metrics(Metrics.getServerMetrics(), "echo");
+
+        try
+        {
+            ObjectName  name =
+                new ObjectName(Metrics.DOMAIN + ":type=MethodMetrics," +
+                               "side=server,method=" +
+                               ObjectName.quote(echo.getName()));
+
+            if(!Long.valueOf(echo.getCalls())
+                    .equals(beans.getAttribute(name, "Calls")))
+            {
+                throw new TestFailed("JMX reports wrong call count");
+            }
+
+            if(!(beans.getAttribute(name, "LatencyP99Micros")
+                    instanceof Double))
+            {
+                throw new TestFailed("JMX reports no latency");
+            }
+        }
+        catch(JMException e)
+        {
+            throw new TestFailed("metrics not registered with JMX", e);
+        }
+    }
+
+    /** Returns the metrics of a method of the test interface.
+
+        @param metrics Metrics of one side, by method name.
+        @param method Name of the method.
+        @return The metrics of the method.
+        @throws TestFailed If the method has no metrics.
+     */
+    private MethodMetrics metrics(Map<String, MethodMetrics> metrics,
+                                  String method) throws TestFailed
+    {
+        String          name = "MeteredService." + method +
+                               (method.equals("echo") ? "(byte[])" : "()");
+        MethodMetrics   found = metrics.get(name);
+
+        if(found == null)
+            throw new TestFailed("no metrics recorded for " + name);
+
+        return found;
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with a succeeding and a failing method. */
+    interface MeteredService
+    {
+        byte[] echo(byte[] data) throws RMIException;
+
+        void fail() throws RMIException;
+    }
+
+    /** Implementation of <code>MeteredService</code>. */
+    private static class MeteredServer implements MeteredService
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException("failing on purpose");
+        }
+    }
+}
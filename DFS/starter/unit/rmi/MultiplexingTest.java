@@ -0,0 +1,399 @@
+package rmi;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that a multiplexed stub carries concurrent calls over one
+    connection.
+
+    <p>
+    With each skeleton engine, several threads call a method that blocks until
+    it is released, through the same multiplexed stub. While all of them are
+    blocked, the stub releases them in the reverse order, so that the skeleton
+    must keep reading requests while earlier ones execute and the responses
+    arrive in a different order than the requests were sent. Every caller must
+    receive its own result, and no pooled connection may have been used. The
+    skeleton is finally restarted on the same address, which closes the
+    multiplexed connection; the next call must succeed on a new one.
+
+    <p>
+    A call whose response the skeleton cannot write fails the connection after
+    the call was executed. The call must then fail rather than be sent again.
+
+    <p>
+    A call that times out while the skeleton has not answered must no longer be
+    tracked by the connection. When its response arrives late, it must be
+    dropped, and the connection must go on carrying calls.
+ */
+public class MultiplexingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking multiplexed calls over a single connection";
+
+    /** Number of concurrent blocked callers. */
+    private static final int    CALLERS = 8;
+
+    /** Skeleton used in the test. */
+    private Skeleton<KeyedGateService>  skeleton;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+        {
+            testEngine(engine);
+            testNotResent(engine);
+            testTimeout(engine);
+        }
+    }
+
+    /** Runs the blocked callers against a skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine) throws TestFailed
+    {
+        KeyedGateServer         server = new KeyedGateServer();
+        InetSocketAddress       address = start(engine, server, null);
+        KeyedGateService        plain =
+            Stub.create(KeyedGateService.class, address);
+        final KeyedGateService  stub = Stub.multiplexed(plain);
+
+        if(!stub.equals(plain) || Stub.multiplexed(stub) != stub)
+            throw new TestFailed("multiplexed stub differs from plain stub");
+
+        Thread[]            callers = new Thread[CALLERS];
+        final int[]         results = new int[CALLERS];
+        final Throwable[]   failures = new Throwable[CALLERS];
+
+        for(int index = 0; index < CALLERS; ++index)
+        {
+            final int   caller = index;
+
+            callers[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        results[caller] = stub.await(caller);
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[caller] = t;
+                    }
+                }
+            });
+            callers[index].start();
+        }
+
+        try
+        {
+            while(server.waiting.get() < CALLERS)
+                Thread.sleep(5);
+
+            ConnectionPool  pool = ConnectionPool.getShared();
+            if(pool.idleCount(address) != 0 || !pool.hasMultiplexed(address))
+                throw new TestFailed("calls did not share one connection");
+
+            for(int index = CALLERS - 1; index >= 0; --index)
+                stub.release(index);
+
+            for(Thread caller : callers)
+                caller.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for callers", e);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to release callers", e);
+        }
+
+        for(int index = 0; index < CALLERS; ++index)
+        {
+            if(failures[index] != null)
+                throw new TestFailed("caller failed", failures[index]);
+
+            if(results[index] != index * 2)
+                throw new TestFailed("caller received another response");
+        }
+
+        // Restarting the skeleton closes the multiplexed connection at the
+        // server end. A call written to it before the server closes it may
+        // have been executed, and is not sent again, so wait for the client
+        // to see it closed.
+        skeleton.stop();
+        start(engine, server, address);
+
+        try
+        {
+            ConnectionPool  pool = ConnectionPool.getShared();
+            for(int wait = 0; wait < 500 && pool.hasMultiplexed(address);
+                ++wait)
+            {
+                Thread.sleep(10);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for the " +
+                                 "connection to close", e);
+        }
+
+        try
+        {
+            stub.release(0);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("closed multiplexed connection was not " +
+                                 "replaced", e);
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks that a call is not sent again when the connection fails after
+        the skeleton executed it.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testNotResent(Skeleton.Engine engine) throws TestFailed
+    {
+        KeyedGateServer     server = new KeyedGateServer();
+        InetSocketAddress   address = start(engine, server, null);
+        KeyedGateService    stub =
+            Stub.multiplexed(Stub.create(KeyedGateService.class, address));
+
+        try
+        {
+            stub.release(0);
+
+            // The response cannot be written, so the skeleton closes the
+            // connection after executing the call.
+            try
+            {
+                stub.leak();
+                throw new TestFailed("unwritable response returned");
+            }
+            catch(RMIException e) { }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        if(server.leaks.get() != 1)
+        {
+            throw new TestFailed("failed call sent again with " + engine +
+                                 " engine");
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks that a call that times out is forgotten by the connection, and
+        that its late response does not close the connection.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testTimeout(Skeleton.Engine engine) throws TestFailed
+    {
+        KeyedGateServer     server = new KeyedGateServer();
+        InetSocketAddress   address = start(engine, server, null);
+        KeyedGateService    stub =
+            Stub.multiplexed(Stub.create(KeyedGateService.class, address));
+
+        try
+        {
+            try
+            {
+                Stub.withTimeout(stub, 100).await(0);
+                throw new TestFailed("unanswered call did not time out");
+            }
+            catch(RMITimeoutException e) { }
+
+            MultiplexedConnection   connection =
+                ConnectionPool.getShared().acquireMultiplexed(address);
+            if(connection.getInFlight() != 0)
+            {
+                throw new TestFailed("timed out call still tracked with " +
+                                     engine + " engine");
+            }
+
+            // The skeleton now answers the call that timed out. Leave its
+            // response time to reach the connection.
+            stub.release(0);
+            Conditions.waitFor(() -> server.answered.get() == 1,
+                               "released call not answered");
+            Thread.sleep(200);
+            stub.release(1);
+
+            if(!connection.isOpen() ||
+               ConnectionPool.getShared().acquireMultiplexed(address) !=
+                   connection)
+            {
+                throw new TestFailed("late response closed the connection " +
+                                     "with " + engine + " engine");
+            }
+        }
+        catch(java.io.IOException | RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for the late " +
+                                 "response", e);
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Starts a skeleton.
+
+        @param engine The skeleton engine.
+        @param server The server object.
+        @param address The address to bind to, or <code>null</code> for a
+                       system-assigned one.
+        @return The address stubs should connect to.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private InetSocketAddress start(Skeleton.Engine engine,
+                                    KeyedGateServer server,
+                                    InetSocketAddress address)
+        throws TestFailed
+    {
+        skeleton = new Skeleton<KeyedGateService>(KeyedGateService.class,
+                                                  server, address);
+        skeleton.setEngine(engine);
+        skeleton.setWorkerThreads(CALLERS * 2);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return new InetSocketAddress("127.0.0.1",
+                                     skeleton.getBindAddress().getPort());
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with a method that blocks until released. */
+    interface KeyedGateService
+    {
+        /** Waits until <code>release</code> is called with the same key.
+
+            @param key The key.
+            @return Twice the key.
+            @throws RMIException If the call cannot be completed due to a
+                                 network error.
+         */
+        int await(int key) throws RMIException;
+
+        /** Releases the caller waiting with the given key.
+
+            @param key The key.
+            @throws RMIException If the call cannot be completed due to a
+                                 network error.
+         */
+        @Idempotent
+        void release(int key) throws RMIException;
+
+        /** Returns an object that cannot be serialized.
+
+            @return The object.
+            @throws RMIException If the call cannot be completed due to a
+                                 network error.
+         */
+        Object leak() throws RMIException;
+    }
+
+    /** Implementation of <code>KeyedGateService</code>. */
+    private static class KeyedGateServer implements KeyedGateService
+    {
+        /** Number of callers that have started waiting. */
+        final AtomicInteger     waiting = new AtomicInteger();
+        /** Number of callers that have been released. */
+        final AtomicInteger     answered = new AtomicInteger();
+        /** Number of calls to <code>leak</code>. */
+        final AtomicInteger     leaks = new AtomicInteger();
+        /** Gates by key. */
+        private final ConcurrentHashMap<Integer, CountDownLatch>    gates =
+            new ConcurrentHashMap<>();
+
+        @Override
+        public int await(int key) throws RMIException
+        {
+            waiting.incrementAndGet();
+
+            try
+            {
+                gate(key).await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException(e);
+            }
+
+            answered.incrementAndGet();
+            return key * 2;
+        }
+
+        @Override
+        public void release(int key)
+        {
+            gate(key).countDown();
+        }
+
+        @Override
+        public Object leak()
+        {
+            leaks.incrementAndGet();
+            return new Object();
+        }
+
+        /** Returns the gate for a key, creating it on first use.
+
+            @param key The key.
+            @return The gate.
+         */
+        private CountDownLatch gate(int key)
+        {
+            CountDownLatch  gate = new CountDownLatch(1);
+            CountDownLatch  existing = gates.putIfAbsent(key, gate);
+            return (existing != null) ? existing : gate;
+        }
+    }
+}
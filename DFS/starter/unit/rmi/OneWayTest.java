@@ -0,0 +1,275 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that calls to one-way methods are not answered.
+
+    <p>
+    With each skeleton engine, through a plain and a multiplexed stub, the test
+    calls a one-way method that blocks on the server, and checks that the call
+    returns while the method is still blocked. A one-way method that throws
+    must report the exception to the skeleton's <code>service_error</code>
+    without the caller noticing. Calls that cannot be sent must throw an
+    <code>RMIException</code>, or reach the one-way failure handler if one is
+    set. Interfaces marking a method returning a value as one-way must be
+    rejected.
+ */
+public class OneWayTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking one-way calls";
+
+    /** Skeleton used in the test. */
+    private ErrorSkeleton       skeleton;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Stub.create(BadNoticeService.class,
+                        new InetSocketAddress("127.0.0.1", 80));
+            throw new TestFailed("one-way method returning a value accepted");
+        }
+        catch(Error e) { }
+
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+        {
+            testEngine(engine, false);
+            testEngine(engine, true);
+        }
+
+        testFailureHandler();
+    }
+
+    /** Makes one-way calls to a skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @param multiplexed Whether the stub is multiplexed.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine, boolean multiplexed)
+        throws TestFailed
+    {
+        NoticeServer        server = new NoticeServer();
+        skeleton = new ErrorSkeleton(server);
+        skeleton.setEngine(engine);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort());
+        NoticeService       stub = Stub.create(NoticeService.class, address);
+        if(multiplexed)
+            stub = Stub.multiplexed(stub);
+
+        try
+        {
+            // The method blocks until released below, so the call only
+            // returns if it does not wait for the method.
+            stub.hold("first");
+
+            if(!server.holding.await(2, TimeUnit.SECONDS))
+                throw new TestFailed("one-way method not executed");
+
+            server.release.countDown();
+            stub.hold("second");
+            stub.fail("/missing");
+
+            // Calls over one pooled connection are executed in order.
+            // Multiplexed calls are executed concurrently.
+            String[]        expected = new String[] {"first", "second"};
+            String[]        received = stub.received();
+            while(multiplexed && !Arrays.equals(received, expected))
+            {
+                Thread.sleep(5);
+                received = stub.received();
+            }
+
+            if(!Arrays.equals(received, expected))
+                throw new TestFailed("one-way calls executed out of order");
+
+            RMIException    error;
+            do
+            {
+                error = skeleton.errors.poll(2, TimeUnit.SECONDS);
+                if(error == null)
+                    throw new TestFailed("one-way exception not reported");
+            }
+            while(!(error.getCause() instanceof IllegalStateException));
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for server", e);
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks that one-way calls that cannot be sent are reported.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testFailureHandler() throws TestFailed
+    {
+        InetSocketAddress   address;
+
+        try(ServerSocket socket = new ServerSocket(0))
+        {
+            address = new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to find a free port", e);
+        }
+
+        NoticeService       stub = Stub.create(NoticeService.class, address);
+
+        try
+        {
+            stub.hold("lost");
+            throw new TestFailed("unsent one-way call did not throw");
+        }
+        catch(RMIException e) { }
+
+        final ArrayList<Method> failed = new ArrayList<Method>();
+        Stub.setOneWayFailureHandler((method, e) -> failed.add(method));
+
+        try
+        {
+            stub.hold("lost");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("one-way call threw despite handler", e);
+        }
+        finally
+        {
+            Stub.setOneWayFailureHandler(null);
+        }
+
+        if(failed.size() != 1 || !failed.get(0).getName().equals("hold"))
+            throw new TestFailed("failure handler not called");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        Stub.setOneWayFailureHandler(null);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with one-way methods. */
+    interface NoticeService
+    {
+        @OneWay
+        void hold(String notice) throws RMIException;
+
+        @OneWay
+        void fail(String message) throws RMIException;
+
+        String[] received() throws RMIException;
+    }
+
+    /** Interface marking a method returning a value as one-way. */
+    interface BadNoticeService
+    {
+        @OneWay
+        boolean hold(String notice) throws RMIException;
+    }
+
+    /** Implementation of <code>NoticeService</code>. The first call to
+        <code>hold</code> blocks until the test releases it. */
+    private static class NoticeServer implements NoticeService
+    {
+        /** Opened when the first call to <code>hold</code> has started. */
+        final CountDownLatch            holding = new CountDownLatch(1);
+        /** Releases the first call to <code>hold</code>. */
+        final CountDownLatch            release = new CountDownLatch(1);
+        /** Notices received. */
+        private final ArrayList<String> notices = new ArrayList<String>();
+
+        @Override
+        public void hold(String notice) throws RMIException
+        {
+            synchronized(this)
+            {
+                notices.add(notice);
+            }
+
+            holding.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new RMIException(e);
+            }
+        }
+
+        @Override
+        public void fail(String message)
+        {
+            throw new IllegalStateException(message);
+        }
+
+        @Override
+        public synchronized String[] received()
+        {
+            return notices.toArray(new String[notices.size()]);
+        }
+    }
+
+    /** Skeleton recording the errors reported to it. */
+    private static class ErrorSkeleton extends Skeleton<NoticeService>
+    {
+        /** Errors reported to <code>service_error</code>. */
+        final BlockingQueue<RMIException>   errors =
+            new LinkedBlockingQueue<RMIException>();
+
+        /** Creates the skeleton.
+
+            @param server Server object.
+         */
+        ErrorSkeleton(NoticeServer server)
+        {
+            super(NoticeService.class, server);
+        }
+
+        @Override
+        protected void service_error(RMIException exception)
+        {
+            errors.add(exception);
+        }
+    }
+}
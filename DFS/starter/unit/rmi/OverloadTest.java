@@ -0,0 +1,343 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that a skeleton over capacity rejects requests.
+
+    <p>
+    With each skeleton engine, the test limits the skeleton to one executing
+    and one queued request, and blocks the executing request on the server. A
+    second request must wait in the queue, and a third must be rejected at once
+    with an <code>RMIOverloadException</code> carrying a retry hint. Once the
+    server is released, the queued request must complete, and the counters of
+    the skeleton must account for every request.
+
+    <p>
+    The test then limits interactive requests to one executing at a time on a
+    skeleton with two worker threads, and blocks the executing request until a
+    background request releases it. Interactive requests queued behind it must
+    not hold the workers, so that the background request can still be read and
+    executed.
+ */
+public class OverloadTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking overload shedding";
+
+    /** Skeleton used in the test. */
+    private Skeleton<BlockingEchoService>   skeleton;
+    /** Server object called by the skeleton. */
+    private BlockingEchoServer              server;
+    /** Server object called by the skeleton in the queueing test. */
+    private DependentServer                 latches;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+        {
+            testEngine(engine);
+            testQueuedRequests(engine);
+        }
+    }
+
+    /** Overloads a skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine) throws TestFailed
+    {
+        server = new BlockingEchoServer();
+        skeleton = new Skeleton<BlockingEchoService>(BlockingEchoService.class,
+                                                     server);
+        skeleton.setEngine(engine);
+        skeleton.setMaxInFlightRequests(1);
+        skeleton.setMaxQueuedRequests(1);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort());
+        BlockingEchoService stub =
+            Stub.create(BlockingEchoService.class, address);
+        ExecutorService     callers = Executors.newFixedThreadPool(2);
+
+        try
+        {
+            Future<Integer> first = callers.submit(() -> stub.pass(1));
+            Conditions.waitFor(() -> skeleton.getInFlightRequests() == 1,
+                               "first request not executing");
+
+            Future<Integer> second = callers.submit(() -> stub.pass(2));
+            Conditions.waitFor(() -> skeleton.getQueuedRequests() == 1,
+                               "second request not queued");
+
+            try
+            {
+                stub.pass(3);
+                throw new TestFailed("request over capacity accepted with " +
+                                     engine + " engine");
+            }
+            catch(RMIOverloadException e)
+            {
+                if(e.getRetryAfterMillis() < 1)
+                    throw new TestFailed("rejection carries no retry hint");
+            }
+            catch(RMIException e)
+            {
+                throw new TestFailed("unable to call skeleton", e);
+            }
+
+            server.gate.countDown();
+
+            if(first.get() != 1 || second.get() != 2)
+                throw new TestFailed("admitted requests returned wrong values");
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("admitted request failed", e);
+        }
+        finally
+        {
+            server.gate.countDown();
+            callers.shutdown();
+        }
+
+        if(server.calls.get() != 2)
+            throw new TestFailed("rejected request executed");
+
+        if(skeleton.getRejectedRequests() != 1 ||
+           skeleton.getPeakQueuedRequests() != 1 ||
+           skeleton.getQueuedRequests() != 0 ||
+           skeleton.getInFlightRequests() != 0)
+        {
+            throw new TestFailed("skeleton counters wrong with " + engine +
+                                 " engine");
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Queues requests behind one that waits for another request, on a
+        skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testQueuedRequests(Skeleton.Engine engine) throws TestFailed
+    {
+        latches = new DependentServer();
+        Skeleton<DependentService>  queueing =
+            new Skeleton<DependentService>(DependentService.class, latches);
+        queueing.setEngine(engine);
+        queueing.setWorkerThreads(2);
+        queueing.setMaxInFlightRequests(Priority.INTERACTIVE, 1);
+
+        try
+        {
+            queueing.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1",
+                                  queueing.getBindAddress().getPort());
+        DependentService    stub = Stub.create(DependentService.class, address);
+        ExecutorService     callers = Executors.newFixedThreadPool(4);
+
+        try
+        {
+            Future<Integer> first = callers.submit(() -> stub.hold(0));
+            Conditions.waitFor(() -> queueing.getInFlightRequests() == 1,
+                               "first request not executing");
+
+            List<Future<Integer>>   queued = new ArrayList<>();
+            for(int key = 1; key <= 3; ++key)
+            {
+                final int   value = key;
+                queued.add(callers.submit(() -> stub.hold(value)));
+            }
+            Conditions.waitFor(() -> queueing.getQueuedRequests() == 3,
+                               "requests not queued");
+
+            try
+            {
+                Stub.withTimeout(stub, 5000).release(0);
+            }
+            catch(RMIException e)
+            {
+                throw new TestFailed("background request not executed " +
+                                     "behind queued requests with " + engine +
+                                     " engine", e);
+            }
+
+            if(first.get(5, TimeUnit.SECONDS) != 0)
+                throw new TestFailed("released request returned wrong value");
+
+            for(int key = 1; key <= 3; ++key)
+                stub.release(key);
+
+            for(int key = 1; key <= 3; ++key)
+            {
+                if(queued.get(key - 1).get(5, TimeUnit.SECONDS) != key)
+                    throw new TestFailed("queued request returned wrong " +
+                                         "value");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(InterruptedException | ExecutionException | TimeoutException e)
+        {
+            throw new TestFailed("queued request failed with " + engine +
+                                 " engine", e);
+        }
+        finally
+        {
+            latches.releaseAll();
+            callers.shutdown();
+            queueing.stop();
+        }
+
+        if(queueing.getQueuedRequests() != 0 ||
+           queueing.getInFlightRequests() != 0)
+        {
+            throw new TestFailed("skeleton counters wrong after queueing " +
+                                 "with " + engine + " engine");
+        }
+
+        latches = null;
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.gate.countDown();
+
+        if(latches != null)
+            latches.releaseAll();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with a method that blocks on the server. */
+    interface BlockingEchoService
+    {
+        int pass(int value) throws RMIException;
+    }
+
+    /** Implementation of <code>BlockingEchoService</code>, blocking every call
+        until its gate opens. */
+    private static class BlockingEchoServer implements BlockingEchoService
+    {
+        /** Gate blocking calls. */
+        final CountDownLatch    gate = new CountDownLatch(1);
+        /** Number of calls executed. */
+        final AtomicInteger     calls = new AtomicInteger();
+
+        @Override
+        public int pass(int value)
+        {
+            calls.incrementAndGet();
+
+            try
+            {
+                gate.await();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return value;
+        }
+    }
+
+    /** Remote interface with a method that waits for another call. */
+    interface DependentService
+    {
+        int hold(int key) throws RMIException;
+
+        @Background
+        void release(int key) throws RMIException;
+    }
+
+    /** Implementation of <code>DependentService</code>, blocking each call to
+        <code>hold</code> until <code>release</code> is called with the same
+        key. */
+    private static class DependentServer implements DependentService
+    {
+        /** Latch of each key. */
+        private final ConcurrentMap<Integer, CountDownLatch>    latches =
+            new ConcurrentHashMap<>();
+
+        @Override
+        public int hold(int key)
+        {
+            try
+            {
+                if(!latch(key).await(10, TimeUnit.SECONDS))
+                    return -1;
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+
+            return key;
+        }
+
+        @Override
+        public void release(int key)
+        {
+            latch(key).countDown();
+        }
+
+        /** Releases every call blocked on the server. */
+        void releaseAll()
+        {
+            for(int key = 0; key <= 3; ++key)
+                release(key);
+        }
+
+        /** Returns the latch of a key.
+
+            @param key The key.
+            @return The latch.
+         */
+        private CountDownLatch latch(int key)
+        {
+            return latches.computeIfAbsent(key, k -> new CountDownLatch(1));
+        }
+    }
+}
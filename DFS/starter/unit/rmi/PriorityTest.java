@@ -0,0 +1,335 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that skeletons execute requests by priority class.
+
+    <p>
+    With each skeleton engine, the test first limits the background class of
+    a skeleton to one executing and one queued request, and blocks the
+    executing request on the server. A third background request must be
+    rejected, while an interactive request must still be executed at once.
+    Requests must be executed in the class of the calling thread, or in the
+    background class if they call a method marked <code>Background</code>.
+
+    <p>
+    The test then limits the skeleton to one executing request, and queues
+    background and interactive requests behind a blocked one. Once it is
+    released, the queued requests must share the slot in proportion to the
+    weights of their classes.
+ */
+public class PriorityTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking priority classes";
+
+    /** Number of background requests queued when sharing the slot; no more
+        than the background workers of the selector engine. */
+    private static final int    BACKGROUND_CALLS =
+        Skeleton.defaultBackgroundWorkerThreads;
+    /** Number of interactive requests queued when sharing the slot. */
+    private static final int    INTERACTIVE_CALLS = 5;
+
+    /** Skeleton used in the test. */
+    private Skeleton<RecordingGateService>  skeleton;
+    /** Server object called by the skeleton. */
+    private RecordingGateServer             server;
+    /** Threads making calls that block. */
+    private ExecutorService                 callers;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+        {
+            testLimits(engine);
+            testSharing(engine);
+        }
+    }
+
+    /** Fills the background class of a skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    @SuppressWarnings("try") // The scope sets the priority of the thread.
+    private void testLimits(Skeleton.Engine engine) throws TestFailed
+    {
+        RecordingGateService    stub = start(engine);
+        skeleton.setMaxInFlightRequests(Priority.BACKGROUND, 1);
+        skeleton.setMaxQueuedRequests(Priority.BACKGROUND, 1);
+
+        try
+        {
+            Future<Integer> first = callers.submit(() -> stub.copy(1));
+            Conditions.waitFor(() ->
+                skeleton.getInFlightRequests(Priority.BACKGROUND) == 1,
+                "first background request not executing");
+
+            Future<Integer> second = callers.submit(() -> stub.copy(2));
+            Conditions.waitFor(() ->
+                skeleton.getQueuedRequests(Priority.BACKGROUND) == 1,
+                "second background request not queued");
+
+            try
+            {
+                stub.copy(3);
+                throw new TestFailed("background request over capacity " +
+                                     "accepted with " + engine + " engine");
+            }
+            catch(RMIOverloadException e) { }
+
+            if(stub.echo(4) != 4)
+                throw new TestFailed("incorrect result");
+
+            server.gate.countDown();
+            if(first.get() != 1 || second.get() != 2)
+                throw new TestFailed("background requests returned wrong " +
+                                     "values");
+
+            try(Priority.Scope scope = Priority.BACKGROUND.enter())
+            {
+                stub.echo(5);
+            }
+            if(Priority.current() != Priority.INTERACTIVE)
+                throw new TestFailed("priority class not restored");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("background request failed", e);
+        }
+
+        check(1, Priority.BACKGROUND, "call to background method");
+        check(4, Priority.INTERACTIVE, "interactive call");
+        check(5, Priority.BACKGROUND, "call from background thread");
+        if(server.classes.containsKey(3))
+            throw new TestFailed("rejected request executed");
+
+        stop();
+    }
+
+    /** Queues requests of both classes for one execution slot of a skeleton
+        using the given engine.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testSharing(Skeleton.Engine engine) throws TestFailed
+    {
+        RecordingGateService    stub = start(engine);
+        skeleton.setMaxInFlightRequests(1);
+
+        List<Future<Integer>>   calls = new ArrayList<>();
+        try
+        {
+            calls.add(callers.submit(() -> stub.hold(0)));
+            Conditions.waitFor(() -> skeleton.getInFlightRequests() == 1,
+                               "blocking request not executing");
+
+            for(int call = 0; call < BACKGROUND_CALLS; ++call)
+            {
+                int     value = 10 + call;
+                calls.add(callers.submit(() -> stub.copy(value)));
+            }
+            for(int call = 0; call < INTERACTIVE_CALLS; ++call)
+            {
+                int     value = 20 + call;
+                calls.add(callers.submit(() -> stub.echo(value)));
+            }
+            Conditions.waitFor(() ->
+                skeleton.getQueuedRequests(Priority.BACKGROUND) ==
+                    BACKGROUND_CALLS &&
+                skeleton.getQueuedRequests(Priority.INTERACTIVE) ==
+                    INTERACTIVE_CALLS, "requests not queued");
+
+            server.gate.countDown();
+            for(Future<Integer> call : calls)
+                call.get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("queued request failed", e);
+        }
+
+        // Interactive requests weigh four times background requests.
+        List<Integer>   order = server.order();
+        int             interactive = 0;
+        for(int value : order.subList(1, 6))
+        {
+            if(server.classes.get(value) == Priority.INTERACTIVE)
+                ++interactive;
+        }
+
+        if(interactive != 4)
+        {
+            throw new TestFailed("slot not shared by weight with " + engine +
+                                 " engine: " + order);
+        }
+
+        stop();
+    }
+
+    /** Checks the class in which a call was executed.
+
+        @param value Value passed in the call.
+        @param expected Expected class.
+        @param description Description of the call.
+        @throws TestFailed If the call was executed in another class.
+     */
+    private void check(int value, Priority expected, String description)
+        throws TestFailed
+    {
+        if(server.classes.get(value) != expected)
+        {
+            throw new TestFailed(description + " executed in class " +
+                                 server.classes.get(value));
+        }
+    }
+
+    /** Starts a skeleton using the given engine.
+
+        @param engine The skeleton engine.
+        @return A stub for the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private RecordingGateService start(Skeleton.Engine engine)
+        throws TestFailed
+    {
+        server = new RecordingGateServer();
+        skeleton =
+            new Skeleton<RecordingGateService>(RecordingGateService.class,
+                                               server);
+        skeleton.setEngine(engine);
+        callers = Executors.newCachedThreadPool();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return Stub.create(RecordingGateService.class,
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort()));
+    }
+
+    /** Stops the skeleton and the calling threads. */
+    private void stop()
+    {
+        if(server != null)
+            server.gate.countDown();
+
+        if(callers != null)
+        {
+            callers.shutdown();
+            callers = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        stop();
+    }
+
+    /** Remote interface with methods that block on the server. */
+    interface RecordingGateService
+    {
+        int hold(int value) throws RMIException;
+
+        @Background
+        int copy(int value) throws RMIException;
+
+        int echo(int value) throws RMIException;
+    }
+
+    /** Implementation of <code>RecordingGateService</code>, recording the
+        order and class in which calls execute. */
+    private static class RecordingGateServer implements RecordingGateService
+    {
+        /** Gate blocking calls to <code>hold</code> and <code>copy</code>. */
+        final CountDownLatch                    gate = new CountDownLatch(1);
+        /** Class in which each call executed, by value passed. */
+        final Map<Integer, Priority>            classes =
+            new ConcurrentHashMap<>();
+        /** Values passed, in the order calls executed. */
+        private final List<Integer>             order = new ArrayList<>();
+
+        @Override
+        public int hold(int value)
+        {
+            record(value);
+            pass();
+            return value;
+        }
+
+        @Override
+        public int copy(int value)
+        {
+            record(value);
+            pass();
+            return value;
+        }
+
+        @Override
+        public int echo(int value)
+        {
+            record(value);
+            return value;
+        }
+
+        /** Returns the values passed, in the order calls executed.
+
+            @return The values.
+         */
+        synchronized List<Integer> order()
+        {
+            return new ArrayList<>(order);
+        }
+
+        /** Records a call.
+
+            @param value Value passed in the call.
+         */
+        private synchronized void record(int value)
+        {
+            classes.put(value, Priority.current());
+            order.add(value);
+        }
+
+        /** Waits for the gate to open. */
+        private void pass()
+        {
+            try
+            {
+                gate.await();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
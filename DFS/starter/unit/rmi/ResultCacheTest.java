@@ -0,0 +1,270 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that stubs reuse the results of cacheable methods.
+
+    <p>
+    Repeated calls through a stub to a cacheable method with the same
+    arguments must reach the skeleton once, and return copies of the result.
+    Calls with other arguments, calls throwing exceptions and calls made after
+    the result expired must reach the skeleton. Calls to idempotent methods
+    must keep the cached results, and calls to other methods, as well as
+    explicit invalidation, must discard them. Stubs derived from a stub must
+    share its cache. The cache must be bounded both in the number of results
+    and in their size, and must not keep a result larger than its whole size
+    bound. Hits and misses must be
+    counted in the client metrics.
+ */
+public class ResultCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking cached results";
+
+    /** Time for which results of the test interface are cached. */
+    private static final long   TTL = 500;
+
+    /** Skeleton used in the test. */
+    private Skeleton<CatalogService>    skeleton;
+    /** Server object called by the skeleton. */
+    private final CatalogServer         server = new CatalogServer();
+    /** Stub used in the test. */
+    private CatalogService              stub;
+
+    /** Starts the skeleton and creates the stub. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<CatalogService>(CatalogService.class, server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        stub = Stub.create(CatalogService.class,
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.getBindAddress().getPort()));
+        Metrics.reset();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            String[]    first = stub.list("a");
+            first[0] = "changed";
+            expect("a", 0, "repeated call");
+
+            MethodMetrics   metrics = Metrics.getClientMetrics()
+                .get("CatalogService.list(String)");
+            if(metrics == null || metrics.getCacheHits() != 1 ||
+               metrics.getCacheMisses() != 1 || metrics.getCalls() != 1)
+            {
+                throw new TestFailed("cache hits and misses not counted: " +
+                                     metrics);
+            }
+
+            expect("b", 1, "call with other arguments");
+            for(int call = 0; call < 2; ++call)
+            {
+                try
+                {
+                    stub.list("missing");
+                    throw new TestFailed("exception not transmitted");
+                }
+                catch(FileNotFoundException e) { }
+            }
+            if(server.lookups.get() != 4)
+                throw new TestFailed("exception cached");
+
+            stub.count();
+            expect("a", 0, "call after idempotent call");
+            expect("a", 0, "call through multiplexed stub",
+                   Stub.multiplexed(stub));
+
+            stub.add("c");
+            expect("a", 1, "call after other method");
+
+            Stub.invalidate(stub);
+            expect("a", 1, "call after invalidation");
+
+            Thread.sleep(TTL + 100);
+            expect("a", 1, "call after expiry");
+
+            for(int key = 0; key <= ResultCache.CAPACITY; ++key)
+                stub.list(Integer.toString(key));
+            expect(Integer.toString(ResultCache.CAPACITY), 0,
+                   "call to most recently used result");
+            expect("0", 1, "call to least recently used result");
+
+            int     half = (int)(ResultCache.MAX_BYTES / 2);
+            expectRead(half, 1, "first call for half the bound");
+            expectRead(half, 0, "repeated call for half the bound");
+            expectRead(half + 1, 1, "call overflowing the bound");
+            expectRead(half, 1, "call to result dropped for its size");
+            expectRead((int)ResultCache.MAX_BYTES + 1, 1,
+                       "first call larger than the bound");
+            expectRead((int)ResultCache.MAX_BYTES + 1, 1,
+                       "repeated call larger than the bound");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unexpected exception", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("test interrupted", e);
+        }
+    }
+
+    /** Lists a directory through the stub and checks the number of calls
+        that reached the skeleton.
+
+        @param directory Directory to list.
+        @param calls Number of calls expected to reach the skeleton.
+        @param description Description of the call.
+        @throws TestFailed If the result or the number of calls is
+                           incorrect.
+     */
+    private void expect(String directory, int calls, String description)
+        throws TestFailed, RMIException, FileNotFoundException
+    {
+        expect(directory, calls, description, stub);
+    }
+
+    /** Lists a directory through a stub and checks the number of calls
+        that reached the skeleton.
+
+        @param directory Directory to list.
+        @param calls Number of calls expected to reach the skeleton.
+        @param description Description of the call.
+        @param caller Stub to call.
+        @throws TestFailed If the result or the number of calls is
+                           incorrect.
+     */
+    private void expect(String directory, int calls, String description,
+                        CatalogService caller)
+        throws TestFailed, RMIException, FileNotFoundException
+    {
+        int         before = server.lookups.get();
+        String[]    listing = caller.list(directory);
+
+        if(listing.length != 1 || !listing[0].equals(directory))
+            throw new TestFailed("incorrect result of " + description);
+
+        if(server.lookups.get() - before != calls)
+        {
+            throw new TestFailed(description + " made " +
+                                 (server.lookups.get() - before) +
+                                 " calls to skeleton, expected " + calls);
+        }
+    }
+
+    /** Reads a block through the stub and checks the number of calls that
+        reached the skeleton.
+
+        @param length Length of the block.
+        @param calls Number of calls expected to reach the skeleton.
+        @param description Description of the call.
+        @throws TestFailed If the result or the number of calls is
+                           incorrect.
+     */
+    private void expectRead(int length, int calls, String description)
+        throws TestFailed, RMIException
+    {
+        int         before = server.reads.get();
+
+        if(stub.read(length).length != length)
+            throw new TestFailed("incorrect result of " + description);
+
+        if(server.reads.get() - before != calls)
+        {
+            throw new TestFailed(description + " made " +
+                                 (server.reads.get() - before) +
+                                 " calls to skeleton, expected " + calls);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface of the test. */
+    interface CatalogService
+    {
+        @Cacheable(ttlMillis = TTL)
+        String[] list(String directory)
+            throws RMIException, FileNotFoundException;
+
+        @Cacheable(ttlMillis = TTL)
+        byte[] read(int length) throws RMIException;
+
+        @Idempotent
+        int count() throws RMIException;
+
+        void add(String directory) throws RMIException;
+    }
+
+    /** Implementation of <code>CatalogService</code>. */
+    private static class CatalogServer implements CatalogService
+    {
+        /** Number of calls to <code>list</code>. */
+        final AtomicInteger lookups = new AtomicInteger();
+        /** Number of calls to <code>read</code>. */
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public String[] list(String directory) throws FileNotFoundException
+        {
+            lookups.incrementAndGet();
+
+            if(directory.equals("missing"))
+                throw new FileNotFoundException(directory);
+
+            return new String[] {directory};
+        }
+
+        @Override
+        public byte[] read(int length)
+        {
+            reads.incrementAndGet();
+            return new byte[length];
+        }
+
+        @Override
+        public int count()
+        {
+            return lookups.get();
+        }
+
+        @Override
+        public void add(String directory)
+        {
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package rmi;
+
+import java.net.*;
+
+import test.*;
+
+/** Checks that a skeleton using the selector engine serves concurrent
+    clients.
+
+    <p>
+    The skeleton is started with the selector engine and a worker pool smaller
+    than the number of clients. Several threads then make calls through their
+    own stubs at the same time, so that requests from many connections are
+    multiplexed on the I/O threads and queued for the workers. Each client
+    checks every result. The skeleton is finally stopped and restarted on the
+    same address, and must serve calls again.
+ */
+public class SelectorEngineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking skeleton selector engine with concurrent clients";
+
+    /** Number of concurrent clients. */
+    private static final int    CLIENTS = 16;
+    /** Number of calls made by each client. */
+    private static final int    CALLS = 200;
+
+    /** Skeleton used in the test. */
+    private Skeleton<EchoService>   skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = createSkeleton(null);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Thread[]            clients = new Thread[CLIENTS];
+        final Throwable[]   failures = new Throwable[CLIENTS];
+
+        for(int index = 0; index < CLIENTS; ++index)
+        {
+            final int   client = index;
+
+            clients[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    EchoService stub = Stub.create(EchoService.class, address);
+
+                    try
+                    {
+                        for(int call = 0; call < CALLS; ++call)
+                        {
+                            int value = client * CALLS + call;
+
+                            if(stub.echo(value) != value)
+                            {
+                                throw new TestFailed("incorrect result " +
+                                                     "from stub");
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[client] = t;
+                    }
+                }
+            });
+
+            clients[index].start();
+        }
+
+        for(int index = 0; index < CLIENTS; ++index)
+        {
+            try
+            {
+                clients[index].join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for clients");
+            }
+
+            if(failures[index] != null)
+                throw new TestFailed("client call failed", failures[index]);
+        }
+
+        // Restart the skeleton on the same address. Connections left open by
+        // the clients are closed by the skeleton when it stops.
+        skeleton.stop();
+        skeleton = createSkeleton(address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to restart skeleton", e);
+        }
+
+        try
+        {
+            EchoService stub = Stub.create(EchoService.class, address);
+
+            if(stub.echo(42) != 42)
+                throw new TestFailed("incorrect result from stub");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call restarted skeleton", e);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Creates a skeleton using the selector engine.
+
+        @param address Address of the skeleton, or <code>null</code> to let the
+                       system choose one.
+        @return The skeleton, not yet started.
+     */
+    private Skeleton<EchoService> createSkeleton(InetSocketAddress address)
+    {
+        Skeleton<EchoService>   skeleton =
+            new Skeleton<EchoService>(EchoService.class, new EchoServer(),
+                                      address);
+
+        skeleton.setEngine(Skeleton.Engine.SELECTOR);
+        skeleton.setWorkerThreads(4);
+
+        return skeleton;
+    }
+}
@@ -0,0 +1,322 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that streaming methods return their results in chunks.
+
+    <p>
+    Through a plain and a multiplexed stub, the test reads a remote
+    <code>InputStream</code> and a <code>RemoteIterator</code> several chunks
+    long, and checks that every byte and element arrives in order and that the
+    server's stream or iterator is closed once read to the end. Closing early
+    must release the server's stream, an exception thrown by the server's
+    stream must reach the reader, and stopping the skeleton must release the
+    streams no client has finished reading. Asynchronous calls to streaming
+    methods must complete with a readable iterator.
+ */
+public class StreamingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streaming methods";
+
+    /** Skeleton used in the test. */
+    private Skeleton<FeedService>   skeleton;
+    /** Server object called by the skeleton. */
+    private final FeedServer        server = new FeedServer();
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<FeedService>(FeedService.class, server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getBindAddress().getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        FeedService     stub = Stub.create(FeedService.class, address);
+
+        try
+        {
+            testStreams(stub);
+            testStreams(Stub.multiplexed(stub));
+            testAsync();
+            testStop(stub);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read remote stream", e);
+        }
+    }
+
+    /** Reads streams and iterators through the given stub.
+
+        @param stub Stub for the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void testStreams(FeedService stub)
+        throws TestFailed, RMIException, IOException
+    {
+        int             length = 3 * RemoteCursor.CHUNK_BYTES + 17;
+        byte[]          buffer = new byte[1000];
+        int             total = 0;
+
+        try(InputStream stream = stub.bytes(length))
+        {
+            int         read;
+            while((read = stream.read(buffer)) >= 0)
+            {
+                for(int index = 0; index < read; ++index)
+                {
+                    if(buffer[index] != FeedServer.byteAt(total + index))
+                        throw new TestFailed("stream data corrupted");
+                }
+                total += read;
+            }
+        }
+
+        if(total != length)
+            throw new TestFailed("stream returned " + total + " bytes");
+
+        checkReleased("stream read to the end");
+
+        int             count = 2 * RemoteCursor.CHUNK_ELEMENTS + 5;
+        RemoteIterator<String>  names = stub.names(count);
+
+        for(int index = 0; index < count; ++index)
+        {
+            if(!names.hasNext() || !names.next().equals("name" + index))
+                throw new TestFailed("iterator returned wrong element");
+        }
+
+        if(names.hasNext())
+            throw new TestFailed("iterator returned too many elements");
+
+        try
+        {
+            names.next();
+            throw new TestFailed("exhausted iterator returned an element");
+        }
+        catch(NoSuchElementException e) { }
+
+        checkReleased("iterator read to the end");
+
+        InputStream     stream = stub.bytes(length);
+        if(stream.read() != (FeedServer.byteAt(0) & 0xFF))
+            throw new TestFailed("stream data corrupted");
+        stream.close();
+
+        checkReleased("closed stream");
+
+        if(stub.bytes(-1) != null)
+            throw new TestFailed("null stream not returned as null");
+
+        try(InputStream broken = stub.bytes(FeedServer.BROKEN))
+        {
+            while(broken.read(buffer) >= 0);
+            throw new TestFailed("failure of remote stream not reported");
+        }
+        catch(FileNotFoundException e) { }
+
+        checkReleased("failed stream");
+    }
+
+    /** Calls a streaming method through an asynchronous stub.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testAsync() throws TestFailed, RMIException
+    {
+        AsyncStub<FeedService>  stub =
+            Stub.createAsync(FeedService.class, address);
+        RemoteIterator<String>  names;
+
+        try
+        {
+            names = stub.call(service -> service.names(2)).get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("asynchronous streaming call failed", e);
+        }
+
+        if(!names.next().equals("name0") || !names.next().equals("name1") ||
+           names.hasNext())
+        {
+            throw new TestFailed("asynchronous iterator returned wrong elements");
+        }
+    }
+
+    /** Checks that stopping the skeleton releases unfinished streams.
+
+        @param stub Stub for the skeleton.
+        @throws TestFailed If the test fails.
+     */
+    private void testStop(FeedService stub)
+        throws TestFailed, RMIException, IOException
+    {
+        InputStream     stream = stub.bytes(10 * RemoteCursor.CHUNK_BYTES);
+        stream.read();
+
+        if(server.open.get() != 1)
+            throw new TestFailed("unfinished stream not kept open");
+
+        skeleton.stop();
+        skeleton = null;
+
+        if(server.open.get() != 0)
+            throw new TestFailed("stopped skeleton did not release stream");
+    }
+
+    /** Checks that the server has no stream or iterator left open.
+
+        @param description Description of how the stream was finished.
+        @throws TestFailed If a stream or iterator is still open.
+     */
+    private void checkReleased(String description) throws TestFailed
+    {
+        if(server.open.get() != 0)
+            throw new TestFailed(description + " not released on server");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface with streaming methods. */
+    interface FeedService
+    {
+        InputStream bytes(int length) throws RMIException;
+
+        RemoteIterator<String> names(int count) throws RMIException;
+    }
+
+    /** Implementation of <code>FeedService</code>, counting the streams and
+        iterators it has returned that are not closed yet. */
+    private static class FeedServer implements FeedService
+    {
+        /** Length requesting a stream that fails after its first chunk. */
+        static final int        BROKEN = -2;
+
+        /** Number of streams and iterators not closed. */
+        final AtomicInteger     open = new AtomicInteger();
+
+        /** Returns the byte at a given position of the streams.
+
+            @param position Position in the stream.
+            @return The byte.
+         */
+        static byte byteAt(int position)
+        {
+            return (byte)(position * 31 + (position >> 8));
+        }
+
+        @Override
+        public InputStream bytes(int length)
+        {
+            if(length == -1)
+                return null;
+
+            final boolean   broken = (length == BROKEN);
+            final int       limit = broken ? 10 * RemoteCursor.CHUNK_BYTES
+                                           : length;
+
+            open.incrementAndGet();
+            return new InputStream()
+            {
+                private int     position = 0;
+                private boolean closed = false;
+
+                @Override
+                public int read() throws IOException
+                {
+                    if(broken && position == RemoteCursor.CHUNK_BYTES)
+                        throw new FileNotFoundException("/broken");
+
+                    return (position < limit) ? byteAt(position++) & 0xFF : -1;
+                }
+
+                @Override
+                public void close()
+                {
+                    if(!closed)
+                    {
+                        closed = true;
+                        open.decrementAndGet();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public RemoteIterator<String> names(final int count)
+        {
+            open.incrementAndGet();
+            return new RemoteIterator<String>()
+            {
+                private int     index = 0;
+                private boolean closed = false;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return index < count;
+                }
+
+                @Override
+                public String next()
+                {
+                    if(index >= count)
+                        throw new NoSuchElementException();
+
+                    return "name" + index++;
+                }
+
+                @Override
+                public void close()
+                {
+                    if(!closed)
+                    {
+                        closed = true;
+                        open.decrementAndGet();
+                    }
+                }
+            };
+        }
+    }
+}
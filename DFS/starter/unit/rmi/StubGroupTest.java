@@ -0,0 +1,234 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that group stubs hedge idempotent calls across their endpoints.
+
+    <p>
+    Idempotent calls through a group stub of two skeletons must be answered
+    by the first skeleton while it is fast, and by the second while the first
+    is slow or stopped. An exception thrown by the first skeleton must reach
+    the caller. Calls to other methods must only reach the first skeleton.
+    Calls must time out with the deadline of the caller, and fail once both
+    skeletons are stopped.
+ */
+public class StubGroupTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking hedged group stubs";
+
+    /** Number of calls made while the first skeleton is fast. */
+    private static final int    CALLS = 20;
+
+    /** Skeletons of the group. */
+    private final Skeleton<ReplicaService>[]    skeletons = newSkeletons();
+    /** Server objects called by the skeletons. */
+    private final ReplicaServer[]               servers =
+        {new ReplicaServer(0), new ReplicaServer(1)};
+    /** Group stub for the skeletons. */
+    private ReplicaService                      group;
+
+    /** Starts the skeletons and creates the group stub. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        ReplicaService[]    stubs = new ReplicaService[2];
+
+        for(int index = 0; index < 2; ++index)
+        {
+            skeletons[index] =
+                new Skeleton<ReplicaService>(ReplicaService.class,
+                                             servers[index]);
+
+            try
+            {
+                skeletons[index].start();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start skeleton", t);
+            }
+
+            stubs[index] = Stub.create(ReplicaService.class,
+                new InetSocketAddress("127.0.0.1",
+                    skeletons[index].getBindAddress().getPort()));
+        }
+
+        group = Stub.group(ReplicaService.class, stubs);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    @SuppressWarnings("try") // The scope sets the deadline of the thread.
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            int         first = 0;
+            for(int call = 0; call < CALLS; ++call)
+            {
+                if(group.read() == 0)
+                    ++first;
+            }
+
+            if(first < CALLS / 2)
+                throw new TestFailed("calls not sent to first skeleton");
+
+            group.write();
+            if(servers[0].writes.get() != 1 || servers[1].writes.get() != 0)
+                throw new TestFailed("call to other method not sent to " +
+                                     "first skeleton only");
+
+            try
+            {
+                group.fail();
+                throw new TestFailed("exception not transmitted");
+            }
+            catch(FileNotFoundException e) { }
+
+            servers[0].gate = new CountDownLatch(1);
+            long        start = System.nanoTime();
+            if(group.read() != 1)
+                throw new TestFailed("slow skeleton not hedged");
+            if(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(500))
+                throw new TestFailed("hedged call too slow");
+
+            servers[1].gate = new CountDownLatch(1);
+            try(Deadline.Scope scope = Deadline.within(150))
+            {
+                group.read();
+                throw new TestFailed("call to slow skeletons did not time " +
+                                     "out");
+            }
+            catch(RMITimeoutException e) { }
+
+            openGates();
+
+            skeletons[0].stop();
+            if(group.read() != 1)
+                throw new TestFailed("stopped skeleton not failed over");
+
+            skeletons[1].stop();
+            try
+            {
+                group.read();
+                throw new TestFailed("call to stopped skeletons succeeded");
+            }
+            catch(RMITimeoutException e)
+            {
+                throw new TestFailed("call to stopped skeletons timed out", e);
+            }
+            catch(RMIException e) { }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call group", e);
+        }
+    }
+
+    /** Releases the calls waiting in slow server objects. */
+    private void openGates()
+    {
+        for(ReplicaServer server : servers)
+        {
+            CountDownLatch  gate = server.gate;
+            server.gate = null;
+
+            if(gate != null)
+                gate.countDown();
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        openGates();
+
+        for(Skeleton<ReplicaService> skeleton : skeletons)
+        {
+            if(skeleton != null)
+                skeleton.stop();
+        }
+    }
+
+    /** Creates the array of skeletons.
+
+        @return An array for two skeletons.
+     */
+    @SuppressWarnings("unchecked")
+    private static Skeleton<ReplicaService>[] newSkeletons()
+    {
+        return (Skeleton<ReplicaService>[])new Skeleton<?>[2];
+    }
+
+    /** Remote interface of the test. */
+    interface ReplicaService
+    {
+        @Idempotent
+        int read() throws RMIException;
+
+        @Idempotent
+        void fail() throws RMIException, FileNotFoundException;
+
+        void write() throws RMIException;
+    }
+
+    /** Implementation of <code>ReplicaService</code>. */
+    private static class ReplicaServer implements ReplicaService
+    {
+        /** Index of the server in the group. */
+        private final int               index;
+        /** Number of calls to <code>write</code>. */
+        final AtomicInteger             writes = new AtomicInteger();
+        /** Latch <code>read</code> waits for, or <code>null</code>. */
+        volatile CountDownLatch         gate;
+
+        /** Creates the server object.
+
+            @param index Index of the server in the group.
+         */
+        ReplicaServer(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public int read()
+        {
+            CountDownLatch  latch = gate;
+
+            try
+            {
+                if(latch != null)
+                    latch.await(2, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return index;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("replica " + index);
+        }
+
+        @Override
+        public void write()
+        {
+            writes.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+
+import test.*;
+
+/** Checks that traces are carried by calls and by the calls they cause.
+
+    <p>
+    A client calls a front skeleton within a trace, and the front server
+    object calls a back skeleton. The trace must then hold the client's span,
+    the client and server spans of both calls, each the child of the span
+    that caused it, with the same trace identifier. Calls made outside a trace
+    must record nothing, and work resumed in another thread must join the
+    trace. The buffer must keep only the latest spans.
+ */
+public class TraceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking request traces";
+
+    /** Back skeleton. */
+    private Skeleton<BackService>   back;
+    /** Front skeleton. */
+    private Skeleton<FrontService>  front;
+    /** Stub for the front skeleton. */
+    private FrontService            stub;
+
+    /** Starts the skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        back = new Skeleton<BackService>(BackService.class, new BackServer());
+        start(back);
+
+        BackService     backStub =
+            Stub.create(BackService.class, address(back));
+        front = new Skeleton<FrontService>(FrontService.class,
+                                           new FrontServer(backStub));
+        start(front);
+
+        stub = Stub.create(FrontService.class, address(front));
+        Trace.clear();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    @SuppressWarnings("try") // The scopes trace the calls made while open.
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            stub.relay(1);
+            if(!Trace.getSpans().isEmpty())
+                throw new TestFailed("call outside a trace recorded spans");
+
+            long        traceId;
+            try(Trace.Scope scope = Trace.begin("operation"))
+            {
+                traceId = scope.getContext().getTraceId();
+                if(stub.relay(2) != 3)
+                    throw new TestFailed("incorrect result");
+            }
+
+            checkSpans(traceId);
+
+            final Trace.Context[]   parent = new Trace.Context[1];
+            final RMIException[]    failure = new RMIException[1];
+            try(Trace.Scope scope = Trace.begin("handoff"))
+            {
+                traceId = scope.getContext().getTraceId();
+                parent[0] = Trace.current();
+
+                Thread  worker = new Thread(() ->
+                {
+                    try(Trace.Scope resumed =
+                            Trace.resume(parent[0], "worker"))
+                    {
+                        stub.relay(4);
+                    }
+                    catch(RMIException e)
+                    {
+                        failure[0] = e;
+                    }
+                });
+                worker.start();
+                worker.join();
+            }
+
+            if(failure[0] != null)
+                throw new TestFailed("unable to call from worker", failure[0]);
+            if(Trace.getSpans(traceId).size() != 6)
+                throw new TestFailed("work in another thread not traced");
+
+            Trace.setCapacity(4);
+            try(Trace.Scope scope = Trace.begin("bounded"))
+            {
+                stub.relay(5);
+            }
+            if(Trace.getSpans().size() != 4 ||
+               !Trace.getSpans().get(3).getName().equals("bounded"))
+            {
+                throw new TestFailed("buffer does not keep the latest spans");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("test interrupted", e);
+        }
+    }
+
+    /** Checks the spans of a traced call to the front skeleton.
+
+        @param traceId Identifier of the trace.
+        @throws TestFailed If a span is missing or has the wrong parent.
+     */
+    private void checkSpans(long traceId) throws TestFailed
+    {
+        Map<String, Trace.Span> spans = new HashMap<>();
+        for(Trace.Span span : Trace.getSpans(traceId))
+            spans.put(span.getName(), span);
+
+        String[]    names = {"operation", "call FrontService.relay(int)",
+                             "serve FrontService.relay(int)",
+                             "call BackService.add(int)",
+                             "serve BackService.add(int)"};
+
+        if(spans.size() != names.length)
+            throw new TestFailed("unexpected spans: " + spans.keySet());
+
+        long        parent = 0;
+        long        duration = Long.MAX_VALUE;
+        for(String name : names)
+        {
+            Trace.Span  span = spans.get(name);
+            if(span == null)
+                throw new TestFailed("span " + name + " missing");
+            if(span.getParentId() != parent)
+                throw new TestFailed("span " + name + " has wrong parent");
+            if(span.getDurationNanos() > duration)
+                throw new TestFailed("span " + name + " outlasts its parent");
+
+            parent = span.getSpanId();
+            duration = span.getDurationNanos();
+        }
+    }
+
+    /** Stops the skeletons and restores the buffer. */
+    @Override
+    protected void clean()
+    {
+        if(front != null)
+            front.stop();
+        if(back != null)
+            back.stop();
+
+        Trace.setCapacity(Trace.DEFAULT_CAPACITY);
+    }
+
+    /** Starts a skeleton.
+
+        @param skeleton The skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private static void start(Skeleton<?> skeleton) throws TestFailed
+    {
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Returns the loopback address of a started skeleton.
+
+        @param skeleton The skeleton.
+        @return The address.
+     */
+    private static InetSocketAddress address(Skeleton<?> skeleton)
+    {
+        return new InetSocketAddress("127.0.0.1",
+                                     skeleton.getBindAddress().getPort());
+    }
+
+    /** Remote interface of the front skeleton. */
+    interface FrontService
+    {
+        int relay(int value) throws RMIException;
+    }
+
+    /** Remote interface of the back skeleton. */
+    interface BackService
+    {
+        int add(int value) throws RMIException;
+    }
+
+    /** Implementation of <code>FrontService</code>, calling the back
+        skeleton. */
+    private static class FrontServer implements FrontService
+    {
+        /** Stub for the back skeleton. */
+        private final BackService   back;
+
+        /** Creates the server object.
+
+            @param back Stub for the back skeleton.
+         */
+        FrontServer(BackService back)
+        {
+            this.back = back;
+        }
+
+        @Override
+        public int relay(int value) throws RMIException
+        {
+            return back.add(value);
+        }
+    }
+
+    /** Implementation of <code>BackService</code>. */
+    private static class BackServer implements BackService
+    {
+        @Override
+        public int add(int value)
+        {
+            return value + 1;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that stubs and skeletons use the preferred transports.
+
+    <p>
+    With each skeleton engine, a skeleton started while the in-memory
+    transport is preferred must register with it, and calls through pooled
+    and multiplexed connections must go over in-memory pipes and succeed with
+    small arguments and with arguments larger than a pipe. A slow call with a
+    deadline must time out. Once the skeleton is stopped, the transport must
+    no longer reach it. A preferred transport that fails to connect must not
+    prevent calls over TCP.
+ */
+public class TransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking pluggable transports";
+
+    /** Length of the large array sent. */
+    private static final int    LENGTH = 1024 * 1024;
+
+    /** Skeleton used in the test. */
+    private Skeleton<RelayService>  skeleton;
+    /** In-memory transport, counting the connections it opens. */
+    private final CountingTransport memory =
+        new CountingTransport(new InMemoryTransport());
+    /** Preferred transports before the test. */
+    private List<Transport>         preferred;
+
+    /** Prefers the in-memory transport. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        preferred = Transports.getPreferred();
+        Transports.setPreferred(memory);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+            testEngine(engine);
+
+        testFailingTransport();
+    }
+
+    /** Calls a skeleton using the given engine over in-memory pipes.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine) throws TestFailed
+    {
+        InetSocketAddress   address = start(engine);
+        List<SocketAddress> addresses = skeleton.getTransportAddresses();
+
+        if(addresses.size() != 1 ||
+           !addresses.get(0).toString().equals("memory:" + address.getPort()))
+        {
+            throw new TestFailed("skeleton not registered with transport: " +
+                                 addresses);
+        }
+
+        RelayService        stub = Stub.create(RelayService.class, address);
+        byte[]              data = new byte[LENGTH];
+        new Random(2).nextBytes(data);
+        int                 connections = memory.connections.get();
+
+        try
+        {
+            for(RelayService caller :
+                    new RelayService[] {stub, Stub.multiplexed(stub)})
+            {
+                if(caller.echo(new byte[] {5})[0] != 5 ||
+                   !Arrays.equals(caller.echo(data), data))
+                {
+                    throw new TestFailed("incorrect result with " + engine +
+                                         " engine");
+                }
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton with " + engine +
+                                 " engine", e);
+        }
+
+        if(memory.connections.get() == connections)
+        {
+            throw new TestFailed("calls not made over in-memory transport " +
+                                 "with " + engine + " engine");
+        }
+
+        try
+        {
+            Stub.withTimeout(stub, 100).sleep(2000);
+            throw new TestFailed("slow call did not time out");
+        }
+        catch(RMITimeoutException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("slow call failed", e);
+        }
+
+        ConnectionPool.getShared().clear(address);
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            if(memory.connect(address, 0) != null)
+                throw new TestFailed("stopped skeleton still reachable");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to check stopped skeleton", e);
+        }
+    }
+
+    /** Checks that calls go over TCP when a preferred transport fails.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testFailingTransport() throws TestFailed
+    {
+        Transports.setPreferred(new FailingTransport());
+        InetSocketAddress   address = start(Skeleton.Engine.BLOCKING);
+
+        try
+        {
+            if(Stub.create(RelayService.class, address)
+                    .echo(new byte[] {9})[0] != 9)
+            {
+                throw new TestFailed("incorrect result over TCP");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton over TCP", e);
+        }
+
+        ConnectionPool.getShared().clear(address);
+    }
+
+    /** Starts the skeleton.
+
+        @param engine The skeleton engine.
+        @return The loopback address of the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private InetSocketAddress start(Skeleton.Engine engine) throws TestFailed
+    {
+        skeleton = new Skeleton<RelayService>(RelayService.class,
+                                              new RelayServer());
+        skeleton.setEngine(engine);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return new InetSocketAddress("127.0.0.1",
+                                     skeleton.getBindAddress().getPort());
+    }
+
+    /** Stops the skeleton and restores the preferred transports. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        Transports.setPreferred(preferred.toArray(new Transport[0]));
+    }
+
+    /** Transport counting the connections opened by another. */
+    private static class CountingTransport implements Transport
+    {
+        /** Transport opening the connections. */
+        private final Transport     transport;
+        /** Number of connections opened. */
+        final AtomicInteger         connections = new AtomicInteger();
+
+        /** Creates the transport.
+
+            @param transport Transport opening the connections.
+         */
+        CountingTransport(Transport transport)
+        {
+            this.transport = transport;
+        }
+
+        @Override
+        public String getName()
+        {
+            return transport.getName();
+        }
+
+        @Override
+        public Socket connect(InetSocketAddress address, int timeout)
+            throws IOException
+        {
+            Socket  socket = transport.connect(address, timeout);
+
+            if(socket != null)
+                connections.incrementAndGet();
+
+            return socket;
+        }
+
+        @Override
+        public Listener listen(InetSocketAddress address, Server server)
+            throws IOException
+        {
+            return transport.listen(address, server);
+        }
+    }
+
+    /** Transport that fails to open any connection. */
+    private static class FailingTransport implements Transport
+    {
+        @Override
+        public String getName()
+        {
+            return "failing";
+        }
+
+        @Override
+        public Socket connect(InetSocketAddress address, int timeout)
+            throws IOException
+        {
+            throw new IOException("connection refused");
+        }
+
+        @Override
+        public Listener listen(InetSocketAddress address, Server server)
+        {
+            return null;
+        }
+    }
+
+    /** Remote interface of the test. */
+    interface RelayService
+    {
+        byte[] echo(byte[] data) throws RMIException;
+
+        void sleep(long millis) throws RMIException;
+    }
+
+    /** Implementation of <code>RelayService</code>. */
+    private static class RelayServer implements RelayService
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
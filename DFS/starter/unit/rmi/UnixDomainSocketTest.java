@@ -0,0 +1,332 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+import test.*;
+
+/** Checks that stubs reach skeletons on the same host over Unix domain
+    sockets.
+
+    <p>
+    With each skeleton engine, a skeleton bound to the wildcard address must
+    listen on a Unix domain socket in the socket directory, and connections
+    to it from this host must use that socket. Calls through pooled and
+    multiplexed connections must succeed with small and large arguments, and
+    a slow call with a deadline must time out. The socket file must be removed
+    when the skeleton stops. A socket file left without a skeleton behind it
+    must not prevent calls over TCP, and a socket file owned by another user
+    must not be connected to.
+
+    <p>
+    The transport must refuse a socket directory that other users can access,
+    or that is a symbolic link.
+
+    <p>
+    The test passes trivially on runtimes without Unix domain sockets.
+ */
+public class UnixDomainSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Unix domain sockets";
+
+    /** Length of the large array sent. */
+    private static final int    LENGTH = 1024 * 1024;
+
+    /** Skeleton used in the test. */
+    private Skeleton<PipeService>   skeleton;
+    /** Socket directory of the test. */
+    private Path                    directory;
+    /** Transport under test. */
+    private UnixDomainTransport     transport;
+    /** Preferred transports before the test. */
+    private List<Transport>         preferred;
+
+    /** Prefers Unix domain sockets in a directory of the test's own. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        if(!UnixDomainTransport.isSupported())
+            return;
+
+        try
+        {
+            directory = Files.createTempDirectory("rmi");
+            transport = new UnixDomainTransport(directory);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create socket directory", e);
+        }
+
+        preferred = Transports.getPreferred();
+        Transports.setPreferred(transport);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(!UnixDomainTransport.isSupported())
+            return;
+
+        for(Skeleton.Engine engine : Skeleton.Engine.values())
+            testEngine(engine);
+
+        testStaleFile();
+        testForeignFile();
+        testDirectory();
+    }
+
+    /** Calls a skeleton using the given engine over its Unix domain socket.
+
+        @param engine The skeleton engine.
+        @throws TestFailed If the test fails.
+     */
+    private void testEngine(Skeleton.Engine engine) throws TestFailed
+    {
+        InetSocketAddress   address = start(engine);
+        Path                file = directory.resolve(
+            "rmi-" + address.getPort() + ".sock");
+
+        if(skeleton.getTransportAddresses().isEmpty() || !Files.exists(file))
+            throw new TestFailed("skeleton not listening on a socket file");
+
+        try(Socket socket = transport.connect(address, 1000))
+        {
+            if(!(socket instanceof UnixDomainSocket))
+                throw new TestFailed("local connection not made over socket " +
+                                     "file with " + engine + " engine");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to connect to skeleton", e);
+        }
+
+        PipeService         stub = Stub.create(PipeService.class, address);
+        byte[]              data = new byte[LENGTH];
+        new Random(1).nextBytes(data);
+
+        try
+        {
+            for(PipeService caller :
+                    new PipeService[] {stub, Stub.multiplexed(stub)})
+            {
+                if(caller.echo(new byte[] {7})[0] != 7 ||
+                   !Arrays.equals(caller.echo(data), data))
+                {
+                    throw new TestFailed("incorrect result with " + engine +
+                                         " engine");
+                }
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton with " + engine +
+                                 " engine", e);
+        }
+
+        try
+        {
+            Stub.withTimeout(stub, 100).sleep(2000);
+            throw new TestFailed("slow call did not time out");
+        }
+        catch(RMITimeoutException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("slow call failed", e);
+        }
+
+        ConnectionPool.getShared().clear(address);
+        skeleton.stop();
+        skeleton = null;
+
+        if(Files.exists(file))
+            throw new TestFailed("socket file not removed by stop");
+    }
+
+    /** Checks that calls go over TCP when the socket file has no skeleton
+        behind it.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testStaleFile() throws TestFailed
+    {
+        Transports.setPreferred();
+        InetSocketAddress   address = start(Skeleton.Engine.BLOCKING);
+        Transports.setPreferred(transport);
+
+        try
+        {
+            Files.createFile(directory.resolve(
+                "rmi-" + address.getPort() + ".sock"));
+
+            if(Stub.create(PipeService.class, address)
+                    .echo(new byte[] {3})[0] != 3)
+            {
+                throw new TestFailed("incorrect result over TCP");
+            }
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton over TCP", e);
+        }
+
+        ConnectionPool.getShared().clear(address);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks that a socket file owned by another user is not connected to.
+        The check is skipped if the owner of the file cannot be changed.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testForeignFile() throws TestFailed
+    {
+        InetSocketAddress   address = start(Skeleton.Engine.BLOCKING);
+        Path                file = directory.resolve(
+            "rmi-" + address.getPort() + ".sock");
+
+        try
+        {
+            Files.setOwner(file, file.getFileSystem()
+                .getUserPrincipalLookupService()
+                .lookupPrincipalByName("nobody"));
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+
+        try(Socket socket = transport.connect(address, 1000))
+        {
+            if(socket != null)
+                throw new TestFailed("socket file of another user used");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("socket file of another user used", e);
+        }
+    }
+
+    /** Checks that socket directories other users can access are refused.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testDirectory() throws TestFailed
+    {
+        Path        shared = directory.resolve("shared");
+        Path        link = directory.resolve("link");
+
+        try
+        {
+            Files.createDirectory(shared);
+            Files.setPosixFilePermissions(shared,
+                PosixFilePermissions.fromString("rwxr-xr-x"));
+            Files.createSymbolicLink(link, directory);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create directories", e);
+        }
+
+        for(Path refused : new Path[] {shared, link})
+        {
+            try
+            {
+                new UnixDomainTransport(refused);
+                throw new TestFailed("socket directory " + refused +
+                                     " accepted");
+            }
+            catch(IOException e) { }
+        }
+    }
+
+    /** Starts the skeleton.
+
+        @param engine The skeleton engine.
+        @return The loopback address of the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private InetSocketAddress start(Skeleton.Engine engine) throws TestFailed
+    {
+        skeleton = new Skeleton<PipeService>(PipeService.class,
+                                             new PipeServer());
+        skeleton.setEngine(engine);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return new InetSocketAddress("127.0.0.1",
+                                     skeleton.getBindAddress().getPort());
+    }
+
+    /** Stops the skeleton, removes the socket directory and restores the
+        preferred transports. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(directory == null)
+            return;
+
+        Transports.setPreferred(preferred.toArray(new Transport[0]));
+
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for(Path file : files)
+                Files.delete(file);
+            Files.delete(directory);
+        }
+        catch(IOException e) { }
+    }
+
+    /** Remote interface of the test. */
+    interface PipeService
+    {
+        byte[] echo(byte[] data) throws RMIException;
+
+        void sleep(long millis) throws RMIException;
+    }
+
+    /** Implementation of <code>PipeService</code>. */
+    private static class PipeServer implements PipeService
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
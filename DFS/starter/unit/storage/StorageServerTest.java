@@ -0,0 +1,278 @@
+package storage;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import common.*;
+import rmi.*;
+import test.*;
+
+/** Checks file operations of the storage server called directly.
+
+    <p>
+    The test writes into an existing file at several offsets. Each write must
+    replace only the bytes it covers, so that a file can be written block by
+    block.
+
+    <p>
+    The test then copies a file from a source server whose reads block. While
+    the copy waits for the source, the storage server must go on serving other
+    requests.
+
+    <p>
+    Finally, the test deletes the only file of a nested directory, whose empty
+    parents must be removed with it, and a file whose parent directory does not
+    exist, which must fail without an exception.
+ */
+public class StorageServerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server files";
+
+    /** Time allowed for a request during the copy, in milliseconds. */
+    private static final long   TIMEOUT = 1000;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Storage server used in the test. It is not started; its methods are
+        called directly. */
+    private StorageServer       server;
+    /** Source of the copied file. */
+    private GatedSource         source;
+    /** Threads making the copy and the request during the copy. */
+    private ExecutorService     caller;
+
+    /** Creates the storage server over a directory with two files.
+
+        @throws TestFailed If the directory cannot be created.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"f"}, "abcdefgh");
+            directory.add(new String[] {"d", "e", "x"});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create directory", t);
+        }
+
+        server = new StorageServer(directory.root());
+        source = new GatedSource("copied");
+        caller = Executors.newFixedThreadPool(2);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testWrite();
+        testCopy();
+        testDelete();
+    }
+
+    /** Checks that writes do not truncate the file.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testWrite() throws TestFailed
+    {
+        Path        file = new Path("/f");
+
+        try
+        {
+            server.write(file, 4, "XY".getBytes());
+            expect(file, "abcdXYgh", "write truncated the file");
+
+            server.write(file, 8, "ij".getBytes());
+            expect(file, "abcdXYghij", "write past the end lost the file");
+
+            server.write(file, 0, "A".getBytes());
+            expect(file, "AbcdXYghij", "write at the start truncated the " +
+                                       "file");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write file", t);
+        }
+    }
+
+    /** Checks that the storage server serves requests while a copy waits for
+        the source server.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCopy() throws TestFailed
+    {
+        Path        file = new Path("/f");
+        Path        copied = new Path("/g");
+
+        try
+        {
+            Future<Boolean> copy =
+                caller.submit(() -> server.copy(copied, source));
+            if(!source.reading.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("copy did not read the source");
+
+            Future<Long>    size = caller.submit(() -> server.size(file));
+            try
+            {
+                size.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e)
+            {
+                throw new TestFailed("storage server locked while copy " +
+                                     "reads the source");
+            }
+
+            source.gate.countDown();
+            if(!copy.get(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("copy failed");
+            expect(copied, "copied", "copy wrote wrong contents");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to copy file", t);
+        }
+        finally
+        {
+            source.gate.countDown();
+        }
+    }
+
+    /** Checks that deletion removes empty parent directories, and fails for a
+        file whose parent directory is missing.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testDelete() throws TestFailed
+    {
+        try
+        {
+            if(!server.delete(new Path("/d/e/x")))
+                throw new TestFailed("file not deleted");
+            if(new File(directory.root(), "d").exists())
+                throw new TestFailed("empty parent directories not deleted");
+
+            if(server.delete(new Path("/missing/dir/file")))
+                throw new TestFailed("file in missing directory deleted");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to delete file", t);
+        }
+    }
+
+    /** Checks the contents of a file on the storage server.
+
+        @param file The file.
+        @param contents The expected contents.
+        @param description Description of the failure if the contents differ.
+        @throws TestFailed If the contents differ.
+        @throws Exception If the file cannot be read.
+     */
+    private void expect(Path file, String contents, String description)
+        throws Exception
+    {
+        String      read =
+            new String(server.read(file, 0, (int)server.size(file)));
+
+        if(!read.equals(contents))
+        {
+            throw new TestFailed(description + ": expected \"" + contents +
+                                 "\", read \"" + read + "\"");
+        }
+    }
+
+    /** Releases the copy, and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(source != null)
+            source.gate.countDown();
+
+        if(caller != null)
+        {
+            caller.shutdownNow();
+            caller = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Source server holding one file, whose reads block until its gate
+        opens. */
+    private static class GatedSource implements Storage
+    {
+        /** Contents of the file. */
+        private final byte[]            contents;
+        /** Opened when a read has started. */
+        final CountDownLatch            reading = new CountDownLatch(1);
+        /** Gate blocking reads. */
+        final CountDownLatch            gate = new CountDownLatch(1);
+
+        /** Creates the source.
+
+            @param contents Contents of the file.
+         */
+        GatedSource(String contents)
+        {
+            this.contents = contents.getBytes();
+        }
+
+        @Override
+        public long size(Path file)
+        {
+            return contents.length;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws IOException
+        {
+            reading.countDown();
+
+            try
+            {
+                gate.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException("read interrupted");
+            }
+
+            byte[]  data = new byte[length];
+            System.arraycopy(contents, (int)offset, data, 0, length);
+            return data;
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws RMIException
+        {
+            throw new RMIException("source is read-only");
+        }
+    }
+}